@@ -0,0 +1,50 @@
+/*
+ * BenchmarkContext.java
+ */
+
+package nsl.benchmark;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import nsl.*;
+
+/**
+ * Sets up the compilation context that a parsing benchmark runs in.
+ * @author Stuart
+ */
+public class BenchmarkContext
+{
+  /**
+   * Class constructor.
+   */
+  private BenchmarkContext()
+  {
+  }
+
+  /**
+   * Binds a new compilation context to the current thread. Warnings are
+   * discarded.
+   * @return the compilation context
+   */
+  public static CompilationContext create()
+  {
+    CompilationContext context = new CompilationContext();
+    context.setStdout(new PrintWriter(new StringWriter()));
+    CompilationContext.setCurrent(context);
+    return context;
+  }
+
+  /**
+   * Binds a new compilation context to the current thread and makes a
+   * tokenizer of the given text its current tokenizer.
+   * @param text the text to parse
+   * @param source the source name used in error messages
+   * @return the tokenizer, which is on the first token
+   */
+  public static Tokenizer begin(String text, String source)
+  {
+    create();
+    ScriptParser.pushTokenizer(new Tokenizer(text, source));
+    return ScriptParser.getTokenizer();
+  }
+}
@@ -0,0 +1,38 @@
+/*
+ * BenchmarkMain.java
+ */
+
+package nsl.benchmark;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the nsL benchmarks with the GC profiler so that every benchmark
+ * reports its allocation rate alongside its throughput. Takes the usual JMH
+ * command line options, e.g. <code>-p lines=1000000</code> to scale the
+ * scripts up or a benchmark name pattern to run just some of them.
+ * @author Stuart
+ */
+public class BenchmarkMain
+{
+  /**
+   * @param args the JMH command line arguments
+   */
+  public static void main(String[] args) throws Exception
+  {
+    CommandLineOptions commandLine = new CommandLineOptions(args);
+    OptionsBuilder builder = new OptionsBuilder();
+    builder.parent(commandLine);
+    if (commandLine.getIncludes().isEmpty())
+      builder.include("nsl\\.benchmark\\..*");
+    builder.addProfiler(GCProfiler.class);
+    builder.jvmArgsAppend("-Dnsl.examples=" + Workloads.getExamplesDir().getAbsolutePath());
+
+    Options options = builder.build();
+    new Runner(options).run();
+  }
+}
@@ -0,0 +1,52 @@
+/*
+ * ExpressionBenchmark.java
+ */
+
+package nsl.benchmark;
+
+import java.util.concurrent.TimeUnit;
+import nsl.Tokenizer;
+import nsl.expression.*;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Measures parsing expressions with {@link Expression#matchComplex()}. The
+ * expressions mix arithmetic, string concatenation, registers, comparisons,
+ * boolean operators and function calls.
+ * @author Stuart
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class ExpressionBenchmark
+{
+  @Param({"1000"})
+  public int lines;
+
+  private String text;
+
+  /**
+   * Generates the expressions to parse.
+   */
+  @Setup
+  public void setUp()
+  {
+    this.text = Workloads.generateExpressions(this.lines);
+  }
+
+  /**
+   * Parses the expressions.
+   * @param blackhole consumes the expressions
+   */
+  @Benchmark
+  public void matchComplex(Blackhole blackhole)
+  {
+    Tokenizer tokenizer = BenchmarkContext.begin(this.text, "benchmark");
+    while (tokenizer.ttype != Tokenizer.TT_EOF)
+    {
+      blackhole.consume(Expression.matchComplex());
+      tokenizer.matchEolOrDie();
+    }
+  }
+}
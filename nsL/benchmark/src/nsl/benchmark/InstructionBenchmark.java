@@ -0,0 +1,53 @@
+/*
+ * InstructionBenchmark.java
+ */
+
+package nsl.benchmark;
+
+import java.util.concurrent.TimeUnit;
+import nsl.SectionInfo;
+import nsl.Tokenizer;
+import nsl.statement.*;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Measures looking up and parsing NSIS instructions with
+ * {@link Statement#matchInstruction(int)} inside a section.
+ * @author Stuart
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class InstructionBenchmark
+{
+  @Param({"1000"})
+  public int lines;
+
+  private String text;
+
+  /**
+   * Generates the instructions to parse.
+   */
+  @Setup
+  public void setUp()
+  {
+    this.text = Workloads.generateInstructions(this.lines);
+  }
+
+  /**
+   * Parses the instructions.
+   * @param blackhole consumes the instructions
+   */
+  @Benchmark
+  public void matchInstruction(Blackhole blackhole)
+  {
+    Tokenizer tokenizer = BenchmarkContext.begin(this.text, "benchmark");
+    SectionInfo.setCurrent(new SectionInfo());
+    while (tokenizer.ttype != Tokenizer.TT_EOF)
+    {
+      blackhole.consume(Statement.matchInstruction(0));
+      tokenizer.matchEolOrDie();
+    }
+  }
+}
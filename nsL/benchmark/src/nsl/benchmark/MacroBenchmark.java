@@ -0,0 +1,73 @@
+/*
+ * MacroBenchmark.java
+ */
+
+package nsl.benchmark;
+
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+import nsl.CompilationContext;
+import nsl.SectionInfo;
+import nsl.expression.*;
+import nsl.preprocessor.*;
+import nsl.statement.*;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Measures macro expansion with {@link Macro#evaluate(ArrayList, int)}. One
+ * macro returns a constant expression and the other inserts statements as
+ * well as returning a value.
+ * @author Stuart
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class MacroBenchmark
+{
+  @Param({"1000"})
+  public int lines;
+
+  private Macro scale;
+  private Macro report;
+
+  /**
+   * Creates the macros to expand.
+   */
+  @Setup
+  public void setUp()
+  {
+    this.scale = new Macro("Scale", new String[] { "Value", "Factor" }, 1, "\n  #return Value * Factor + (Value - 1) / 2\n");
+    this.report = new Macro("Report", new String[] { "Text", "Count" }, 1, "\n  DetailPrint(Text . \" \" . Count);\n  SetOutPath($INSTDIR . \"\\\\\" . Text);\n  #return Count + 1\n");
+  }
+
+  /**
+   * Expands the macros, one per line.
+   * @param blackhole consumes the expansions
+   */
+  @Benchmark
+  public void evaluate(Blackhole blackhole)
+  {
+    // Macros that return a value add an assignment statement to the current
+    // statement list, so an empty one is matched first.
+    BenchmarkContext.begin("}", "benchmark");
+    SectionInfo.setCurrent(new SectionInfo());
+    CompilationContext.getCurrent().setStatementList(StatementList.match());
+    for (int i = 0; i < this.lines; i++)
+    {
+      ArrayList<Expression> params = new ArrayList<Expression>();
+      if (i % 2 == 0)
+      {
+        params.add(Expression.fromInteger(i));
+        params.add(Expression.fromInteger(3));
+        blackhole.consume(this.scale.evaluate(params, 1));
+      }
+      else
+      {
+        params.add(Expression.fromString("Item"));
+        params.add(Expression.fromInteger(i));
+        blackhole.consume(this.report.evaluate(params, 1));
+      }
+    }
+  }
+}
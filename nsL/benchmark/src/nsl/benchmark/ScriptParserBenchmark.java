@@ -0,0 +1,93 @@
+/*
+ * ScriptParserBenchmark.java
+ */
+
+package nsl.benchmark;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.nio.charset.Charset;
+import java.util.concurrent.TimeUnit;
+import nsl.CompilationContext;
+import nsl.MemoryNsiSink;
+import nsl.ScriptParser;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Measures compiling whole scripts with
+ * {@link ScriptParser#parse(CompilationContext, boolean, boolean, PrintWriter, PrintWriter)}
+ * to an in-memory sink, which covers parsing and assembling. The synthetic
+ * workload is one generated script and the examples workload compiles every
+ * example script.
+ * @author Stuart
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class ScriptParserBenchmark
+{
+  @Param({"1000"})
+  public int lines;
+
+  @Param({Workloads.SYNTHETIC, Workloads.EXAMPLES})
+  public String workload;
+
+  @Param({"1"})
+  public int assemblyThreads;
+
+  private File[] scripts;
+
+  /**
+   * Generates the scripts to compile and checks that they compile.
+   */
+  @Setup
+  public void setUp() throws IOException
+  {
+    if (this.workload.equals(Workloads.SYNTHETIC))
+      this.scripts = new File[] { Workloads.writeTemporary(Workloads.generateScript(this.lines)) };
+    else
+      this.scripts = Workloads.getExamples();
+
+    for (File script : this.scripts)
+    {
+      StringWriter errors = new StringWriter();
+      if (this.compile(script, new PrintWriter(errors)).length() == 0)
+        throw new IllegalStateException("Compiling " + script + " failed: " + errors);
+    }
+  }
+
+  /**
+   * Compiles a script to memory.
+   * @param script the script to compile
+   * @param stderr the writer to print errors to
+   * @return the NSIS script or an empty string if the compilation failed
+   */
+  private String compile(File script, PrintWriter stderr) throws IOException
+  {
+    CompilationContext context = new CompilationContext();
+    context.setScriptPath(script.getPath());
+    context.setAssemblyThreads(this.assemblyThreads);
+    MemoryNsiSink sink = new MemoryNsiSink(Charset.defaultCharset());
+    context.setSink(sink);
+
+    if (ScriptParser.parse(context, true, true, new PrintWriter(new StringWriter()), stderr) != 0)
+      return "";
+    return sink.getText();
+  }
+
+  /**
+   * Compiles the scripts.
+   * @return the total length of the NSIS scripts
+   */
+  @Benchmark
+  public int parse() throws IOException
+  {
+    PrintWriter stderr = new PrintWriter(new StringWriter());
+    int length = 0;
+    for (File script : this.scripts)
+      length += this.compile(script, stderr).length();
+    return length;
+  }
+}
@@ -0,0 +1,53 @@
+/*
+ * TokenizerBenchmark.java
+ */
+
+package nsl.benchmark;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import nsl.Tokenizer;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Measures lexing a whole script with {@link Tokenizer#tokenNext()}.
+ * @author Stuart
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class TokenizerBenchmark
+{
+  @Param({"1000"})
+  public int lines;
+
+  @Param({Workloads.SYNTHETIC, Workloads.EXAMPLES})
+  public String workload;
+
+  private String text;
+
+  /**
+   * Generates the script to lex.
+   */
+  @Setup
+  public void setUp() throws IOException
+  {
+    this.text = Workloads.getScript(this.workload, this.lines);
+    BenchmarkContext.create();
+  }
+
+  /**
+   * Lexes the script.
+   * @return the number of tokens
+   */
+  @Benchmark
+  public int tokenNext()
+  {
+    Tokenizer tokenizer = new Tokenizer(this.text, "benchmark");
+    tokenizer.setAutoPop(false);
+    int tokens = 0;
+    while (tokenizer.tokenNext())
+      tokens++;
+    return tokens;
+  }
+}
@@ -0,0 +1,310 @@
+/*
+ * Workloads.java
+ */
+
+package nsl.benchmark;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Generates the nsL scripts that the benchmarks run on. Synthetic scripts are
+ * built from templates up to a given number of lines so that the benchmarks
+ * can be scaled from small scripts to production sized ones. Example derived
+ * scripts repeat the scripts in the examples directory.
+ * @author Stuart
+ */
+public class Workloads
+{
+  /**
+   * The workload made from templates.
+   */
+  public static final String SYNTHETIC = "synthetic";
+
+  /**
+   * The workload made from the example scripts.
+   */
+  public static final String EXAMPLES = "examples";
+
+  /**
+   * Class constructor.
+   */
+  private Workloads()
+  {
+  }
+
+  /**
+   * Gets the examples directory. This can be set with the nsl.examples system
+   * property and is otherwise ../examples relative to the benchmark module.
+   * @return the examples directory
+   */
+  public static File getExamplesDir()
+  {
+    File dir = new File(System.getProperty("nsl.examples", "../examples"));
+    if (!dir.isDirectory())
+      throw new IllegalStateException("Examples directory " + dir.getAbsolutePath() + " not found; set -Dnsl.examples");
+    return dir;
+  }
+
+  /**
+   * Gets the example scripts in name order.
+   * @return the example scripts
+   */
+  public static File[] getExamples()
+  {
+    File[] files = getExamplesDir().listFiles();
+    ArrayList<File> examples = new ArrayList<File>();
+    for (File file : files)
+      if (file.getName().endsWith(".nsl"))
+        examples.add(file);
+
+    File[] sorted = examples.toArray(new File[examples.size()]);
+    Arrays.sort(sorted);
+    return sorted;
+  }
+
+  /**
+   * Gets the text of a workload.
+   * @param workload {@link #SYNTHETIC} or {@link #EXAMPLES}
+   * @param lines the minimum number of lines
+   * @return the script text
+   */
+  public static String getScript(String workload, int lines) throws IOException
+  {
+    if (workload.equals(SYNTHETIC))
+      return generateScript(lines);
+    if (workload.equals(EXAMPLES))
+      return repeatExamples(lines);
+    throw new IllegalArgumentException("Unknown workload " + workload);
+  }
+
+  /**
+   * Repeats the example scripts until there are at least the given number of
+   * lines. The result is only suitable for lexing as functions and sections
+   * are redefined.
+   * @param lines the minimum number of lines
+   * @return the script text
+   */
+  public static String repeatExamples(int lines) throws IOException
+  {
+    StringBuilder examples = new StringBuilder();
+    int exampleLines = 0;
+    for (File example : getExamples())
+    {
+      String text = read(example);
+      examples.append(text);
+      if (!text.endsWith("\n"))
+        examples.append('\n');
+      exampleLines += countLines(text);
+    }
+
+    StringBuilder script = new StringBuilder();
+    for (int count = 0; count < lines; count += exampleLines)
+      script.append(examples);
+    return script.toString();
+  }
+
+  /**
+   * Generates a synthetic script with at least the given number of lines. The
+   * script uses constants, macros, functions, sections, loops, switches and
+   * NSIS instructions and assembles without errors.
+   * @param lines the minimum number of lines
+   * @return the script text
+   */
+  public static String generateScript(int lines)
+  {
+    StringBuilder script = new StringBuilder();
+    script.append("OutFile(\"Synthetic.exe\");\n");
+    script.append("ShowInstDetails(\"show\");\n");
+    script.append("RequestExecutionLevel(\"admin\");\n");
+    script.append("$Counter = 0;\n");
+
+    int count = 4;
+    for (int i = 0; count < lines; i++)
+    {
+      String block = generateBlock(i);
+      script.append(block);
+      count += countLines(block);
+    }
+    return script.toString();
+  }
+
+  /**
+   * Generates one block of the synthetic script.
+   * @param i the block number, which makes the names in it unique
+   * @return the block text
+   */
+  private static String generateBlock(int i)
+  {
+    StringBuilder block = new StringBuilder();
+    block.append("#define Name").append(i).append(" \"Item ").append(i).append("\"\n");
+    block.append("#macro Scale").append(i).append("(Value, Factor)\n");
+    block.append("  #return Value * Factor + ").append(i % 97).append('\n');
+    block.append("#macroend\n");
+    block.append('\n');
+    block.append("function Compute").append(i).append("($a, $b)\n");
+    block.append("{\n");
+    block.append("  $r = $a + $b * ").append(i % 13 + 1).append(" - Scale").append(i).append("(2, 3);\n");
+    block.append("  for ($i = 0; $i < ").append(i % 7 + 2).append("; $i++)\n");
+    block.append("  {\n");
+    block.append("    if ($r > 100 && $i != 3)\n");
+    block.append("      break;\n");
+    block.append("    $r = $r + $i;\n");
+    block.append("  }\n");
+    block.append("  switch ($r)\n");
+    block.append("  {\n");
+    block.append("    case 1: DetailPrint(\"one\"); break;\n");
+    block.append("    case 2: DetailPrint(\"two\"); break;\n");
+    block.append("    default: DetailPrint(Name").append(i).append(" . \" \" . $r); break;\n");
+    block.append("  }\n");
+    block.append("  return $r;\n");
+    block.append("}\n");
+    block.append('\n');
+
+    if (i % 4 == 0)
+    {
+      block.append("section Section").append(i).append("()\n");
+      block.append("{\n");
+      block.append("  SetOutPath($INSTDIR . \"\\\\Part").append(i).append("\");\n");
+      block.append("  $Counter = Compute").append(i).append("($Counter, ").append(i).append(");\n");
+      block.append("  WriteRegStr(\"HKCU\", \"Software\\\\nsL\\\\").append(i).append("\", \"Count\", $Counter);\n");
+      block.append("  while ($Counter < ").append(i + 10).append(")\n");
+      block.append("    $Counter++;\n");
+      block.append("}\n");
+      block.append('\n');
+    }
+    return block.toString();
+  }
+
+  /**
+   * Generates lines of expressions, one per line and each followed by a
+   * semicolon.
+   * @param lines the number of lines
+   * @return the expressions text
+   */
+  public static String generateExpressions(int lines)
+  {
+    StringBuilder text = new StringBuilder();
+    for (int i = 0; i < lines; i++)
+    {
+      switch (i % 5)
+      {
+        case 0:
+          text.append("(").append(i).append(" + 7) * 3 - ").append(i % 11).append(" / 2;\n");
+          break;
+        case 1:
+          text.append("\"Item \" . ").append(i).append(" . \" of \" . $R0;\n");
+          break;
+        case 2:
+          text.append("$R1 + $R2 * ").append(i).append(" - ($0 << 2);\n");
+          break;
+        case 3:
+          text.append("$R3 > ").append(i).append(" && ($R4 == \"x\" || !($R5 < 3));\n");
+          break;
+        default:
+          text.append("Compute").append(i).append("($R6, ").append(i).append(", \"text\");\n");
+          break;
+      }
+    }
+    return text.toString();
+  }
+
+  /**
+   * Generates lines of NSIS instructions, one per line and each followed by a
+   * semicolon.
+   * @param lines the number of lines
+   * @return the instructions text
+   */
+  public static String generateInstructions(int lines)
+  {
+    StringBuilder text = new StringBuilder();
+    for (int i = 0; i < lines; i++)
+    {
+      switch (i % 5)
+      {
+        case 0:
+          text.append("DetailPrint(\"Line ").append(i).append("\");\n");
+          break;
+        case 1:
+          text.append("SetOutPath($INSTDIR . \"\\\\Dir").append(i).append("\");\n");
+          break;
+        case 2:
+          text.append("WriteRegStr(\"HKCU\", \"Software\\\\nsL\", \"Value").append(i).append("\", $INSTDIR);\n");
+          break;
+        case 3:
+          text.append("DeleteRegKey(\"HKCU\", \"Software\\\\nsL\\\\").append(i).append("\");\n");
+          break;
+        default:
+          text.append("ClearErrors();\n");
+          break;
+      }
+    }
+    return text.toString();
+  }
+
+  /**
+   * Writes a script to a temporary file that is deleted on exit.
+   * @param text the script text
+   * @return the script file
+   */
+  public static File writeTemporary(String text) throws IOException
+  {
+    File file = File.createTempFile("nslbench", ".nsl");
+    file.deleteOnExit();
+    Writer writer = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+    try
+    {
+      writer.write(text);
+    }
+    finally
+    {
+      writer.close();
+    }
+    return file;
+  }
+
+  /**
+   * Reads the text of a file.
+   * @param file the file to read
+   * @return the file text
+   */
+  public static String read(File file) throws IOException
+  {
+    StringBuilder text = new StringBuilder();
+    Reader reader = new InputStreamReader(new FileInputStream(file));
+    try
+    {
+      char[] buffer = new char[8192];
+      int read;
+      while ((read = reader.read(buffer)) != -1)
+        text.append(buffer, 0, read);
+    }
+    finally
+    {
+      reader.close();
+    }
+    return text.toString();
+  }
+
+  /**
+   * Counts the lines in the given text.
+   * @param text the text
+   * @return the number of lines
+   */
+  private static int countLines(String text)
+  {
+    int lines = 0;
+    for (int i = 0; i < text.length(); i++)
+      if (text.charAt(i) == '\n')
+        lines++;
+    return lines;
+  }
+}
@@ -0,0 +1,87 @@
+/*
+ * BufferedNsiSink.java
+ */
+
+package nsl;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+
+/**
+ * Writes the assembled NSIS script to a file through a large character
+ * buffer.
+ * @author Stuart
+ */
+public class BufferedNsiSink extends NsiSink
+{
+  private final File file;
+  private final Writer writer;
+
+  /**
+   * Class constructor.
+   * @param file the file to write to
+   * @param charset the character encoding of the NSIS script
+   * @param byteOrderMark whether to start the file with a byte order mark
+   * @throws IOException
+   */
+  public BufferedNsiSink(File file, Charset charset, boolean byteOrderMark) throws IOException
+  {
+    super(charset);
+    this.file = file;
+    this.writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), charset), BUFFER_SIZE);
+    if (byteOrderMark)
+      this.writer.write('\uFEFF');
+  }
+
+  /**
+   * Gets the file the NSIS script is written to.
+   * @return the file the NSIS script is written to
+   */
+  @Override
+  public File getFile()
+  {
+    return this.file;
+  }
+
+  /**
+   * Writes text to the NSIS script.
+   * @param text the text to write
+   * @throws IOException
+   */
+  @Override
+  public void write(String text) throws IOException
+  {
+    this.writer.write(text);
+  }
+
+  /**
+   * Flushes and closes the NSIS script.
+   * @throws IOException
+   */
+  @Override
+  public void close() throws IOException
+  {
+    this.writer.close();
+  }
+
+  /**
+   * Closes and deletes the NSIS script file.
+   */
+  @Override
+  public void discard()
+  {
+    try
+    {
+      this.writer.close();
+    }
+    catch (IOException ex)
+    {
+    }
+    this.file.delete();
+  }
+}
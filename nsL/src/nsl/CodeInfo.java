@@ -4,7 +4,9 @@
 
 package nsl;
 
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
 
 /**
  *
@@ -12,18 +14,54 @@ import java.util.HashMap;
  */
 public abstract class CodeInfo
 {
-  protected static CodeInfo current = null;
-
   protected final HashMap<Integer, Register> usedVars;
+  private final HashSet<String> calls;
+  private final ArrayList<Access> accesses;
+  private final ArrayList<Integer> branchParents;
+  private final ArrayList<Boolean> branchLoops;
 
   private Label labelBreak;
   private Label labelContinue;
+  private int branch;
+
+  /**
+   * A variable read or set by the code in the order it was parsed, or a point
+   * where any variable may be read.
+   */
+  private static class Access
+  {
+    private final int var;
+    private final boolean write;
+    private final int branch;
+
+    /**
+     * Class constructor.
+     * @param var the index of the variable or -1 for any variable
+     * @param write <code>true</code> if the variable is set
+     * @param branch the branch of the code that the access is in
+     */
+    private Access(int var, boolean write, int branch)
+    {
+      this.var = var;
+      this.write = write;
+      this.branch = branch;
+    }
+  }
 
   protected CodeInfo()
   {
     this.usedVars = new HashMap<Integer, Register>();
+    this.calls = new HashSet<String>();
+    this.accesses = new ArrayList<Access>();
+    this.branchParents = new ArrayList<Integer>();
+    this.branchLoops = new ArrayList<Boolean>();
     this.labelBreak = null;
     this.labelContinue = null;
+
+    // Branch 0 is the body of the code, which is always run.
+    this.branchParents.add(Integer.valueOf(-1));
+    this.branchLoops.add(Boolean.FALSE);
+    this.branch = 0;
   }
 
   /**
@@ -35,6 +73,48 @@ public abstract class CodeInfo
     return this.usedVars;
   }
 
+  /**
+   * Gets the functions called by the code, keyed as in the index of
+   * functions.
+   * @return the case folded names of the functions called
+   */
+  public HashSet<String> getCalls()
+  {
+    return this.calls;
+  }
+
+  /**
+   * Gets the functions called by the code directly or through the functions
+   * that it calls, keyed as in the index of functions.
+   * @return the case folded names of the functions called
+   */
+  public HashSet<String> getReachableCalls()
+  {
+    HashMap<String, ArrayList<FunctionInfo>> index = CompilationContext.getCurrent().getFunctionIndex();
+    HashSet<String> reachable = new HashSet<String>();
+    ArrayList<String> pending = new ArrayList<String>(this.calls);
+    while (!pending.isEmpty())
+    {
+      String call = pending.remove(pending.size() - 1);
+      if (!reachable.add(call))
+        continue;
+      ArrayList<FunctionInfo> overloads = index.get(call);
+      if (overloads != null)
+        for (FunctionInfo functionInfo : overloads)
+          pending.addAll(functionInfo.getCalls());
+    }
+    return reachable;
+  }
+
+  /**
+   * Adds a function to the functions called by the code.
+   * @param name the name of the function called
+   */
+  public void addCall(String name)
+  {
+    this.calls.add(FunctionInfo.foldCase(name));
+  }
+
   /**
    * Gets the current go-to label for a "break" instruction.
    * @return the current go-to label for a "break" instruction
@@ -88,13 +168,146 @@ public abstract class CodeInfo
       this.usedVars.put(key, var);
   }
 
+  /**
+   * Records that a variable is read. Variables are recorded in the order that
+   * they are parsed, which is the order that they are assembled in.
+   * @param var the index of the variable
+   */
+  public void addRead(int var)
+  {
+    this.accesses.add(new Access(var, false, this.branch));
+  }
+
+  /**
+   * Records that a variable is set by an assignment. The variable was also
+   * recorded as read when it was matched, before the value assigned to it, so
+   * the write hides nothing until {@link #endAssignment(int, int)} removes
+   * that read for an assignment statement.
+   * @param var the index of the variable
+   */
+  public void addWrite(int var)
+  {
+    this.accesses.add(new Access(var, true, this.branch));
+  }
+
+  /**
+   * Ends an assignment statement, removing the read recorded for the variable
+   * being assigned to if the statement ends by setting it. An assignment
+   * inside an expression, which may not be run, keeps its read.
+   * @param access the number of accesses recorded before the statement
+   * @param var the index of the variable
+   */
+  public void endAssignment(int access, int var)
+  {
+    int last = this.accesses.size() - 1;
+    if (access < last && this.accesses.get(last).var == var && this.accesses.get(last).write && this.accesses.get(access).var == var && !this.accesses.get(access).write)
+      this.accesses.remove(access);
+  }
+
+  /**
+   * Records a point where any variable may be read, such as when the code
+   * leaves the statements it is in with "return", "break" or "continue" or
+   * runs NSIS code that isn't parsed.
+   */
+  public void addReadAll()
+  {
+    this.accesses.add(new Access(-1, false, this.branch));
+  }
+
+  /**
+   * Gets the number of variable accesses recorded so far, which marks the
+   * point in the code that is being parsed.
+   * @return the number of variable accesses
+   */
+  public int getAccessCount()
+  {
+    return this.accesses.size();
+  }
+
+  /**
+   * Gets the branch of the code that is being parsed.
+   * @return the branch of the code
+   */
+  public int getBranch()
+  {
+    return this.branch;
+  }
+
+  /**
+   * Starts a branch of the code that may not be run, such as the body of an
+   * "if" or "switch" statement, or that may be run more than once, such as
+   * the body of a loop.
+   * @param loop <code>true</code> if the branch is the body of a loop
+   * @return the original branch, to pass to {@link #endBranch(int)}
+   */
+  public int startBranch(boolean loop)
+  {
+    int old = this.branch;
+    this.branchParents.add(Integer.valueOf(old));
+    this.branchLoops.add(Boolean.valueOf(loop));
+    this.branch = this.branchParents.size() - 1;
+    return old;
+  }
+
+  /**
+   * Ends a branch of the code.
+   * @param branch the original branch returned by {@link #startBranch(boolean)}
+   */
+  public void endBranch(int branch)
+  {
+    this.branch = branch;
+  }
+
+  /**
+   * Determines if a variable may be read after the given point in the code
+   * before it is set again. NSIS variables are global, so a variable that is
+   * still set when the code returns may be read elsewhere. A variable is
+   * therefore dead only if an assignment statement that is always run after
+   * the point sets it before it is read or the code returns, and the point is
+   * not in a loop.
+   * @param access the number of variable accesses recorded before the point
+   * @param branch the branch of the code that the point is in
+   * @param var the index of the variable
+   * @return <code>true</code> if the variable may be read after the point
+   */
+  public boolean isLiveAfter(int access, int branch, int var)
+  {
+    for (int b = branch; b != -1; b = this.branchParents.get(b).intValue())
+      if (this.branchLoops.get(b).booleanValue())
+        return true;
+
+    for (int i = access; i < this.accesses.size(); i++)
+    {
+      Access next = this.accesses.get(i);
+      if (next.var == -1 || (next.var == var && !next.write))
+        return true;
+      if (next.var == var && this.encloses(next.branch, branch))
+        return false;
+    }
+    return true;
+  }
+
+  /**
+   * Determines if a branch of the code is the same as or contains another.
+   * @param outer the outer branch
+   * @param inner the inner branch
+   * @return <code>true</code> if the inner branch is within the outer one
+   */
+  private boolean encloses(int outer, int inner)
+  {
+    for (int b = inner; b != -1; b = this.branchParents.get(b).intValue())
+      if (b == outer)
+        return true;
+    return false;
+  }
+
   /**
    * Gets the current code info.
    * @return the current code info
    */
   public static CodeInfo getCurrent()
   {
-    return current;
+    return CompilationContext.getCurrent().getCodeInfo();
   }
 
   /**
@@ -103,6 +316,6 @@ public abstract class CodeInfo
    */
   public static void setCurrent(CodeInfo codeInfo)
   {
-    current = codeInfo;
+    CompilationContext.getCurrent().setCodeInfo(codeInfo);
   }
 }
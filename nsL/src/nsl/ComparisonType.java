@@ -21,11 +21,11 @@ public enum ComparisonType
    */
   public static ComparisonType match()
   {
-    if (ScriptParser.tokenizer.match("u"))
+    if (ScriptParser.getTokenizer().match("u"))
       return ComparisonType.IntegerUnsigned;
-    if (ScriptParser.tokenizer.match("s"))
+    if (ScriptParser.getTokenizer().match("s"))
       return ComparisonType.String;
-    if (ScriptParser.tokenizer.match("S"))
+    if (ScriptParser.getTokenizer().match("S"))
       return ComparisonType.StringCaseSensitive;
     return ComparisonType.Integer;
   }
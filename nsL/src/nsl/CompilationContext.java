@@ -0,0 +1,830 @@
+/*
+ * CompilationContext.java
+ */
+
+package nsl;
+
+import java.io.PrintWriter;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.Stack;
+import nsl.optimiser.Optimisation;
+import nsl.optimiser.OptimisingNsiSink;
+import nsl.preprocessor.*;
+import nsl.statement.*;
+
+/**
+ * Holds all of the state for the compilation of a single nsL script. Each
+ * thread has its own current context so that many scripts can be assembled in
+ * parallel in the one JVM.
+ * @author Stuart
+ */
+public class CompilationContext
+{
+  private static final ThreadLocal<CompilationContext> current = new ThreadLocal<CompilationContext>();
+
+  private Tokenizer tokenizer;
+  private final Stack<Tokenizer> tokenizers;
+  private NsiSink sink;
+  private Charset charset;
+  private IncludeCache includeCache;
+  private IncludeLoader includeLoader;
+  private IncludedScripts includedScripts;
+  private String scriptPath;
+  private PrintWriter stdout;
+  private int assemblyThreads;
+  private EnumSet<Optimisation> optimisations;
+  private int inlineThreshold;
+  private Statistics statistics;
+  private StreamingAssembler streamingAssembler;
+
+  private RegisterList registerList;
+  private final LabelList labelList;
+  private final ArrayList<FunctionInfo> functionList;
+  private final HashMap<String, ArrayList<FunctionInfo>> functionIndex;
+  private final MacroList macroList;
+  private final DefineList defineList;
+
+  private final Scope globalScope;
+  private final Scope globalUninstallerScope;
+  private Scope scope;
+  private boolean inUninstaller;
+
+  private CodeInfo codeInfo;
+  private PageExInfo pageExInfo;
+  private StatementList statementList;
+  private MacroEvaluated macroEvaluated;
+  private MacroEvaluated tailInsertion;
+  private int blockDepth;
+  private int macroDepth;
+  private int maximumMacroDepth;
+  private boolean inIfDirective;
+  private boolean specialStringEscape;
+  private ArrayList<Register> returnVarRegisters;
+  private final HashMap<String, TokenList> tokenLists;
+
+  private final ArrayList<Statement> globalAssignmentStatements;
+  private final ArrayList<Statement> globalUninstallerAssignmentStatements;
+
+  /**
+   * Class constructor.
+   */
+  public CompilationContext()
+  {
+    this.tokenizer = null;
+    this.tokenizers = new Stack<Tokenizer>();
+    this.sink = null;
+    this.charset = null;
+    this.includeCache = null;
+    this.includeLoader = null;
+    this.includedScripts = new IncludedScripts();
+    this.scriptPath = null;
+    this.stdout = new PrintWriter(System.out, true);
+    this.assemblyThreads = 1;
+    this.optimisations = EnumSet.noneOf(Optimisation.class);
+    this.inlineThreshold = OptimisingNsiSink.DEFAULT_INLINE_THRESHOLD;
+    this.statistics = null;
+    this.streamingAssembler = null;
+
+    // The register list is created lazily as it adds its built in registers
+    // to the global scopes of the current context.
+    this.registerList = null;
+    this.labelList = new LabelList();
+    this.functionList = new ArrayList<FunctionInfo>();
+    this.functionIndex = new HashMap<String, ArrayList<FunctionInfo>>();
+    this.macroList = new MacroList();
+    this.defineList = new DefineList();
+
+    this.globalScope = Scope.createGlobal();
+    this.globalUninstallerScope = Scope.createGlobal();
+    this.scope = this.globalScope;
+    this.inUninstaller = false;
+
+    this.codeInfo = null;
+    this.pageExInfo = null;
+    this.statementList = null;
+    this.macroEvaluated = null;
+    this.tailInsertion = null;
+    this.blockDepth = 0;
+    this.macroDepth = 0;
+    this.maximumMacroDepth = Macro.DEFAULT_MAXIMUM_DEPTH;
+    this.inIfDirective = false;
+    this.specialStringEscape = true;
+    this.returnVarRegisters = null;
+    this.tokenLists = new HashMap<String, TokenList>();
+
+    this.globalAssignmentStatements = new ArrayList<Statement>();
+    this.globalUninstallerAssignmentStatements = new ArrayList<Statement>();
+  }
+
+  /**
+   * Class constructor specifying the compilation context to fork from. The
+   * parse results are shared but the fork has its own output sink, go-to
+   * labels and register state.
+   * @param parent the compilation context to fork from
+   * @param sink the output sink of the fork
+   * @param stdout the writer that the fork prints warnings and messages to
+   */
+  private CompilationContext(CompilationContext parent, NsiSink sink, PrintWriter stdout)
+  {
+    this.tokenizer = parent.tokenizer;
+    this.tokenizers = parent.tokenizers;
+    this.sink = sink;
+    this.charset = parent.charset;
+    this.includeCache = parent.includeCache;
+    this.includeLoader = parent.includeLoader;
+    this.includedScripts = parent.includedScripts;
+    this.scriptPath = parent.scriptPath;
+    this.stdout = stdout;
+    this.assemblyThreads = 1;
+    this.optimisations = parent.optimisations;
+    this.inlineThreshold = parent.inlineThreshold;
+    this.statistics = parent.statistics;
+    this.streamingAssembler = parent.streamingAssembler;
+
+    this.registerList = parent.getRegisterList().fork();
+    this.labelList = new LabelList();
+    this.functionList = parent.functionList;
+    this.functionIndex = parent.functionIndex;
+    this.macroList = parent.macroList;
+    this.defineList = parent.defineList;
+
+    this.globalScope = parent.globalScope;
+    this.globalUninstallerScope = parent.globalUninstallerScope;
+    this.scope = parent.scope;
+    this.inUninstaller = parent.inUninstaller;
+
+    this.codeInfo = parent.codeInfo;
+    this.pageExInfo = parent.pageExInfo;
+    this.statementList = parent.statementList;
+    this.macroEvaluated = parent.macroEvaluated;
+    this.tailInsertion = null;
+    this.blockDepth = 0;
+    this.macroDepth = 0;
+    this.maximumMacroDepth = parent.maximumMacroDepth;
+    this.inIfDirective = parent.inIfDirective;
+    this.specialStringEscape = parent.specialStringEscape;
+    this.returnVarRegisters = parent.returnVarRegisters;
+    this.tokenLists = parent.tokenLists;
+
+    this.globalAssignmentStatements = parent.globalAssignmentStatements;
+    this.globalUninstallerAssignmentStatements = parent.globalUninstallerAssignmentStatements;
+  }
+
+  /**
+   * Forks the compilation context so that a function or section can be
+   * assembled on another thread. The fork shares everything that was parsed
+   * but starts with a fresh go-to label counter and a copy of the register
+   * state.
+   * @param sink the output sink of the fork
+   * @param stdout the writer that the fork prints warnings and messages to
+   * @return the forked compilation context
+   */
+  public CompilationContext fork(NsiSink sink, PrintWriter stdout)
+  {
+    return new CompilationContext(this, sink, stdout);
+  }
+
+  /**
+   * Gets the compilation context bound to the current thread. A new context is
+   * created and bound if there is none.
+   * @return the current compilation context
+   */
+  public static CompilationContext getCurrent()
+  {
+    CompilationContext context = current.get();
+    if (context == null)
+    {
+      context = new CompilationContext();
+      current.set(context);
+    }
+    return context;
+  }
+
+  /**
+   * Binds the given compilation context to the current thread.
+   * @param context the compilation context or <code>null</code> to unbind the
+   * current one
+   * @return the previously bound compilation context
+   */
+  public static CompilationContext setCurrent(CompilationContext context)
+  {
+    CompilationContext old = current.get();
+    if (context == null)
+      current.remove();
+    else
+      current.set(context);
+    return old;
+  }
+
+  /**
+   * Gets the current tokenizer.
+   * @return the current tokenizer
+   */
+  public Tokenizer getTokenizer()
+  {
+    return this.tokenizer;
+  }
+
+  /**
+   * Sets the current tokenizer.
+   * @param tokenizer the current tokenizer
+   */
+  public void setTokenizer(Tokenizer tokenizer)
+  {
+    this.tokenizer = tokenizer;
+  }
+
+  /**
+   * Gets the stack of tokenizers underneath the current tokenizer.
+   * @return the stack of tokenizers
+   */
+  public Stack<Tokenizer> getTokenizers()
+  {
+    return this.tokenizers;
+  }
+
+  /**
+   * Gets the sink that the NSIS script is assembled to.
+   * @return the output sink or <code>null</code> to write to a file next to
+   * the source script
+   */
+  public NsiSink getSink()
+  {
+    return this.sink;
+  }
+
+  /**
+   * Sets the sink that the NSIS script is assembled to.
+   * @param sink the output sink or <code>null</code> to write to a file next
+   * to the source script
+   */
+  public void setSink(NsiSink sink)
+  {
+    this.sink = sink;
+  }
+
+  /**
+   * Gets the character encoding of the NSIS script file.
+   * @return the character encoding or <code>null</code> for the platform
+   * default
+   */
+  public Charset getCharset()
+  {
+    return this.charset;
+  }
+
+  /**
+   * Sets the character encoding of the NSIS script file. A byte order mark is
+   * written for Unicode encodings.
+   * @param charset the character encoding or <code>null</code> for the
+   * platform default
+   */
+  public void setCharset(Charset charset)
+  {
+    this.charset = charset;
+  }
+
+  /**
+   * Gets the source script path.
+   * @return the source script path
+   */
+  public String getScriptPath()
+  {
+    return this.scriptPath;
+  }
+
+  /**
+   * Sets the source script path.
+   * @param scriptPath the source script path
+   */
+  public void setScriptPath(String scriptPath)
+  {
+    this.scriptPath = scriptPath;
+  }
+
+  /**
+   * Gets the cache of included script tokens.
+   * @return the include cache or <code>null</code> if included scripts are
+   * always lexed
+   */
+  public IncludeCache getIncludeCache()
+  {
+    return this.includeCache;
+  }
+
+  /**
+   * Sets the cache of included script tokens.
+   * @param includeCache the include cache or <code>null</code> to always lex
+   * included scripts
+   */
+  public void setIncludeCache(IncludeCache includeCache)
+  {
+    this.includeCache = includeCache;
+  }
+
+  /**
+   * Gets the loader that reads included scripts ahead of the parser.
+   * @return the include loader or <code>null</code> if included scripts are
+   * read when they are reached
+   */
+  public IncludeLoader getIncludeLoader()
+  {
+    return this.includeLoader;
+  }
+
+  /**
+   * Sets the loader that reads included scripts ahead of the parser.
+   * @param includeLoader the include loader or <code>null</code> to read
+   * included scripts when they are reached
+   */
+  public void setIncludeLoader(IncludeLoader includeLoader)
+  {
+    this.includeLoader = includeLoader;
+  }
+
+  /**
+   * Gets the scripts included so far.
+   * @return the scripts included so far
+   */
+  public IncludedScripts getIncludedScripts()
+  {
+    return this.includedScripts;
+  }
+
+  /**
+   * Gets the writer that warnings and messages are printed to.
+   * @return the writer that warnings and messages are printed to
+   */
+  public PrintWriter getStdout()
+  {
+    return this.stdout;
+  }
+
+  /**
+   * Sets the writer that warnings and messages are printed to.
+   * @param stdout the writer that warnings and messages are printed to
+   */
+  public void setStdout(PrintWriter stdout)
+  {
+    this.stdout = stdout;
+  }
+
+  /**
+   * Gets the number of threads that functions and sections are assembled on.
+   * @return the number of assembly threads, 1 to assemble serially
+   */
+  public int getAssemblyThreads()
+  {
+    return this.assemblyThreads;
+  }
+
+  /**
+   * Sets the number of threads that functions and sections are assembled on.
+   * The output is the same as when assembling serially.
+   * @param assemblyThreads the number of assembly threads, 1 to assemble
+   * serially
+   */
+  public void setAssemblyThreads(int assemblyThreads)
+  {
+    this.assemblyThreads = assemblyThreads;
+  }
+
+  /**
+   * Gets the optimisations made to the assembled functions and sections.
+   * @return the optimisations, none by default
+   */
+  public EnumSet<Optimisation> getOptimisations()
+  {
+    return this.optimisations;
+  }
+
+  /**
+   * Sets the optimisations made to the assembled functions and sections.
+   * @param optimisations the optimisations
+   */
+  public void setOptimisations(EnumSet<Optimisation> optimisations)
+  {
+    this.optimisations = optimisations;
+  }
+
+  /**
+   * Gets the maximum number of instructions of a function that is inlined
+   * without an inline hint.
+   * @return the maximum number of instructions
+   */
+  public int getInlineThreshold()
+  {
+    return this.inlineThreshold;
+  }
+
+  /**
+   * Sets the maximum number of instructions of a function that is inlined
+   * without an inline hint.
+   * @param inlineThreshold the maximum number of instructions
+   */
+  public void setInlineThreshold(int inlineThreshold)
+  {
+    this.inlineThreshold = inlineThreshold;
+  }
+
+  /**
+   * Gets the statistics recorded while compiling. Forks share the statistics
+   * of the context they were forked from.
+   * @return the statistics or <code>null</code> if they aren't being
+   * recorded
+   */
+  public Statistics getStatistics()
+  {
+    return this.statistics;
+  }
+
+  /**
+   * Sets the statistics recorded while compiling.
+   * @param statistics the statistics or <code>null</code> to not record any
+   */
+  public void setStatistics(Statistics statistics)
+  {
+    this.statistics = statistics;
+  }
+
+  /**
+   * Gets the assembler that top level statements are handed to as they are
+   * parsed.
+   * @return the streaming assembler or <code>null</code> if the script is
+   * assembled after it is parsed
+   */
+  public StreamingAssembler getStreamingAssembler()
+  {
+    return this.streamingAssembler;
+  }
+
+  /**
+   * Sets the assembler that top level statements are handed to as they are
+   * parsed.
+   * @param streamingAssembler the streaming assembler or <code>null</code> to
+   * assemble the script after it is parsed
+   */
+  public void setStreamingAssembler(StreamingAssembler streamingAssembler)
+  {
+    this.streamingAssembler = streamingAssembler;
+  }
+
+  /**
+   * Gets the register list.
+   * @return the register list
+   */
+  public RegisterList getRegisterList()
+  {
+    if (this.registerList == null)
+    {
+      this.registerList = new RegisterList();
+      this.registerList.addBuiltIn();
+    }
+    return this.registerList;
+  }
+
+  /**
+   * Sets the register list.
+   * @param registerList the register list
+   */
+  public void setRegisterList(RegisterList registerList)
+  {
+    this.registerList = registerList;
+  }
+
+  /**
+   * Gets the go-to label list.
+   * @return the go-to label list
+   */
+  public LabelList getLabelList()
+  {
+    return this.labelList;
+  }
+
+  /**
+   * Gets the list of functions.
+   * @return the list of functions
+   */
+  public ArrayList<FunctionInfo> getFunctionList()
+  {
+    return this.functionList;
+  }
+
+  /**
+   * Gets the functions indexed by their case folded names. Each entry lists
+   * the overloads of a function in the order they were defined.
+   * @return the functions indexed by their case folded names
+   */
+  public HashMap<String, ArrayList<FunctionInfo>> getFunctionIndex()
+  {
+    return this.functionIndex;
+  }
+
+  /**
+   * Gets the macro list.
+   * @return the macro list
+   */
+  public MacroList getMacroList()
+  {
+    return this.macroList;
+  }
+
+  /**
+   * Gets the global constants list.
+   * @return the global constants list
+   */
+  public DefineList getDefineList()
+  {
+    return this.defineList;
+  }
+
+  /**
+   * Gets the installer global scope.
+   * @return the installer global scope
+   */
+  public Scope getGlobalScope()
+  {
+    return this.globalScope;
+  }
+
+  /**
+   * Gets the uninstaller global scope.
+   * @return the uninstaller global scope
+   */
+  public Scope getGlobalUninstallerScope()
+  {
+    return this.globalUninstallerScope;
+  }
+
+  /**
+   * Gets the current scope.
+   * @return the current scope
+   */
+  public Scope getScope()
+  {
+    return this.scope;
+  }
+
+  /**
+   * Sets the current scope.
+   * @param scope the current scope
+   */
+  public void setScope(Scope scope)
+  {
+    this.scope = scope;
+  }
+
+  /**
+   * Gets whether or not we are in the uninstaller global scope.
+   * @return whether or not we are in the uninstaller global scope
+   */
+  public boolean getInUninstaller()
+  {
+    return this.inUninstaller;
+  }
+
+  /**
+   * Sets whether or not we are in the uninstaller global scope.
+   * @param inUninstaller whether or not we are in the uninstaller global scope
+   */
+  public void setInUninstaller(boolean inUninstaller)
+  {
+    this.inUninstaller = inUninstaller;
+  }
+
+  /**
+   * Gets the current code info.
+   * @return the current code info
+   */
+  public CodeInfo getCodeInfo()
+  {
+    return this.codeInfo;
+  }
+
+  /**
+   * Sets the current code info.
+   * @param codeInfo the current code info
+   */
+  public void setCodeInfo(CodeInfo codeInfo)
+  {
+    this.codeInfo = codeInfo;
+  }
+
+  /**
+   * Gets the current PageEx info.
+   * @return the current PageEx info
+   */
+  public PageExInfo getPageExInfo()
+  {
+    return this.pageExInfo;
+  }
+
+  /**
+   * Sets the current PageEx info.
+   * @param pageExInfo the current PageEx info
+   */
+  public void setPageExInfo(PageExInfo pageExInfo)
+  {
+    this.pageExInfo = pageExInfo;
+  }
+
+  /**
+   * Gets the statement list currently being matched.
+   * @return the statement list currently being matched
+   */
+  public StatementList getStatementList()
+  {
+    return this.statementList;
+  }
+
+  /**
+   * Sets the statement list currently being matched.
+   * @param statementList the statement list currently being matched
+   */
+  public void setStatementList(StatementList statementList)
+  {
+    this.statementList = statementList;
+  }
+
+  /**
+   * Gets the macro currently being evaluated.
+   * @return the macro currently being evaluated
+   */
+  public MacroEvaluated getMacroEvaluated()
+  {
+    return this.macroEvaluated;
+  }
+
+  /**
+   * Sets the macro currently being evaluated.
+   * @param macroEvaluated the macro currently being evaluated
+   */
+  public void setMacroEvaluated(MacroEvaluated macroEvaluated)
+  {
+    this.macroEvaluated = macroEvaluated;
+  }
+
+  /**
+   * Gets the macro inserted last thing in the macro being evaluated, which
+   * is evaluated once that macro has been.
+   * @return the macro insertion or <code>null</code> if there is none
+   */
+  public MacroEvaluated getTailInsertion()
+  {
+    return this.tailInsertion;
+  }
+
+  /**
+   * Sets the macro inserted last thing in the macro being evaluated.
+   * @param tailInsertion the macro insertion or <code>null</code> for none
+   */
+  public void setTailInsertion(MacroEvaluated tailInsertion)
+  {
+    this.tailInsertion = tailInsertion;
+  }
+
+  /**
+   * Gets the number of code blocks and switch statements being parsed inside
+   * one another.
+   * @return the block depth
+   */
+  public int getBlockDepth()
+  {
+    return this.blockDepth;
+  }
+
+  /**
+   * Sets the number of code blocks and switch statements being parsed inside
+   * one another.
+   * @param blockDepth the block depth
+   */
+  public void setBlockDepth(int blockDepth)
+  {
+    this.blockDepth = blockDepth;
+  }
+
+  /**
+   * Gets the number of macros being evaluated inside one another.
+   * @return the macro insertion depth
+   */
+  public int getMacroDepth()
+  {
+    return this.macroDepth;
+  }
+
+  /**
+   * Sets the number of macros being evaluated inside one another.
+   * @param macroDepth the macro insertion depth
+   */
+  public void setMacroDepth(int macroDepth)
+  {
+    this.macroDepth = macroDepth;
+  }
+
+  /**
+   * Gets the maximum number of macros that can be evaluated inside one
+   * another. A macro inserted last thing in another is evaluated after it
+   * and so doesn't count.
+   * @return the maximum macro insertion depth or 0 for no limit
+   */
+  public int getMaximumMacroDepth()
+  {
+    return this.maximumMacroDepth;
+  }
+
+  /**
+   * Sets the maximum number of macros that can be evaluated inside one
+   * another.
+   * @param maximumMacroDepth the maximum macro insertion depth or 0 for no
+   * limit
+   */
+  public void setMaximumMacroDepth(int maximumMacroDepth)
+  {
+    this.maximumMacroDepth = maximumMacroDepth;
+  }
+
+  /**
+   * Gets whether or not the parser is inside an #if directive.
+   * @return whether or not the parser is inside an #if directive
+   */
+  public boolean getInIfDirective()
+  {
+    return this.inIfDirective;
+  }
+
+  /**
+   * Sets whether or not the parser is inside an #if directive.
+   * @param inIfDirective whether or not the parser is inside an #if directive
+   */
+  public void setInIfDirective(boolean inIfDirective)
+  {
+    this.inIfDirective = inIfDirective;
+  }
+
+  /**
+   * Gets whether or not special strings (`) are escaped.
+   * @return whether or not special strings are escaped
+   */
+  public boolean getSpecialStringEscape()
+  {
+    return this.specialStringEscape;
+  }
+
+  /**
+   * Sets whether or not special strings (`) are escaped.
+   * @param specialStringEscape whether or not special strings are escaped
+   */
+  public void setSpecialStringEscape(boolean specialStringEscape)
+  {
+    this.specialStringEscape = specialStringEscape;
+  }
+
+  /**
+   * Gets the registers used by <code>returnvar()</code>.
+   * @return the registers used by <code>returnvar()</code>
+   */
+  public ArrayList<Register> getReturnVarRegisters()
+  {
+    return this.returnVarRegisters;
+  }
+
+  /**
+   * Sets the registers used by <code>returnvar()</code>.
+   * @param returnVarRegisters the registers used by <code>returnvar()</code>
+   */
+  public void setReturnVarRegisters(ArrayList<Register> returnVarRegisters)
+  {
+    this.returnVarRegisters = returnVarRegisters;
+  }
+
+  /**
+   * Gets the token lists of late evaluation constants that have been lexed,
+   * keyed by their text.
+   * @return the token lists of late evaluation constants
+   */
+  public HashMap<String, TokenList> getTokenLists()
+  {
+    return this.tokenLists;
+  }
+
+  /**
+   * Gets the list of global assignment statements.
+   * @return the list of global assignment statements
+   */
+  public ArrayList<Statement> getGlobalAssignmentStatements()
+  {
+    return this.globalAssignmentStatements;
+  }
+
+  /**
+   * Gets the list of global uninstaller assignment statements.
+   * @return the list of global uninstaller assignment statements
+   */
+  public ArrayList<Statement> getGlobalUninstallerAssignmentStatements()
+  {
+    return this.globalUninstallerAssignmentStatements;
+  }
+}
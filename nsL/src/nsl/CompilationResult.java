@@ -0,0 +1,79 @@
+/*
+ * CompilationResult.java
+ */
+
+package nsl;
+
+import java.io.File;
+
+/**
+ * Describes the outcome of compiling a single nsL script.
+ * @author Stuart
+ */
+public class CompilationResult
+{
+  private final File script;
+  private final int exitCode;
+  private final String output;
+  private final String errors;
+
+  /**
+   * Class constructor.
+   * @param script the script that was compiled
+   * @param exitCode the exit code
+   * @param output the messages and warnings printed while compiling
+   * @param errors the errors printed while compiling
+   */
+  public CompilationResult(File script, int exitCode, String output, String errors)
+  {
+    this.script = script;
+    this.exitCode = exitCode;
+    this.output = output;
+    this.errors = errors;
+  }
+
+  /**
+   * Gets the script that was compiled.
+   * @return the script that was compiled
+   */
+  public File getScript()
+  {
+    return this.script;
+  }
+
+  /**
+   * Gets the exit code.
+   * @return the exit code
+   */
+  public int getExitCode()
+  {
+    return this.exitCode;
+  }
+
+  /**
+   * Gets the messages and warnings printed while compiling.
+   * @return the messages and warnings printed while compiling
+   */
+  public String getOutput()
+  {
+    return this.output;
+  }
+
+  /**
+   * Gets the errors printed while compiling.
+   * @return the errors printed while compiling
+   */
+  public String getErrors()
+  {
+    return this.errors;
+  }
+
+  /**
+   * Determines if the script compiled successfully.
+   * @return <code>true</code> if the script compiled successfully
+   */
+  public boolean succeeded()
+  {
+    return this.exitCode == 0;
+  }
+}
@@ -0,0 +1,145 @@
+/*
+ * CompileClient.java
+ */
+
+package nsl;
+
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.ConnectException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.Charset;
+
+/**
+ * Sends a compile request to a {@link CompileServer} and prints the streamed
+ * compiler output.
+ * @author Stuart
+ */
+public class CompileClient
+{
+  private CompileClient() {}
+
+  /**
+   * Sends a compile request to the server listening on the given port.
+   * @param port the port the server is listening on
+   * @param scriptPath the script file path
+   * @param noMakeNSIS do not run makensisw.exe
+   * @param charset the character encoding of the NSIS script or
+   * <code>null</code> for the platform default
+   * @return the exit code or -1 if no server is listening
+   */
+  public static int send(int port, String scriptPath, boolean noMakeNSIS, Charset charset) throws IOException
+  {
+    String request = "";
+    if (noMakeNSIS)
+      request += "/nomake\n";
+    if (charset != null)
+      request += "/charset=" + charset.name() + "\n";
+    // The server may have a different working directory.
+    request += new File(scriptPath).getAbsolutePath() + "\n";
+    return send(port, request);
+  }
+
+  /**
+   * Asks the server listening on the given port to shut down.
+   * @param port the port the server is listening on
+   * @return the exit code or -1 if no server is listening
+   */
+  public static int shutdown(int port) throws IOException
+  {
+    return send(port, CompileServer.SHUTDOWN + "\n");
+  }
+
+  /**
+   * Reads the token of the server listening on the given port.
+   * @param port the port the server is listening on
+   * @return the token or <code>null</code> if it can't be read
+   */
+  private static String readToken(int port)
+  {
+    try
+    {
+      BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(CompileServer.getTokenFile(port)), "UTF-8"));
+      try
+      {
+        return reader.readLine();
+      }
+      finally
+      {
+        reader.close();
+      }
+    }
+    catch (IOException ex)
+    {
+      return null;
+    }
+  }
+
+  /**
+   * Sends a request to the server listening on the given port.
+   * @param port the port the server is listening on
+   * @param request the request lines
+   * @return the exit code or -1 if no server is listening
+   */
+  private static int send(int port, String request) throws IOException
+  {
+    // A server that was started by another user or that has gone can't be
+    // used.
+    String token = readToken(port);
+    if (token == null)
+      return -1;
+
+    Socket socket;
+    try
+    {
+      socket = new Socket(InetAddress.getByName(null), port);
+    }
+    catch (ConnectException ex)
+    {
+      return -1;
+    }
+
+    try
+    {
+      Writer writer = new OutputStreamWriter(socket.getOutputStream(), "UTF-8");
+      writer.write(token + "\n" + request + "\n");
+      writer.flush();
+
+      DataInputStream input = new DataInputStream(socket.getInputStream());
+      while (true)
+      {
+        int channel = input.readByte();
+        String text = input.readUTF();
+
+        if (channel == CompileServer.EXIT)
+          return Integer.parseInt(text);
+        if (channel == CompileServer.STDERR)
+        {
+          System.err.print(text);
+          System.err.flush();
+        }
+        else
+        {
+          System.out.print(text);
+          System.out.flush();
+        }
+      }
+    }
+    catch (EOFException ex)
+    {
+      throw new IOException("Compile server closed the connection");
+    }
+    finally
+    {
+      socket.close();
+    }
+  }
+}
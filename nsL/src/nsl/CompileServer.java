@@ -0,0 +1,388 @@
+/*
+ * CompileServer.java
+ */
+
+package nsl;
+
+import java.io.BufferedReader;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import nsl.preprocessor.IncludeCache;
+
+/**
+ * Keeps a warm nsL compiler resident and accepts compile requests over a local
+ * socket. A request is a list of command line arguments sent one per line and
+ * ended with an empty line, after a first line holding the server's token.
+ * The token is made up when the server starts and is written to a file that
+ * only the user running the server can read (see {@link #getTokenFile(int)}),
+ * so that other users on the machine can't compile or stop the server. The
+ * response is a series of frames, each being a channel byte followed by a
+ * UTF string: {@link #STDOUT} and {@link #STDERR} frames carry the compiler
+ * output and a single {@link #EXIT} frame carries the exit code.
+ * @author Stuart
+ */
+public class CompileServer
+{
+  /**
+   * The default port to listen on.
+   */
+  public static final int DEFAULT_PORT = 28275;
+
+  /**
+   * The request line that stops the server.
+   */
+  public static final String SHUTDOWN = "/shutdown";
+
+  public static final int STDOUT = 1;
+  public static final int STDERR = 2;
+  public static final int EXIT = 0;
+
+  private final ServerSocket serverSocket;
+  private final String token;
+  private final File tokenFile;
+  private final ExecutorService executor;
+  private final Compiler compiler;
+  private volatile boolean running;
+
+  /**
+   * Class constructor specifying the port to listen on. The server only
+   * listens on the loopback interface. Included scripts are cached in memory
+   * for the life of the server.
+   * @param port the port to listen on
+   */
+  public CompileServer(int port) throws IOException
+  {
+    this(port, new Compiler());
+  }
+
+  /**
+   * Class constructor specifying the port to listen on and the compiler
+   * settings to use. The server only listens on the loopback interface.
+   * Included scripts are cached in memory for the life of the server.
+   * @param port the port to listen on
+   * @param compiler the compiler settings
+   */
+  public CompileServer(int port, Compiler compiler) throws IOException
+  {
+    this.serverSocket = new ServerSocket(port, 50, InetAddress.getByName(null));
+    this.token = createToken();
+    this.tokenFile = getTokenFile(this.serverSocket.getLocalPort());
+    try
+    {
+      writeToken(this.tokenFile, this.token);
+    }
+    catch (IOException ex)
+    {
+      this.serverSocket.close();
+      throw ex;
+    }
+    this.executor = Executors.newCachedThreadPool();
+    this.compiler = compiler;
+    compiler.setIncludeCache(new IncludeCache());
+    this.running = true;
+  }
+
+  /**
+   * Gets the file that the token of the server listening on the given port is
+   * written to, in the user's home directory.
+   * @param port the port the server is listening on
+   * @return the token file
+   */
+  public static File getTokenFile(int port)
+  {
+    return new File(System.getProperty("user.home"), ".nslserver" + port);
+  }
+
+  /**
+   * Makes up a random token.
+   * @return the token as hexadecimal digits
+   */
+  private static String createToken()
+  {
+    byte[] bytes = new byte[16];
+    new SecureRandom().nextBytes(bytes);
+    StringBuilder hex = new StringBuilder();
+    for (byte b : bytes)
+      hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+    return hex.toString();
+  }
+
+  /**
+   * Writes the token to a file that only the current user can read or
+   * write. The file is emptied and its permissions are set before the token
+   * is written to it.
+   * @param file the token file
+   * @param token the token
+   * @throws IOException
+   */
+  private static void writeToken(File file, String token) throws IOException
+  {
+    file.delete();
+    if (!file.createNewFile())
+      throw new IOException("Could not create " + file);
+    if (!file.setReadable(false, false) || !file.setWritable(false, false) || !file.setReadable(true, true) || !file.setWritable(true, true))
+    {
+      file.delete();
+      throw new IOException("Could not make " + file + " private");
+    }
+
+    Writer writer = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+    try
+    {
+      writer.write(token);
+    }
+    finally
+    {
+      writer.close();
+    }
+  }
+
+  /**
+   * Gets the port being listened on.
+   * @return the port being listened on
+   */
+  public int getPort()
+  {
+    return this.serverSocket.getLocalPort();
+  }
+
+  /**
+   * Accepts and handles compile requests until the server is shut down. Each
+   * request is handled on its own thread in its own {@link CompilationContext}.
+   */
+  public void run()
+  {
+    while (this.running)
+    {
+      final Socket socket;
+      try
+      {
+        socket = this.serverSocket.accept();
+      }
+      catch (IOException ex)
+      {
+        if (this.running)
+          System.err.println(ex);
+        break;
+      }
+
+      this.executor.execute(new Runnable()
+      {
+        public void run()
+        {
+          handle(socket);
+        }
+      });
+    }
+
+    this.executor.shutdown();
+  }
+
+  /**
+   * Stops the server.
+   */
+  public void shutdown()
+  {
+    this.running = false;
+    this.tokenFile.delete();
+    try
+    {
+      this.serverSocket.close();
+    }
+    catch (IOException ex)
+    {
+    }
+  }
+
+  /**
+   * Handles a single compile request.
+   * @param socket the client socket
+   */
+  private void handle(Socket socket)
+  {
+    try
+    {
+      BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), "UTF-8"));
+      DataOutputStream output = new DataOutputStream(socket.getOutputStream());
+
+      String token = reader.readLine();
+      ArrayList<String> args = new ArrayList<String>();
+      String line;
+      while ((line = reader.readLine()) != null && !line.isEmpty())
+        args.add(line);
+
+      int exitCode;
+      if (token == null || !MessageDigest.isEqual(token.getBytes("UTF-8"), this.token.getBytes("UTF-8")))
+      {
+        // Nothing is done for a client that couldn't read the token file.
+        exitCode = 1;
+        synchronized (output)
+        {
+          output.writeByte(STDERR);
+          output.writeUTF("The compile server token is wrong.\n");
+        }
+      }
+      else if (args.size() == 1 && args.get(0).equalsIgnoreCase(SHUTDOWN))
+      {
+        exitCode = 0;
+        this.shutdown();
+      }
+      else
+      {
+        exitCode = compile(args, output);
+      }
+
+      synchronized (output)
+      {
+        output.writeByte(EXIT);
+        output.writeUTF(Integer.toString(exitCode));
+        output.flush();
+      }
+    }
+    catch (IOException ex)
+    {
+      System.err.println(ex);
+    }
+    finally
+    {
+      try
+      {
+        socket.close();
+      }
+      catch (IOException ex)
+      {
+      }
+    }
+  }
+
+  /**
+   * Compiles the script given in the request arguments, streaming its output
+   * back to the client.
+   * @param args the request arguments
+   * @param output the stream to the client
+   * @return the exit code
+   */
+  private int compile(ArrayList<String> args, DataOutputStream output) throws IOException
+  {
+    PrintWriter stdout = new PrintWriter(new FrameWriter(output, STDOUT), true);
+    PrintWriter stderr = new PrintWriter(new FrameWriter(output, STDERR), true);
+
+    String scriptPath = null;
+    boolean noMakeNSIS = false;
+    Charset charset = null;
+    for (String arg : args)
+    {
+      if (arg.equalsIgnoreCase("/nomake"))
+      {
+        noMakeNSIS = true;
+      }
+      else if (arg.toLowerCase().startsWith("/charset="))
+      {
+        try
+        {
+          charset = Charset.forName(arg.substring(9));
+        }
+        catch (IllegalArgumentException ex)
+        {
+          stderr.println("Unsupported character encoding \"" + arg.substring(9) + "\".");
+          return 1;
+        }
+      }
+      else
+      {
+        scriptPath = arg;
+      }
+    }
+
+    if (scriptPath == null)
+    {
+      stderr.println("No script specified.");
+      return 1;
+    }
+
+    try
+    {
+      // There is nobody at the server's console to press a key.
+      CompilationContext context = this.compiler.createContext(new File(scriptPath).getPath());
+      if (charset != null)
+        context.setCharset(charset);
+      return ScriptParser.parse(context, true, noMakeNSIS, stdout, stderr);
+    }
+    catch (RuntimeException ex)
+    {
+      ex.printStackTrace(stderr);
+      return 2;
+    }
+    finally
+    {
+      stdout.flush();
+      stderr.flush();
+    }
+  }
+
+  /**
+   * Writes text to the client as frames on the given channel.
+   */
+  private static class FrameWriter extends Writer
+  {
+    private final DataOutputStream output;
+    private final int channel;
+    private final StringBuilder buffer;
+
+    /**
+     * Class constructor.
+     * @param output the stream to the client
+     * @param channel the channel to write frames on
+     */
+    public FrameWriter(DataOutputStream output, int channel)
+    {
+      this.output = output;
+      this.channel = channel;
+      this.buffer = new StringBuilder();
+    }
+
+    @Override
+    public void write(char[] chars, int offset, int length)
+    {
+      this.buffer.append(chars, offset, length);
+    }
+
+    @Override
+    public void flush() throws IOException
+    {
+      // writeUTF is limited to 65535 bytes so send large output in pieces.
+      while (this.buffer.length() > 0)
+      {
+        int length = Math.min(this.buffer.length(), 16384);
+        synchronized (this.output)
+        {
+          this.output.writeByte(this.channel);
+          this.output.writeUTF(this.buffer.substring(0, length));
+          this.output.flush();
+        }
+        this.buffer.delete(0, length);
+      }
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+      this.flush();
+    }
+  }
+}
@@ -0,0 +1,355 @@
+/*
+ * Compiler.java
+ */
+
+package nsl;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import nsl.optimiser.Optimisation;
+import nsl.optimiser.OptimisingNsiSink;
+import nsl.preprocessor.IncludeCache;
+import nsl.preprocessor.IncludeLoader;
+import nsl.preprocessor.Macro;
+import nsl.statement.StreamingAssembler;
+
+/**
+ * Compiles nsL scripts, optionally many at once in the one JVM. Each script
+ * is compiled in its own {@link CompilationContext}.
+ * @author Stuart
+ */
+public class Compiler
+{
+  private Charset charset;
+  private IncludeCache includeCache;
+  private boolean prefetching;
+  private int assemblyThreads;
+  private EnumSet<Optimisation> optimisations;
+  private int inlineThreshold;
+  private boolean statistics;
+  private boolean streaming;
+  private int maximumMacroDepth;
+
+  /**
+   * Class constructor.
+   */
+  public Compiler()
+  {
+    this.charset = null;
+    this.includeCache = null;
+    this.prefetching = false;
+    this.assemblyThreads = 1;
+    this.optimisations = EnumSet.noneOf(Optimisation.class);
+    this.inlineThreshold = OptimisingNsiSink.DEFAULT_INLINE_THRESHOLD;
+    this.statistics = false;
+    this.streaming = false;
+    this.maximumMacroDepth = Macro.DEFAULT_MAXIMUM_DEPTH;
+  }
+
+  /**
+   * Gets the character encoding of the NSIS scripts.
+   * @return the character encoding or <code>null</code> for the platform
+   * default
+   */
+  public Charset getCharset()
+  {
+    return this.charset;
+  }
+
+  /**
+   * Sets the character encoding of the NSIS scripts.
+   * @param charset the character encoding or <code>null</code> for the
+   * platform default
+   */
+  public void setCharset(Charset charset)
+  {
+    this.charset = charset;
+  }
+
+  /**
+   * Gets the cache of included script tokens shared by all compilations.
+   * @return the include cache or <code>null</code> if there is none
+   */
+  public IncludeCache getIncludeCache()
+  {
+    return this.includeCache;
+  }
+
+  /**
+   * Sets the cache of included script tokens shared by all compilations.
+   * @param includeCache the include cache or <code>null</code> for none
+   */
+  public void setIncludeCache(IncludeCache includeCache)
+  {
+    this.includeCache = includeCache;
+  }
+
+  /**
+   * Gets whether included scripts are read on other threads ahead of the
+   * parser.
+   * @return whether included scripts are prefetched, <code>false</code> by
+   * default
+   */
+  public boolean getPrefetching()
+  {
+    return this.prefetching;
+  }
+
+  /**
+   * Sets whether included scripts are read on other threads ahead of the
+   * parser. They are still parsed in the order they are included.
+   * @param prefetching whether included scripts are prefetched
+   */
+  public void setPrefetching(boolean prefetching)
+  {
+    this.prefetching = prefetching;
+  }
+
+  /**
+   * Gets the number of threads that the functions and sections of each script
+   * are assembled on.
+   * @return the number of assembly threads, 1 to assemble serially
+   */
+  public int getAssemblyThreads()
+  {
+    return this.assemblyThreads;
+  }
+
+  /**
+   * Sets the number of threads that the functions and sections of each script
+   * are assembled on.
+   * @param assemblyThreads the number of assembly threads, 1 to assemble
+   * serially or 0 for one per processor
+   */
+  public void setAssemblyThreads(int assemblyThreads)
+  {
+    if (assemblyThreads < 1)
+      assemblyThreads = Runtime.getRuntime().availableProcessors();
+    this.assemblyThreads = assemblyThreads;
+  }
+
+  /**
+   * Gets the optimisations made to the assembled functions and sections.
+   * @return the optimisations, none by default
+   */
+  public EnumSet<Optimisation> getOptimisations()
+  {
+    return this.optimisations;
+  }
+
+  /**
+   * Sets the optimisations made to the assembled functions and sections.
+   * @param optimisations the optimisations
+   */
+  public void setOptimisations(EnumSet<Optimisation> optimisations)
+  {
+    this.optimisations = optimisations;
+  }
+
+  /**
+   * Gets the maximum number of instructions of a function that is inlined
+   * without an inline hint.
+   * @return the maximum number of instructions
+   */
+  public int getInlineThreshold()
+  {
+    return this.inlineThreshold;
+  }
+
+  /**
+   * Sets the maximum number of instructions of a function that is inlined
+   * without an inline hint.
+   * @param inlineThreshold the maximum number of instructions
+   */
+  public void setInlineThreshold(int inlineThreshold)
+  {
+    this.inlineThreshold = inlineThreshold;
+  }
+
+  /**
+   * Gets whether statistics are recorded for each script and written next to
+   * its NSIS script.
+   * @return whether statistics are recorded, <code>false</code> by default
+   */
+  public boolean getStatistics()
+  {
+    return this.statistics;
+  }
+
+  /**
+   * Sets whether statistics are recorded for each script and written next to
+   * its NSIS script.
+   * @param statistics whether statistics are recorded
+   */
+  public void setStatistics(boolean statistics)
+  {
+    this.statistics = statistics;
+  }
+
+  /**
+   * Gets whether each script is assembled a function or section at a time as
+   * it is parsed.
+   * @return whether scripts are streamed, <code>false</code> by default
+   */
+  public boolean getStreaming()
+  {
+    return this.streaming;
+  }
+
+  /**
+   * Sets whether each script is assembled a function or section at a time as
+   * it is parsed. This bounds the memory used by the parsed statements but
+   * the functions and sections are always assembled serially.
+   * @param streaming whether scripts are streamed
+   */
+  public void setStreaming(boolean streaming)
+  {
+    this.streaming = streaming;
+  }
+
+  /**
+   * Gets the maximum number of macros that can be evaluated inside one
+   * another.
+   * @return the maximum macro insertion depth or 0 for no limit
+   */
+  public int getMaximumMacroDepth()
+  {
+    return this.maximumMacroDepth;
+  }
+
+  /**
+   * Sets the maximum number of macros that can be evaluated inside one
+   * another. A macro inserted last thing in another is evaluated after it
+   * and so doesn't count.
+   * @param maximumMacroDepth the maximum macro insertion depth or 0 for no
+   * limit
+   */
+  public void setMaximumMacroDepth(int maximumMacroDepth)
+  {
+    this.maximumMacroDepth = maximumMacroDepth;
+  }
+
+  /**
+   * Creates a new {@link CompilationContext} for the given script with this
+   * compiler's settings.
+   * @param scriptPath the script file path
+   * @return the compilation context
+   */
+  public CompilationContext createContext(String scriptPath)
+  {
+    CompilationContext context = new CompilationContext();
+    context.setScriptPath(scriptPath);
+    context.setCharset(this.charset);
+    context.setIncludeCache(this.includeCache);
+    if (this.prefetching)
+      context.setIncludeLoader(new IncludeLoader());
+    context.setAssemblyThreads(this.assemblyThreads);
+    context.setOptimisations(EnumSet.copyOf(this.optimisations));
+    context.setInlineThreshold(this.inlineThreshold);
+    context.setMaximumMacroDepth(this.maximumMacroDepth);
+    if (this.statistics)
+      context.setStatistics(new Statistics());
+    if (this.streaming)
+      context.setStreamingAssembler(new StreamingAssembler());
+    return context;
+  }
+
+  /**
+   * Compiles a single nsL script to NSIS script in a new
+   * {@link CompilationContext} on the current thread. makensisw.exe is not
+   * run.
+   * @param script the script file
+   * @return the compilation result
+   */
+  public CompilationResult compile(File script)
+  {
+    StringWriter output = new StringWriter();
+    StringWriter errors = new StringWriter();
+    PrintWriter stdout = new PrintWriter(output, true);
+    PrintWriter stderr = new PrintWriter(errors, true);
+
+    int exitCode;
+    try
+    {
+      exitCode = ScriptParser.parse(this.createContext(script.getPath()), true, true, stdout, stderr);
+    }
+    catch (IOException ex)
+    {
+      stderr.println(ex);
+      exitCode = 2;
+    }
+    catch (RuntimeException ex)
+    {
+      ex.printStackTrace(stderr);
+      exitCode = 2;
+    }
+
+    stdout.flush();
+    stderr.flush();
+    return new CompilationResult(script, exitCode, output.toString(), errors.toString());
+  }
+
+  /**
+   * Compiles the given nsL scripts to NSIS scripts in parallel. makensisw.exe
+   * is not run.
+   * @param scripts the script files
+   * @param threads the number of worker threads to use
+   * @return the compilation results in the same order as the given scripts
+   */
+  public List<CompilationResult> compileAll(List<File> scripts, int threads)
+  {
+    if (threads < 1)
+      threads = Runtime.getRuntime().availableProcessors();
+
+    ArrayList<CompilationResult> results = new ArrayList<CompilationResult>();
+    ExecutorService executor = Executors.newFixedThreadPool(Math.min(threads, Math.max(scripts.size(), 1)));
+    try
+    {
+      ArrayList<Future<CompilationResult>> futures = new ArrayList<Future<CompilationResult>>();
+      for (final File script : scripts)
+      {
+        futures.add(executor.submit(new Callable<CompilationResult>()
+        {
+          public CompilationResult call()
+          {
+            return compile(script);
+          }
+        }));
+      }
+
+      for (int i = 0; i < futures.size(); i++)
+      {
+        try
+        {
+          results.add(futures.get(i).get());
+        }
+        catch (ExecutionException ex)
+        {
+          results.add(new CompilationResult(scripts.get(i), 2, "", ex.getCause().toString()));
+        }
+        catch (InterruptedException ex)
+        {
+          Thread.currentThread().interrupt();
+          results.add(new CompilationResult(scripts.get(i), 2, "", ex.toString()));
+        }
+      }
+    }
+    finally
+    {
+      executor.shutdown();
+    }
+
+    return results;
+  }
+}
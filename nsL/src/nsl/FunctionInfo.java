@@ -5,6 +5,7 @@
 package nsl;
 
 import java.util.ArrayList;
+import java.util.HashMap;
 
 /**
  * Describes a function or function call.
@@ -12,12 +13,11 @@ import java.util.ArrayList;
  */
 public class FunctionInfo extends CodeInfo
 {
-  private static final ArrayList<FunctionInfo> list = new ArrayList<FunctionInfo>();
-
   private final String name;
   private final int params;
   private int returns;
   private final boolean isCallback;
+  private InlineHint inlineHint;
 
   /**
    * Class constructor specifying the function name and parameters.
@@ -32,6 +32,7 @@ public class FunctionInfo extends CodeInfo
     for (Register param : params)
       this.usedVars.put(Integer.valueOf(param.getIntegerValue()), param);
     this.isCallback = isCallbackFunction(name);
+    this.inlineHint = InlineHint.Default;
   }
 
   /**
@@ -42,7 +43,17 @@ public class FunctionInfo extends CodeInfo
   public static FunctionInfo create(String name, ArrayList<Register> params)
   {
     FunctionInfo functionInfo = new FunctionInfo(name, params);
-    list.add(functionInfo);
+    CompilationContext context = CompilationContext.getCurrent();
+    context.getFunctionList().add(functionInfo);
+
+    String key = foldCase(name);
+    ArrayList<FunctionInfo> overloads = context.getFunctionIndex().get(key);
+    if (overloads == null)
+    {
+      overloads = new ArrayList<FunctionInfo>(1);
+      context.getFunctionIndex().put(key, overloads);
+    }
+    overloads.add(functionInfo);
     return functionInfo;
   }
 
@@ -52,7 +63,7 @@ public class FunctionInfo extends CodeInfo
    */
   public static boolean in()
   {
-    return current != null && current instanceof FunctionInfo;
+    return CodeInfo.getCurrent() instanceof FunctionInfo;
   }
 
   /**
@@ -61,7 +72,7 @@ public class FunctionInfo extends CodeInfo
    */
   public static FunctionInfo getCurrent()
   {
-    return (FunctionInfo)current;
+    return (FunctionInfo)CodeInfo.getCurrent();
   }
 
   /**
@@ -137,7 +148,7 @@ public class FunctionInfo extends CodeInfo
    */
   public static ArrayList<FunctionInfo> getList()
   {
-    return list;
+    return CompilationContext.getCurrent().getFunctionList();
   }
 
   /**
@@ -147,15 +158,63 @@ public class FunctionInfo extends CodeInfo
    */
   public static int isOnInitDefined()
   {
+    HashMap<String, ArrayList<FunctionInfo>> index = CompilationContext.getCurrent().getFunctionIndex();
     int ret = 0;
-    for (FunctionInfo functionInfo : list)
+    if (index.containsKey(foldCase(".onInit")))
+      ret |= 1;
+    if (index.containsKey(foldCase("un.onInit")))
+      ret |= 2;
+    return ret;
+  }
+
+  /**
+   * Folds the case of a function name so that names which are equal ignoring
+   * case (as in {@link String#equalsIgnoreCase(String)}) fold to the same
+   * string.
+   * @param name the function name
+   * @return the folded function name
+   */
+  static String foldCase(String name)
+  {
+    char[] chars = name.toCharArray();
+    for (int i = 0; i < chars.length; i++)
+      chars[i] = Character.toLowerCase(Character.toUpperCase(chars[i]));
+    return new String(chars);
+  }
+
+  /**
+   * Gets the key of the function in the index of functions. Overloads of the
+   * function share the same key.
+   * @return the case folded function name
+   */
+  public String getIndexKey()
+  {
+    return foldCase(this.name);
+  }
+
+  /**
+   * Gets the variables that calling the function can change. These are the
+   * variables used in the function and in every function that it calls,
+   * directly or not, as a function only saves the variables that it uses
+   * itself around its calls.
+   * @return the variables that calling the function can change
+   */
+  public HashMap<Integer, Register> getClobberedVars()
+  {
+    HashMap<Integer, Register> clobbered = new HashMap<Integer, Register>(this.usedVars);
+    HashMap<String, ArrayList<FunctionInfo>> index = CompilationContext.getCurrent().getFunctionIndex();
+    for (String call : this.getReachableCalls())
     {
-      if (functionInfo.name.equalsIgnoreCase(".onInit"))
-        ret |= 1;
-      else if (functionInfo.name.equalsIgnoreCase("un.onInit"))
-        ret |= 2;
+      ArrayList<FunctionInfo> overloads = index.get(call);
+      if (overloads == null)
+        continue;
+      for (FunctionInfo functionInfo : overloads)
+        if (functionInfo != this)
+          for (Register var : functionInfo.getUsedVars().values())
+            if (!clobbered.containsKey(Integer.valueOf(var.getIntegerValue())))
+              clobbered.put(Integer.valueOf(var.getIntegerValue()), var);
     }
-    return ret;
+    return clobbered;
   }
 
   /**
@@ -167,6 +226,24 @@ public class FunctionInfo extends CodeInfo
     return this.isCallback;
   }
 
+  /**
+   * Gets whether the function should be inlined where it is called.
+   * @return the inlining hint
+   */
+  public InlineHint getInlineHint()
+  {
+    return this.inlineHint;
+  }
+
+  /**
+   * Sets whether the function should be inlined where it is called.
+   * @param inlineHint the inlining hint
+   */
+  public void setInlineHint(InlineHint inlineHint)
+  {
+    this.inlineHint = inlineHint;
+  }
+
   /**
    * Searches for the function that matches the given call.
    * @param name the name of the function being called
@@ -177,9 +254,15 @@ public class FunctionInfo extends CodeInfo
    */
   public static FunctionInfo find(String name, int params, int returns)
   {
-    for (FunctionInfo functionInfo : list)
-      if (functionInfo.matches(name, params, returns))
-        return functionInfo;
+    CompilationContext context = CompilationContext.getCurrent();
+    if (context.getStatistics() != null)
+      context.getStatistics().count(Statistics.Counter.FunctionLookups);
+
+    ArrayList<FunctionInfo> overloads = context.getFunctionIndex().get(foldCase(name));
+    if (overloads != null)
+      for (FunctionInfo functionInfo : overloads)
+        if (functionInfo.matches(name, params, returns))
+          return functionInfo;
     return null;
   }
 
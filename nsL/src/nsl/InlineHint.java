@@ -0,0 +1,25 @@
+/*
+ * InlineHint.java
+ */
+
+package nsl;
+
+/**
+ * Defines whether a function should be inlined at the places it is called.
+ * @author Stuart
+ */
+public enum InlineHint
+{
+  /**
+   * Inlined if it is small enough.
+   */
+  Default,
+  /**
+   * Always inlined if it can be (declared with "inline function").
+   */
+  Inline,
+  /**
+   * Never inlined (declared with "noinline function").
+   */
+  NoInline
+}
@@ -12,7 +12,6 @@ import java.io.IOException;
  */
 public class LabelList
 {
-  private static LabelList current = new LabelList();
   private int counter;
 
   /**
@@ -31,13 +30,23 @@ public class LabelList
     this.counter = 0;
   }
 
+  /**
+   * Determines if the label list counter has been reset, which it is at the
+   * end of every function and section.
+   * @return <code>true</code> if no labels have been used since the last reset
+   */
+  public boolean isReset()
+  {
+    return this.counter == 0;
+  }
+
   /**
    * Returns the script label list used in sections and functions.
    * @return the script label list used in sections and functions
    */
   public static LabelList getCurrent()
   {
-    return current;
+    return CompilationContext.getCurrent().getLabelList();
   }
 
   /**
@@ -1,6 +1,13 @@
 package nsl;
 
+import java.io.File;
 import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import nsl.optimiser.Optimisation;
 
 /**
  *
@@ -13,9 +20,15 @@ public class Main
    */
   public static void main(String[] args) throws IOException
   {
-    String scriptPath = null;
+    ArrayList<String> scriptPaths = new ArrayList<String>();
     boolean noPauseOnError = false;
     boolean noMakeNSIS = false;
+    int threads = 0;
+    int serverPort = -1;
+    int clientPort = -1;
+    int shutdownPort = -1;
+    boolean inline = false;
+    Compiler compiler = new Compiler();
 
     for (String arg : args)
     {
@@ -27,16 +40,196 @@ public class Main
       {
         noPauseOnError = true;
       }
-      else
+      else if (arg.toLowerCase().startsWith("/threads="))
       {
-        scriptPath = arg.trim();
+        try
+        {
+          threads = Integer.parseInt(arg.substring(9));
+        }
+        catch (NumberFormatException ex)
+        {
+          showUsage();
+        }
+      }
+      else if (arg.equalsIgnoreCase("/parallel"))
+      {
+        compiler.setAssemblyThreads(0);
+      }
+      else if (arg.toLowerCase().startsWith("/parallel="))
+      {
+        try
+        {
+          compiler.setAssemblyThreads(Integer.parseInt(arg.substring(10)));
+        }
+        catch (NumberFormatException ex)
+        {
+          showUsage();
+        }
+      }
+      else if (arg.equalsIgnoreCase("/optimise"))
+      {
+        compiler.setOptimisations(EnumSet.allOf(Optimisation.class));
+      }
+      else if (arg.toLowerCase().startsWith("/optimise="))
+      {
+        try
+        {
+          compiler.setOptimisations(Optimisation.parse(arg.substring(10)));
+        }
+        catch (IllegalArgumentException ex)
+        {
+          showUsage();
+        }
+      }
+      else if (arg.toLowerCase().startsWith("/inline="))
+      {
+        try
+        {
+          compiler.setInlineThreshold(Integer.parseInt(arg.substring(8)));
+          inline = true;
+        }
+        catch (NumberFormatException ex)
+        {
+          showUsage();
+        }
+      }
+      else if (arg.equalsIgnoreCase("/stream"))
+      {
+        compiler.setStreaming(true);
+      }
+      else if (arg.equalsIgnoreCase("/stats"))
+      {
+        compiler.setStatistics(true);
+      }
+      else if (arg.toLowerCase().startsWith("/macrodepth="))
+      {
+        try
+        {
+          compiler.setMaximumMacroDepth(Integer.parseInt(arg.substring(12)));
+        }
+        catch (NumberFormatException ex)
+        {
+          showUsage();
+        }
+      }
+      else if (arg.toLowerCase().startsWith("/charset="))
+      {
+        try
+        {
+          compiler.setCharset(Charset.forName(arg.substring(9)));
+        }
+        catch (IllegalArgumentException ex)
+        {
+          showUsage();
+        }
+      }
+      else if (arg.equalsIgnoreCase("/prefetch"))
+      {
+        compiler.setPrefetching(true);
+      }
+      else if (arg.toLowerCase().startsWith("/server"))
+      {
+        serverPort = parsePort(arg.substring(7));
+      }
+      else if (arg.toLowerCase().startsWith("/client"))
+      {
+        clientPort = parsePort(arg.substring(7));
+      }
+      else if (arg.toLowerCase().startsWith("/shutdown"))
+      {
+        shutdownPort = parsePort(arg.substring(9));
+      }
+      else if (!arg.trim().isEmpty())
+      {
+        scriptPaths.add(arg.trim());
       }
     }
 
-    if (scriptPath == null || scriptPath.isEmpty())
+    if (inline)
+      compiler.getOptimisations().add(Optimisation.Inline);
+
+    // Run as a compile server.
+    if (serverPort != -1)
+    {
+      CompileServer server = new CompileServer(serverPort, compiler);
+      System.out.println("nsL compile server listening on port " + server.getPort() + ".");
+      server.run();
+      System.exit(0);
+    }
+
+    // Stop a running compile server.
+    if (shutdownPort != -1)
+      System.exit(CompileClient.shutdown(shutdownPort) == -1 ? 1 : 0);
+
+    if (scriptPaths.isEmpty())
       showUsage();
 
-    System.exit(ScriptParser.parse(scriptPath, noPauseOnError, noMakeNSIS));
+    // Send the script to a running compile server. If there isn't one we
+    // compile the script ourself.
+    if (clientPort != -1 && scriptPaths.size() == 1)
+    {
+      int exitCode = CompileClient.send(clientPort, scriptPaths.get(0), noMakeNSIS, compiler.getCharset());
+      if (exitCode != -1)
+        System.exit(exitCode);
+    }
+
+    if (scriptPaths.size() == 1)
+    {
+      CompilationContext context = compiler.createContext(scriptPaths.get(0));
+      System.exit(ScriptParser.parse(context, noPauseOnError, noMakeNSIS, new PrintWriter(System.out, true), new PrintWriter(System.err, true)));
+    }
+
+    System.exit(compileAll(compiler, scriptPaths, threads));
+  }
+
+  /**
+   * Compiles many scripts in parallel in the one JVM.
+   * @param compiler the compiler settings
+   * @param scriptPaths the script file paths
+   * @param threads the number of worker threads or 0 for one per processor
+   * @return the exit code
+   */
+  private static int compileAll(Compiler compiler, ArrayList<String> scriptPaths, int threads)
+  {
+    ArrayList<File> scripts = new ArrayList<File>();
+    for (String scriptPath : scriptPaths)
+      scripts.add(new File(scriptPath));
+
+    int exitCode = 0;
+    List<CompilationResult> results = compiler.compileAll(scripts, threads);
+    for (CompilationResult result : results)
+    {
+      System.out.print(result.getOutput());
+      System.err.print(result.getErrors());
+      if (!result.succeeded())
+        exitCode = result.getExitCode();
+    }
+
+    System.out.println(results.size() + " scripts assembled" + (exitCode == 0 ? " successfully." : " with errors."));
+    return exitCode;
+  }
+
+  /**
+   * Parses the optional port number of a command line option such as
+   * /server=1234.
+   * @param value the text following the option name
+   * @return the port number
+   */
+  private static int parsePort(String value)
+  {
+    if (value.isEmpty())
+      return CompileServer.DEFAULT_PORT;
+    if (!value.startsWith("="))
+      showUsage();
+    try
+    {
+      return Integer.parseInt(value.substring(1));
+    }
+    catch (NumberFormatException ex)
+    {
+      showUsage();
+    }
+    return -1;
   }
 
   /**
@@ -45,10 +238,33 @@ public class Main
   private static void showUsage()
   {
     System.out.println("Usage:");
-    System.out.println("  java -jar nsL.jar [Options] script.nsl");
+    System.out.println("  java -jar nsL.jar [Options] script.nsl [script2.nsl ...]");
     System.out.println();
     System.out.println("Options:");
-    System.out.println("  -n");
+    System.out.println("  /nomake       do not run makensisw.exe");
+    System.out.println("  /nopause      do not pause on error");
+    System.out.println("  /threads=n    number of scripts to assemble at once");
+    System.out.println("  /parallel[=n] assemble the functions and sections of a script on n");
+    System.out.println("                threads (default one per processor)");
+    System.out.println("  /optimise[=o] optimise the assembled functions and sections; o is a");
+    System.out.println("                comma separated list of SwitchDispatch, Inline,");
+    System.out.println("                RegisterAllocation, ConstantFolding, BooleanJumps,");
+    System.out.println("                JumpThreading, JumpToNext, RedundantMoves, PushPop,");
+    System.out.println("                DeadSaves, DeadCode, UnusedLabels, UnusedFunctions and");
+    System.out.println("                UnusedVars (default all)");
+    System.out.println("  /inline=n     inline functions of up to n instructions (default 8)");
+    System.out.println("  /stream       assemble each function and section as soon as it is parsed");
+    System.out.println("                to bound memory use; overrides /parallel");
+    System.out.println("  /stats        write the time and memory taken by each phase of the");
+    System.out.println("                compilation to script.stats.json");
+    System.out.println("  /macrodepth=n insert macros up to n deep inside one another (default");
+    System.out.println("                no limit)");
+    System.out.println("  /charset=c    character encoding of the NSIS script, e.g. UTF-8 or");
+    System.out.println("                UTF-16LE for Unicode NSIS");
+    System.out.println("  /prefetch     read included scripts on other threads ahead of parsing");
+    System.out.println("  /server[=p]   run as a compile server on port p");
+    System.out.println("  /client[=p]   send the script to the compile server on port p");
+    System.out.println("  /shutdown[=p] stop the compile server on port p");
     System.exit(1);
   }
 }
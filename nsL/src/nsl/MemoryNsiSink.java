@@ -0,0 +1,94 @@
+/*
+ * MemoryNsiSink.java
+ */
+
+package nsl;
+
+import java.nio.charset.Charset;
+
+/**
+ * Keeps the assembled NSIS script in memory.
+ * @author Stuart
+ */
+public class MemoryNsiSink extends NsiSink
+{
+  private final StringBuilder text;
+  private boolean closed;
+
+  /**
+   * Class constructor.
+   * @param charset the character encoding used by {@link #getBytes()}
+   */
+  public MemoryNsiSink(Charset charset)
+  {
+    super(charset);
+    this.text = new StringBuilder();
+    this.closed = false;
+  }
+
+  /**
+   * Writes text to the NSIS script.
+   * @param text the text to write
+   */
+  @Override
+  public void write(String text)
+  {
+    this.text.append(text);
+  }
+
+  /**
+   * Writes a line to the NSIS script.
+   * @param line the line to write
+   */
+  @Override
+  public void writeLine(String line)
+  {
+    this.text.append(line).append(NEW_LINE);
+  }
+
+  /**
+   * Closes the NSIS script.
+   */
+  @Override
+  public void close()
+  {
+    this.closed = true;
+  }
+
+  /**
+   * Throws away the NSIS script.
+   */
+  @Override
+  public void discard()
+  {
+    this.text.setLength(0);
+    this.closed = true;
+  }
+
+  /**
+   * Gets whether or not the NSIS script was assembled and closed.
+   * @return whether or not the NSIS script was assembled and closed
+   */
+  public boolean isClosed()
+  {
+    return this.closed;
+  }
+
+  /**
+   * Gets the NSIS script.
+   * @return the NSIS script
+   */
+  public String getText()
+  {
+    return this.text.toString();
+  }
+
+  /**
+   * Gets the NSIS script encoded in the sink's character encoding.
+   * @return the encoded NSIS script
+   */
+  public byte[] getBytes()
+  {
+    return this.text.toString().getBytes(this.getCharset());
+  }
+}
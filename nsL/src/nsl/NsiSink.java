@@ -0,0 +1,112 @@
+/*
+ * NsiSink.java
+ */
+
+package nsl;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+
+/**
+ * Receives the assembled NSIS script.
+ * @author Stuart
+ */
+public abstract class NsiSink
+{
+  /**
+   * The line terminator written after each line.
+   */
+  public static final String NEW_LINE = "\r\n";
+
+  /**
+   * The size of the output buffers in characters or bytes.
+   */
+  protected static final int BUFFER_SIZE = 65536;
+
+  private final Charset charset;
+
+  /**
+   * Class constructor.
+   * @param charset the character encoding of the NSIS script
+   */
+  protected NsiSink(Charset charset)
+  {
+    this.charset = charset;
+  }
+
+  /**
+   * Gets the character encoding of the NSIS script.
+   * @return the character encoding of the NSIS script
+   */
+  public Charset getCharset()
+  {
+    return this.charset;
+  }
+
+  /**
+   * Gets the file the NSIS script is written to.
+   * @return the file the NSIS script is written to or <code>null</code> if it
+   * is not written to a file
+   */
+  public File getFile()
+  {
+    return null;
+  }
+
+  /**
+   * Determines if a byte order mark must be written at the start of the NSIS
+   * script for the given character encoding. NSIS only recognises Unicode
+   * scripts that start with one.
+   * @param charset the character encoding
+   * @param explicit whether the character encoding was chosen explicitly
+   * rather than being the platform default
+   * @return <code>true</code> if a byte order mark must be written
+   */
+  public static boolean needsByteOrderMark(Charset charset, boolean explicit)
+  {
+    String name = charset.name();
+    if (name.equals("UTF-16LE") || name.equals("UTF-16BE"))
+      return true;
+    return explicit && name.equals("UTF-8");
+  }
+
+  /**
+   * Writes text to the NSIS script.
+   * @param text the text to write
+   * @throws IOException
+   */
+  public abstract void write(String text) throws IOException;
+
+  /**
+   * Writes a line to the NSIS script.
+   * @param line the line to write
+   * @throws IOException
+   */
+  public void writeLine(String line) throws IOException
+  {
+    this.write(line);
+    this.write(NEW_LINE);
+  }
+
+  /**
+   * Writes an empty line to the NSIS script.
+   * @throws IOException
+   */
+  public void writeLine() throws IOException
+  {
+    this.write(NEW_LINE);
+  }
+
+  /**
+   * Flushes and closes the NSIS script.
+   * @throws IOException
+   */
+  public abstract void close() throws IOException;
+
+  /**
+   * Closes the NSIS script and throws away anything written to it. This is
+   * called instead of {@link #close()} when assembly fails.
+   */
+  public abstract void discard();
+}
@@ -4,6 +4,8 @@
 
 package nsl;
 
+import java.io.PrintWriter;
+
 /**
  * Thrown when a general error occurs.
  * @author Stuart
@@ -38,7 +40,7 @@ public class NslException extends RuntimeException
    */
   public NslException(String message, boolean includeLineNo)
   {
-    super(getParseStack(ScriptParser.tokenizer.lineno(), true) + message + ".");
+    super(getParseStack(ScriptParser.getTokenizer().lineno(), true) + message + ".");
   }
 
   /**
@@ -66,8 +68,9 @@ public class NslException extends RuntimeException
    */
   public static void printWarning(String message)
   {
-    System.out.println(getParseStack(ScriptParser.tokenizer.lineno(), false) + message + ".");
-    System.out.flush();
+    PrintWriter stdout = CompilationContext.getCurrent().getStdout();
+    stdout.println(getParseStack(ScriptParser.getTokenizer().lineno(), false) + message + ".");
+    stdout.flush();
   }
 
   /**
@@ -80,12 +83,12 @@ public class NslException extends RuntimeException
   {
     String errorStack = "";
 
-    for (Tokenizer tokenizer : ScriptParser.tokenizers)
+    for (Tokenizer tokenizer : ScriptParser.getTokenizers())
       if (tokenizer.getSource() != null)
         errorStack += (isError ? "Error" : "Warning") + " in " + tokenizer.getSource() + " on line " + tokenizer.lineno() + ":\r\n  ";
 
-    if (ScriptParser.tokenizer.getSource() != null)
-      errorStack += (isError ? "Error" : "Warning") + " in " + ScriptParser.tokenizer.getSource() + " on line " + lineNo + ":\r\n  ";
+    if (ScriptParser.getTokenizer().getSource() != null)
+      errorStack += (isError ? "Error" : "Warning") + " in " + ScriptParser.getTokenizer().getSource() + " on line " + lineNo + ":\r\n  ";
 
     return errorStack;
   }
@@ -4,8 +4,6 @@
 
 package nsl;
 
-import java.io.StreamTokenizer;
-
 /**
  * Thrown when an unexpected token is found while parsing.
  * @author Stuart
@@ -19,15 +17,15 @@ public class NslExpectedException extends NslException
   public NslExpectedException(String expected)
   {
     super(String.format("Expected %s, but found %s", expected,
-      ScriptParser.tokenizer.ttype == StreamTokenizer.TT_EOF ?
+      ScriptParser.getTokenizer().ttype == Tokenizer.TT_EOF ?
         "the end of the file" :
-      ScriptParser.tokenizer.tokenIsWord() ?
-        "\"" + ScriptParser.tokenizer.sval + "\"" :
-      ScriptParser.tokenizer.tokenIsNumber() ?
-        "\"" + (int)ScriptParser.tokenizer.nval + "\"" :
-      ScriptParser.tokenizer.tokenIsString() ?
-        "\"" + ScriptParser.tokenizer.sval + "\"" :
-      "\"" + (char)ScriptParser.tokenizer.ttype + "\""), true);
+      ScriptParser.getTokenizer().tokenIsWord() ?
+        "\"" + ScriptParser.getTokenizer().sval + "\"" :
+      ScriptParser.getTokenizer().tokenIsNumber() ?
+        "\"" + (int)ScriptParser.getTokenizer().nval + "\"" :
+      ScriptParser.getTokenizer().tokenIsString() ?
+        "\"" + ScriptParser.getTokenizer().sval + "\"" :
+      "\"" + (char)ScriptParser.getTokenizer().ttype + "\""), true);
   }
 
   /**
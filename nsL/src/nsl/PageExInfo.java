@@ -10,8 +10,6 @@ package nsl;
  */
 public class PageExInfo
 {
-  private static PageExInfo current = null;
-
   /**
    * Class constructor.
    */
@@ -25,7 +23,7 @@ public class PageExInfo
    */
   public static boolean in()
   {
-    return current != null;
+    return CompilationContext.getCurrent().getPageExInfo() != null;
   }
 
   /**
@@ -34,7 +32,7 @@ public class PageExInfo
    */
   public static PageExInfo getCurrent()
   {
-    return current;
+    return CompilationContext.getCurrent().getPageExInfo();
   }
 
   /**
@@ -43,6 +41,6 @@ public class PageExInfo
    */
   public static void setCurrent(PageExInfo pageExInfo)
   {
-    current = pageExInfo;
+    CompilationContext.getCurrent().setPageExInfo(pageExInfo);
   }
 }
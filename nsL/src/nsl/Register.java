@@ -14,23 +14,19 @@ import nsl.expression.ExpressionType;
 public class Register extends Expression
 {
   private RegisterType registerType;
-  private String substitute;
 
   /**
    * Class constructor.
    * @param name the register name
    * @param index the register index
    * @param registerType the type of register
-   * @param inUse whether or not the current register is in use
    */
-  public Register(String name, int index, RegisterType registerType, boolean inUse)
+  public Register(String name, int index, RegisterType registerType)
   {
     this.type = ExpressionType.Register;
     this.stringValue = name;
     this.integerValue = index;
     this.registerType = registerType;
-    this.booleanValue = inUse;
-    this.substitute = null;
   }
 
   /**
@@ -43,12 +39,14 @@ public class Register extends Expression
   }
 
   /**
-   * Gets whether or not the current register is in use.
+   * Gets whether or not the current register is in use. This is held by the
+   * current register list so that functions and sections can be assembled in
+   * parallel.
    * @return whether or not the current register is in use
    */
   public boolean getInUse()
   {
-    return this.booleanValue;
+    return RegisterList.getCurrent().getInUse(this.integerValue);
   }
 
   /**
@@ -58,7 +56,7 @@ public class Register extends Expression
   @Override
   public void setInUse(boolean inUse)
   {
-    this.booleanValue = inUse;
+    RegisterList.getCurrent().setInUse(this.integerValue, inUse);
   }
 
   /**
@@ -76,8 +74,9 @@ public class Register extends Expression
    */
   public void substitute(String value)
   {
-    this.substitute = value;
-    this.booleanValue = false;
+    RegisterList registerList = RegisterList.getCurrent();
+    registerList.setSubstitute(this.integerValue, value);
+    registerList.setInUse(this.integerValue, false);
   }
 
   /**
@@ -98,10 +97,9 @@ public class Register extends Expression
   @Override
   public String toString(boolean noQuote)
   {
-    if (this.substitute != null)
+    String value = RegisterList.getCurrent().takeSubstitute(this.integerValue);
+    if (value != null)
     {
-      String value = this.substitute;
-      this.substitute = null;
       if (noQuote)
         return value;
       return "\"" + value + "\"";
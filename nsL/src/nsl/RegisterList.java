@@ -6,6 +6,7 @@ package nsl;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.HashMap;
 
 /**
@@ -17,16 +18,39 @@ public class RegisterList
 {
   private final ArrayList<Register> registerList;
   private final HashMap<String, Register> registerMap;
-
-  private static RegisterList current = new RegisterList();
+  private final BitSet inUse;
+  private final HashMap<Integer, String> substitutes;
 
   /**
-   * Class constructor.
+   * Class constructor. The list is empty until {@link #addBuiltIn} is called.
    */
   public RegisterList()
   {
     this.registerList = new ArrayList<Register>();
     this.registerMap = new HashMap<String, Register>();
+    this.inUse = new BitSet();
+    this.substitutes = new HashMap<Integer, String>();
+  }
+
+  /**
+   * Class constructor specifying the register list to fork from. The registers
+   * are shared but whether or not they are in use is copied.
+   * @param parent the register list to fork from
+   */
+  private RegisterList(RegisterList parent)
+  {
+    this.registerList = parent.registerList;
+    this.registerMap = parent.registerMap;
+    this.inUse = (BitSet)parent.inUse.clone();
+    this.substitutes = new HashMap<Integer, String>(parent.substitutes);
+  }
+
+  /**
+   * Adds the built in registers. This must be done once the list is the
+   * current register list.
+   */
+  public void addBuiltIn()
+  {
     this.add("$0", RegisterType.Register, false);
     this.add("$1", RegisterType.Register, false);
     this.add("$2", RegisterType.Register, false);
@@ -59,7 +83,8 @@ public class RegisterList
    */
   private void add(String name, RegisterType registerType, boolean inUse)
   {
-    Register register = new Register(name, this.registerList.size(), registerType, inUse);
+    Register register = new Register(name, this.registerList.size(), registerType);
+    this.inUse.set(register.getIndex(), inUse);
     this.registerList.add(register);
     this.registerMap.put(register.toString(), register);
 
@@ -80,13 +105,13 @@ public class RegisterList
     Register register = this.registerMap.get(name);
     if (register != null)
     {
-      register.setInUse(true);
+      this.inUse.set(register.getIndex());
       return register.getIndex();
     }
 
     int index = this.registerList.size();
-    register = new Register(name, index, RegisterType.Variable, false);
-    register.setInUse(true);
+    register = new Register(name, index, RegisterType.Variable);
+    this.inUse.set(index);
     this.registerList.add(register);
     this.registerMap.put(register.toString(), register);
     return index;
@@ -102,6 +127,83 @@ public class RegisterList
     return this.registerList.get(index);
   }
 
+  /**
+   * Gets whether or not the given register is in use.
+   * @param index the register index
+   * @return whether or not the register is in use
+   */
+  public boolean getInUse(int index)
+  {
+    return this.inUse.get(index);
+  }
+
+  /**
+   * Sets whether or not the given register is in use.
+   * @param index the register index
+   * @param inUse whether or not the register is in use
+   */
+  public void setInUse(int index, boolean inUse)
+  {
+    this.inUse.set(index, inUse);
+  }
+
+  /**
+   * Sets the value to substitute the given register with the next time it is
+   * written.
+   * @param index the register index
+   * @param value the value to substitute
+   */
+  public void setSubstitute(int index, String value)
+  {
+    this.substitutes.put(Integer.valueOf(index), value);
+  }
+
+  /**
+   * Gets and clears the value to substitute the given register with.
+   * @param index the register index
+   * @return the value to substitute or <code>null</code> if there is none
+   */
+  public String takeSubstitute(int index)
+  {
+    if (this.substitutes.isEmpty())
+      return null;
+    return this.substitutes.remove(Integer.valueOf(index));
+  }
+
+  /**
+   * Forks the register list. The fork shares the registers but has its own
+   * copy of which registers are in use so that it can be used to assemble a
+   * function or section on another thread.
+   * @return the forked register list
+   */
+  public RegisterList fork()
+  {
+    return new RegisterList(this);
+  }
+
+  /**
+   * Determines if the given register list has the same registers in use as
+   * the current register list.
+   * @param other the register list to compare with
+   * @return <code>true</code> if the register lists are in the same state
+   */
+  public boolean sameState(RegisterList other)
+  {
+    return this.inUse.equals(other.inUse) && this.substitutes.equals(other.substitutes);
+  }
+
+  /**
+   * Copies which registers are in use from the given register list.
+   * @param other the register list to copy from
+   */
+  public void copyState(RegisterList other)
+  {
+    this.inUse.clear();
+    this.inUse.or(other.inUse);
+    this.substitutes.clear();
+    this.substitutes.putAll(other.substitutes);
+  }
+
   /**
    * Sets the {@code Register.setInUse} value for all built in registers.
    * @param inUse the new value
@@ -111,7 +213,7 @@ public class RegisterList
     for (Register register : this.registerList)
     {
       if (register.getRegisterType() == RegisterType.Register)
-        register.setInUse(inUse);
+        this.inUse.set(register.getIndex(), inUse);
       else
         break;
     }
@@ -125,9 +227,9 @@ public class RegisterList
   {
     for (Register register : this.registerList)
     {
-      if (register.getRegisterType() != RegisterType.Other && !register.getInUse())
+      if (register.getRegisterType() != RegisterType.Other && !this.inUse.get(register.getIndex()))
       {
-        register.setInUse(true);
+        this.inUse.set(register.getIndex());
         return register;
       }
     }
@@ -141,7 +243,7 @@ public class RegisterList
    */
   public static RegisterList getCurrent()
   {
-    return current;
+    return CompilationContext.getCurrent().getRegisterList();
   }
 
   /**
@@ -150,7 +252,16 @@ public class RegisterList
    */
   public static void setCurrent(RegisterList current)
   {
-    RegisterList.current = current;
+    CompilationContext.getCurrent().setRegisterList(current);
+  }
+
+  /**
+   * Gets the number of registers and variables in the list.
+   * @return the number of registers and variables
+   */
+  public int size()
+  {
+    return this.registerList.size();
   }
 
   /**
@@ -158,8 +269,21 @@ public class RegisterList
    */
   public void defineVars() throws IOException
   {
-    for (Register register : this.registerList)
+    this.defineVars(0);
+  }
+
+  /**
+   * Writes the declarations of the variables added from the given index on to
+   * the output stream.
+   * @param start the index of the first register or variable
+   */
+  public void defineVars(int start) throws IOException
+  {
+    for (int i = start; i < this.registerList.size(); i++)
+    {
+      Register register = this.registerList.get(i);
       if (register.getRegisterType() == RegisterType.Variable)
         ScriptParser.writeLine("Var " + register.toString().substring(1));
+    }
   }
 }
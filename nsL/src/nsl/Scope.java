@@ -12,30 +12,38 @@ import java.util.ArrayList;
  */
 public class Scope
 {
-  private static final Scope global = new Scope();
-  private static final Scope globalUninstaller = new Scope();
-  private static Scope current = global;
-  private static boolean inUninstaller;
-
   private final Scope parent;
   private final ArrayList<Integer> registersList;
 
   /**
-   * Class constructor.
+   * Class constructor specifying the parent scope.
+   * @param parent the parent scope
    */
-  private Scope()
+  private Scope(Scope parent)
   {
-    this.parent = current;
+    this.parent = parent;
     this.registersList = new ArrayList<Integer>();
   }
 
+  /**
+   * Creates a new global scope (one with no parent) for a compilation context.
+   * @return the new scope
+   */
+  static Scope createGlobal()
+  {
+    return new Scope(null);
+  }
+
   /**
    * Creates a new scope and sets it as current.
    * @return the new scope
    */
   public static Scope create()
   {
-    return (current = new Scope());
+    CompilationContext context = CompilationContext.getCurrent();
+    Scope scope = new Scope(context.getScope());
+    context.setScope(scope);
+    return scope;
   }
 
   /**
@@ -44,7 +52,7 @@ public class Scope
    */
   public static Scope getCurrent()
   {
-    return current;
+    return CompilationContext.getCurrent().getScope();
   }
 
   /**
@@ -53,7 +61,7 @@ public class Scope
    */
   public static Scope getGlobal()
   {
-    return global;
+    return CompilationContext.getCurrent().getGlobalScope();
   }
 
   /**
@@ -62,7 +70,7 @@ public class Scope
    */
   public static Scope getGlobalUninstaller()
   {
-    return globalUninstaller;
+    return CompilationContext.getCurrent().getGlobalUninstallerScope();
   }
 
   /**
@@ -72,11 +80,12 @@ public class Scope
    */
   public static void setInUninstaller(boolean in)
   {
-    inUninstaller = in;
+    CompilationContext context = CompilationContext.getCurrent();
+    context.setInUninstaller(in);
     if (in)
-      current = globalUninstaller;
+      context.setScope(context.getGlobalUninstallerScope());
     else
-      current = global;
+      context.setScope(context.getGlobalScope());
   }
 
   /**
@@ -85,7 +94,7 @@ public class Scope
    */
   public static boolean inUninstaller()
   {
-    return inUninstaller;
+    return CompilationContext.getCurrent().getInUninstaller();
   }
 
   /**
@@ -93,7 +102,7 @@ public class Scope
    */
   public void end()
   {
-    current = this.parent;
+    CompilationContext.getCurrent().setScope(this.parent);
   }
 
   /**
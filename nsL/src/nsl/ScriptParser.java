@@ -5,13 +5,13 @@
 package nsl;
 
 import java.io.File;
+import nsl.optimiser.OptimisingNsiSink;
+import nsl.preprocessor.IncludeLoader;
 import nsl.statement.*;
-import java.io.FileOutputStream;
 import java.io.FileReader;
 import java.io.IOException;
-import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
-import java.io.Writer;
+import java.nio.charset.Charset;
 import java.util.Stack;
 
 /**
@@ -20,12 +20,9 @@ import java.util.Stack;
  */
 public class ScriptParser
 {
-  private ScriptParser() {}
+  private static final String stackOverflowMessage = "Macros or statements are nested too deeply for the Java stack; run Java with a larger stack, e.g. java -Xss16m";
 
-  public static Tokenizer tokenizer;
-  public static Stack<Tokenizer> tokenizers = new Stack<Tokenizer>();
-  private static Writer writer;
-  private static String scriptPath;
+  private ScriptParser() {}
 
   /**
    * Parses an nsL script.
@@ -35,23 +32,103 @@ public class ScriptParser
    * @return the exit code
    */
   public static int parse(String path, boolean noPauseOnError, boolean noMakeNSIS) throws IOException
+  {
+    return parse(path, noPauseOnError, noMakeNSIS, new PrintWriter(System.out, true), new PrintWriter(System.err, true));
+  }
+
+  /**
+   * Parses an nsL script in a new {@link CompilationContext} bound to the
+   * current thread.
+   * @param path the script file path
+   * @param noPauseOnError do not pause on error
+   * @param noMakeNSIS do not run makensisw.exe
+   * @param stdout the writer to print messages and warnings to
+   * @param stderr the writer to print errors to
+   * @return the exit code
+   */
+  public static int parse(String path, boolean noPauseOnError, boolean noMakeNSIS, PrintWriter stdout, PrintWriter stderr) throws IOException
+  {
+    CompilationContext context = new CompilationContext();
+    context.setScriptPath(path);
+    return parse(context, noPauseOnError, noMakeNSIS, stdout, stderr);
+  }
+
+  /**
+   * Parses an nsL script using the given new {@link CompilationContext}, which
+   * is bound to the current thread while parsing. The context gives the
+   * script path and optionally the output character encoding and the
+   * {@link NsiSink} to assemble to.
+   * @param context the compilation context
+   * @param noPauseOnError do not pause on error
+   * @param noMakeNSIS do not run makensisw.exe
+   * @param stdout the writer to print messages and warnings to
+   * @param stderr the writer to print errors to
+   * @return the exit code
+   */
+  public static int parse(CompilationContext context, boolean noPauseOnError, boolean noMakeNSIS, PrintWriter stdout, PrintWriter stderr) throws IOException
+  {
+    context.setStdout(stdout);
+    CompilationContext parentContext = CompilationContext.setCurrent(context);
+    try
+    {
+      return parseInContext(context, noPauseOnError, noMakeNSIS, stdout, stderr);
+    }
+    finally
+    {
+      CompilationContext.setCurrent(parentContext);
+    }
+  }
+
+  /**
+   * Parses an nsL script using the given {@link CompilationContext}.
+   * @param context the compilation context bound to the current thread
+   * @param noPauseOnError do not pause on error
+   * @param noMakeNSIS do not run makensisw.exe
+   * @param stdout the writer to print messages and warnings to
+   * @param stderr the writer to print errors to
+   * @return the exit code
+   */
+  private static int parseInContext(CompilationContext context, boolean noPauseOnError, boolean noMakeNSIS, PrintWriter stdout, PrintWriter stderr) throws IOException
   {
     int exitCode = 0;
-    scriptPath = path;
+    String path = context.getScriptPath();
+    Statistics statistics = context.getStatistics();
 
-    Statement statement = null;
-    PrintWriter stdout = new PrintWriter(System.out, true);
-    PrintWriter stderr = new PrintWriter(System.err, true);
+    StatementList statement = null;
+    NsiSink sink = null;
 
     try
     {
-      pushTokenizer(new Tokenizer(new FileReader(path), "script \"" + path + "\""));
+      // Statements are assembled as they are parsed when streaming.
+      if (context.getStreamingAssembler() != null)
+        sink = openSink(context, path);
+
+      // The scripts it includes are read ahead while it is parsed.
+      IncludeLoader includeLoader = context.getIncludeLoader();
+      String text = includeLoader == null ? null : includeLoader.take(path);
+      if (text != null)
+      {
+        includeLoader.prefetch(text);
+        pushTokenizer(new Tokenizer(text, "script \"" + path + "\""));
+      }
+      else
+      {
+        pushTokenizer(new Tokenizer(new FileReader(path), "script \"" + path + "\""));
+      }
       try
       {
-        statement = StatementList.match();
+        try
+        {
+          statement = StatementList.match();
+        }
+        catch (StackOverflowError ex)
+        {
+          throw new NslException(stackOverflowMessage, true);
+        }
       }
       catch (NslException ex)
       {
+        exitCode = 1;
         if (ex.getInner() != null)
           stderr.println(ex.getInner().toString());
         else
@@ -59,70 +136,59 @@ public class ScriptParser
         if (!noPauseOnError)
           System.in.read();
       }
-      tokenizer.getReader().close();
+      context.getTokenizer().close();
     }
     catch (IOException ex)
     {
+      exitCode = 1;
       stderr.println(ex);
       if (!noPauseOnError)
         System.in.read();
     }
 
+    if (statement == null && sink != null)
+      sink.discard();
+
     if (statement != null)
     {
-      File outputFile = new File(getOutputPath(path));
-
       try
       {
-        writer = new OutputStreamWriter(new FileOutputStream(outputFile));
-
-        // Insert any Var instructions at the top.
-        RegisterList.getCurrent().defineVars();
-
-        // Write the NSIS script.
-        statement.assemble();
+        if (sink == null)
+          sink = openSink(context, path);
 
-        // Insert .onInit/un.onInit with global assignments if required.
-        boolean anyGlobalAssignments = !Statement.getGlobal().isEmpty();
-        boolean anyGlobalUninstallerAssignments = !Statement.getGlobalUninstaller().isEmpty();
-        if (anyGlobalAssignments || anyGlobalUninstallerAssignments)
+        if (statistics != null)
+          statistics.enter(Statistics.Phase.Assembly);
+        try
         {
-          int onInitDefined = FunctionInfo.isOnInitDefined();
-
-          if (anyGlobalAssignments && (onInitDefined & 1) == 0)
-          {
-            writeLine("Function .onInit");
-            for (Statement globalStatement : Statement.getGlobal())
-              globalStatement.assemble();
-            writeLine("FunctionEnd");
-          }
-
-          if (anyGlobalUninstallerAssignments && (onInitDefined & 2) == 0)
-          {
-            writeLine("Function un.onInit");
-            for (Statement globalStatement : Statement.getGlobalUninstaller())
-              globalStatement.assemble();
-            writeLine("FunctionEnd");
-          }
+          assemble(context, statement);
+        }
+        catch (StackOverflowError ex)
+        {
+          throw new NslException(stackOverflowMessage);
+        }
+        finally
+        {
+          if (statistics != null)
+            statistics.exit();
         }
 
-        writer.close();
-        writer = null;
+        if (statistics != null)
+          statistics.enter(Statistics.Phase.Output);
+        try
+        {
+          sink.close();
+        }
+        finally
+        {
+          if (statistics != null)
+            statistics.exit();
+        }
       }
       catch (Exception ex)
       {
-        if (writer != null)
-        {
-          try
-          {
-            writer.close();
-          }
-          finally
-          {
-          }
-          outputFile.delete();
-        }
-        
+        if (sink != null)
+          sink.discard();
+
         exitCode = 2;
 
         if (ex instanceof NslException)
@@ -135,15 +201,25 @@ public class ScriptParser
       }
 
       // Successfully written NSIS script file.
+      File outputFile = sink == null ? null : sink.getFile();
       if (exitCode == 0)
       {
         stdout.println();
-        stdout.println("Wrote \"" + outputFile.getCanonicalPath() + "\".");
+        if (outputFile != null)
+          stdout.println("Wrote \"" + outputFile.getCanonicalPath() + "\".");
         stdout.println("Assembled successfully.");
         stdout.println();
 
+        if (statistics != null)
+        {
+          File statisticsFile = new File(getStatisticsPath(path));
+          statistics.write(statisticsFile, path, outputFile == null ? null : outputFile.getPath());
+          stdout.println("Wrote statistics to \"" + statisticsFile.getCanonicalPath() + "\".");
+          stdout.println();
+        }
+
         // Build the NSIS script.
-        if (!noMakeNSIS)
+        if (!noMakeNSIS && outputFile != null)
         {
           File makensisw = new File("..\\makensisw.exe");
           if (makensisw.exists())
@@ -165,38 +241,139 @@ public class ScriptParser
   }
 
   /**
-   * Pushes the given tokenizer onto the tokenizer stack and sets the
-   * <code>ScriptParser.tokenizer</code> static variable to it.
+   * Assembles the parsed statements to the output sink of the given
+   * {@link CompilationContext}.
+   * @param context the compilation context bound to the current thread
+   * @param statement the parsed statements
+   */
+  private static void assemble(CompilationContext context, StatementList statement) throws IOException
+  {
+    if (context.getStreamingAssembler() != null)
+    {
+      // Write what's left of the NSIS script.
+      context.getStreamingAssembler().finish();
+    }
+    else
+    {
+      // Insert any Var instructions at the top.
+      RegisterList.getCurrent().defineVars();
+
+      // Write the NSIS script.
+      if (context.getAssemblyThreads() > 1)
+        new ParallelAssembler(statement, context.getAssemblyThreads()).assemble();
+      else
+        statement.assemble();
+    }
+
+    // Insert .onInit/un.onInit with global assignments if required.
+    boolean anyGlobalAssignments = !Statement.getGlobal().isEmpty();
+    boolean anyGlobalUninstallerAssignments = !Statement.getGlobalUninstaller().isEmpty();
+    if (anyGlobalAssignments || anyGlobalUninstallerAssignments)
+    {
+      int onInitDefined = FunctionInfo.isOnInitDefined();
+
+      if (anyGlobalAssignments && (onInitDefined & 1) == 0)
+      {
+        writeLine("Function .onInit");
+        for (Statement globalStatement : Statement.getGlobal())
+          globalStatement.assemble();
+        writeLine("FunctionEnd");
+      }
+
+      if (anyGlobalUninstallerAssignments && (onInitDefined & 2) == 0)
+      {
+        writeLine("Function un.onInit");
+        for (Statement globalStatement : Statement.getGlobalUninstaller())
+          globalStatement.assemble();
+        writeLine("FunctionEnd");
+      }
+    }
+  }
+
+  /**
+   * Opens the output sink of the given {@link CompilationContext}, creating
+   * the NSIS script file if it has no sink.
+   * @param context the compilation context bound to the current thread
+   * @param path the script file path
+   * @return the output sink
+   */
+  private static NsiSink openSink(CompilationContext context, String path) throws IOException
+  {
+    NsiSink sink = context.getSink();
+    if (sink == null)
+    {
+      Charset charset = context.getCharset();
+      boolean explicitCharset = charset != null;
+      if (!explicitCharset)
+        charset = Charset.defaultCharset();
+      sink = new BufferedNsiSink(new File(getOutputPath(path)), charset, NsiSink.needsByteOrderMark(charset, explicitCharset));
+      context.setSink(sink);
+    }
+
+    if (!context.getOptimisations().isEmpty())
+    {
+      OptimisingNsiSink optimisingSink = new OptimisingNsiSink(sink, context.getOptimisations());
+      optimisingSink.setInlineThreshold(context.getInlineThreshold());
+      sink = optimisingSink;
+      context.setSink(sink);
+    }
+    return sink;
+  }
+
+  /**
+   * Gets the current tokenizer of the current {@link CompilationContext}.
+   * @return the current tokenizer
+   */
+  public static Tokenizer getTokenizer()
+  {
+    return CompilationContext.getCurrent().getTokenizer();
+  }
+
+  /**
+   * Gets the stack of tokenizers underneath the current tokenizer.
+   * @return the stack of tokenizers
+   */
+  public static Stack<Tokenizer> getTokenizers()
+  {
+    return CompilationContext.getCurrent().getTokenizers();
+  }
+
+  /**
+   * Pushes the given tokenizer onto the tokenizer stack and makes it the
+   * current tokenizer.
    * @param push the tokenizer to push
    */
   public static void pushTokenizer(Tokenizer push)
   {
-    if (tokenizer != null)
-      tokenizers.push(tokenizer);
-    tokenizer = push;
-    tokenizer.tokenNext("a token");
+    CompilationContext context = CompilationContext.getCurrent();
+    if (context.getTokenizer() != null)
+      context.getTokenizers().push(context.getTokenizer());
+    context.setTokenizer(push);
+    push.tokenNext("a token");
   }
 
   /**
-   * Pops a tokenizer off the tokenizer stack sets the
-   * <code>ScriptParser.tokenizer</code> static variable to it.
+   * Pops a tokenizer off the tokenizer stack and makes it the current
+   * tokenizer.
    * @return the tokenizer that was popped or <code>null</code>
    */
   public static Tokenizer popTokenizer()
   {
-    if (tokenizers.isEmpty())
+    CompilationContext context = CompilationContext.getCurrent();
+    if (context.getTokenizers().isEmpty())
       return null;
 
     try
     {
-      tokenizer.getReader().close();
+      context.getTokenizer().close();
     }
     catch (IOException ex)
     {
       throw new NslException(ex.getMessage(), true);
     }
 
-    tokenizer = tokenizers.pop();
+    Tokenizer tokenizer = context.getTokenizers().pop();
+    context.setTokenizer(tokenizer);
     return tokenizer;
   }
 
@@ -211,30 +388,36 @@ public class ScriptParser
   }
 
   /**
-   * Write text to the output writer.
+   * Write text to the output sink.
    * @param text the text to write
    */
   public static void write(String text) throws IOException
   {
-    writer.write(text);
+    CompilationContext.getCurrent().getSink().write(text);
   }
 
   /**
-   * Write a line to the output writer.
+   * Write a line to the output sink.
    * @param line the line to write
    */
   public static void writeLine(String line) throws IOException
   {
-    writer.write(line + "\r\n");
+    CompilationContext context = CompilationContext.getCurrent();
+    if (context.getStatistics() != null)
+      context.getStatistics().count(Statistics.Counter.LinesEmitted);
+    context.getSink().writeLine(line);
   }
 
   /**
-   * Write a line to the output writer.
+   * Write a line to the output sink.
    * @param line the line to write
    */
   public static void writeLine() throws IOException
   {
-    writer.write("\r\n");
+    CompilationContext context = CompilationContext.getCurrent();
+    if (context.getStatistics() != null)
+      context.getStatistics().count(Statistics.Counter.LinesEmitted);
+    context.getSink().writeLine();
   }
 
   /**
@@ -243,7 +426,7 @@ public class ScriptParser
    */
   public static String getScriptPath()
   {
-    return scriptPath;
+    return CompilationContext.getCurrent().getScriptPath();
   }
 
   /**
@@ -258,4 +441,17 @@ public class ScriptParser
       return scriptPath + ".nsi";
     return scriptPath.substring(0, i) + ".nsi";
   }
+
+  /**
+   * Gets the statistics file path from the given script file path.
+   * @param scriptPath the script file path
+   * @return the statistics file path
+   */
+  private static String getStatisticsPath(String scriptPath)
+  {
+    int i = scriptPath.lastIndexOf('.');
+    if (i == -1)
+      return scriptPath + ".stats.json";
+    return scriptPath.substring(0, i) + ".stats.json";
+  }
 }
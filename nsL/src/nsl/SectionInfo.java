@@ -23,7 +23,7 @@ public class SectionInfo extends CodeInfo
    */
   public static boolean in()
   {
-    return current != null && current instanceof SectionInfo;
+    return CodeInfo.getCurrent() instanceof SectionInfo;
   }
 
   /**
@@ -32,6 +32,6 @@ public class SectionInfo extends CodeInfo
    */
   public static SectionInfo getCurrent()
   {
-    return (SectionInfo)current;
+    return (SectionInfo)CodeInfo.getCurrent();
   }
 }
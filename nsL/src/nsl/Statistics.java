@@ -0,0 +1,340 @@
+/*
+ * Statistics.java
+ */
+
+package nsl;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Records where the time goes when compiling a script. Each phase gets the
+ * wall time and bytes allocated while it is the innermost phase running on a
+ * thread, so that inserting a macro while parsing a statement list counts
+ * towards macro expansion only. Phases are measured per statement list,
+ * macro, include or token list rather than per token, as measuring takes
+ * longer than reading a token. With parallel assembly the phases of every
+ * thread are added together.
+ * @author Stuart
+ */
+public class Statistics
+{
+  /**
+   * The phases of a compilation.
+   */
+  public enum Phase
+  {
+    /**
+     * Lexing macro bodies, late evaluation constants and cached included
+     * scripts into token lists. Other tokens are read as they are parsed and
+     * count towards parsing.
+     */
+    Tokenizing,
+
+    /**
+     * Matching lists of statements.
+     */
+    Parsing,
+
+    /**
+     * Inserting macros.
+     */
+    MacroExpansion,
+
+    /**
+     * Opening included scripts or getting them from the include cache.
+     */
+    IncludeLoading,
+
+    /**
+     * Assembling the statements into NSIS script.
+     */
+    Assembly,
+
+    /**
+     * Optimising and writing out the NSIS script.
+     */
+    Output
+  }
+
+  /**
+   * The things counted during a compilation.
+   */
+  public enum Counter
+  {
+    /**
+     * Tokens read.
+     */
+    Tokens,
+
+    /**
+     * Macros inserted.
+     */
+    MacroExpansions,
+
+    /**
+     * Functions looked up by name for a call.
+     */
+    FunctionLookups,
+
+    /**
+     * NSIS lines written by the assembler before any optimisation.
+     */
+    LinesEmitted
+  }
+
+  private static final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+
+  private final AtomicLongArray phaseTimes;
+  private final AtomicLongArray phaseBytes;
+  private final AtomicLongArray phaseCalls;
+  private final AtomicLongArray counters;
+  private final ThreadLocal<ArrayList<Phase>> running;
+  private final ThreadLocal<long[]> resumed;
+  private final boolean measureBytes;
+  private final long startTime;
+  private final long startBytes;
+
+  /**
+   * Class constructor. The total time and bytes allocated are measured from
+   * here on the current thread.
+   */
+  public Statistics()
+  {
+    int phases = Phase.values().length;
+    this.phaseTimes = new AtomicLongArray(phases);
+    this.phaseBytes = new AtomicLongArray(phases);
+    this.phaseCalls = new AtomicLongArray(phases);
+    this.counters = new AtomicLongArray(Counter.values().length);
+    this.running = new ThreadLocal<ArrayList<Phase>>()
+    {
+      @Override
+      protected ArrayList<Phase> initialValue()
+      {
+        return new ArrayList<Phase>();
+      }
+    };
+    this.resumed = new ThreadLocal<long[]>()
+    {
+      @Override
+      protected long[] initialValue()
+      {
+        return new long[2];
+      }
+    };
+    this.measureBytes = getAllocatedBytes() != -1;
+    this.startTime = System.nanoTime();
+    this.startBytes = this.getBytes();
+  }
+
+  /**
+   * Gets the statistics of the current compilation.
+   * @return the statistics or <code>null</code> if they aren't being
+   * recorded
+   */
+  public static Statistics getCurrent()
+  {
+    return CompilationContext.getCurrent().getStatistics();
+  }
+
+  /**
+   * Gets the bytes allocated by the current thread, which only some JVMs
+   * can tell.
+   * @return the bytes allocated or -1 if they can't be measured
+   */
+  private static long getAllocatedBytes()
+  {
+    if (!(threads instanceof com.sun.management.ThreadMXBean))
+      return -1;
+    com.sun.management.ThreadMXBean sunThreads = (com.sun.management.ThreadMXBean)threads;
+    if (!sunThreads.isThreadAllocatedMemorySupported() || !sunThreads.isThreadAllocatedMemoryEnabled())
+      return -1;
+    return sunThreads.getThreadAllocatedBytes(Thread.currentThread().getId());
+  }
+
+  /**
+   * Gets the bytes allocated by the current thread if they are measured.
+   * @return the bytes allocated or 0
+   */
+  private long getBytes()
+  {
+    return this.measureBytes ? getAllocatedBytes() : 0;
+  }
+
+  /**
+   * Starts a phase on the current thread, pausing the phase that was
+   * running.
+   * @param phase the phase
+   */
+  public void enter(Phase phase)
+  {
+    ArrayList<Phase> phases = this.running.get();
+    long[] since = this.resumed.get();
+    long time = System.nanoTime();
+    long bytes = this.getBytes();
+    if (!phases.isEmpty())
+      this.add(phases.get(phases.size() - 1), time - since[0], bytes - since[1]);
+
+    phases.add(phase);
+    this.phaseCalls.incrementAndGet(phase.ordinal());
+    since[0] = time;
+    since[1] = bytes;
+  }
+
+  /**
+   * Ends the phase most recently started on the current thread, resuming
+   * the phase that was running before it.
+   */
+  public void exit()
+  {
+    ArrayList<Phase> phases = this.running.get();
+    long[] since = this.resumed.get();
+    long time = System.nanoTime();
+    long bytes = this.getBytes();
+    this.add(phases.remove(phases.size() - 1), time - since[0], bytes - since[1]);
+    since[0] = time;
+    since[1] = bytes;
+  }
+
+  /**
+   * Adds to the time and bytes allocated of a phase.
+   * @param phase the phase
+   * @param time the time in nanoseconds
+   * @param bytes the bytes allocated
+   */
+  private void add(Phase phase, long time, long bytes)
+  {
+    this.phaseTimes.addAndGet(phase.ordinal(), time);
+    this.phaseBytes.addAndGet(phase.ordinal(), bytes);
+  }
+
+  /**
+   * Adds one to a counter.
+   * @param counter the counter
+   */
+  public void count(Counter counter)
+  {
+    this.counters.incrementAndGet(counter.ordinal());
+  }
+
+  /**
+   * Gets the wall time of a phase.
+   * @param phase the phase
+   * @return the time in nanoseconds
+   */
+  public long getTime(Phase phase)
+  {
+    return this.phaseTimes.get(phase.ordinal());
+  }
+
+  /**
+   * Gets a counter.
+   * @param counter the counter
+   * @return the count
+   */
+  public long getCount(Counter counter)
+  {
+    return this.counters.get(counter.ordinal());
+  }
+
+  /**
+   * Formats the statistics as JSON. The total time and bytes allocated are
+   * those of the current thread since the statistics were created.
+   * @param scriptPath the path of the nsL script
+   * @param outputPath the path of the NSIS script
+   * @return the JSON text
+   */
+  public String toJson(String scriptPath, String outputPath)
+  {
+    StringBuilder json = new StringBuilder();
+    json.append("{\n");
+    json.append("  \"script\": ").append(quote(scriptPath)).append(",\n");
+    json.append("  \"output\": ").append(quote(outputPath)).append(",\n");
+    json.append("  \"timeNanos\": ").append(System.nanoTime() - this.startTime).append(",\n");
+    json.append("  \"allocatedBytes\": ").append(this.measureBytes ? Long.toString(this.getBytes() - this.startBytes) : "null").append(",\n");
+
+    json.append("  \"phases\": {\n");
+    Phase[] phases = Phase.values();
+    for (int i = 0; i < phases.length; i++)
+    {
+      json.append("    ").append(quote(toKey(phases[i].name()))).append(": { ");
+      json.append("\"timeNanos\": ").append(this.phaseTimes.get(i)).append(", ");
+      json.append("\"allocatedBytes\": ").append(this.measureBytes ? Long.toString(this.phaseBytes.get(i)) : "null").append(", ");
+      json.append("\"calls\": ").append(this.phaseCalls.get(i)).append(" }");
+      json.append(i < phases.length - 1 ? ",\n" : "\n");
+    }
+    json.append("  },\n");
+
+    json.append("  \"counters\": {\n");
+    Counter[] counterValues = Counter.values();
+    for (int i = 0; i < counterValues.length; i++)
+    {
+      json.append("    ").append(quote(toKey(counterValues[i].name()))).append(": ").append(this.counters.get(i));
+      json.append(i < counterValues.length - 1 ? ",\n" : "\n");
+    }
+    json.append("  }\n");
+    json.append("}\n");
+    return json.toString();
+  }
+
+  /**
+   * Writes the statistics as JSON.
+   * @param file the file to write to
+   * @param scriptPath the path of the nsL script
+   * @param outputPath the path of the NSIS script
+   * @throws IOException
+   */
+  public void write(File file, String scriptPath, String outputPath) throws IOException
+  {
+    Writer writer = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+    try
+    {
+      writer.write(this.toJson(scriptPath, outputPath));
+    }
+    finally
+    {
+      writer.close();
+    }
+  }
+
+  /**
+   * Gets the JSON key for a phase or counter name.
+   * @param name the name, such as MacroExpansion
+   * @return the key, such as macroExpansion
+   */
+  private static String toKey(String name)
+  {
+    return Character.toLowerCase(name.charAt(0)) + name.substring(1);
+  }
+
+  /**
+   * Quotes a string for JSON.
+   * @param value the string
+   * @return the quoted string or null
+   */
+  private static String quote(String value)
+  {
+    if (value == null)
+      return "null";
+
+    StringBuilder quoted = new StringBuilder("\"");
+    for (int i = 0; i < value.length(); i++)
+    {
+      char c = value.charAt(i);
+      if (c == '"' || c == '\\')
+        quoted.append('\\').append(c);
+      else if (c < 0x20)
+        quoted.append(String.format("\\u%04x", Integer.valueOf(c)));
+      else
+        quoted.append(c);
+    }
+    return quoted.append('"').toString();
+  }
+}
@@ -0,0 +1,183 @@
+/*
+ * TokenList.java
+ */
+
+package nsl;
+
+import java.util.HashMap;
+
+/**
+ * An immutable list of the tokens lexed from a piece of text, such as a macro
+ * body or a late evaluation constant. The text is lexed once and the tokens
+ * are replayed by a {@link Tokenizer} each time the text is inserted.
+ * @author Stuart
+ */
+public class TokenList
+{
+  private final char[] text;
+  private int count;
+  private int[] types;
+  private String[] values;
+  private double[] numbers;
+  private int[] lines;
+  private int[] offsets;
+  private int[] ends;
+
+  private final boolean complete;
+  private final int endLine;
+
+  /**
+   * Class constructor. Lexing stops early at any token that can only be read
+   * while parsing (such as a raw @ string or an invalid number) and the rest
+   * of the text is then lexed as it is parsed.
+   * @param text the text to lex
+   */
+  public TokenList(String text)
+  {
+    this.text = text.toCharArray();
+    this.count = 0;
+    this.types = new int[16];
+    this.values = new String[16];
+    this.numbers = new double[16];
+    this.lines = new int[16];
+    this.offsets = new int[16];
+    this.ends = new int[16];
+
+    Statistics statistics = Statistics.getCurrent();
+    if (statistics != null)
+      statistics.enter(Statistics.Phase.Tokenizing);
+    try
+    {
+      Tokenizer tokenizer = new Tokenizer(text, null);
+      while (true)
+      {
+        int type = tokenizer.scan(true);
+        if (type == Tokenizer.TT_EOF || type == Tokenizer.TT_NOTHING)
+        {
+          this.complete = type == Tokenizer.TT_EOF;
+          this.endLine = tokenizer.lineno();
+          break;
+        }
+        this.add(type, tokenizer.sval, tokenizer.nval, tokenizer.lineno(), tokenizer.tokenOffset(), tokenizer.getPosition());
+      }
+    }
+    finally
+    {
+      if (statistics != null)
+        statistics.exit();
+    }
+  }
+
+  /**
+   * Gets the token list for the given text from the current compilation
+   * context, lexing the text if it has not been seen before.
+   * @param text the text to lex
+   * @return the token list
+   */
+  public static TokenList get(String text)
+  {
+    HashMap<String, TokenList> tokenLists = CompilationContext.getCurrent().getTokenLists();
+    TokenList tokens = tokenLists.get(text);
+    if (tokens == null)
+    {
+      tokens = new TokenList(text);
+      tokenLists.put(text, tokens);
+    }
+    return tokens;
+  }
+
+  /**
+   * Adds a token to the end of the list.
+   */
+  private void add(int type, String value, double number, int line, int offset, int end)
+  {
+    if (this.count == this.types.length)
+    {
+      int size = this.count * 2;
+      int[] newTypes = new int[size];
+      String[] newValues = new String[size];
+      double[] newNumbers = new double[size];
+      int[] newLines = new int[size];
+      int[] newOffsets = new int[size];
+      int[] newEnds = new int[size];
+      System.arraycopy(this.types, 0, newTypes, 0, this.count);
+      System.arraycopy(this.values, 0, newValues, 0, this.count);
+      System.arraycopy(this.numbers, 0, newNumbers, 0, this.count);
+      System.arraycopy(this.lines, 0, newLines, 0, this.count);
+      System.arraycopy(this.offsets, 0, newOffsets, 0, this.count);
+      System.arraycopy(this.ends, 0, newEnds, 0, this.count);
+      this.types = newTypes;
+      this.values = newValues;
+      this.numbers = newNumbers;
+      this.lines = newLines;
+      this.offsets = newOffsets;
+      this.ends = newEnds;
+    }
+
+    this.types[this.count] = type;
+    this.values[this.count] = value;
+    this.numbers[this.count] = number;
+    this.lines[this.count] = line;
+    this.offsets[this.count] = offset;
+    this.ends[this.count] = end;
+    this.count++;
+  }
+
+  /**
+   * Gets the text that was lexed.
+   * @return the text that was lexed
+   */
+  char[] getText()
+  {
+    return this.text;
+  }
+
+  /**
+   * Gets the number of tokens lexed.
+   * @return the number of tokens lexed
+   */
+  public int size()
+  {
+    return this.count;
+  }
+
+  /**
+   * Determines if the tokens from the given index on are all semicolons or
+   * #endif directives.
+   * @param index the token index
+   * @return <code>true</code> if nothing but semicolons and #endif
+   * directives follow
+   */
+  boolean isTail(int index)
+  {
+    if (!this.complete)
+      return false;
+    for (int i = index; i < this.count; i++)
+      if (this.types[i] != ';' && !(this.types[i] == Tokenizer.TT_WORD && this.values[i].equals("#endif")))
+        return false;
+    return true;
+  }
+
+  /**
+   * Sets the current token of the given tokenizer to the token at the given
+   * index.
+   * @param index the token index
+   * @param tokenizer the tokenizer to set the current token of
+   * @return <code>false</code> if the index is past the last token lexed and
+   * the tokenizer must lex the rest of the text itself
+   */
+  boolean replay(int index, Tokenizer tokenizer)
+  {
+    if (index < this.count)
+    {
+      tokenizer.setToken(this.types[index], this.values[index], this.numbers[index], this.lines[index], this.offsets[index], this.ends[index]);
+      return true;
+    }
+
+    if (!this.complete)
+      return false;
+
+    tokenizer.setToken(Tokenizer.TT_EOF, null, 0, this.endLine, this.text.length, this.text.length);
+    return true;
+  }
+}
@@ -6,18 +6,70 @@ package nsl;
 
 import java.io.IOException;
 import java.io.Reader;
-import java.io.StreamTokenizer;
 
 /**
- * Tokenizes a stream.
+ * Tokenizes a stream. The whole stream is read into a character buffer up
+ * front and tokens are scanned straight out of the buffer.
  * @author Stuart
  */
-public class Tokenizer extends StreamTokenizer
+public class Tokenizer
 {
+  /**
+   * The current token is the end of the stream.
+   */
+  public static final int TT_EOF = -1;
+
+  /**
+   * The current token is a number.
+   */
+  public static final int TT_NUMBER = -2;
+
+  /**
+   * The current token is a word.
+   */
+  public static final int TT_WORD = -3;
+
+  /**
+   * There is no current token.
+   */
+  static final int TT_NOTHING = -4;
+
+  private static final byte CT_ORDINARY = 0;
+  private static final byte CT_WHITESPACE = 1;
+  private static final byte CT_WORD = 2;
+  private static final byte CT_QUOTE = 3;
+  private static final byte[] charTypes = createCharTypes();
+
+  /**
+   * The type of the current token. This is either one of the TT_ constants,
+   * the quote character of a string or the character itself.
+   */
+  public int ttype;
+
+  /**
+   * The value of the current word or string token.
+   */
+  public String sval;
+
+  /**
+   * The value of the current number token.
+   */
+  public double nval;
+
   private final Reader theReader;
   private final String source;
 
-  private int lineNumberAdd;
+  private char[] buffer;
+  private int length;
+  private int position;
+  private int tokenOffset;
+  private int lineNumber;
+  private int lineNumberPrev;
+  private final StringBuilder builder;
+
+  private TokenList tokens;
+  private int tokenIndex;
+
   private boolean autoPop;
 
   /**
@@ -28,42 +80,186 @@ public class Tokenizer extends StreamTokenizer
    */
   public Tokenizer(Reader reader, String source)
   {
-    super(reader);
-
-    this.resetSyntax();
-    this.slashSlashComments(true);
-    this.slashStarComments(true);
-    this.wordChars('a', 'z');
-    this.wordChars('A', 'Z');
-    this.wordChars('0', '9');
-    this.wordChars(160, 255);
-    this.wordChars('_', '_');
-    this.wordChars('$', '$');
-    this.wordChars('#', '#');
-    this.whitespaceChars(0, 32);
-    //this.ordinaryChar('.');
-    //this.ordinaryChar('/');
-    //this.ordinaryChar('-');
-    this.quoteChar('"');
-    this.quoteChar('\'');
-    this.quoteChar('`');
+    this(reader, null, source);
+  }
+
+  /**
+   * Class constructor specifying the text to tokenize and the source name.
+   * @param text the text to tokenize
+   * @param source the source file name or macro name being tokenized
+   */
+  public Tokenizer(String text, String source)
+  {
+    this(null, text.toCharArray(), source);
+  }
+
+  /**
+   * Class constructor specifying pre-lexed tokens to replay and the source
+   * name.
+   * @param tokens the tokens to replay
+   * @param source the source file name or macro name being tokenized
+   */
+  public Tokenizer(TokenList tokens, String source)
+  {
+    this(null, tokens.getText(), source);
+    this.tokens = tokens;
+  }
+
+  /**
+   * Creates a tokenizer with nothing to read that stands in for one that has
+   * finished, so that error messages still show the line it was on.
+   * @param source the source file name or macro name that was tokenized
+   * @param lineNo the line number to show
+   * @return the tokenizer
+   */
+  public static Tokenizer createFrame(String source, int lineNo)
+  {
+    Tokenizer tokenizer = new Tokenizer(null, new char[0], source);
+    tokenizer.lineNumber = lineNo;
+    tokenizer.lineNumberPrev = lineNo;
+    return tokenizer;
+  }
+
+  /**
+   * Class constructor.
+   * @param reader the {@link Reader} being read from or <code>null</code>
+   * @param buffer the characters to tokenize if there is no reader
+   * @param source the source file name or macro name being tokenized
+   */
+  private Tokenizer(Reader reader, char[] buffer, String source)
+  {
+    this.ttype = TT_NOTHING;
+    this.sval = null;
+    this.nval = 0;
 
     this.theReader = reader;
     this.source = source;
 
-    this.lineNumberAdd = 0;
+    this.buffer = buffer;
+    this.length = buffer == null ? 0 : buffer.length;
+    this.position = 0;
+    this.tokenOffset = 0;
+    this.lineNumber = 1;
+    this.lineNumberPrev = 1;
+    this.builder = new StringBuilder();
+
+    this.tokens = null;
+    this.tokenIndex = 0;
+
     this.autoPop = true;
   }
 
+  /**
+   * Creates the character type table for characters 0 to 255. Characters
+   * above 255 are all word characters.
+   * @return the character type table
+   */
+  private static byte[] createCharTypes()
+  {
+    byte[] types = new byte[256];
+    for (int c = 0; c <= 32; c++)
+      types[c] = CT_WHITESPACE;
+    for (int c = 'a'; c <= 'z'; c++)
+      types[c] = CT_WORD;
+    for (int c = 'A'; c <= 'Z'; c++)
+      types[c] = CT_WORD;
+    for (int c = '0'; c <= '9'; c++)
+      types[c] = CT_WORD;
+    for (int c = 160; c <= 255; c++)
+      types[c] = CT_WORD;
+    types['_'] = CT_WORD;
+    types['$'] = CT_WORD;
+    types['#'] = CT_WORD;
+    types['"'] = CT_QUOTE;
+    types['\''] = CT_QUOTE;
+    types['`'] = CT_QUOTE;
+    return types;
+  }
+
+  /**
+   * Gets the type of the given character.
+   * @param c the character
+   * @return the character type
+   */
+  private static byte charType(char c)
+  {
+    return c < 256 ? charTypes[c] : CT_WORD;
+  }
+
+  /**
+   * Gets the offset just after the last character read.
+   * @return the offset just after the last character read
+   */
+  int getPosition()
+  {
+    return this.position;
+  }
+
+  /**
+   * Sets the current token to one replayed from a {@link TokenList}.
+   * @param type the token type
+   * @param value the word or string value
+   * @param number the number value
+   * @param line the line number of the token
+   * @param offset the offset of the token
+   * @param end the offset just after the token
+   */
+  void setToken(int type, String value, double number, int line, int offset, int end)
+  {
+    this.ttype = type;
+    this.sval = value;
+    if (type == TT_NUMBER)
+      this.nval = number;
+    this.lineNumber = line;
+    this.tokenOffset = offset;
+    this.position = end;
+  }
+
+  /**
+   * Reads the whole of the {@link Reader} into the character buffer.
+   * @throws IOException
+   */
+  private void load() throws IOException
+  {
+    char[] chars = new char[8192];
+    int count = 0;
+    while (true)
+    {
+      if (count == chars.length)
+      {
+        char[] grown = new char[chars.length * 2];
+        System.arraycopy(chars, 0, grown, 0, count);
+        chars = grown;
+      }
+      int read = this.theReader.read(chars, count, chars.length - count);
+      if (read == -1)
+        break;
+      count += read;
+    }
+    this.buffer = chars;
+    this.length = count;
+  }
+
   /**
    * Gets the {@link Reader} being read from.
-   * @return the {@link Reader} being read from
+   * @return the {@link Reader} being read from or <code>null</code> if the
+   * tokenizer was created from a string
    */
   public Reader getReader()
   {
     return this.theReader;
   }
 
+  /**
+   * Closes the {@link Reader} being read from, if any.
+   * @throws IOException
+   */
+  public void close() throws IOException
+  {
+    if (this.theReader != null)
+      this.theReader.close();
+  }
+
   /**
    * Gets the source file name or macro name being tokenized.
    * @return the source file name or macro name being tokenized
@@ -77,10 +273,27 @@ public class Tokenizer extends StreamTokenizer
    * Returns the current line number.
    * @return the current line number
    */
-  @Override
   public int lineno()
   {
-    return super.lineno() + this.lineNumberAdd;
+    return this.lineNumber;
+  }
+
+  /**
+   * Returns the line number of the previous token.
+   * @return the line number of the previous token
+   */
+  public int linenoprev()
+  {
+    return this.lineNumberPrev;
+  }
+
+  /**
+   * Returns the offset of the current token from the start of the stream.
+   * @return the offset of the current token from the start of the stream
+   */
+  public int tokenOffset()
+  {
+    return this.tokenOffset;
   }
 
   /**
@@ -157,133 +370,574 @@ public class Tokenizer extends StreamTokenizer
    */
   public String readUntil(String match)
   {
+    // Raw text is read straight from the buffer, so stop replaying tokens.
+    this.tokens = null;
+
     char[] matchChars = match.toCharArray();
-    String text = "";
-    try
+    char[] chars = this.buffer;
+    int end = this.length;
+    int pos = this.position;
+    StringBuilder text = new StringBuilder();
+
+    int c = 0;
+    while (true)
     {
-      int c = 0;
-      while (true)
+      if (pos >= end)
+      {
+        this.position = pos;
+        this.ttype = TT_EOF;
+        throw new NslExpectedException(match);
+      }
+
+      char b = chars[pos++];
+
+      if (b == '\r' || b == '\n')
       {
-        int b = this.theReader.read();
+        this.lineNumber++;
+        if (b == '\r' && pos < end && chars[pos] == '\n')
+          pos++;
+        if (text.length() != 0)
+          text.append('\n');
+        continue;
+      }
 
-        if (b == -1)
+      if (b == matchChars[c])
+      {
+        c++;
+        if (c == matchChars.length)
         {
-          this.ttype = TT_EOF;
-          throw new NslExpectedException(match);
+          text.setLength(text.length() - matchChars.length + 1);
+          break;
         }
+      }
+      else
+        c = 0;
+
+      text.append(b);
+    }
 
-        if (b == '\r')
+    this.position = pos;
+    return text.toString();
+  }
+
+  /**
+   * Reads the next token from the stream without handling the end of the
+   * stream.
+   * @return the type of the token read
+   * @throws IOException
+   */
+  public int nextToken() throws IOException
+  {
+    this.lineNumberPrev = this.lineNumber;
+
+    if (this.tokens != null)
+    {
+      if (this.tokens.replay(this.tokenIndex, this))
+      {
+        this.tokenIndex++;
+        return this.ttype;
+      }
+
+      // The rest of the text could not be lexed ahead of time.
+      this.tokens = null;
+    }
+
+    if (this.buffer == null)
+      this.load();
+
+    return this.scan(false);
+  }
+
+  /**
+   * Scans the next token out of the character buffer.
+   * @param recording whether the token is being recorded into a
+   * {@link TokenList}, in which case tokens that can only be read while
+   * parsing are left unread and {@link #TT_NOTHING} is returned
+   * @return the type of the token read
+   */
+  int scan(boolean recording)
+  {
+    this.sval = null;
+
+    char[] chars = this.buffer;
+    int end = this.length;
+    int pos = this.position;
+
+    // Skip white space and comments.
+    char c;
+    while (true)
+    {
+      if (pos >= end)
+      {
+        this.position = end;
+        this.tokenOffset = end;
+        return this.ttype = TT_EOF;
+      }
+
+      c = chars[pos];
+      if (charType(c) == CT_WHITESPACE)
+      {
+        pos++;
+        if (c == '\r')
         {
-          this.lineNumberAdd++;
-          if (!text.isEmpty())
-            text += '\n';
-          b = this.theReader.read();
-          continue;
+          this.lineNumber++;
+          if (pos < end && chars[pos] == '\n')
+            pos++;
+        }
+        else if (c == '\n')
+        {
+          this.lineNumber++;
         }
+        continue;
+      }
 
-        if (b == '\n')
+      if (c == '/' && pos + 1 < end)
+      {
+        if (chars[pos + 1] == '*')
+        {
+          pos = this.skipBlockComment(pos + 2);
+          continue;
+        }
+        if (chars[pos + 1] == '/')
         {
-          this.lineNumberAdd++;
-          if (!text.isEmpty())
-            text += '\n';
+          pos += 2;
+          while (pos < end && chars[pos] != '\n' && chars[pos] != '\r')
+            pos++;
           continue;
         }
+      }
+
+      break;
+    }
+
+    this.tokenOffset = pos;
+    byte type = charType(c);
 
-        if (b == matchChars[c])
+    // Word or number.
+    if (type == CT_WORD)
+    {
+      int start = pos;
+      do
+        pos++;
+      while (pos < end && charType(chars[pos]) == CT_WORD);
+      this.position = pos;
+      this.sval = new String(chars, start, pos - start);
+
+      // We translate numbers ourself.
+      if (c >= '0' && c <= '9')
+      {
+        this.ttype = TT_NUMBER;
+        try
         {
-          c++;
-          if (c == matchChars.length)
+          if (this.sval.length() > 1 && this.sval.startsWith("0x"))
+            this.nval = Integer.parseInt(this.sval.substring(2), 16);
+          else
+            this.nval = Integer.parseInt(this.sval);
+        }
+        catch (NumberFormatException ex)
+        {
+          if (recording)
           {
-            text = text.substring(0, text.length() - matchChars.length + 1);
-            break;
+            this.position = this.tokenOffset;
+            return this.ttype = TT_NOTHING;
           }
+          throw new NslException(ex.getMessage(), true);
         }
-        else
-          c = 0;
+        return this.ttype;
+      }
 
-        text += (char)b;
+      return this.ttype = TT_WORD;
+    }
+
+    // String.
+    if (type == CT_QUOTE)
+    {
+      this.ttype = c;
+      int start = ++pos;
+      while (pos < end)
+      {
+        char d = chars[pos];
+        if (d == c || d == '\n' || d == '\r' || d == '\\')
+          break;
+        pos++;
+      }
+
+      if (pos < end && chars[pos] == '\\')
+      {
+        this.builder.setLength(0);
+        this.builder.append(chars, start, pos - start);
+        pos = this.readEscapedString(c, pos);
+        this.sval = this.builder.toString();
       }
+      else
+      {
+        this.sval = new String(chars, start, pos - start);
+        if (pos < end && chars[pos] == c)
+          pos++;
+      }
+
+      this.position = pos;
+      return this.ttype;
     }
-    catch (IOException ex)
+
+    this.position = ++pos;
+    this.ttype = c;
+
+    // String with no escape sequences.
+    if (c == '@')
     {
-      throw new NslException(ex.getMessage(), true);
+      if (recording)
+      {
+        this.position = this.tokenOffset;
+        return this.ttype = TT_NOTHING;
+      }
+
+      if (pos >= end)
+      {
+        this.ttype = TT_EOF;
+        throw new NslExpectedException("a string");
+      }
+
+      char quote = chars[pos];
+      this.position = ++pos;
+      this.ttype = quote;
+
+      if (quote != '"' && quote != '\'' && quote != '`')
+        throw new NslExpectedException("a string");
+
+      this.sval = this.readUntil(String.valueOf(quote));
     }
-    return text;
+
+    return this.ttype;
   }
 
   /**
-   * Gets the next token.
-   * @return <code>true</code> if there was another token
+   * Skips a block comment. An unterminated comment runs to the end of the
+   * stream.
+   * @param pos the offset just after the opening of the comment
+   * @return the offset just after the end of the comment
    */
-  public boolean tokenNext()
+  private int skipBlockComment(int pos)
   {
-    return this.tokenNext(null);
+    char[] chars = this.buffer;
+    int end = this.length;
+    int prev = 0;
+    while (true)
+    {
+      int c = pos < end ? chars[pos++] : -1;
+      if (c == '/' && prev == '*')
+        return pos;
+
+      if (c == '\r')
+      {
+        this.lineNumber++;
+        c = pos < end ? chars[pos++] : -1;
+        if (c == '\n')
+          c = pos < end ? chars[pos++] : -1;
+      }
+      else if (c == '\n')
+      {
+        this.lineNumber++;
+        c = pos < end ? chars[pos++] : -1;
+      }
+
+      if (c == -1)
+        return end;
+      prev = c;
+    }
   }
 
   /**
-   * Gets the next token.
-   * @param expected the message of the exception to throw if no token exists
-   * @return <code>true</code> if there was another token
+   * Reads the rest of a string containing escape sequences into the string
+   * builder. The string ends at the closing quote or at the end of the line.
+   * @param quote the quote character that ends the string
+   * @param pos the offset of the first escape sequence
+   * @return the offset just after the string
    */
-  public boolean tokenNext(String expected)
+  private int readEscapedString(char quote, int pos)
   {
-    try
+    char[] chars = this.buffer;
+    int end = this.length;
+    int d = pos < end ? chars[pos++] : -1;
+    while (d != -1 && d != quote && d != '\n' && d != '\r')
     {
-      boolean result = this.nextToken() != TT_EOF;
-
-      if (!result)
+      int c;
+      if (d == '\\')
       {
-        if (this.autoPop && ScriptParser.popTokenizer() != null)
-          return true;
-        if (expected != null)
-          throw new NslExpectedException(expected);
-      }
-      
-      // We translate numbers ourself.
-      if (this.ttype == TT_WORD)
-      {
-        char c = this.sval.charAt(0);
-        if (c >= '0' && c <= '9')
+        c = pos < end ? chars[pos++] : -1;
+        int first = c;
+        if (c >= '0' && c <= '7')
         {
-          this.ttype = TT_NUMBER;
-
-          try
+          // Octal escape of up to three digits (up to \377).
+          c = c - '0';
+          int c2 = pos < end ? chars[pos++] : -1;
+          if (c2 >= '0' && c2 <= '7')
           {
-            if (this.sval.length() > 1 && this.sval.startsWith("0x"))
+            c = (c << 3) + (c2 - '0');
+            c2 = pos < end ? chars[pos++] : -1;
+            if (c2 >= '0' && c2 <= '7' && first <= '3')
             {
-              this.nval = Integer.parseInt(this.sval.substring(2), 16);
+              c = (c << 3) + (c2 - '0');
+              d = pos < end ? chars[pos++] : -1;
             }
             else
-            {
-              this.nval = Integer.parseInt(this.sval);
-            }
+              d = c2;
           }
-          catch (NumberFormatException ex)
+          else
+            d = c2;
+        }
+        else
+        {
+          switch (c)
           {
-            throw new NslException(ex.getMessage(), true);
+            case 'a': c = 0x7; break;
+            case 'b': c = '\b'; break;
+            case 'f': c = 0xC; break;
+            case 'n': c = '\n'; break;
+            case 'r': c = '\r'; break;
+            case 't': c = '\t'; break;
+            case 'v': c = 0xB; break;
           }
+          d = pos < end ? chars[pos++] : -1;
         }
       }
+      else
+      {
+        c = d;
+        d = pos < end ? chars[pos++] : -1;
+      }
+      this.builder.append((char)c);
+    }
+
+    // Leave the end of line character for the next token.
+    if (d != -1 && d != quote)
+      pos--;
+    return pos;
+  }
+
+  /**
+   * Skips an #if directive branch that isn't being taken, from the current
+   * token up to the #else, #elseif or #endif directive that ends it, which
+   * becomes the current token. #if directives inside the branch are skipped
+   * along with it. Text that hasn't been lexed is skipped a character at a
+   * time without making tokens, looking only at comments and strings so
+   * that directives inside them are passed over.
+   * @param toEndif whether only an #endif directive ends the branch, as for
+   * an #else branch
+   * @return <code>true</code> if the directive was found or
+   * <code>false</code> if the end of the stream was reached first
+   */
+  public boolean skipBranch(boolean toEndif)
+  {
+    int depth = 0;
+    while (true)
+    {
+      if (this.ttype == TT_EOF)
+        return false;
 
-      // String with no escape sequences.
-      if (this.ttype == '@')
+      if (this.ttype == TT_WORD)
       {
-        int b = this.theReader.read();
+        depth = nest(this.sval, depth, toEndif);
+        if (depth == -1)
+          return true;
+      }
+
+      if (this.tokens == null)
+        return this.skipText(depth, toEndif);
 
-        if (b == -1)
+      this.lineNumberPrev = this.lineNumber;
+      if (this.tokens.replay(this.tokenIndex, this))
+        this.tokenIndex++;
+      else
+        this.tokens = null;
+    }
+  }
+
+  /**
+   * Works out the #if directive nesting after a word of a branch being
+   * skipped.
+   * @param word the word
+   * @param depth the number of #if directives the word is inside of within
+   * the branch
+   * @param toEndif whether only an #endif directive ends the branch
+   * @return the new nesting or -1 if the word ends the branch
+   */
+  private static int nest(String word, int depth, boolean toEndif)
+  {
+    if (word.equals("#if"))
+      return depth + 1;
+    if (word.equals("#endif"))
+      return depth - 1;
+    if (depth == 0 && !toEndif && (word.equals("#else") || word.equals("#elseif")))
+      return -1;
+    return depth;
+  }
+
+  /**
+   * Skips the rest of a branch in the character buffer for
+   * {@link #skipBranch(boolean)}.
+   * @param depth the number of #if directives being skipped within the
+   * branch
+   * @param toEndif whether only an #endif directive ends the branch
+   * @return <code>true</code> if the directive that ends the branch was
+   * found
+   */
+  private boolean skipText(int depth, boolean toEndif)
+  {
+    char[] chars = this.buffer;
+    int end = this.length;
+    int pos = this.position;
+    this.lineNumberPrev = this.lineNumber;
+
+    while (pos < end)
+    {
+      char c = chars[pos];
+      byte type = charType(c);
+
+      if (type == CT_WHITESPACE)
+      {
+        pos++;
+        if (c == '\r')
         {
-          this.ttype = TT_EOF;
-          throw new NslExpectedException("a string");
+          this.lineNumber++;
+          if (pos < end && chars[pos] == '\n')
+            pos++;
         }
+        else if (c == '\n')
+        {
+          this.lineNumber++;
+        }
+      }
+      else if (type == CT_WORD)
+      {
+        int start = pos;
+        do
+          pos++;
+        while (pos < end && charType(chars[pos]) == CT_WORD);
 
-        this.ttype = (char)b;
-
-        if (b != '"' && b != '\'' && b != '`')
+        // Only directives matter, so other words aren't made into strings.
+        if (c == '#')
+        {
+          String word = new String(chars, start, pos - start);
+          depth = nest(word, depth, toEndif);
+          if (depth == -1)
+          {
+            this.position = pos;
+            this.tokenOffset = start;
+            this.sval = word;
+            this.ttype = TT_WORD;
+            return true;
+          }
+        }
+      }
+      else if (type == CT_QUOTE)
+      {
+        // Strings end at the closing quote or at the end of the line, as
+        // they do when they are read.
+        pos++;
+        while (pos < end)
         {
-          throw new NslExpectedException("a string");
+          char d = chars[pos];
+          if (d == c)
+          {
+            pos++;
+            break;
+          }
+          if (d == '\n' || d == '\r')
+            break;
+          pos += d == '\\' ? 2 : 1;
         }
+      }
+      else if (c == '@' && pos + 1 < end && charType(chars[pos + 1]) == CT_QUOTE)
+      {
+        // Strings with no escape sequences can span lines.
+        char quote = chars[pos + 1];
+        pos += 2;
+        while (pos < end && chars[pos] != quote)
+        {
+          char d = chars[pos++];
+          if (d == '\r' || d == '\n')
+          {
+            this.lineNumber++;
+            if (d == '\r' && pos < end && chars[pos] == '\n')
+              pos++;
+          }
+        }
+        pos++;
+      }
+      else if (c == '/' && pos + 1 < end && chars[pos + 1] == '*')
+      {
+        pos = this.skipBlockComment(pos + 2);
+      }
+      else if (c == '/' && pos + 1 < end && chars[pos + 1] == '/')
+      {
+        pos += 2;
+        while (pos < end && chars[pos] != '\n' && chars[pos] != '\r')
+          pos++;
+      }
+      else
+      {
+        pos++;
+      }
+    }
 
-        this.sval = readUntil(String.valueOf((char)b));
+    this.position = end;
+    this.tokenOffset = end;
+    this.sval = null;
+    this.ttype = TT_EOF;
+    return false;
+  }
+
+  /**
+   * Determines if the current token and the tokens that follow it are all
+   * semicolons or #endif directives, so that nothing is left to parse but the
+   * ends of statements and #if directives. Only pre-lexed tokens are checked.
+   * @return <code>true</code> if nothing is left to parse
+   */
+  public boolean atTail()
+  {
+    if (this.tokens == null)
+      return false;
+    if (this.ttype != ';' && this.ttype != TT_EOF && !this.tokenIs("#endif"))
+      return false;
+    return this.tokens.isTail(this.tokenIndex);
+  }
+
+  /**
+   * Gets the next token.
+   * @return <code>true</code> if there was another token
+   */
+  public boolean tokenNext()
+  {
+    return this.tokenNext(null);
+  }
+
+  /**
+   * Gets the next token.
+   * @param expected the message of the exception to throw if no token exists
+   * @return <code>true</code> if there was another token
+   */
+  public boolean tokenNext(String expected)
+  {
+    try
+    {
+      boolean result = this.nextToken() != TT_EOF;
+
+      // Tokens are only counted; timing each one would cost more than
+      // reading it.
+      if (result)
+      {
+        Statistics statistics = Statistics.getCurrent();
+        if (statistics != null)
+          statistics.count(Statistics.Counter.Tokens);
+      }
+
+      if (!result)
+      {
+        if (this.autoPop && ScriptParser.popTokenizer() != null)
+          return true;
+        if (expected != null)
+          throw new NslExpectedException(expected);
       }
 
       return result;
@@ -55,9 +55,13 @@ public class BooleanExpression extends ConditionalExpression
   @Override
   public void assemble(Register var) throws IOException
   {
-    this.assemble(RelativeJump.Zero, new RelativeJump("+3"));
+    // A relative jump can't be used for false as each comparison is a
+    // different distance from it.
+    Label gotoB = LabelList.getCurrent().getNext();
+    this.assemble(RelativeJump.Zero, gotoB);
     ScriptParser.writeLine("StrCpy " + var + " true");
     ScriptParser.writeLine("Goto +2");
+    gotoB.write();
     ScriptParser.writeLine("StrCpy " + var + " false");
   }
 
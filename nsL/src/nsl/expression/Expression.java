@@ -4,9 +4,9 @@
 
 package nsl.expression;
 
-import java.io.StringReader;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import nsl.*;
 import nsl.preprocessor.*;
 import nsl.statement.*;
@@ -25,8 +25,6 @@ public class Expression
   public static final Expression Empty = Expression.fromString("");
   public static final Expression Null = new Expression();
 
-  private static boolean specialStringEscape = true;
-
   /**
    * Sets whether or not strings using the special quote character (`) will be
    * escaped (that is $ replaced with $$ etc.).
@@ -37,8 +35,9 @@ public class Expression
    */
   public static boolean setSpecialStringEscape(boolean value)
   {
-    boolean oldValue = specialStringEscape;
-    specialStringEscape = value;
+    CompilationContext context = CompilationContext.getCurrent();
+    boolean oldValue = context.getSpecialStringEscape();
+    context.setSpecialStringEscape(value);
     return oldValue;
   }
 
@@ -98,7 +97,10 @@ public class Expression
             this.integerValue = RegisterList.getCurrent().add(tokenizer.sval);
 
             if (CodeInfo.getCurrent() != null)
+            {
               CodeInfo.getCurrent().addUsedVar(RegisterList.getCurrent().get(this.integerValue));
+              CodeInfo.getCurrent().addRead(this.integerValue);
+            }
           }
         }
       }
@@ -124,7 +126,7 @@ public class Expression
       if (tokenizer.ttype == '`')
       {
         this.type = ExpressionType.StringSpecial;
-        if (specialStringEscape)
+        if (CompilationContext.getCurrent().getSpecialStringEscape())
         {
           this.stringValue = escapeString(tokenizer.sval);
           this.booleanValue = false;
@@ -133,6 +135,10 @@ public class Expression
         {
           this.stringValue = tokenizer.sval;
           this.booleanValue = true;
+
+          // An unescaped string can read any variable.
+          if (CodeInfo.getCurrent() != null && this.stringValue.indexOf('$') != -1)
+            CodeInfo.getCurrent().addReadAll();
         }
       }
       else
@@ -206,7 +212,7 @@ public class Expression
     Expression expression = new Expression();
     expression.type = ExpressionType.StringSpecial;
     expression.stringValue = value;
-    expression.booleanValue = !specialStringEscape;
+    expression.booleanValue = !CompilationContext.getCurrent().getSpecialStringEscape();
     expression.integerValue = 0;
     return expression;
   }
@@ -547,21 +553,21 @@ public class Expression
     boolean logicalNegate = false, binaryNegate = false, minus = false;
 
     // The expression is prefixed with a char.
-    if (ScriptParser.tokenizer.tokenIsChar())
+    if (ScriptParser.getTokenizer().tokenIsChar())
     {
       // Logical negate the expression.
-      if (ScriptParser.tokenizer.match('!'))
+      if (ScriptParser.getTokenizer().match('!'))
         logicalNegate = true;
       // Binary negate the expression.
-      else if (ScriptParser.tokenizer.match('~'))
+      else if (ScriptParser.getTokenizer().match('~'))
         binaryNegate = true;
 
       // Negative number.
-      if (ScriptParser.tokenizer.match('-'))
+      if (ScriptParser.getTokenizer().match('-'))
         minus = true;
 
       // New bracket; new expression.
-      if (ScriptParser.tokenizer.match('('))
+      if (ScriptParser.getTokenizer().match('('))
       {
         Expression left = matchComplex();
 
@@ -591,7 +597,7 @@ public class Expression
         }
 
         // Match the end bracket.
-        ScriptParser.tokenizer.matchOrDie(')');
+        ScriptParser.getTokenizer().matchOrDie(')');
 
         return left;
       }
@@ -629,14 +635,14 @@ public class Expression
 
     // Next token is a word? It could be an operator in a late evaluation
     // constant.
-    if (ScriptParser.tokenizer.tokenIsWord())
+    if (ScriptParser.getTokenizer().tokenIsWord())
     {
-      Expression value = DefineList.lookup(ScriptParser.tokenizer.sval);
+      Expression value = DefineList.lookup(ScriptParser.getTokenizer().sval);
       if (value != null && value.type.equals(ExpressionType.StringSpecial) && value.booleanValue == true)
       {
-        String name = ScriptParser.tokenizer.sval;
-        ScriptParser.tokenizer.tokenNext(); // Discard the constant name.
-        ScriptParser.pushTokenizer(new Tokenizer(new StringReader(value.stringValue), "constant \"" + name + "\""));
+        String name = ScriptParser.getTokenizer().sval;
+        ScriptParser.getTokenizer().tokenNext(); // Discard the constant name.
+        ScriptParser.pushTokenizer(new Tokenizer(TokenList.get(value.stringValue), "constant \"" + name + "\""));
       }
     }
 
@@ -652,10 +658,10 @@ public class Expression
   {
     Expression left = matchPrimary();
 
-    while (ScriptParser.tokenizer.match('.'))
+    while (ScriptParser.getTokenizer().match('.'))
     {
       // Match .= (assignment)
-      if (ScriptParser.tokenizer.match('='))
+      if (ScriptParser.getTokenizer().match('='))
       {
         if (!left.type.equals(ExpressionType.Register))
           throw new NslException("The left operand must be a variable", true);
@@ -681,13 +687,13 @@ public class Expression
   {
     Expression left = matchConcatenation();
 
-    while (ScriptParser.tokenizer.tokenIs('*') || ScriptParser.tokenizer.tokenIs('/') || ScriptParser.tokenizer.tokenIs('%'))
+    while (ScriptParser.getTokenizer().tokenIs('*') || ScriptParser.getTokenizer().tokenIs('/') || ScriptParser.getTokenizer().tokenIs('%'))
     {
-      String operator = Character.toString((char)ScriptParser.tokenizer.ttype);
-      ScriptParser.tokenizer.tokenNext("an expression");
+      String operator = Character.toString((char)ScriptParser.getTokenizer().ttype);
+      ScriptParser.getTokenizer().tokenNext("an expression");
 
       // Match *=, /= or %= (assignment)
-      if (ScriptParser.tokenizer.match('='))
+      if (ScriptParser.getTokenizer().match('='))
       {
         if (!left.type.equals(ExpressionType.Register))
           throw new NslException("The left operand must be a variable", true);
@@ -713,13 +719,13 @@ public class Expression
   {
     Expression left = matchMultiplicative();
 
-    while (ScriptParser.tokenizer.tokenIs('+') || ScriptParser.tokenizer.tokenIs('-'))
+    while (ScriptParser.getTokenizer().tokenIs('+') || ScriptParser.getTokenizer().tokenIs('-'))
     {
-      String operator = Character.toString((char)ScriptParser.tokenizer.ttype);
-      ScriptParser.tokenizer.tokenNext("an expression");
+      String operator = Character.toString((char)ScriptParser.getTokenizer().ttype);
+      ScriptParser.getTokenizer().tokenNext("an expression");
 
       // Match n++ or n--
-      if (ScriptParser.tokenizer.match(operator.charAt(0)))
+      if (ScriptParser.getTokenizer().match(operator.charAt(0)))
       {
         if (!left.type.equals(ExpressionType.Register))
           throw new NslException("The left operand must be a variable", true);
@@ -728,7 +734,7 @@ public class Expression
         Scope.getCurrent().addVar(left.integerValue);
       }
       // Match += or -= (assignment)
-      else if (ScriptParser.tokenizer.match('='))
+      else if (ScriptParser.getTokenizer().match('='))
       {
         if (!left.type.equals(ExpressionType.Register))
           throw new NslException("The left operand must be a variable", true);
@@ -754,22 +760,22 @@ public class Expression
   {
     Expression left = matchAdditive();
 
-    while (ScriptParser.tokenizer.tokenIs('<') || ScriptParser.tokenizer.tokenIs('>'))
+    while (ScriptParser.getTokenizer().tokenIs('<') || ScriptParser.getTokenizer().tokenIs('>'))
     {
-      String operator = Character.toString((char)ScriptParser.tokenizer.ttype);
-      ScriptParser.tokenizer.tokenNext("an expression");
+      String operator = Character.toString((char)ScriptParser.getTokenizer().ttype);
+      ScriptParser.getTokenizer().tokenNext("an expression");
 
       // Match <= or >=
-      if (ScriptParser.tokenizer.match('='))
+      if (ScriptParser.getTokenizer().match('='))
       {
         ComparisonType comparisonType = ComparisonType.match();
         left = createComparison(left, operator + '=', matchAdditive(), comparisonType);
       }
       // Match <<
-      else if (operator.equals("<") && ScriptParser.tokenizer.match('<'))
+      else if (operator.equals("<") && ScriptParser.getTokenizer().match('<'))
       {
         // Match <<= (assignment)
-        if (ScriptParser.tokenizer.match('='))
+        if (ScriptParser.getTokenizer().match('='))
         {
           if (!left.type.equals(ExpressionType.Register))
             throw new NslException("The left operand must be a variable", true);
@@ -784,10 +790,10 @@ public class Expression
         }
       }
       // Match >>
-      else if (operator.equals(">") && ScriptParser.tokenizer.match('>'))
+      else if (operator.equals(">") && ScriptParser.getTokenizer().match('>'))
       {
         // Match >>= (assignment)
-        if (ScriptParser.tokenizer.match('='))
+        if (ScriptParser.getTokenizer().match('='))
         {
           if (!left.type.equals(ExpressionType.Register))
             throw new NslException("The left operand must be a variable", true);
@@ -820,13 +826,13 @@ public class Expression
   {
     Expression left = matchRelational();
 
-    while (ScriptParser.tokenizer.tokenIs('!') || ScriptParser.tokenizer.tokenIs('='))
+    while (ScriptParser.getTokenizer().tokenIs('!') || ScriptParser.getTokenizer().tokenIs('='))
     {
-      String operator = Character.toString((char)ScriptParser.tokenizer.ttype);
-      ScriptParser.tokenizer.tokenNext("an expression");
+      String operator = Character.toString((char)ScriptParser.getTokenizer().ttype);
+      ScriptParser.getTokenizer().tokenNext("an expression");
 
       // Match != or ==
-      if (ScriptParser.tokenizer.match('='))
+      if (ScriptParser.getTokenizer().match('='))
       {
         operator += "=";
 
@@ -871,6 +877,8 @@ public class Expression
 
         left = new AssignmentExpression(left.integerValue, matchComplex());
         Scope.getCurrent().addVar(left.integerValue);
+        if (CodeInfo.getCurrent() != null)
+          CodeInfo.getCurrent().addWrite(left.integerValue);
       }
     }
 
@@ -886,22 +894,22 @@ public class Expression
   {
     Expression left = matchEqualityOrAssignment();
 
-    while (ScriptParser.tokenizer.match('&'))
+    while (ScriptParser.getTokenizer().match('&'))
     {
       // Match &&
-      if (ScriptParser.tokenizer.match('&'))
+      if (ScriptParser.getTokenizer().match('&'))
       {
         if (ExpressionType.isBoolean(left) && left.booleanValue == false)
         {
           // Evaluated to false; we need not evaluate anything up until the next
           // ||, ) or ;.
-          while (ScriptParser.tokenizer.tokenNext("\")\""))
+          while (ScriptParser.getTokenizer().tokenNext("\")\""))
           {
-            if (ScriptParser.tokenizer.tokenIs('('))
-              while (ScriptParser.tokenizer.tokenNext("\")\""))
-                if (ScriptParser.tokenizer.match(')'))
+            if (ScriptParser.getTokenizer().tokenIs('('))
+              while (ScriptParser.getTokenizer().tokenNext("\")\""))
+                if (ScriptParser.getTokenizer().match(')'))
                   break;
-            if (ScriptParser.tokenizer.tokenIs(')') || ScriptParser.tokenizer.tokenIs('|') || ScriptParser.tokenizer.tokenIs(';'))
+            if (ScriptParser.getTokenizer().tokenIs(')') || ScriptParser.getTokenizer().tokenIs('|') || ScriptParser.getTokenizer().tokenIs(';'))
               break;
           }
         }
@@ -911,7 +919,7 @@ public class Expression
         }
       }
       // Match &= (assignment)
-      else if (ScriptParser.tokenizer.match('='))
+      else if (ScriptParser.getTokenizer().match('='))
       {
         if (!left.type.equals(ExpressionType.Register))
           throw new NslException("The left operand must be a variable", true);
@@ -937,10 +945,10 @@ public class Expression
   {
     Expression left = matchLogicalAndOrBinaryAnd();
 
-    while (ScriptParser.tokenizer.match('^'))
+    while (ScriptParser.getTokenizer().match('^'))
     {
       // Match ^= (assignment)
-      if (ScriptParser.tokenizer.match('='))
+      if (ScriptParser.getTokenizer().match('='))
       {
         if (!left.type.equals(ExpressionType.Register))
           throw new NslException("The left operand must be a variable", true);
@@ -967,16 +975,16 @@ public class Expression
   {
     Expression left = matchBinaryExclusiveOr();
 
-    while (ScriptParser.tokenizer.match('|'))
+    while (ScriptParser.getTokenizer().match('|'))
     {
       // Match ||
-      if (ScriptParser.tokenizer.match('|'))
+      if (ScriptParser.getTokenizer().match('|'))
       {
         if (ExpressionType.isBoolean(left) && left.booleanValue == true)
         {
           // Evaluated to true; we can ignore the rest of the expression.
-          while (ScriptParser.tokenizer.tokenNext("\")\" or \";\""))
-            if (ScriptParser.tokenizer.tokenIs(')') || ScriptParser.tokenizer.tokenIs(';'))
+          while (ScriptParser.getTokenizer().tokenNext("\")\" or \";\""))
+            if (ScriptParser.getTokenizer().tokenIs(')') || ScriptParser.getTokenizer().tokenIs(';'))
               break;
         }
         else
@@ -985,7 +993,7 @@ public class Expression
         }
       }
       // Match |= (assignment)
-      else if (ScriptParser.tokenizer.match('='))
+      else if (ScriptParser.getTokenizer().match('='))
       {
         if (!left.type.equals(ExpressionType.Register))
           throw new NslException("The left operand must be a variable", true);
@@ -1011,11 +1019,11 @@ public class Expression
   {
     Expression left = matchLogicalOrOrBinaryInclusiveOr();
 
-    while (ScriptParser.tokenizer.match('?'))
+    while (ScriptParser.getTokenizer().match('?'))
     {
       // Matched ? :
       Expression ifTrue = matchComplex();
-      ScriptParser.tokenizer.matchOrDie(':');
+      ScriptParser.getTokenizer().matchOrDie(':');
       left = createTernary(left, ifTrue, matchLogicalOrOrBinaryInclusiveOr());
     }
 
@@ -1054,7 +1062,7 @@ public class Expression
     if (value != null)
       return value;
 
-    String name = ScriptParser.tokenizer.matchAWord("a function, constant or macro identifier");
+    String name = ScriptParser.getTokenizer().matchAWord("a function, constant or macro identifier");
 
     // returnvar(n)
     // Gets the return register #n being assigned to
@@ -1144,7 +1152,7 @@ public class Expression
       if (!ExpressionType.isString(value))
         throw new NslArgumentException("eval", 1, ExpressionType.String);
 
-      ScriptParser.pushTokenizer(new Tokenizer(new StringReader(value.stringValue), "eval"));
+      ScriptParser.pushTokenizer(new Tokenizer(value.stringValue, "eval"));
       if (returns == 0)
         return null;
       if (returns > 1)
@@ -1180,19 +1188,19 @@ public class Expression
     // true if all constants in the list are defined
     if (name.equals("defined"))
     {
-      ScriptParser.tokenizer.matchOrDie('(');
-      if (ScriptParser.tokenizer.match(')'))
+      ScriptParser.getTokenizer().matchOrDie('(');
+      if (ScriptParser.getTokenizer().match(')'))
         throw new NslException("\"defined\" expects one or more constant names", true);
 
       boolean result = true;
       while (true)
       {
-        String constant = ScriptParser.tokenizer.matchAWord("a constant name");
+        String constant = ScriptParser.getTokenizer().matchAWord("a constant name");
         if (result && DefineList.lookup(constant) == null)
           result = false;
-        if (ScriptParser.tokenizer.match(')'))
+        if (ScriptParser.getTokenizer().match(')'))
           break;
-        ScriptParser.tokenizer.matchOrDie(',');
+        ScriptParser.getTokenizer().matchOrDie(',');
       }
 
       return Expression.fromBoolean(result);
@@ -1296,9 +1304,9 @@ public class Expression
     // returns an NSIS constant of the given name, i.e. ${name}
     if (name.equals("nsisconst"))
     {
-      ScriptParser.tokenizer.matchOrDie('(');
-      String constant = ScriptParser.tokenizer.matchAWord("a constant name");
-      ScriptParser.tokenizer.matchOrDie(')');
+      ScriptParser.getTokenizer().matchOrDie('(');
+      String constant = ScriptParser.getTokenizer().matchAWord("a constant name");
+      ScriptParser.getTokenizer().matchOrDie(')');
 
       return Expression.fromString("${" + constant + "}");
     }
@@ -1308,9 +1316,9 @@ public class Expression
     if (value != null)
     {
       // Late evaluation constant or a function or plug-in call follows.
-      if (value.type.equals(ExpressionType.StringSpecial) && value.booleanValue == true || ScriptParser.tokenizer.tokenIs('('))
+      if (value.type.equals(ExpressionType.StringSpecial) && value.booleanValue == true || ScriptParser.getTokenizer().tokenIs('('))
       {
-        ScriptParser.pushTokenizer(new Tokenizer(new StringReader(value.toString(true)), "constant \"" + name + "\""));
+        ScriptParser.pushTokenizer(new Tokenizer(TokenList.get(value.toString(true)), "constant \"" + name + "\""));
         if (returns == 0)
           return null;
         if (returns > 1)
@@ -1322,19 +1330,19 @@ public class Expression
     }
 
     // A plug-in call?
-    if (ScriptParser.tokenizer.match(':'))
+    if (ScriptParser.getTokenizer().match(':'))
     {
-      ScriptParser.tokenizer.matchOrDie(':');
-      name = name + "::" + ScriptParser.tokenizer.matchAWord("a plug-in function name");
+      ScriptParser.getTokenizer().matchOrDie(':');
+      name = name + "::" + ScriptParser.getTokenizer().matchAWord("a plug-in function name");
       return new PluginCallExpression(name, Expression.matchList());
     }
     
     // A function or macro call.
-    if (ScriptParser.tokenizer.tokenIs('('))
+    if (ScriptParser.getTokenizer().tokenIs('('))
     {
       ArrayList<Expression> paramsList = Expression.matchList();
 
-      ArrayList<Macro> macrosList = MacroList.getCurrent().get(name);
+      List<Macro> macrosList = MacroList.getCurrent().get(name);
       if (!macrosList.isEmpty())
       {
         int paramsCount = paramsList.size();
@@ -1349,7 +1357,7 @@ public class Expression
             // Late evaluation constant was returned.
             if (value.type.equals(ExpressionType.StringSpecial) && value.booleanValue == true)
             {
-              ScriptParser.pushTokenizer(new Tokenizer(new StringReader(value.stringValue), "macro \"" + name + "\""));
+              ScriptParser.pushTokenizer(new Tokenizer(value.stringValue, "macro \"" + name + "\""));
               if (returns == 0)
                 return null;
               if (returns > 1)
@@ -1375,10 +1383,10 @@ public class Expression
    */
   public static Expression match()
   {
-    if (ScriptParser.tokenizer.tokenIsWord() && !ScriptParser.tokenizer.sval.startsWith("$") && !ScriptParser.tokenizer.sval.equals("true") && !ScriptParser.tokenizer.sval.equals("false"))
+    if (ScriptParser.getTokenizer().tokenIsWord() && !ScriptParser.getTokenizer().sval.startsWith("$") && !ScriptParser.getTokenizer().sval.equals("true") && !ScriptParser.getTokenizer().sval.equals("false"))
       return matchConstant(1);
     
-    return new Expression(ScriptParser.tokenizer);
+    return new Expression(ScriptParser.getTokenizer());
   }
 
   /**
@@ -1522,17 +1530,17 @@ public class Expression
   {
     ArrayList<Expression> expressionList = new ArrayList<Expression>();
 
-    ScriptParser.tokenizer.matchOrDie('(');
+    ScriptParser.getTokenizer().matchOrDie('(');
     
-    if (!ScriptParser.tokenizer.match(')'))
+    if (!ScriptParser.getTokenizer().match(')'))
     {
       while (true)
       {
         expressionList.add(matchComplex());
 
-        if (ScriptParser.tokenizer.match(')'))
+        if (ScriptParser.getTokenizer().match(')'))
           break;
-        ScriptParser.tokenizer.matchOrDie(',');
+        ScriptParser.getTokenizer().matchOrDie(',');
       }
     }
 
@@ -1548,9 +1556,9 @@ public class Expression
   {
     ArrayList<Expression> expressionList = new ArrayList<Expression>();
 
-    ScriptParser.tokenizer.matchOrDie('(');
+    ScriptParser.getTokenizer().matchOrDie('(');
 
-    if (!ScriptParser.tokenizer.match(')'))
+    if (!ScriptParser.getTokenizer().match(')'))
     {
       while (true)
       {
@@ -1560,9 +1568,9 @@ public class Expression
 
         expressionList.add(expression);
 
-        if (ScriptParser.tokenizer.match(')'))
+        if (ScriptParser.getTokenizer().match(')'))
           break;
-        ScriptParser.tokenizer.matchOrDie(',');
+        ScriptParser.getTokenizer().matchOrDie(',');
       }
     }
 
@@ -7,6 +7,7 @@ package nsl.expression;
 import java.io.IOException;
 import java.util.ArrayList;
 import nsl.*;
+import nsl.statement.StreamingAssembler;
 
 /**
  * Describes a function call.
@@ -16,6 +17,10 @@ public class FunctionCallExpression extends MultipleReturnValueAssembleExpressio
 {
   private final ArrayList<Expression> params;
   private final int lineNo;
+  private final CodeInfo codeInfo;
+  private final int access;
+  private final int branch;
+  private boolean statement;
 
   /**
    * Class constructor.
@@ -25,7 +30,14 @@ public class FunctionCallExpression extends MultipleReturnValueAssembleExpressio
   {
     this.stringValue = name;
     this.params = Expression.matchList();
-    this.lineNo = ScriptParser.tokenizer.lineno();
+    this.lineNo = ScriptParser.getTokenizer().lineno();
+    if (CodeInfo.getCurrent() != null)
+      CodeInfo.getCurrent().addCall(name);
+    StreamingAssembler.addCall(name, this.params.size());
+    this.codeInfo = CodeInfo.getCurrent();
+    this.access = this.codeInfo == null ? 0 : this.codeInfo.getAccessCount();
+    this.branch = this.codeInfo == null ? 0 : this.codeInfo.getBranch();
+    this.statement = false;
   }
 
   /**
@@ -37,7 +49,14 @@ public class FunctionCallExpression extends MultipleReturnValueAssembleExpressio
   {
     this.stringValue = name;
     this.params = params;
-    this.lineNo = ScriptParser.tokenizer.lineno();
+    this.lineNo = ScriptParser.getTokenizer().lineno();
+    if (CodeInfo.getCurrent() != null)
+      CodeInfo.getCurrent().addCall(name);
+    StreamingAssembler.addCall(name, this.params.size());
+    this.codeInfo = CodeInfo.getCurrent();
+    this.access = this.codeInfo == null ? 0 : this.codeInfo.getAccessCount();
+    this.branch = this.codeInfo == null ? 0 : this.codeInfo.getBranch();
+    this.statement = false;
   }
 
   /**
@@ -49,6 +68,30 @@ public class FunctionCallExpression extends MultipleReturnValueAssembleExpressio
     return this.params;
   }
 
+  /**
+   * Sets whether or not the call is a whole statement or the whole value of
+   * an assignment statement, in which case no value is held in a variable
+   * while the call is made other than those read after the statement.
+   * @param statement whether or not the call is a whole statement
+   */
+  public void setStatement(boolean statement)
+  {
+    this.statement = statement;
+  }
+
+  /**
+   * Determines if a variable may be read after the call before it is set
+   * again.
+   * @param var the variable
+   * @return <code>true</code> if the variable may be read after the call
+   */
+  private boolean isLiveAfter(Register var)
+  {
+    if (!this.statement || this.codeInfo == null || this.codeInfo != CodeInfo.getCurrent())
+      return true;
+    return this.codeInfo.isLiveAfter(this.access, this.branch, var.getIntegerValue());
+  }
+
   /**
    * Assembles the source code.
    */
@@ -80,11 +123,13 @@ public class FunctionCallExpression extends MultipleReturnValueAssembleExpressio
 
     ArrayList<Register> parentReturnVars = ReturnVarExpression.setRegisters(vars);
 
-    // Any variables used in the function that aren't used to call it must be pushed onto the stack.
+    // Any variables changed by the function that aren't used to call it must be pushed onto the stack.
+    // Those changed only by the functions that it calls are pushed only if they may be read after the call.
     ArrayList<Expression> usedVarsList = new ArrayList<Expression>();
-    for (Register param : functionInfo.getUsedVars().values())
+    for (Register param : functionInfo.getClobberedVars().values())
     {
-      if (Expression.findRegister(CodeInfo.getCurrent().getUsedVars(), param) != null && Expression.findRegister(this.params, param) == null && Expression.findRegister(vars, param) == null)
+      if (Expression.findRegister(CodeInfo.getCurrent().getUsedVars(), param) != null && Expression.findRegister(this.params, param) == null && Expression.findRegister(vars, param) == null
+        && (Expression.findRegister(functionInfo.getUsedVars(), param) != null || this.isLiveAfter(param)))
       {
         ScriptParser.writeLine("Push " + param);
         usedVarsList.add(param);
@@ -139,7 +184,7 @@ public class FunctionCallExpression extends MultipleReturnValueAssembleExpressio
       }
     }
 
-    // Any variables used in the function that aren't used to call it must be popped back off the stack.
+    // Any variables changed by the function that aren't used to call it must be popped back off the stack.
     for (int i = usedVarsList.size() - 1; i >= 0; i--)
       ScriptParser.writeLine("Pop " + usedVarsList.get(i));
 
@@ -18,9 +18,9 @@ public class ReferenceExpression extends Expression
    */
   public ReferenceExpression()
   {
-    ScriptParser.tokenizer.matchOrDie('(');
+    ScriptParser.getTokenizer().matchOrDie('(');
     this.type = ExpressionType.String;
-    this.stringValue = ScriptParser.tokenizer.matchAWord("a name of reference");
-    ScriptParser.tokenizer.matchOrDie(')');
+    this.stringValue = ScriptParser.getTokenizer().matchAWord("a name of reference");
+    ScriptParser.getTokenizer().matchOrDie(')');
   }
 }
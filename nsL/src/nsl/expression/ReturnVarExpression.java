@@ -5,6 +5,7 @@
 package nsl.expression;
 
 import java.util.ArrayList;
+import nsl.CompilationContext;
 import nsl.NslException;
 import nsl.Register;
 
@@ -14,8 +15,6 @@ import nsl.Register;
  */
 public class ReturnVarExpression extends Expression
 {
-  private static ArrayList<Register> current = null;
-
   /**
    * Sets the current register list.
    * @param registers the register list
@@ -23,8 +22,9 @@ public class ReturnVarExpression extends Expression
    */
   public static ArrayList<Register> setRegisters(ArrayList<Register> registers)
   {
-    ArrayList<Register> parent = current;
-    current = registers;
+    CompilationContext context = CompilationContext.getCurrent();
+    ArrayList<Register> parent = context.getReturnVarRegisters();
+    context.setReturnVarRegisters(registers);
     return parent;
   }
 
@@ -35,10 +35,9 @@ public class ReturnVarExpression extends Expression
    */
   public static ArrayList<Register> setRegisters(Register registers)
   {
-    ArrayList<Register> parent = current;
-    current = new ArrayList<Register>();
-    current.add(registers);
-    return parent;
+    ArrayList<Register> list = new ArrayList<Register>();
+    list.add(registers);
+    return setRegisters(list);
   }
 
   /**
@@ -47,7 +46,7 @@ public class ReturnVarExpression extends Expression
    */
   public static ArrayList<Register> getRegisters()
   {
-    return current;
+    return CompilationContext.getCurrent().getReturnVarRegisters();
   }
 
   /**
@@ -77,6 +76,7 @@ public class ReturnVarExpression extends Expression
   @Override
   public String toString(boolean noQuote)
   {
+    ArrayList<Register> current = getRegisters();
     if (current == null || current.isEmpty())
       throw new NslException("Use of \"returnvar()\" where no return registers are being used", false);
 
@@ -0,0 +1,278 @@
+/*
+ * InstructionList.java
+ */
+
+package nsl.instruction;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
+import java.util.HashMap;
+import nsl.*;
+import nsl.expression.*;
+
+/**
+ * Maps NSIS instruction names to the constructors of their instruction
+ * classes. The map is built once from the classes listed below by reading
+ * each class's static <code>name</code> field, so a new instruction only needs
+ * adding to the list to be recognised by the parser.
+ * @author Stuart
+ */
+public class InstructionList
+{
+  private static final Class<?>[] classes = {
+    AbortInstruction.class,
+    AddBrandingImageInstruction.class,
+    AddSizeInstruction.class,
+    AllowRootDirInstallInstruction.class,
+    AllowSkipFilesInstruction.class,
+    AutoCloseWindowInstruction.class,
+    BGFontInstruction.class,
+    BGGradientInstruction.class,
+    BrandingTextInstruction.class,
+    BringToFrontInstruction.class,
+    CaptionInstruction.class,
+    CheckBitmapInstruction.class,
+    ClearErrorsInstruction.class,
+    CompletedTextInstruction.class,
+    ComponentTextInstruction.class,
+    CopyFilesInstruction.class,
+    CRCCheckInstruction.class,
+    CreateDirectoryInstruction.class,
+    CreateFontInstruction.class,
+    CreateShortCutInstruction.class,
+    DeleteInstruction.class,
+    DeleteINISecInstruction.class,
+    DeleteINIStrInstruction.class,
+    DeleteRegKeyInstruction.class,
+    DeleteRegValueInstruction.class,
+    DetailPrintInstruction.class,
+    DetailsButtonTextInstruction.class,
+    DirTextInstruction.class,
+    DirVarInstruction.class,
+    DirVerifyInstruction.class,
+    EnableWindowInstruction.class,
+    EnumRegKeyInstruction.class,
+    EnumRegValueInstruction.class,
+    ExecInstruction.class,
+    ExecShellInstruction.class,
+    ExecWaitInstruction.class,
+    ExpandEnvStringsInstruction.class,
+    FileBufSizeInstruction.class,
+    FileCloseInstruction.class,
+    FileErrorTextInstruction.class,
+    FileInstruction.class,
+    FileOpenInstruction.class,
+    FileReadByteInstruction.class,
+    FileReadInstruction.class,
+    FileRecursiveInstruction.class,
+    FileSeekInstruction.class,
+    FileWriteByteInstruction.class,
+    FileWriteInstruction.class,
+    FindCloseInstruction.class,
+    FindFirstInstruction.class,
+    FindNextInstruction.class,
+    FindWindowInstruction.class,
+    FlushINIInstruction.class,
+    GetCurInstTypeInstruction.class,
+    GetDlgItemInstruction.class,
+    GetDLLVersionInstruction.class,
+    GetDLLVersionLocalInstruction.class,
+    GetErrorLevelInstruction.class,
+    GetFileTimeInstruction.class,
+    GetFileTimeLocalInstruction.class,
+    GetInstDirErrorInstruction.class,
+    GetTempFileNameInstruction.class,
+    HideWindowInstruction.class,
+    IconInstruction.class,
+    IfAbortInstruction.class,
+    IfErrorsInstruction.class,
+    IfFileExistsInstruction.class,
+    IfRebootFlagInstruction.class,
+    IfSilentInstruction.class,
+    InitPluginsDirInstruction.class,
+    InstProgressFlagsInstruction.class,
+    InstallDirInstruction.class,
+    InstallDirRegKeyInstruction.class,
+    InstallButtonTextInstruction.class,
+    InstallColorsInstruction.class,
+    InstTypeGetTextInstruction.class,
+    InstTypeInstruction.class,
+    InstTypeSetTextInstruction.class,
+    IntFmtInstruction.class,
+    IsWindowInstruction.class,
+    LangStringInstruction.class,
+    LoadLanguageFileInstruction.class,
+    LockWindowInstruction.class,
+    LogSetInstruction.class,
+    LogTextInstruction.class,
+    LicenseBkColorInstruction.class,
+    LicenseDataInstruction.class,
+    LicenseForceSelectionInstruction.class,
+    LicenseLangStringInstruction.class,
+    LicenseTextInstruction.class,
+    MessageBoxInstruction.class,
+    MiscButtonTextInstruction.class,
+    NameInstruction.class,
+    PopInstruction.class,
+    PushInstruction.class,
+    OutFileInstruction.class,
+    QuitInstruction.class,
+    ReadEnvStrInstruction.class,
+    ReadINIStrInstruction.class,
+    ReadRegDWORDInstruction.class,
+    ReadRegStrInstruction.class,
+    RebootInstruction.class,
+    RegDLLInstruction.class,
+    RenameInstruction.class,
+    RequestExecutionLevelInstruction.class,
+    ReserveFileInstruction.class,
+    ReserveFileRecursiveInstruction.class,
+    RMDirInstruction.class,
+    RMDirRecursiveInstruction.class,
+    SearchPathInstruction.class,
+    SectionGetFlagsInstruction.class,
+    SectionGetInstTypesInstruction.class,
+    SectionGetSizeInstruction.class,
+    SectionGetTextInstruction.class,
+    SectionSetFlagsInstruction.class,
+    SectionSetInstTypesInstruction.class,
+    SectionSetSizeInstruction.class,
+    SectionSetTextInstruction.class,
+    SectionInInstruction.class,
+    SendMessageInstruction.class,
+    SetAutoCloseInstruction.class,
+    SetBrandingImageInstruction.class,
+    SetCompressInstruction.class,
+    SetCompressorDictSizeInstruction.class,
+    SetCompressorInstruction.class,
+    SetCtlColorsInstruction.class,
+    SetCurInstTypeInstruction.class,
+    SetDatablockOptimizeInstruction.class,
+    SetDateSaveInstruction.class,
+    SetDetailsPrintInstruction.class,
+    SetDetailsViewInstruction.class,
+    SetErrorLevelInstruction.class,
+    SetErrorsInstruction.class,
+    SetFileAttributesInstruction.class,
+    SetFontInstruction.class,
+    SetOverwriteInstruction.class,
+    SetOutPathInstruction.class,
+    SetRebootFlagInstruction.class,
+    SetRegViewInstruction.class,
+    SetShellVarContextInstruction.class,
+    SetSilentInstruction.class,
+    ShowInstDetailsInstruction.class,
+    ShowUninstDetailsInstruction.class,
+    ShowWindowInstruction.class,
+    SilentInstallInstruction.class,
+    SilentUninstallInstruction.class,
+    SpaceTextsInstruction.class,
+    StrCpyInstruction.class,
+    StrLenInstruction.class,
+    SubCaptionInstruction.class,
+    UninstallButtonTextInstruction.class,
+    UninstallCaptionInstruction.class,
+    UninstallIconInstruction.class,
+    UninstallSubCaptionInstruction.class,
+    UninstallTextInstruction.class,
+    UnRegDLLInstruction.class,
+    VIAddVersionKeyInstruction.class,
+    VIProductVersionInstruction.class,
+    WindowIconInstruction.class,
+    WriteINIStrInstruction.class,
+    WriteRegBinInstruction.class,
+    WriteRegDWORDInstruction.class,
+    WriteRegExpandStrInstruction.class,
+    WriteRegStrInstruction.class,
+    WriteUninstallerInstruction.class,
+    XPStyleInstruction.class
+  };
+
+  private static final HashMap<String, Constructor<? extends AssembleExpression>> constructors = createConstructors();
+
+  /**
+   * Creates the instruction name to constructor map.
+   * @return the instruction name to constructor map
+   */
+  private static HashMap<String, Constructor<? extends AssembleExpression>> createConstructors()
+  {
+    HashMap<String, Constructor<? extends AssembleExpression>> map = new HashMap<String, Constructor<? extends AssembleExpression>>();
+    try
+    {
+      for (Class<?> c : classes)
+      {
+        Class<? extends AssembleExpression> instruction = c.asSubclass(AssembleExpression.class);
+        String name = (String)instruction.getField("name").get(null);
+        if (map.put(name, instruction.getConstructor(int.class)) != null)
+          throw new IllegalStateException("Duplicate instruction name \"" + name + "\"");
+      }
+
+      // Aliases.
+      map.put("CreateShortcut", map.get(CreateShortCutInstruction.name));
+    }
+    catch (NoSuchFieldException ex)
+    {
+      throw new ExceptionInInitializerError(ex);
+    }
+    catch (NoSuchMethodException ex)
+    {
+      throw new ExceptionInInitializerError(ex);
+    }
+    catch (IllegalAccessException ex)
+    {
+      throw new ExceptionInInitializerError(ex);
+    }
+    return map;
+  }
+
+  /**
+   * Determines if the given word is the name of an NSIS instruction.
+   * @param name the word to check
+   * @return <code>true</code> if the word is the name of an NSIS instruction
+   */
+  public static boolean contains(String name)
+  {
+    return constructors.containsKey(name);
+  }
+
+  /**
+   * Matches an NSIS instruction with a single hash lookup of the current
+   * token.
+   * @param returns the number of values to return
+   * @return the instruction or <code>null</code> if the current token does not
+   * match an NSIS instruction
+   */
+  public static AssembleExpression match(int returns)
+  {
+    Tokenizer tokenizer = ScriptParser.getTokenizer();
+    if (!tokenizer.tokenIsWord())
+      return null;
+
+    Constructor<? extends AssembleExpression> constructor = constructors.get(tokenizer.sval);
+    if (constructor == null)
+      return null;
+
+    tokenizer.tokenNext();
+    try
+    {
+      return constructor.newInstance(returns);
+    }
+    catch (InvocationTargetException ex)
+    {
+      Throwable cause = ex.getCause();
+      if (cause instanceof RuntimeException)
+        throw (RuntimeException)cause;
+      if (cause instanceof Error)
+        throw (Error)cause;
+      throw new RuntimeException(cause);
+    }
+    catch (InstantiationException ex)
+    {
+      throw new RuntimeException(ex);
+    }
+    catch (IllegalAccessException ex)
+    {
+      throw new RuntimeException(ex);
+    }
+  }
+}
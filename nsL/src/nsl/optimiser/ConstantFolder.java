@@ -0,0 +1,408 @@
+/*
+ * ConstantFolder.java
+ */
+
+package nsl.optimiser;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * Propagates constants through a function or section. The assembler only
+ * folds operators whose operands are both literals, so a value given to a
+ * variable by one statement (often from a #define or macro parameter) is
+ * worked out again at run time by the statements that follow. Here the
+ * variables known to hold constants are followed along every path through
+ * the body, IntOps of constants become StrCpys of their results and
+ * comparisons of constants become Gotos, which leaves the branches not taken
+ * to be removed as dead code.
+ * @author Stuart
+ */
+public class ConstantFolder
+{
+  private static final Pattern integer = Pattern.compile("-?(0|[1-9][0-9]{0,9})");
+
+  private final Map<String, HashSet<String>> clobbers;
+
+  private List<NsiLine> body;
+  private HashMap<String, Integer> labels;
+
+  /**
+   * Class constructor.
+   * @param clobbers the variables that each function and the functions it
+   * calls may set, keyed by lower case function name, or <code>null</code> if
+   * they aren't known
+   */
+  public ConstantFolder(Map<String, HashSet<String>> clobbers)
+  {
+    this.clobbers = clobbers;
+  }
+
+  /**
+   * Folds the constants of a function or section body.
+   * @param body the function or section body
+   * @return <code>true</code> if any lines of the body were replaced
+   */
+  public boolean fold(List<NsiLine> body)
+  {
+    if (!Liveness.canAnalyse(body))
+      return false;
+
+    this.body = body;
+    this.labels = new HashMap<String, Integer>();
+    for (int i = 0; i < body.size(); i++)
+      if (body.get(i).getKind() == NsiLine.Kind.Label)
+        this.labels.put(body.get(i).getLabel(), Integer.valueOf(i));
+
+    ArrayList<HashMap<String, String>> known = this.getKnown();
+    boolean changed = false;
+    for (int i = 0; i < body.size(); i++)
+    {
+      if (known.get(i) == null)
+        continue;
+
+      NsiLine folded = this.foldLine(body.get(i), known.get(i));
+      if (folded != null)
+      {
+        body.set(i, folded);
+        changed = true;
+      }
+    }
+    return changed;
+  }
+
+  /**
+   * Works out the variables that hold the same constant whichever way each
+   * line is reached.
+   * @return the constants of the variables by lower case name at the start
+   * of each line, or <code>null</code> for lines that can't be reached
+   */
+  private ArrayList<HashMap<String, String>> getKnown()
+  {
+    int size = this.body.size();
+    ArrayList<HashMap<String, String>> known = new ArrayList<HashMap<String, String>>(size);
+    for (int i = 0; i < size; i++)
+      known.add(null);
+
+    ArrayList<Integer> pending = new ArrayList<Integer>();
+    if (size != 0)
+    {
+      known.set(0, new HashMap<String, String>());
+      pending.add(Integer.valueOf(0));
+    }
+
+    while (!pending.isEmpty())
+    {
+      int i = pending.remove(pending.size() - 1).intValue();
+      HashMap<String, String> out = new HashMap<String, String>(known.get(i));
+      this.transfer(this.body.get(i), out);
+
+      for (int next : this.getSuccessors(i))
+      {
+        HashMap<String, String> in = known.get(next);
+        if (in == null)
+        {
+          known.set(next, new HashMap<String, String>(out));
+          pending.add(Integer.valueOf(next));
+        }
+        else if (in.entrySet().retainAll(out.entrySet()))
+        {
+          pending.add(Integer.valueOf(next));
+        }
+      }
+    }
+    return known;
+  }
+
+  /**
+   * Gets the lines that can follow a line, leaving out the end of the body.
+   * @param i the line index
+   * @return the indexes of the lines that can follow
+   */
+  private HashSet<Integer> getSuccessors(int i)
+  {
+    NsiLine line = this.body.get(i);
+    HashSet<Integer> successors = new HashSet<Integer>();
+    if (line.is("Return") || line.is("Quit"))
+      return successors;
+
+    if (!line.is("Goto") && i + 1 < this.body.size())
+      successors.add(Integer.valueOf(i + 1));
+    for (int index : line.getJumpOperands())
+    {
+      String target = line.getOperand(index);
+      if (!NsiLine.isNext(target))
+        successors.add(this.labels.get(target));
+      else if (i + 1 < this.body.size())
+        successors.add(Integer.valueOf(i + 1));
+    }
+    return successors;
+  }
+
+  /**
+   * Updates the known constants for what a line sets. Calls can set any
+   * variable that the function called can, and instructions other than the
+   * ones known to only read or to set their first operand can set any
+   * variable that is a whole operand.
+   * @param line the line
+   * @param known the known constants by lower case variable name
+   */
+  private void transfer(NsiLine line, HashMap<String, String> known)
+  {
+    if (line.getKind() != NsiLine.Kind.Instruction)
+      return;
+
+    if (line.is("Call") || line.is("CallInstDLL") || line.getOpcode().contains("::"))
+    {
+      HashSet<String> clobbered = null;
+      if (line.is("Call") && line.getOperands().size() == 1 && this.clobbers != null)
+        clobbered = this.clobbers.get(line.getOperand(0).toLowerCase());
+      if (clobbered == null)
+      {
+        known.clear();
+        return;
+      }
+      for (String var : clobbered)
+        known.remove(var.toLowerCase());
+    }
+
+    List<String> operands = line.getOperands();
+    if (line.is("StrCpy") || line.is("IntOp") || line.is("IntFmt") || line.is("StrLen") || line.is("Pop"))
+    {
+      if (operands.isEmpty())
+        return;
+      String var = getVariable(operands.get(0));
+      if (var == null)
+        return;
+
+      String value = null;
+      if (line.is("StrCpy") && operands.size() == 2)
+        value = getConstant(operands.get(1), known);
+      else if (line.is("IntOp"))
+        value = foldIntOp(line, known);
+
+      if (value != null && !RegisterAllocator.isBuiltIn(var))
+        known.put(var, value);
+      else
+        known.remove(var);
+      return;
+    }
+
+    if (line.is("Push") || line.is("DetailPrint") || line.isComparison() || line.is("MessageBox"))
+      return;
+
+    for (String operand : operands)
+    {
+      String var = getVariable(operand);
+      if (var != null)
+        known.remove(var);
+    }
+  }
+
+  /**
+   * Folds a line whose result is known.
+   * @param line the line
+   * @param known the known constants at the start of the line
+   * @return the folded line or <code>null</code> if it can't be folded
+   */
+  private NsiLine foldLine(NsiLine line, HashMap<String, String> known)
+  {
+    if (line.is("IntOp") && getVariable(line.getOperand(0)) != null)
+    {
+      String value = foldIntOp(line, known);
+      if (value != null)
+        return NsiLine.instruction("StrCpy", line.getOperand(0), value);
+      return null;
+    }
+
+    int jump = getJump(line, known);
+    if (jump == -1)
+      return null;
+    return NsiLine.instruction("Goto", line.getOperand(jump));
+  }
+
+  /**
+   * Works out where a comparison of constants jumps to.
+   * @param line the comparison
+   * @param known the known constants at the start of the line by lower case
+   * variable name
+   * @return the index of the jump operand taken or -1 if it isn't known
+   */
+  static int getJump(NsiLine line, HashMap<String, String> known)
+  {
+    if (!line.isComparison())
+      return -1;
+
+    String left = getConstant(line.getOperand(0), known);
+    String right = getConstant(line.getOperand(1), known);
+    if (left == null || right == null)
+      return -1;
+
+    if (line.is("StrCmpS"))
+      return left.equals(right) ? 2 : 3;
+
+    if (line.is("StrCmp"))
+    {
+      // StrCmp ignores case the way Windows does, which only agrees with Java
+      // for ASCII.
+      if (!isAscii(left) || !isAscii(right))
+        return -1;
+      return left.equalsIgnoreCase(right) ? 2 : 3;
+    }
+
+    if (!integer.matcher(left).matches() || !integer.matcher(right).matches())
+      return -1;
+    long a = Long.parseLong(left);
+    long b = Long.parseLong(right);
+    if (a != (int)a || b != (int)b)
+      return -1;
+    if (line.is("IntCmpU"))
+    {
+      a &= 0xFFFFFFFFL;
+      b &= 0xFFFFFFFFL;
+    }
+    return a == b ? 2 : a < b ? 3 : 4;
+  }
+
+  /**
+   * Works out the result of an IntOp of constants.
+   * @param line the IntOp
+   * @param known the known constants at the start of the line
+   * @return the result or <code>null</code> if it isn't known
+   */
+  private static String foldIntOp(NsiLine line, HashMap<String, String> known)
+  {
+    List<String> operands = line.getOperands();
+    if (operands.size() < 3 || operands.size() > 4)
+      return null;
+
+    String operator = operands.get(2);
+    boolean unary = operator.equals("~") || operator.equals("!");
+    if (unary != (operands.size() == 3))
+      return null;
+
+    Integer a = getInteger(operands.get(1), known);
+    Integer b = unary ? Integer.valueOf(0) : getInteger(operands.get(3), known);
+    if (a == null || b == null)
+      return null;
+
+    int x = a.intValue();
+    int y = b.intValue();
+    int result;
+    if (operator.equals("+"))
+      result = x + y;
+    else if (operator.equals("-"))
+      result = x - y;
+    else if (operator.equals("*"))
+      result = x * y;
+    else if (operator.equals("/") && y != 0 && !(x == Integer.MIN_VALUE && y == -1))
+      result = x / y;
+    else if (operator.equals("%") && y != 0 && !(x == Integer.MIN_VALUE && y == -1))
+      result = x % y;
+    else if (operator.equals("|"))
+      result = x | y;
+    else if (operator.equals("&"))
+      result = x & y;
+    else if (operator.equals("^"))
+      result = x ^ y;
+    else if (operator.equals("<<") && y >= 0 && y < 32)
+      result = x << y;
+    else if (operator.equals(">>") && y >= 0 && y < 32)
+      result = x >> y;
+    else if (operator.equals("~"))
+      result = ~x;
+    else if (operator.equals("!"))
+      result = x == 0 ? 1 : 0;
+    else if (operator.equals("||"))
+      result = x != 0 || y != 0 ? 1 : 0;
+    else if (operator.equals("&&"))
+      result = x != 0 && y != 0 ? 1 : 0;
+    else
+      return null;
+    return Integer.toString(result);
+  }
+
+  /**
+   * Gets the integer value of an operand.
+   * @param operand the operand
+   * @param known the known constants
+   * @return the integer or <code>null</code> if it isn't a known decimal
+   * integer
+   */
+  private static Integer getInteger(String operand, HashMap<String, String> known)
+  {
+    String value = getConstant(operand, known);
+    if (value == null || !integer.matcher(value).matches())
+      return null;
+    long number = Long.parseLong(value);
+    if (number != (int)number)
+      return null;
+    return Integer.valueOf((int)number);
+  }
+
+  /**
+   * Gets the constant value of an operand, which is either a literal with no
+   * variables or escapes or a variable known to hold a constant.
+   * @param operand the operand
+   * @param known the known constants
+   * @return the value without quotes or <code>null</code> if it isn't known
+   */
+  static String getConstant(String operand, HashMap<String, String> known)
+  {
+    String var = getVariable(operand);
+    if (var != null)
+      return known.get(var);
+
+    String value = unquote(operand);
+    if (value.indexOf('$') != -1)
+      return null;
+    return value;
+  }
+
+  /**
+   * Gets the variable that is the whole of an operand.
+   * @param operand the operand, which may be quoted
+   * @return the lower case variable or <code>null</code> if the operand is
+   * something else
+   */
+  static String getVariable(String operand)
+  {
+    String value = unquote(operand);
+    if (!Liveness.isVariable(value))
+      return null;
+    return value.toLowerCase();
+  }
+
+  /**
+   * Removes the quotes around an operand.
+   * @param operand the operand
+   * @return the operand without quotes
+   */
+  private static String unquote(String operand)
+  {
+    if (operand.length() >= 2)
+    {
+      char quote = operand.charAt(0);
+      if ((quote == '"' || quote == '\'' || quote == '`') && operand.charAt(operand.length() - 1) == quote)
+        return operand.substring(1, operand.length() - 1);
+    }
+    return operand;
+  }
+
+  /**
+   * Determines if a string only has ASCII characters.
+   * @param value the string
+   * @return <code>true</code> if the string only has ASCII characters
+   */
+  private static boolean isAscii(String value)
+  {
+    for (int i = 0; i < value.length(); i++)
+      if (value.charAt(i) > 127)
+        return false;
+    return true;
+  }
+}
@@ -0,0 +1,180 @@
+/*
+ * Inliner.java
+ */
+
+package nsl.optimiser;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import nsl.InlineHint;
+
+/**
+ * Replaces calls to small functions with the body of the function. The stack
+ * is used as it is by a call, so the Pushes of the parameters and the Pops at
+ * the start of the function are left for the other optimisations to turn into
+ * StrCpys. Functions that call themselves aren't inlined.
+ * @author Stuart
+ */
+public class Inliner
+{
+  private final int threshold;
+  private final HashMap<String, InlineHint> hints;
+  private final HashMap<String, List<NsiLine>> functions;
+  private final HashMap<String, List<NsiLine>> inlinable;
+  private final HashSet<String> rejected;
+  private final HashSet<String> expanding;
+  private int count;
+
+  /**
+   * Class constructor.
+   * @param threshold the maximum number of instructions of a function that
+   * is inlined without an inline hint
+   * @param hints the inlining hints of the functions that can be inlined,
+   * keyed by lower case function name
+   */
+  public Inliner(int threshold, HashMap<String, InlineHint> hints)
+  {
+    this.threshold = threshold;
+    this.hints = hints;
+    this.functions = new HashMap<String, List<NsiLine>>();
+    this.inlinable = new HashMap<String, List<NsiLine>>();
+    this.rejected = new HashSet<String>();
+    this.expanding = new HashSet<String>();
+    this.count = 0;
+  }
+
+  /**
+   * Adds a function that may be inlined. The function body must be one that
+   * can be analysed.
+   * @param name the function name
+   * @param body the function body
+   */
+  public void addFunction(String name, List<NsiLine> body)
+  {
+    ArrayList<NsiLine> copy = new ArrayList<NsiLine>(body.size());
+    for (NsiLine line : body)
+      copy.add(line.copy());
+    this.functions.put(name.toLowerCase(), copy);
+  }
+
+  /**
+   * Inlines the calls in a function or section body.
+   * @param body the function or section body
+   * @return the body with the calls inlined or the given body if there were
+   * none to inline
+   */
+  public List<NsiLine> expand(List<NsiLine> body)
+  {
+    ArrayList<NsiLine> expanded = null;
+    for (int i = 0; i < body.size(); i++)
+    {
+      NsiLine line = body.get(i);
+      List<NsiLine> inline = null;
+      if (line.is("Call") && line.getOperands().size() == 1)
+        inline = this.getInlineBody(line.getOperand(0).toLowerCase());
+
+      if (inline != null)
+      {
+        if (expanded == null)
+          expanded = new ArrayList<NsiLine>(body.subList(0, i));
+        this.instantiate(inline, expanded);
+      }
+      else if (expanded != null)
+      {
+        expanded.add(line);
+      }
+    }
+    return expanded == null ? body : expanded;
+  }
+
+  /**
+   * Gets the body of a function to inline, with the calls in it inlined.
+   * @param name the lower case function name
+   * @return the function body or <code>null</code> if the function isn't
+   * inlined
+   */
+  private List<NsiLine> getInlineBody(String name)
+  {
+    List<NsiLine> body = this.inlinable.get(name);
+    if (body != null)
+      return body;
+
+    InlineHint hint = this.hints.get(name);
+    if (hint == null || hint == InlineHint.NoInline || this.rejected.contains(name) || this.expanding.contains(name) || !this.functions.containsKey(name))
+      return null;
+
+    this.expanding.add(name);
+    body = this.expand(this.functions.get(name));
+    this.expanding.remove(name);
+
+    int instructions = 0;
+    boolean recursive = false;
+    for (NsiLine line : body)
+    {
+      if (line.getKind() == NsiLine.Kind.Instruction)
+        instructions++;
+      if (line.is("Call") && line.getOperand(0).equalsIgnoreCase(name))
+        recursive = true;
+    }
+
+    if (recursive || (hint != InlineHint.Inline && instructions > this.threshold))
+    {
+      this.rejected.add(name);
+      return null;
+    }
+
+    this.inlinable.put(name, body);
+    return body;
+  }
+
+  /**
+   * Adds a copy of a function body in place of a call to it. Labels are
+   * renamed so that they are unique and returns become jumps to the end.
+   * @param body the function body
+   * @param lines receives the copy
+   */
+  private void instantiate(List<NsiLine> body, List<NsiLine> lines)
+  {
+    this.count++;
+    String end = "_inl" + this.count;
+    String prefix = end + "_";
+
+    HashSet<String> labels = new HashSet<String>();
+    for (NsiLine line : body)
+      if (line.getKind() == NsiLine.Kind.Label)
+        labels.add(line.getLabel());
+
+    boolean returns = false;
+    for (NsiLine line : body)
+    {
+      if (line.getKind() == NsiLine.Kind.Label)
+      {
+        lines.add(NsiLine.label(prefix + line.getLabel()));
+      }
+      else if (line.is("Return"))
+      {
+        lines.add(NsiLine.instruction("Goto", end));
+        returns = true;
+      }
+      else
+      {
+        NsiLine copy = line.copy();
+        List<String> operands = copy.getOperands();
+        for (int i = 0; i < operands.size(); i++)
+        {
+          String operand = operands.get(i);
+          if (labels.contains(operand))
+            copy.setOperand(i, prefix + operand);
+          else if (operand.startsWith(":") && labels.contains(operand.substring(1)))
+            copy.setOperand(i, ":" + prefix + operand.substring(1));
+        }
+        lines.add(copy);
+      }
+    }
+
+    if (returns)
+      lines.add(NsiLine.label(end));
+  }
+}
@@ -0,0 +1,324 @@
+/*
+ * Liveness.java
+ */
+
+package nsl.optimiser;
+
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Works out which variables are live, that is may be read before they are
+ * next set, after each instruction of a function or section. NSIS variables
+ * are global, so the variables that are live when any function or section
+ * starts or that are used outside of them are taken to be live wherever a
+ * function or section ends or calls a function.
+ * @author Stuart
+ */
+public class Liveness
+{
+  private final HashMap<String, Integer> variables;
+  private final BitSet global;
+  private final BitSet returned;
+  private boolean everything;
+
+  /**
+   * Class constructor.
+   */
+  public Liveness()
+  {
+    this.variables = new HashMap<String, Integer>();
+    this.global = new BitSet();
+    this.returned = new BitSet();
+    this.everything = false;
+  }
+
+  /**
+   * Determines if every variable has to be taken to be live everywhere, which
+   * is the case when the script has code that isn't understood such as macros
+   * and includes.
+   * @return <code>true</code> if every variable is live
+   */
+  public boolean isEverythingLive()
+  {
+    return this.everything;
+  }
+
+  /**
+   * Adds a line from outside of the functions and sections or from a function
+   * or section that can't be analysed. The variables it uses are live
+   * everywhere.
+   * @param line the line
+   */
+  public void addGlobal(NsiLine line)
+  {
+    String text = line.toString().trim();
+    if (text.contains("${") || text.startsWith("!include") || text.startsWith("!insertmacro") || text.startsWith("!macro"))
+      this.everything = true;
+    this.addVariables(text, this.global);
+  }
+
+  /**
+   * Determines if a function or section body can be analysed. Bodies with
+   * lines that aren't understood, relative jumps or jumps to variables
+   * can't be.
+   * @param body the function or section body
+   * @return <code>true</code> if the body can be analysed
+   */
+  public static boolean canAnalyse(List<NsiLine> body)
+  {
+    HashMap<String, Boolean> labels = new HashMap<String, Boolean>();
+    for (NsiLine line : body)
+    {
+      if (line.getKind() == NsiLine.Kind.Unknown || line.toString().contains("${"))
+        return false;
+      if (line.getKind() == NsiLine.Kind.Label)
+        labels.put(line.getLabel(), Boolean.TRUE);
+    }
+
+    for (NsiLine line : body)
+      for (int index : line.getJumpOperands())
+        if (!NsiLine.isNext(line.getOperand(index)) && !labels.containsKey(line.getOperand(index)))
+          return false;
+    return true;
+  }
+
+  /**
+   * Determines if a variable is live wherever a function or section starts
+   * or calls a function.
+   * @param variable the variable
+   * @return <code>true</code> if the variable is live
+   */
+  public boolean isGlobal(String variable)
+  {
+    return this.everything || this.global.get(this.getIndex(variable));
+  }
+
+  /**
+   * Determines if a variable is live wherever a function or section ends.
+   * @param variable the variable
+   * @return <code>true</code> if the variable is live
+   */
+  public boolean isLiveOnExit(String variable)
+  {
+    int index = this.getIndex(variable);
+    return this.everything || this.global.get(index) || this.returned.get(index);
+  }
+
+  /**
+   * Adds the variables that are live when a function or section starts to
+   * the variables that are live everywhere, and the variables that are live
+   * after its function calls to the variables that are live wherever a
+   * function ends.
+   * @param body the function or section body, which must be one that can be
+   * analysed
+   * @return <code>true</code> if any variables were added
+   */
+  public boolean addEntry(List<NsiLine> body)
+  {
+    BitSet[] live = this.analyse(body, true);
+    BitSet entry = live.length == 0 ? new BitSet() : live[0];
+    BitSet added = (BitSet)entry.clone();
+    added.andNot(this.global);
+    this.global.or(entry);
+
+    BitSet[] liveOut = this.analyse(body, false);
+    for (int i = 0; i < body.size(); i++)
+    {
+      if (body.get(i).is("Call"))
+      {
+        BitSet returns = (BitSet)liveOut[i].clone();
+        returns.andNot(this.returned);
+        added.or(returns);
+        this.returned.or(liveOut[i]);
+      }
+    }
+    return !added.isEmpty();
+  }
+
+  /**
+   * Gets the variables that are live after each line of a function or
+   * section body.
+   * @param body the function or section body, which must be one that can be
+   * analysed
+   * @return the live variables after each line
+   */
+  public BitSet[] analyse(List<NsiLine> body)
+  {
+    return this.analyse(body, false);
+  }
+
+  /**
+   * Gets the variables that are live before or after each line of a
+   * function or section body.
+   * @param body the function or section body
+   * @param in <code>true</code> for the variables live before each line or
+   * <code>false</code> for after
+   * @return the live variables before or after each line
+   */
+  private BitSet[] analyse(List<NsiLine> body, boolean in)
+  {
+    int size = body.size();
+    HashMap<String, Integer> labels = new HashMap<String, Integer>();
+    BitSet[] uses = new BitSet[size];
+    int[] defs = new int[size];
+    for (int i = 0; i < size; i++)
+    {
+      NsiLine line = body.get(i);
+      if (line.getKind() == NsiLine.Kind.Label)
+        labels.put(line.getLabel(), Integer.valueOf(i));
+      uses[i] = new BitSet();
+      defs[i] = this.getUses(line, uses[i]);
+    }
+
+    BitSet[] liveIn = new BitSet[size];
+    BitSet[] liveOut = new BitSet[size];
+    for (int i = 0; i < size; i++)
+    {
+      liveIn[i] = new BitSet();
+      liveOut[i] = new BitSet();
+    }
+
+    BitSet exit = (BitSet)this.global.clone();
+    exit.or(this.returned);
+
+    boolean changed = true;
+    while (changed)
+    {
+      changed = false;
+      for (int i = size - 1; i >= 0; i--)
+      {
+        NsiLine line = body.get(i);
+        BitSet out = new BitSet();
+        if (line.is("Return") || line.is("Quit") || line.is("Abort"))
+          out.or(exit);
+        if (!line.is("Return") && !line.is("Quit"))
+        {
+          if (!line.is("Goto"))
+            out.or(i + 1 < size ? liveIn[i + 1] : exit);
+          for (int index : line.getJumpOperands())
+          {
+            String target = line.getOperand(index);
+            if (NsiLine.isNext(target))
+              out.or(i + 1 < size ? liveIn[i + 1] : exit);
+            else
+              out.or(liveIn[labels.get(target).intValue()]);
+          }
+        }
+
+        BitSet inSet = (BitSet)out.clone();
+        if (defs[i] != -1)
+          inSet.clear(defs[i]);
+        inSet.or(uses[i]);
+
+        liveOut[i] = out;
+        if (!inSet.equals(liveIn[i]))
+        {
+          liveIn[i] = inSet;
+          changed = true;
+        }
+      }
+    }
+
+    return in ? liveIn : liveOut;
+  }
+
+  /**
+   * Gets the variables that a line reads and the variable that it sets.
+   * @param line the line
+   * @param uses receives the variables read
+   * @return the index of the variable set or -1 if none is
+   */
+  private int getUses(NsiLine line, BitSet uses)
+  {
+    if (line.getKind() != NsiLine.Kind.Instruction)
+      return -1;
+
+    if (line.is("Call"))
+      uses.or(this.global);
+
+    List<String> operands = line.getOperands();
+    int def = -1;
+    int first = 0;
+    if ((line.is("StrCpy") || line.is("IntOp") || line.is("IntFmt") || line.is("StrLen") || line.is("Pop"))
+     && !operands.isEmpty() && isVariable(operands.get(0)))
+    {
+      def = this.getIndex(operands.get(0));
+      first = 1;
+    }
+
+    for (int i = first; i < operands.size(); i++)
+      this.addVariables(operands.get(i), uses);
+    return def;
+  }
+
+  /**
+   * Adds the variables used in some text.
+   * @param text the text
+   * @param vars receives the variables
+   */
+  private void addVariables(String text, BitSet vars)
+  {
+    int i = text.indexOf('$');
+    while (i != -1 && i < text.length() - 1)
+    {
+      char next = text.charAt(i + 1);
+      if (next == '$' || next == '\\')
+      {
+        i += 2;
+      }
+      else
+      {
+        int end = i + 1;
+        while (end < text.length() && isVariableChar(text.charAt(end)))
+          end++;
+        if (end > i + 1)
+          vars.set(this.getIndex(text.substring(i, end)));
+        i = end;
+      }
+      i = text.indexOf('$', i);
+    }
+  }
+
+  /**
+   * Determines if an operand is just a variable.
+   * @param operand the operand
+   * @return <code>true</code> if the operand is a variable
+   */
+  public static boolean isVariable(String operand)
+  {
+    if (operand.length() < 2 || operand.charAt(0) != '$')
+      return false;
+    for (int i = 1; i < operand.length(); i++)
+      if (!isVariableChar(operand.charAt(i)))
+        return false;
+    return true;
+  }
+
+  /**
+   * Determines if a character can be part of a variable name.
+   * @param c the character
+   * @return <code>true</code> if the character can be part of a variable name
+   */
+  static boolean isVariableChar(char c)
+  {
+    return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || c == '_';
+  }
+
+  /**
+   * Gets the index of a variable in the sets of live variables.
+   * @param variable the variable
+   * @return the index of the variable
+   */
+  public int getIndex(String variable)
+  {
+    Integer index = this.variables.get(variable);
+    if (index == null)
+    {
+      index = Integer.valueOf(this.variables.size());
+      this.variables.put(variable, index);
+    }
+    return index.intValue();
+  }
+}
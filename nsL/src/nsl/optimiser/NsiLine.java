@@ -0,0 +1,412 @@
+/*
+ * NsiLine.java
+ */
+
+package nsl.optimiser;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A line of assembled NSIS script: a label, an instruction with its opcode,
+ * operands and jump operands or a blank line. Lines that the optimiser does
+ * not change are written out exactly as they were assembled.
+ * @author Stuart
+ */
+public class NsiLine
+{
+  /**
+   * The kinds of line.
+   */
+  public enum Kind
+  {
+    /**
+     * A go-to label.
+     */
+    Label,
+
+    /**
+     * An instruction.
+     */
+    Instruction,
+
+    /**
+     * A blank line.
+     */
+    Blank,
+
+    /**
+     * A line the optimiser does not understand, such as a compiler command
+     * or a line with a comment.
+     */
+    Unknown
+  }
+
+  private final Kind kind;
+  private final String opcode;
+  private final ArrayList<String> operands;
+  private String text;
+
+  /**
+   * Class constructor.
+   * @param kind the kind of line
+   * @param opcode the instruction opcode or the label name
+   * @param operands the instruction operands
+   * @param text the original text of the line
+   */
+  private NsiLine(Kind kind, String opcode, ArrayList<String> operands, String text)
+  {
+    this.kind = kind;
+    this.opcode = opcode;
+    this.operands = operands;
+    this.text = text;
+  }
+
+  /**
+   * Creates an instruction line.
+   * @param opcode the instruction opcode
+   * @param operands the instruction operands
+   * @return the instruction line
+   */
+  public static NsiLine instruction(String opcode, String... operands)
+  {
+    ArrayList<String> list = new ArrayList<String>();
+    for (String operand : operands)
+      list.add(operand);
+    return new NsiLine(Kind.Instruction, opcode, list, null);
+  }
+
+  /**
+   * Creates a label line.
+   * @param name the label name
+   * @return the label line
+   */
+  public static NsiLine label(String name)
+  {
+    return new NsiLine(Kind.Label, name, new ArrayList<String>(), null);
+  }
+
+  /**
+   * Copies the line.
+   * @return the copy
+   */
+  public NsiLine copy()
+  {
+    return new NsiLine(this.kind, this.opcode, new ArrayList<String>(this.operands), this.text);
+  }
+
+  /**
+   * Parses a line of assembled NSIS script.
+   * @param text the line without its line terminator
+   * @return the parsed line
+   */
+  public static NsiLine parse(String text)
+  {
+    if (text.trim().isEmpty())
+      return new NsiLine(Kind.Blank, null, new ArrayList<String>(), text);
+
+    // Indented lines, compiler commands and line continuations are left to
+    // makensis.
+    char first = text.charAt(0);
+    if (!Character.isLetter(first) && first != '_' && first != '.')
+      return new NsiLine(Kind.Unknown, null, new ArrayList<String>(), text);
+    if (text.endsWith("\\"))
+      return new NsiLine(Kind.Unknown, null, new ArrayList<String>(), text);
+
+    ArrayList<String> tokens = tokenize(text);
+    if (tokens == null || tokens.isEmpty())
+      return new NsiLine(Kind.Unknown, null, new ArrayList<String>(), text);
+
+    String opcode = tokens.remove(0);
+    if (tokens.isEmpty() && opcode.length() > 1 && opcode.endsWith(":"))
+      return new NsiLine(Kind.Label, opcode.substring(0, opcode.length() - 1), tokens, text);
+
+    for (int i = 0; i < opcode.length(); i++)
+    {
+      char c = opcode.charAt(i);
+      if (!Character.isLetterOrDigit(c) && c != '_' && c != '.' && c != ':')
+        return new NsiLine(Kind.Unknown, null, new ArrayList<String>(), text);
+    }
+
+    return new NsiLine(Kind.Instruction, opcode, tokens, text);
+  }
+
+  /**
+   * Splits a line into its whitespace separated tokens. Tokens can be quoted
+   * with double quotes, single quotes or back ticks.
+   * @param text the line
+   * @return the tokens or <code>null</code> if the line has a comment or an
+   * unterminated quote
+   */
+  private static ArrayList<String> tokenize(String text)
+  {
+    ArrayList<String> tokens = new ArrayList<String>();
+    int i = 0;
+    while (i < text.length())
+    {
+      char c = text.charAt(i);
+      if (Character.isWhitespace(c))
+      {
+        i++;
+        continue;
+      }
+
+      if (c == ';' || c == '#')
+        return null;
+
+      int start = i;
+      if (c == '"' || c == '\'' || c == '`')
+      {
+        i++;
+        while (i < text.length() && text.charAt(i) != c)
+        {
+          // Skip escaped quotes ($\").
+          if (text.charAt(i) == '$' && i + 2 < text.length() && text.charAt(i + 1) == '\\')
+            i += 3;
+          else
+            i++;
+        }
+        if (i >= text.length())
+          return null;
+        i++;
+        if (i < text.length() && !Character.isWhitespace(text.charAt(i)))
+          return null;
+      }
+      else
+      {
+        while (i < text.length() && !Character.isWhitespace(text.charAt(i)))
+          i++;
+      }
+      tokens.add(text.substring(start, i));
+    }
+    return tokens;
+  }
+
+  /**
+   * Gets the kind of line.
+   * @return the kind of line
+   */
+  public Kind getKind()
+  {
+    return this.kind;
+  }
+
+  /**
+   * Determines if the line is an instruction with the given opcode. Opcodes
+   * are case insensitive.
+   * @param opcode the opcode
+   * @return <code>true</code> if the line is an instruction with the opcode
+   */
+  public boolean is(String opcode)
+  {
+    return this.kind == Kind.Instruction && this.opcode.equalsIgnoreCase(opcode);
+  }
+
+  /**
+   * Gets the instruction opcode.
+   * @return the instruction opcode
+   */
+  public String getOpcode()
+  {
+    return this.opcode;
+  }
+
+  /**
+   * Gets the label name.
+   * @return the label name
+   */
+  public String getLabel()
+  {
+    return this.opcode;
+  }
+
+  /**
+   * Gets the instruction operands.
+   * @return the instruction operands
+   */
+  public List<String> getOperands()
+  {
+    return this.operands;
+  }
+
+  /**
+   * Gets an instruction operand.
+   * @param index the operand index
+   * @return the operand or "0" (jump to the next instruction) if the
+   * instruction has fewer operands
+   */
+  public String getOperand(int index)
+  {
+    if (index < this.operands.size())
+      return this.operands.get(index);
+    return "0";
+  }
+
+  /**
+   * Sets an instruction operand.
+   * @param index the operand index
+   * @param operand the new operand
+   */
+  public void setOperand(int index, String operand)
+  {
+    while (this.operands.size() <= index)
+      this.operands.add("0");
+    this.operands.set(index, operand);
+    this.text = null;
+  }
+
+  /**
+   * Removes trailing operands.
+   * @param size the number of operands to keep
+   */
+  public void truncate(int size)
+  {
+    while (this.operands.size() > size)
+      this.operands.remove(this.operands.size() - 1);
+    this.text = null;
+  }
+
+  /**
+   * Removes an instruction operand.
+   * @param index the operand index
+   */
+  public void removeOperand(int index)
+  {
+    this.operands.remove(index);
+    this.text = null;
+  }
+
+  /**
+   * Gets the indexes of the operands that are jump targets. For the MessageBox
+   * instruction these are the operands following IDOK, IDYES etc.
+   * @return the jump operand indexes
+   */
+  public int[] getJumpOperands()
+  {
+    if (this.kind != Kind.Instruction)
+      return new int[0];
+
+    if (this.is("Goto"))
+      return range(0, 1);
+    if (this.is("IntCmp") || this.is("IntCmpU"))
+      return range(2, 3);
+    if (this.is("StrCmp") || this.is("StrCmpS"))
+      return range(2, 2);
+    if (this.is("IfFileExists"))
+      return range(1, 2);
+    if (this.isFlagTest())
+      return range(0, 2);
+
+    if (this.is("MessageBox"))
+    {
+      ArrayList<Integer> jumps = new ArrayList<Integer>();
+      for (int i = 0; i < this.operands.size() - 1; i++)
+      {
+        String operand = this.operands.get(i);
+        if (operand.equalsIgnoreCase("/SD"))
+          i++;
+        else if (operand.toUpperCase().startsWith("ID"))
+          jumps.add(Integer.valueOf(++i));
+      }
+      int[] indexes = new int[jumps.size()];
+      for (int i = 0; i < indexes.length; i++)
+        indexes[i] = jumps.get(i).intValue();
+      return indexes;
+    }
+
+    return new int[0];
+  }
+
+  /**
+   * Gets the minimum number of operands of a conditional jump instruction.
+   * Trailing jump operands beyond this that jump to the next instruction can
+   * be removed.
+   * @return the minimum number of operands or -1 if the instruction is not a
+   * conditional jump with optional trailing jumps
+   */
+  public int getMinimumOperands()
+  {
+    if (this.is("IntCmp") || this.is("IntCmpU") || this.is("StrCmp") || this.is("StrCmpS"))
+      return 3;
+    if (this.is("IfFileExists"))
+      return 2;
+    if (this.isFlagTest())
+      return 1;
+    return -1;
+  }
+
+  /**
+   * Determines if the instruction is one that jumps depending on a flag, such
+   * as IfErrors or IfSilent.
+   * @return <code>true</code> if the instruction tests a flag
+   */
+  private boolean isFlagTest()
+  {
+    return this.is("IfErrors") || this.is("IfAbort") || this.is("IfSilent") || this.is("IfRebootFlag")
+        || this.is("IfShellVarContextAll") || this.is("IfRtlLanguage") || this.is("IfAltRegView");
+  }
+
+  /**
+   * Determines if the instruction is a comparison, which jumps to one of its
+   * jump operands depending on the result and has no other effect.
+   * @return <code>true</code> if the instruction is a comparison
+   */
+  public boolean isComparison()
+  {
+    return this.is("IntCmp") || this.is("IntCmpU") || this.is("StrCmp") || this.is("StrCmpS");
+  }
+
+  /**
+   * Returns a range of operand indexes.
+   * @param start the first index
+   * @param count the number of indexes
+   * @return the operand indexes
+   */
+  private static int[] range(int start, int count)
+  {
+    int[] indexes = new int[count];
+    for (int i = 0; i < count; i++)
+      indexes[i] = start + i;
+    return indexes;
+  }
+
+  /**
+   * Determines if a jump operand jumps to the next instruction.
+   * @param target the jump operand
+   * @return <code>true</code> if the jump operand is 0 or empty
+   */
+  public static boolean isNext(String target)
+  {
+    return target.equals("0") || target.equals("\"\"") || target.isEmpty();
+  }
+
+  /**
+   * Determines if a jump operand is a relative jump such as +2 or -1.
+   * @param target the jump operand
+   * @return <code>true</code> if the jump operand is a relative jump
+   */
+  public static boolean isRelative(String target)
+  {
+    return target.length() > 1 && (target.charAt(0) == '+' || target.charAt(0) == '-');
+  }
+
+  /**
+   * Gets the text of the line.
+   * @return the text of the line without its line terminator
+   */
+  @Override
+  public String toString()
+  {
+    if (this.text != null)
+      return this.text;
+
+    if (this.kind == Kind.Label)
+      return this.opcode + ":";
+
+    StringBuilder line = new StringBuilder(this.opcode);
+    for (String operand : this.operands)
+      line.append(' ').append(operand);
+    this.text = line.toString();
+    return this.text;
+  }
+}
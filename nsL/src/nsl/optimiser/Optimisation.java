@@ -0,0 +1,125 @@
+/*
+ * Optimisation.java
+ */
+
+package nsl.optimiser;
+
+import java.util.EnumSet;
+
+/**
+ * The optimisations that the {@link PeepholeOptimiser} can make to the
+ * assembled functions and sections.
+ * @author Stuart
+ */
+public enum Optimisation
+{
+  /**
+   * Switch statements with many integer cases jump through a table of Gotos
+   * when the cases are dense or a tree of comparisons when they are sparse,
+   * rather than comparing against each case in turn.
+   */
+  SwitchDispatch,
+
+  /**
+   * Calls to small functions are replaced by the body of the function.
+   */
+  Inline,
+
+  /**
+   * The registers and variables of each function and section are reallocated
+   * by their live ranges so that they use as few as they can, and the saves of
+   * variables around calls to functions that no longer change them are
+   * removed.
+   */
+  RegisterAllocation,
+
+  /**
+   * Variables known to hold constants are followed through each function and
+   * section, so that IntOps of constants become StrCpys of their results and
+   * comparisons of constants become Gotos.
+   */
+  ConstantFolding,
+
+  /**
+   * Jumps to where a constant such as a Boolean is stored in a variable that
+   * is then only compared go straight to where the comparison would jump to,
+   * if the variable isn't read there.
+   */
+  BooleanJumps,
+
+  /**
+   * Jumps to a label that is followed by a Goto go straight to the Goto's
+   * label instead.
+   */
+  JumpThreading,
+
+  /**
+   * Gotos to the next instruction are removed, conditional jumps to the next
+   * instruction become 0 and comparisons that jump to the same place whatever
+   * the result become Gotos.
+   */
+  JumpToNext,
+
+  /**
+   * StrCpy instructions that copy a variable to itself are removed.
+   */
+  RedundantMoves,
+
+  /**
+   * A Push followed by a Pop of the same value is removed and a Push followed
+   * by a Pop of another variable becomes a StrCpy.
+   */
+  PushPop,
+
+  /**
+   * A Push and Pop that save and restore a variable around a function call or
+   * other code are removed if the variable isn't read again before it is set.
+   */
+  DeadSaves,
+
+  /**
+   * Instructions that follow an unconditional jump and are not labelled are
+   * removed.
+   */
+  DeadCode,
+
+  /**
+   * Assembler generated labels that are no longer jumped to are removed.
+   */
+  UnusedLabels,
+
+  /**
+   * Functions that can't be reached from a section, a callback function or
+   * anything outside of the functions and sections are removed.
+   */
+  UnusedFunctions,
+
+  /**
+   * Var declarations of variables that are no longer referred to are
+   * removed.
+   */
+  UnusedVars;
+
+  /**
+   * Parses a comma separated list of optimisation names. Names are case
+   * insensitive.
+   * @param list the comma separated list of optimisation names
+   * @return the optimisations
+   * @throws IllegalArgumentException if a name is not an optimisation
+   */
+  public static EnumSet<Optimisation> parse(String list)
+  {
+    EnumSet<Optimisation> optimisations = EnumSet.noneOf(Optimisation.class);
+    for (String name : list.split(","))
+    {
+      Optimisation found = null;
+      for (Optimisation optimisation : values())
+        if (optimisation.name().equalsIgnoreCase(name.trim()))
+          found = optimisation;
+      if (found == null)
+        throw new IllegalArgumentException("Unknown optimisation \"" + name.trim() + "\"");
+      optimisations.add(found);
+    }
+    return optimisations;
+  }
+}
@@ -0,0 +1,587 @@
+/*
+ * OptimisingNsiSink.java
+ */
+
+package nsl.optimiser;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import nsl.CompilationContext;
+import nsl.FunctionInfo;
+import nsl.InlineHint;
+import nsl.NsiSink;
+
+/**
+ * Collects the instructions of each assembled function and section into a
+ * list of {@link NsiLine}s, optimises them with the {@link PeepholeOptimiser}
+ * and writes them to another sink. Everything outside of functions and
+ * sections is written as it is. Dead saves can only be found, registers
+ * reallocated and functions inlined once the whole script is known, so for
+ * these optimisations the script is held until it is closed.
+ * @author Stuart
+ */
+public class OptimisingNsiSink extends NsiSink
+{
+  /**
+   * The default maximum number of instructions of a function that is inlined
+   * without an inline hint.
+   */
+  public static final int DEFAULT_INLINE_THRESHOLD = 8;
+
+  private final NsiSink sink;
+  private final PeepholeOptimiser optimiser;
+  private final boolean wholeScript;
+  private final boolean allocateRegisters;
+  private final boolean removeUnusedFunctions;
+  private final boolean removeUnusedVars;
+  private int inlineThreshold;
+  private final ArrayList<Block> script;
+  private final StringBuilder line;
+  private Block block;
+
+  /**
+   * Class constructor.
+   * @param sink the sink to write the optimised NSIS script to
+   * @param optimisations the optimisations to make
+   */
+  public OptimisingNsiSink(NsiSink sink, EnumSet<Optimisation> optimisations)
+  {
+    super(sink.getCharset());
+    this.sink = sink;
+    this.optimiser = new PeepholeOptimiser(optimisations);
+    this.allocateRegisters = optimisations.contains(Optimisation.RegisterAllocation);
+    this.removeUnusedFunctions = optimisations.contains(Optimisation.UnusedFunctions);
+    this.removeUnusedVars = optimisations.contains(Optimisation.UnusedVars);
+    this.wholeScript = optimisations.contains(Optimisation.DeadSaves) || optimisations.contains(Optimisation.BooleanJumps) || optimisations.contains(Optimisation.Inline) || this.allocateRegisters || this.removeUnusedFunctions || this.removeUnusedVars;
+    this.inlineThreshold = DEFAULT_INLINE_THRESHOLD;
+    this.script = new ArrayList<Block>();
+    this.line = new StringBuilder();
+    this.block = null;
+  }
+
+  /**
+   * Sets the maximum number of instructions of a function that is inlined
+   * without an inline hint.
+   * @param inlineThreshold the maximum number of instructions
+   */
+  public void setInlineThreshold(int inlineThreshold)
+  {
+    this.inlineThreshold = inlineThreshold;
+  }
+
+  /**
+   * Gets the file the NSIS script is written to.
+   * @return the file the NSIS script is written to or <code>null</code> if it
+   * is not written to a file
+   */
+  @Override
+  public File getFile()
+  {
+    return this.sink.getFile();
+  }
+
+  /**
+   * Writes text to the NSIS script.
+   * @param text the text to write
+   * @throws IOException
+   */
+  @Override
+  public void write(String text) throws IOException
+  {
+    int start = 0;
+    int end;
+    while ((end = text.indexOf(NEW_LINE, start)) != -1)
+    {
+      this.line.append(text, start, end);
+      this.writeCompleteLine(this.line.toString());
+      this.line.setLength(0);
+      start = end + NEW_LINE.length();
+    }
+    this.line.append(text, start, text.length());
+  }
+
+  /**
+   * Handles a complete line of the NSIS script.
+   * @param text the line without its line terminator
+   * @throws IOException
+   */
+  private void writeCompleteLine(String text) throws IOException
+  {
+    if (this.block == null)
+    {
+      if (startsWord(text, "Function") || startsWord(text, "Section"))
+        this.block = new Block(text);
+      else if (this.wholeScript)
+        this.script.add(new Block(text));
+      else
+        this.sink.writeLine(text);
+      return;
+    }
+
+    if (startsWord(text, "FunctionEnd") || startsWord(text, "SectionEnd"))
+    {
+      this.block.end = text;
+      if (this.wholeScript)
+      {
+        this.script.add(this.block);
+      }
+      else
+      {
+        this.block.setBody(this.optimiser.optimise(this.block.body));
+        this.writeBlock(this.block);
+      }
+      this.block = null;
+      return;
+    }
+
+    this.block.body.add(NsiLine.parse(text));
+  }
+
+  /**
+   * Writes a function or section.
+   * @param block the function or section
+   * @throws IOException
+   */
+  private void writeBlock(Block block) throws IOException
+  {
+    this.sink.writeLine(block.start);
+    for (NsiLine optimised : PeepholeOptimiser.restoreRelativeJumps(block.body))
+      this.sink.writeLine(optimised.toString());
+    this.sink.writeLine(block.end);
+  }
+
+  /**
+   * Determines if a line starts with the given word.
+   * @param text the line
+   * @param word the word
+   * @return <code>true</code> if the line starts with the word
+   */
+  private static boolean startsWord(String text, String word)
+  {
+    if (!text.regionMatches(true, 0, word, 0, word.length()))
+      return false;
+    return text.length() == word.length() || Character.isWhitespace(text.charAt(word.length()));
+  }
+
+  /**
+   * Works out which variables are live at the start and end of every
+   * function and section in the script.
+   * @return the variable liveness
+   */
+  private Liveness analyseScript()
+  {
+    Liveness liveness = new Liveness();
+    ArrayList<Block> analysable = new ArrayList<Block>();
+    for (Block scriptBlock : this.script)
+    {
+      if (scriptBlock.body == null)
+        liveness.addGlobal(NsiLine.parse(scriptBlock.start));
+      else if (!Liveness.canAnalyse(scriptBlock.body))
+        for (NsiLine bodyLine : scriptBlock.body)
+          liveness.addGlobal(bodyLine);
+      else
+        analysable.add(scriptBlock);
+    }
+
+    boolean changed = true;
+    while (changed && !liveness.isEverythingLive())
+    {
+      changed = false;
+      for (Block scriptBlock : analysable)
+        changed |= liveness.addEntry(scriptBlock.body);
+    }
+    return liveness;
+  }
+
+  /**
+   * Gets the bodies of the functions of the script. Functions whose names
+   * clash are left out.
+   * @return the function bodies keyed by lower case function name
+   */
+  private HashMap<String, List<NsiLine>> getFunctions()
+  {
+    HashMap<String, List<NsiLine>> functions = new HashMap<String, List<NsiLine>>();
+    HashSet<String> clashes = new HashSet<String>();
+    for (Block scriptBlock : this.script)
+    {
+      if (scriptBlock.body != null && startsWord(scriptBlock.start, "Function"))
+      {
+        NsiLine header = NsiLine.parse(scriptBlock.start);
+        if (header.getOperands().size() == 1 && functions.put(header.getOperand(0).toLowerCase(), scriptBlock.body) != null)
+          clashes.add(header.getOperand(0).toLowerCase());
+      }
+    }
+    for (String clash : clashes)
+      functions.remove(clash);
+    return functions;
+  }
+
+  /**
+   * Gets the user variables declared by the script.
+   * @return the user variables
+   */
+  private HashSet<String> getUserVars()
+  {
+    HashSet<String> userVars = new HashSet<String>();
+    for (Block scriptBlock : this.script)
+    {
+      if (scriptBlock.body == null)
+      {
+        NsiLine line = NsiLine.parse(scriptBlock.start);
+        if (line.is("Var") && !line.getOperands().isEmpty())
+          userVars.add("$" + line.getOperand(line.getOperands().size() - 1));
+      }
+    }
+    return userVars;
+  }
+
+  /**
+   * Reallocates the registers and variables of the functions and sections of
+   * the script and passes what the functions may then change on to the
+   * optimiser.
+   */
+  private void allocateRegisters()
+  {
+    RegisterAllocator allocator = new RegisterAllocator(this.analyseScript(), RegisterAllocator.getClobbers(this.getFunctions()), this.getUserVars());
+    for (Block scriptBlock : this.script)
+      if (scriptBlock.body != null)
+        scriptBlock.setBody(allocator.allocate(scriptBlock.body));
+    this.optimiser.setClobbers(RegisterAllocator.getClobbers(this.getFunctions()));
+  }
+
+  /**
+   * Removes the functions that can't be reached. Sections, callback
+   * functions and everything outside of the functions and sections are
+   * reached, as is any function whose name they or the functions they reach
+   * have a word the same as, which takes in calls, page callbacks and
+   * GetFunctionAddress.
+   */
+  private void removeUnusedFunctions()
+  {
+    HashMap<String, ArrayList<Block>> functions = new HashMap<String, ArrayList<Block>>();
+    ArrayList<Block> pending = new ArrayList<Block>();
+    HashSet<String> reached = new HashSet<String>();
+    HashSet<String> names = new HashSet<String>();
+    for (Block scriptBlock : this.script)
+    {
+      String name = getFunctionName(scriptBlock);
+      if (name == null || name.startsWith(".") || name.startsWith("un.on"))
+      {
+        pending.add(scriptBlock);
+      }
+      else
+      {
+        ArrayList<Block> list = functions.get(name);
+        if (list == null)
+        {
+          list = new ArrayList<Block>();
+          functions.put(name, list);
+        }
+        list.add(scriptBlock);
+      }
+    }
+
+    while (!pending.isEmpty())
+    {
+      Block scriptBlock = pending.remove(pending.size() - 1);
+      names.clear();
+      addWords(scriptBlock.start, names);
+      if (scriptBlock.body != null)
+        for (NsiLine bodyLine : scriptBlock.body)
+          addWords(bodyLine.toString(), names);
+
+      for (String name : names)
+        if (functions.containsKey(name) && reached.add(name))
+          pending.addAll(functions.get(name));
+    }
+
+    ArrayList<String> removedNames = new ArrayList<String>();
+    for (int i = this.script.size() - 1; i >= 0; i--)
+    {
+      String name = getFunctionName(this.script.get(i));
+      if (name != null && functions.containsKey(name) && !reached.contains(name))
+      {
+        removedNames.add(0, NsiLine.parse(this.script.get(i).start).getOperand(0));
+        this.script.remove(i);
+      }
+    }
+    report("functions", removedNames);
+  }
+
+  /**
+   * Removes the Var declarations of variables that are no longer referred to.
+   */
+  private void removeUnusedVars()
+  {
+    HashSet<String> references = new HashSet<String>();
+    for (Block scriptBlock : this.script)
+    {
+      if (scriptBlock.body == null)
+      {
+        NsiLine line = NsiLine.parse(scriptBlock.start);
+        if (!line.is("Var"))
+          addReferences(scriptBlock.start, references);
+      }
+      else
+      {
+        addReferences(scriptBlock.start, references);
+        for (NsiLine bodyLine : scriptBlock.body)
+          addReferences(bodyLine.toString(), references);
+      }
+    }
+
+    ArrayList<String> removedNames = new ArrayList<String>();
+    for (int i = this.script.size() - 1; i >= 0; i--)
+    {
+      Block scriptBlock = this.script.get(i);
+      if (scriptBlock.body != null)
+        continue;
+      NsiLine line = NsiLine.parse(scriptBlock.start);
+      if (!line.is("Var") || line.getOperands().isEmpty())
+        continue;
+
+      // NSIS takes the longest variable name that a reference starts with,
+      // so a variable is kept if any reference starts with its name.
+      String var = "$" + line.getOperand(line.getOperands().size() - 1).toLowerCase();
+      boolean used = false;
+      for (String reference : references)
+        if (reference.startsWith(var))
+          used = true;
+      if (!used)
+      {
+        removedNames.add(0, var.substring(1));
+        this.script.remove(i);
+      }
+    }
+    report("variables", removedNames);
+  }
+
+  /**
+   * Gets the lower case name of a function.
+   * @param scriptBlock the function, section or line outside of them
+   * @return the function name or <code>null</code> if it isn't a function
+   */
+  private static String getFunctionName(Block scriptBlock)
+  {
+    if (scriptBlock.body == null || !startsWord(scriptBlock.start, "Function"))
+      return null;
+    NsiLine header = NsiLine.parse(scriptBlock.start);
+    if (header.getOperands().size() != 1)
+      return null;
+    return header.getOperand(0).toLowerCase();
+  }
+
+  /**
+   * Adds the lower case words of a line that could be function names.
+   * @param text the line
+   * @param words receives the words
+   */
+  private static void addWords(String text, HashSet<String> words)
+  {
+    for (String word : text.split("[^A-Za-z0-9_.]+"))
+      if (word.length() != 0)
+        words.add(word.toLowerCase());
+  }
+
+  /**
+   * Adds the lower case variables referred to in a line.
+   * @param text the line
+   * @param references receives the variables
+   */
+  private static void addReferences(String text, HashSet<String> references)
+  {
+    for (int offset : RegisterAllocator.findReferences(text))
+      references.add(RegisterAllocator.getReference(text, offset).toLowerCase());
+  }
+
+  /**
+   * Prints what has been removed.
+   * @param what what kind of thing was removed
+   * @param removedNames the names of what was removed
+   */
+  private static void report(String what, ArrayList<String> removedNames)
+  {
+    CompilationContext context = CompilationContext.getCurrent();
+    if (removedNames.isEmpty() || context == null || context.getStdout() == null)
+      return;
+
+    StringBuilder message = new StringBuilder("Removed " + removedNames.size() + " unused " + what + ": ");
+    for (int i = 0; i < removedNames.size(); i++)
+      message.append(i == 0 ? "" : ", ").append(removedNames.get(i));
+    context.getStdout().println(message.append('.'));
+    context.getStdout().flush();
+  }
+
+  /**
+   * Creates the inliner for the functions of the script.
+   * @return the inliner
+   */
+  private Inliner createInliner()
+  {
+    HashMap<String, InlineHint> hints = new HashMap<String, InlineHint>();
+    if (CompilationContext.getCurrent() != null)
+      for (FunctionInfo functionInfo : FunctionInfo.getList())
+        if (!functionInfo.isCallback())
+          hints.put(functionInfo.getName().toLowerCase(), functionInfo.getInlineHint());
+
+    Inliner inliner = new Inliner(this.inlineThreshold, hints);
+    for (Block scriptBlock : this.script)
+    {
+      if (scriptBlock.body != null && startsWord(scriptBlock.start, "Function") && Liveness.canAnalyse(scriptBlock.body))
+      {
+        NsiLine header = NsiLine.parse(scriptBlock.start);
+        if (header.getOperands().size() == 1)
+          inliner.addFunction(header.getOperand(0), scriptBlock.body);
+      }
+    }
+    return inliner;
+  }
+
+  /**
+   * Gets the number of parameters and return values of every function of the
+   * script being assembled. Functions whose names clash are left out.
+   * @return the number of parameters and return values keyed by lower case
+   * function name
+   */
+  private static HashMap<String, int[]> getCallSignatures()
+  {
+    HashMap<String, int[]> signatures = new HashMap<String, int[]>();
+    if (CompilationContext.getCurrent() == null)
+      return signatures;
+
+    HashMap<String, Boolean> clashes = new HashMap<String, Boolean>();
+    for (FunctionInfo functionInfo : FunctionInfo.getList())
+    {
+      String name = functionInfo.getName().toLowerCase();
+      int[] signature = new int[] { functionInfo.getParams(), Math.max(functionInfo.getReturns(), 0) };
+      int[] existing = signatures.put(name, signature);
+      if (existing != null && (existing[0] != signature[0] || existing[1] != signature[1]))
+        clashes.put(name, Boolean.TRUE);
+    }
+    for (String name : clashes.keySet())
+      signatures.remove(name);
+    return signatures;
+  }
+
+  /**
+   * Writes out anything that is left and closes the NSIS script.
+   * @throws IOException
+   */
+  @Override
+  public void close() throws IOException
+  {
+    if (this.wholeScript)
+    {
+      this.optimiser.setCallSignatures(getCallSignatures());
+
+      // Bodies with relative jumps can't be analysed, so the jumps are
+      // replaced with labels first.
+      for (Block scriptBlock : this.script)
+      {
+        if (scriptBlock.body != null)
+        {
+          List<NsiLine> resolved = PeepholeOptimiser.resolveRelativeJumps(scriptBlock.body);
+          if (resolved != null)
+            scriptBlock.setBody(resolved);
+        }
+      }
+
+      if (this.allocateRegisters)
+        this.allocateRegisters();
+      this.optimiser.setLiveness(this.analyseScript());
+      this.optimiser.setInliner(this.createInliner());
+
+      // Inlining and removing saves leave registers free, so they are
+      // reallocated once everything has been optimised, which is then done
+      // again.
+      if (this.allocateRegisters)
+      {
+        for (Block scriptBlock : this.script)
+          if (scriptBlock.body != null)
+            scriptBlock.setBody(this.optimiser.optimise(scriptBlock.body));
+        this.optimiser.setInliner(null);
+        this.allocateRegisters();
+        this.optimiser.setLiveness(this.analyseScript());
+      }
+      for (Block scriptBlock : this.script)
+        if (scriptBlock.body != null)
+          scriptBlock.setBody(this.optimiser.optimise(scriptBlock.body));
+
+      // Functions can only be found to be unused once calls have been
+      // inlined, and variables once functions have been removed and the
+      // registers reallocated.
+      if (this.removeUnusedFunctions)
+        this.removeUnusedFunctions();
+      if (this.removeUnusedVars)
+        this.removeUnusedVars();
+
+      for (Block scriptBlock : this.script)
+      {
+        if (scriptBlock.body == null)
+          this.sink.writeLine(scriptBlock.start);
+        else
+          this.writeBlock(scriptBlock);
+      }
+      this.script.clear();
+    }
+
+    if (this.block != null)
+    {
+      this.sink.writeLine(this.block.start);
+      for (NsiLine unoptimised : this.block.body)
+        this.sink.writeLine(unoptimised.toString());
+    }
+    if (this.line.length() > 0)
+      this.sink.write(this.line.toString());
+    this.sink.close();
+  }
+
+  /**
+   * Closes the NSIS script and throws away anything written to it.
+   */
+  @Override
+  public void discard()
+  {
+    this.sink.discard();
+  }
+
+  /**
+   * A function or section or a line outside of them.
+   */
+  private static class Block
+  {
+    private final String start;
+    private final ArrayList<NsiLine> body;
+    private String end;
+
+    /**
+     * Class constructor.
+     * @param start the Function or Section line, or the line outside of the
+     * functions and sections
+     */
+    public Block(String start)
+    {
+      this.start = start;
+      this.body = startsWord(start, "Function") || startsWord(start, "Section") ? new ArrayList<NsiLine>() : null;
+      this.end = null;
+    }
+
+    /**
+     * Replaces the lines of the function or section body.
+     * @param lines the new lines
+     */
+    public void setBody(List<NsiLine> lines)
+    {
+      if (lines == this.body)
+        return;
+      ArrayList<NsiLine> copy = new ArrayList<NsiLine>(lines);
+      this.body.clear();
+      this.body.addAll(copy);
+    }
+  }
+}
@@ -0,0 +1,870 @@
+/*
+ * PeepholeOptimiser.java
+ */
+
+package nsl.optimiser;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * Optimises the assembled instructions of a function or section. Mostly this
+ * tidies up after the go-to labels used for if statements, loops and boolean
+ * expressions, which leave jumps to jumps and jumps to the next instruction.
+ * @author Stuart
+ */
+public class PeepholeOptimiser
+{
+  private static final Pattern generatedLabel = Pattern.compile("_lbl_\\d+|_inl\\d+(_.*)?|_rel\\d+");
+
+  /**
+   * Stands in for removed lines until the end of each pass so that the
+   * indexes of the other lines don't change.
+   */
+  private static final NsiLine removed = NsiLine.parse("");
+
+  private final EnumSet<Optimisation> optimisations;
+  private Liveness liveness;
+  private HashMap<String, int[]> callSignatures;
+  private Map<String, HashSet<String>> clobbers;
+  private Inliner inliner;
+  private ArrayList<NsiLine> lines;
+  private HashMap<String, Integer> labels;
+
+  /**
+   * Class constructor.
+   * @param optimisations the optimisations to make
+   */
+  public PeepholeOptimiser(EnumSet<Optimisation> optimisations)
+  {
+    this.optimisations = optimisations;
+    this.liveness = null;
+    this.callSignatures = new HashMap<String, int[]>();
+    this.clobbers = null;
+    this.inliner = null;
+  }
+
+  /**
+   * Sets the inliner of the functions of the whole script, which is needed to
+   * inline calls.
+   * @param inliner the inliner or <code>null</code> if there isn't one
+   */
+  public void setInliner(Inliner inliner)
+  {
+    this.inliner = inliner;
+  }
+
+  /**
+   * Sets the variable liveness of the whole script, which is needed to
+   * remove dead saves.
+   * @param liveness the variable liveness or <code>null</code> if it isn't
+   * known
+   */
+  public void setLiveness(Liveness liveness)
+  {
+    this.liveness = liveness;
+  }
+
+  /**
+   * Sets the number of parameters and return values of the functions that
+   * can be called, which is needed to follow the stack across calls.
+   * @param callSignatures the number of parameters and return values keyed
+   * by lower case function name
+   */
+  public void setCallSignatures(HashMap<String, int[]> callSignatures)
+  {
+    this.callSignatures = callSignatures;
+  }
+
+  /**
+   * Sets the variables that each function and the functions it calls may
+   * set, which is needed to remove saves of variables that aren't changed.
+   * @param clobbers the variables keyed by lower case function name or
+   * <code>null</code> if they aren't known
+   */
+  public void setClobbers(Map<String, HashSet<String>> clobbers)
+  {
+    this.clobbers = clobbers;
+  }
+
+  /**
+   * Optimises the body of a function or section. Relative jumps are first
+   * replaced with jumps to labels. The body is returned as it is if it has
+   * relative jumps that go outside of it or jumps to variables, which would
+   * change where they jump to when instructions are removed, or lines that
+   * aren't understood.
+   * @param body the lines between Function and FunctionEnd or Section and
+   * SectionEnd
+   * @return the optimised lines
+   */
+  public List<NsiLine> optimise(List<NsiLine> body)
+  {
+    for (NsiLine line : body)
+    {
+      if (line.getKind() == NsiLine.Kind.Unknown)
+        return body;
+      for (int index : line.getJumpOperands())
+        if (line.getOperand(index).startsWith("$"))
+          return body;
+    }
+
+    List<NsiLine> resolved = resolveRelativeJumps(body);
+    if (resolved == null)
+      return body;
+
+    if (this.optimisations.contains(Optimisation.Inline) && this.inliner != null)
+      this.lines = new ArrayList<NsiLine>(this.inliner.expand(resolved));
+    else
+      this.lines = new ArrayList<NsiLine>(resolved);
+
+    boolean changed = true;
+    while (changed)
+    {
+      changed = false;
+      if (this.optimisations.contains(Optimisation.ConstantFolding))
+        changed |= this.foldConstants();
+      if (this.optimisations.contains(Optimisation.BooleanJumps))
+        changed |= this.threadStoredTests();
+      if (this.optimisations.contains(Optimisation.JumpThreading))
+        changed |= this.threadJumps();
+      if (this.optimisations.contains(Optimisation.JumpToNext))
+        changed |= this.removeJumpsToNext();
+      if (this.optimisations.contains(Optimisation.RedundantMoves))
+        changed |= this.removeRedundantMoves();
+      if (this.optimisations.contains(Optimisation.PushPop))
+        changed |= this.removePushPops();
+      if (this.optimisations.contains(Optimisation.DeadSaves))
+        changed |= this.removeDeadSaves();
+      if (this.optimisations.contains(Optimisation.RegisterAllocation))
+        changed |= this.removeUnchangedSaves();
+      if (this.optimisations.contains(Optimisation.DeadCode))
+        changed |= this.removeDeadCode();
+      if (this.optimisations.contains(Optimisation.UnusedLabels))
+        changed |= this.removeUnusedLabels();
+    }
+
+    return this.lines;
+  }
+
+  /**
+   * Replaces relative jumps such as Goto +2, which count instructions, with
+   * jumps to generated labels.
+   * @param body the function or section body
+   * @return the body with labels or <code>null</code> if a relative jump goes
+   * outside of the body or there are lines that aren't understood, which
+   * could be any number of instructions
+   */
+  public static List<NsiLine> resolveRelativeJumps(List<NsiLine> body)
+  {
+    int size = body.size();
+    ArrayList<Integer> instructions = new ArrayList<Integer>();
+    HashSet<String> labelNames = new HashSet<String>();
+    for (int i = 0; i < size; i++)
+    {
+      NsiLine line = body.get(i);
+      if (line.getKind() == NsiLine.Kind.Unknown)
+        return null;
+      if (line.getKind() == NsiLine.Kind.Instruction)
+        instructions.add(Integer.valueOf(i));
+      else if (line.getKind() == NsiLine.Kind.Label)
+        labelNames.add(line.getLabel());
+    }
+
+    // The label to put before each line, or at the end for the line after
+    // the last.
+    String[] names = new String[size + 1];
+    ArrayList<NsiLine> lines = new ArrayList<NsiLine>(body);
+    int labelCount = 0;
+    for (int position = 0; position < instructions.size(); position++)
+    {
+      int i = instructions.get(position).intValue();
+      NsiLine line = null;
+      for (int index : body.get(i).getJumpOperands())
+      {
+        String jump = body.get(i).getOperand(index);
+        if (!NsiLine.isRelative(jump))
+          continue;
+
+        int target;
+        try
+        {
+          target = position + Integer.parseInt(jump.charAt(0) == '+' ? jump.substring(1) : jump);
+        }
+        catch (NumberFormatException ex)
+        {
+          return null;
+        }
+        if (target < 0 || target > instructions.size())
+          return null;
+
+        int targetLine = target == instructions.size() ? size : instructions.get(target).intValue();
+        if (names[targetLine] == null)
+        {
+          do
+            names[targetLine] = "_rel" + labelCount++;
+          while (labelNames.contains(names[targetLine]));
+        }
+
+        // The original lines may be shared with other bodies.
+        if (line == null)
+        {
+          line = NsiLine.parse(body.get(i).toString());
+          lines.set(i, line);
+        }
+        line.setOperand(index, names[targetLine]);
+      }
+    }
+
+    if (labelCount == 0)
+      return body;
+
+    ArrayList<NsiLine> resolved = new ArrayList<NsiLine>(size + labelCount);
+    for (int i = 0; i <= size; i++)
+    {
+      if (names[i] != null)
+        resolved.add(NsiLine.label(names[i]));
+      if (i < size)
+        resolved.add(lines.get(i));
+    }
+    return resolved;
+  }
+
+  /**
+   * Turns jumps to the labels generated by {@link #resolveRelativeJumps(List)}
+   * back into relative jumps and removes the labels, so that the labels don't
+   * make the optimised script any longer. A jump to the instruction it is on
+   * keeps its label as it can't be written as a relative jump.
+   * @param body the function or section body
+   * @return the body with relative jumps
+   */
+  public static List<NsiLine> restoreRelativeJumps(List<NsiLine> body)
+  {
+    // The position of the instruction that each generated label is before.
+    HashMap<String, Integer> targets = new HashMap<String, Integer>();
+    int instructions = 0;
+    for (NsiLine line : body)
+    {
+      if (line.getKind() == NsiLine.Kind.Instruction)
+        instructions++;
+      else if (line.getKind() == NsiLine.Kind.Label && line.getLabel().startsWith("_rel") && generatedLabel.matcher(line.getLabel()).matches())
+        targets.put(line.getLabel(), Integer.valueOf(instructions));
+    }
+    if (targets.isEmpty())
+      return body;
+
+    ArrayList<NsiLine> restored = new ArrayList<NsiLine>(body.size());
+    HashSet<String> referenced = new HashSet<String>();
+    int position = 0;
+    for (NsiLine line : body)
+    {
+      if (line.getKind() == NsiLine.Kind.Instruction)
+      {
+        NsiLine copy = null;
+        for (int index : line.getJumpOperands())
+        {
+          Integer target = targets.get(line.getOperand(index));
+          if (target == null || target.intValue() == position)
+            continue;
+
+          // The original lines may be shared with other bodies.
+          if (copy == null)
+            copy = NsiLine.parse(line.toString());
+          int offset = target.intValue() - position;
+          copy.setOperand(index, offset > 0 ? "+" + offset : Integer.toString(offset));
+        }
+        if (copy != null)
+          line = copy;
+        position++;
+      }
+
+      for (String operand : line.getOperands())
+      {
+        referenced.add(operand);
+        if (operand.startsWith(":"))
+          referenced.add(operand.substring(1));
+      }
+      restored.add(line);
+    }
+
+    for (Iterator<NsiLine> i = restored.iterator(); i.hasNext(); )
+    {
+      NsiLine line = i.next();
+      if (line.getKind() == NsiLine.Kind.Label && targets.containsKey(line.getLabel()) && !referenced.contains(line.getLabel()))
+        i.remove();
+    }
+    return restored;
+  }
+
+  /**
+   * Indexes the labels by name.
+   */
+  private void indexLabels()
+  {
+    this.labels = new HashMap<String, Integer>();
+    for (int i = 0; i < this.lines.size(); i++)
+    {
+      NsiLine line = this.lines.get(i);
+      if (line.getKind() == NsiLine.Kind.Label)
+        this.labels.put(line.getLabel(), Integer.valueOf(i));
+    }
+  }
+
+  /**
+   * Gets the index of the first instruction after the given line.
+   * @param index the line index
+   * @return the instruction index or -1 if there is none
+   */
+  private int nextInstruction(int index)
+  {
+    for (int i = index + 1; i < this.lines.size(); i++)
+      if (this.lines.get(i).getKind() == NsiLine.Kind.Instruction)
+        return i;
+    return -1;
+  }
+
+  /**
+   * Determines if a jump from the given instruction goes to the next
+   * instruction.
+   * @param index the instruction index
+   * @param target the jump operand
+   * @return <code>true</code> if the jump goes to the next instruction
+   */
+  private boolean jumpsToNext(int index, String target)
+  {
+    if (NsiLine.isNext(target))
+      return true;
+
+    Integer label = this.labels.get(target);
+    if (label == null || label.intValue() <= index)
+      return false;
+
+    for (int i = index + 1; i < label.intValue(); i++)
+      if (this.lines.get(i).getKind() == NsiLine.Kind.Instruction)
+        return false;
+    return true;
+  }
+
+  /**
+   * Replaces jumps to a label followed by a Goto with jumps to the Goto's
+   * target.
+   * @return <code>true</code> if any jumps were changed
+   */
+  private boolean threadJumps()
+  {
+    this.indexLabels();
+
+    boolean changed = false;
+    for (NsiLine line : this.lines)
+    {
+      for (int index : line.getJumpOperands())
+      {
+        String target = line.getOperand(index);
+        HashSet<String> visited = new HashSet<String>();
+        while (this.labels.containsKey(target) && visited.add(target))
+        {
+          int next = this.nextInstruction(this.labels.get(target).intValue());
+          if (next == -1 || !this.lines.get(next).is("Goto") || this.lines.get(next).getOperands().size() != 1)
+            break;
+          String jump = this.lines.get(next).getOperand(0);
+          if (!this.labels.containsKey(jump))
+            break;
+          target = jump;
+        }
+
+        if (!target.equals(line.getOperand(index)))
+        {
+          line.setOperand(index, target);
+          changed = true;
+        }
+      }
+    }
+    return changed;
+  }
+
+  /**
+   * Removes Gotos to the next instruction and replaces conditional jumps to
+   * the next instruction with 0. Comparisons that jump to the same place
+   * whatever the result become Gotos.
+   * @return <code>true</code> if any instructions were changed
+   */
+  private boolean removeJumpsToNext()
+  {
+    this.indexLabels();
+
+    boolean changed = false;
+    for (int i = 0; i < this.lines.size(); i++)
+    {
+      NsiLine line = this.lines.get(i);
+      if (line.getKind() != NsiLine.Kind.Instruction)
+        continue;
+
+      if (line.is("Goto"))
+      {
+        if (line.getOperands().size() == 1 && this.jumpsToNext(i, line.getOperand(0)))
+        {
+          this.lines.set(i, removed);
+          changed = true;
+        }
+        continue;
+      }
+
+      int[] jumps = line.getJumpOperands();
+      for (int index : jumps)
+      {
+        String target = line.getOperand(index);
+        if (!NsiLine.isNext(target) && this.jumpsToNext(i, target))
+        {
+          line.setOperand(index, "0");
+          changed = true;
+        }
+      }
+
+      if (line.isComparison())
+      {
+        String target = line.getOperand(jumps[0]);
+        boolean same = true;
+        for (int index : jumps)
+          if (!line.getOperand(index).equals(target) && !(NsiLine.isNext(line.getOperand(index)) && NsiLine.isNext(target)))
+            same = false;
+        if (same)
+        {
+          this.lines.set(i, NsiLine.isNext(target) ? removed : NsiLine.instruction("Goto", target));
+          changed = true;
+          continue;
+        }
+      }
+
+      if (line.is("MessageBox"))
+      {
+        for (int j = jumps.length - 1; j >= 0; j--)
+        {
+          if (NsiLine.isNext(line.getOperand(jumps[j])))
+          {
+            line.removeOperand(jumps[j]);
+            line.removeOperand(jumps[j] - 1);
+            changed = true;
+          }
+        }
+        continue;
+      }
+
+      int minimum = line.getMinimumOperands();
+      if (minimum != -1)
+      {
+        int size = line.getOperands().size();
+        while (size > minimum && NsiLine.isNext(line.getOperand(size - 1)))
+          size--;
+        if (size < line.getOperands().size())
+        {
+          line.truncate(size);
+          changed = true;
+        }
+      }
+    }
+
+    return this.compact() || changed;
+  }
+
+  /**
+   * Removes StrCpy instructions that copy a variable to itself.
+   * @return <code>true</code> if any instructions were removed
+   */
+  private boolean removeRedundantMoves()
+  {
+    boolean changed = false;
+    for (int i = 0; i < this.lines.size(); i++)
+    {
+      NsiLine line = this.lines.get(i);
+      if (line.is("StrCpy") && line.getOperands().size() == 2 && line.getOperand(0).startsWith("$") && line.getOperand(0).equals(line.getOperand(1)))
+      {
+        this.lines.set(i, removed);
+        changed = true;
+      }
+    }
+    return this.compact() || changed;
+  }
+
+  /**
+   * Removes a Push followed by a Pop of the same value and replaces a Push
+   * followed by a Pop of another variable with a StrCpy.
+   * @return <code>true</code> if any instructions were changed
+   */
+  private boolean removePushPops()
+  {
+    boolean changed = false;
+    for (int i = 0; i < this.lines.size() - 1; i++)
+    {
+      NsiLine push = this.lines.get(i);
+      NsiLine pop = this.lines.get(i + 1);
+      if (!push.is("Push") || push.getOperands().size() != 1 || !pop.is("Pop") || pop.getOperands().size() != 1)
+        continue;
+
+      if (push.getOperand(0).equals(pop.getOperand(0)))
+        this.lines.set(i, removed);
+      else
+        this.lines.set(i, NsiLine.instruction("StrCpy", pop.getOperand(0), push.getOperand(0)));
+      this.lines.set(i + 1, removed);
+      changed = true;
+    }
+    return this.compact() || changed;
+  }
+
+  /**
+   * Removes a Push and Pop that save and restore a variable if the variable
+   * isn't live after the Pop.
+   * @return <code>true</code> if any instructions were removed
+   */
+  private boolean removeDeadSaves()
+  {
+    if (this.liveness == null || this.liveness.isEverythingLive() || !Liveness.canAnalyse(this.lines))
+      return false;
+
+    this.indexLabels();
+    BitSet[] live = this.liveness.analyse(this.lines);
+
+    boolean changed = false;
+    for (int i = 0; i < this.lines.size(); i++)
+    {
+      NsiLine push = this.lines.get(i);
+      if (!push.is("Push") || push.getOperands().size() != 1 || !Liveness.isVariable(push.getOperand(0)))
+        continue;
+
+      int restore = this.findRestore(i);
+      if (restore != -1 && !live[restore].get(this.liveness.getIndex(push.getOperand(0))))
+      {
+        this.lines.set(i, removed);
+        this.lines.set(restore, removed);
+        changed = true;
+      }
+    }
+    return this.compact() || changed;
+  }
+
+  /**
+   * Removes a Push and Pop that save and restore a variable if nothing in
+   * between can change the variable.
+   * @return <code>true</code> if any instructions were removed
+   */
+  private boolean removeUnchangedSaves()
+  {
+    if (this.clobbers == null)
+      return false;
+
+    this.indexLabels();
+    boolean changed = false;
+    for (int i = 0; i < this.lines.size(); i++)
+    {
+      NsiLine push = this.lines.get(i);
+      if (!push.is("Push") || push.getOperands().size() != 1 || !Liveness.isVariable(push.getOperand(0)))
+        continue;
+
+      int restore = this.findRestore(i);
+      if (restore != -1 && !this.mayChange(i + 1, restore, push.getOperand(0)))
+      {
+        this.lines.set(i, removed);
+        this.lines.set(restore, removed);
+        changed = true;
+      }
+    }
+    return this.compact() || changed;
+  }
+
+  /**
+   * Determines if a variable may be changed by a range of lines, either by
+   * the lines referring to it or by the functions they call.
+   * @param start the index of the first line
+   * @param end the index after the last line
+   * @param var the variable
+   * @return <code>true</code> if the variable may be changed
+   */
+  private boolean mayChange(int start, int end, String var)
+  {
+    String name = var.toLowerCase();
+    for (int i = start; i < end; i++)
+    {
+      NsiLine line = this.lines.get(i);
+      if (line.is("Call"))
+      {
+        HashSet<String> vars = this.clobbers.get(line.getOperand(0).toLowerCase());
+        if (vars == null)
+          return true;
+        for (String clobbered : vars)
+          if (clobbered.toLowerCase().startsWith(name))
+            return true;
+      }
+
+      for (String operand : line.getOperands())
+        for (int offset : RegisterAllocator.findReferences(operand))
+          if (RegisterAllocator.getReference(operand, offset).toLowerCase().startsWith(name))
+            return true;
+    }
+    return false;
+  }
+
+  /**
+   * Finds the Pop that restores the variable saved by a Push. The code in
+   * between must leave the stack as it found it and must not be jumped into
+   * or out of.
+   * @param index the index of the Push
+   * @return the index of the Pop or -1 if there isn't one
+   */
+  private int findRestore(int index)
+  {
+    String var = this.lines.get(index).getOperand(0);
+    int depth = 0;
+    int restore = -1;
+    for (int i = index + 1; i < this.lines.size() && restore == -1; i++)
+    {
+      NsiLine line = this.lines.get(i);
+      if (line.getKind() != NsiLine.Kind.Instruction)
+        continue;
+
+      if (line.is("Push"))
+      {
+        depth++;
+      }
+      else if (line.is("Pop"))
+      {
+        if (depth == 0)
+        {
+          if (!line.getOperand(0).equals(var))
+            return -1;
+          restore = i;
+        }
+        depth--;
+      }
+      else if (line.is("Call"))
+      {
+        int[] signature = this.callSignatures.get(line.getOperand(0).toLowerCase());
+        if (signature == null || depth < signature[0])
+          return -1;
+        depth += signature[1] - signature[0];
+      }
+      else if (line.is("Return") || line.is("Abort") || line.is("Quit") || line.is("Exch") || line.is("CallInstDLL") || line.getOpcode().contains("::"))
+      {
+        return -1;
+      }
+    }
+    if (restore == -1)
+      return -1;
+
+    // Jumps out of or into the saved code.
+    for (int i = 0; i < this.lines.size(); i++)
+    {
+      boolean inside = i > index && i < restore;
+      for (int jump : this.lines.get(i).getJumpOperands())
+      {
+        Integer label = this.labels.get(this.lines.get(i).getOperand(jump));
+        if (label != null && (label.intValue() > index && label.intValue() < restore) != inside)
+          return -1;
+      }
+    }
+    return restore;
+  }
+
+  /**
+   * Replaces IntOps and comparisons of constants with their results. Gotos
+   * to the next instruction that this leaves are removed.
+   * @return <code>true</code> if any instructions were changed
+   */
+  private boolean foldConstants()
+  {
+    if (!new ConstantFolder(this.clobbers).fold(this.lines))
+      return false;
+
+    for (int i = 0; i < this.lines.size(); i++)
+    {
+      NsiLine line = this.lines.get(i);
+      if (line.is("Goto") && line.getOperands().size() == 1 && NsiLine.isNext(line.getOperand(0)))
+        this.lines.set(i, removed);
+    }
+    this.compact();
+    return true;
+  }
+
+  /**
+   * Threads jumps to where a constant such as true or false is stored in a
+   * variable that is then only compared. The jump goes straight to where the
+   * comparison would jump to if the variable isn't read there, so a Boolean
+   * that is stored and then tested by an if statement becomes a single
+   * conditional jump.
+   * @return <code>true</code> if any jumps were changed
+   */
+  private boolean threadStoredTests()
+  {
+    if (this.liveness == null || this.liveness.isEverythingLive() || !Liveness.canAnalyse(this.lines))
+      return false;
+
+    this.indexLabels();
+    BitSet[] live = null;
+
+    boolean changed = false;
+    for (int i = 0; i < this.lines.size(); i++)
+    {
+      NsiLine line = this.lines.get(i);
+      for (int index : line.getJumpOperands())
+      {
+        String target = line.getOperand(index);
+        Integer start = NsiLine.isNext(target) ? Integer.valueOf(i) : this.labels.get(target);
+        if (start == null)
+          continue;
+
+        // The stored constant and the comparison of it.
+        int store = this.nextInstruction(start.intValue());
+        if (store == -1 || !this.lines.get(store).is("StrCpy") || this.lines.get(store).getOperands().size() != 2)
+          continue;
+        String var = ConstantFolder.getVariable(this.lines.get(store).getOperand(0));
+        String value = ConstantFolder.getConstant(this.lines.get(store).getOperand(1), new HashMap<String, String>());
+        if (var == null || value == null || RegisterAllocator.isBuiltIn(var))
+          continue;
+        int test = this.followGotos(this.nextInstruction(store));
+        if (test == -1)
+          continue;
+
+        HashMap<String, String> known = new HashMap<String, String>();
+        known.put(var, value);
+        int jump = ConstantFolder.getJump(this.lines.get(test), known);
+        if (jump == -1)
+          continue;
+
+        String threaded = this.lines.get(test).getOperand(jump);
+        if (NsiLine.isNext(threaded))
+        {
+          if (test + 1 >= this.lines.size() || this.lines.get(test + 1).getKind() != NsiLine.Kind.Label)
+            continue;
+          threaded = this.lines.get(test + 1).getLabel();
+        }
+
+        if (live == null)
+          live = this.liveness.analyse(this.lines);
+        int label = this.labels.get(threaded).intValue();
+        if (live[label].get(this.liveness.getIndex(this.lines.get(store).getOperand(0))) || threaded.equals(target))
+          continue;
+
+        line.setOperand(index, threaded);
+        changed = true;
+      }
+    }
+    return changed;
+  }
+
+  /**
+   * Follows Gotos from an instruction.
+   * @param index the instruction index or -1
+   * @return the index of the first instruction that isn't a Goto to a label
+   * or -1 if there is none
+   */
+  private int followGotos(int index)
+  {
+    HashSet<Integer> visited = new HashSet<Integer>();
+    while (index != -1 && visited.add(Integer.valueOf(index)))
+    {
+      NsiLine line = this.lines.get(index);
+      if (!line.is("Goto") || line.getOperands().size() != 1 || !this.labels.containsKey(line.getOperand(0)))
+        return index;
+      index = this.nextInstruction(this.labels.get(line.getOperand(0)).intValue());
+    }
+    return -1;
+  }
+
+  /**
+   * Removes instructions that follow an unconditional jump up to the next
+   * label.
+   * @return <code>true</code> if any instructions were removed
+   */
+  private boolean removeDeadCode()
+  {
+    boolean changed = false;
+    for (int i = 0; i < this.lines.size(); i++)
+    {
+      if (!this.isUnconditional(this.lines.get(i)))
+        continue;
+
+      for (int j = i + 1; j < this.lines.size() && this.lines.get(j).getKind() != NsiLine.Kind.Label; j++)
+      {
+        if (this.lines.get(j).getKind() == NsiLine.Kind.Instruction)
+        {
+          this.lines.set(j, removed);
+          changed = true;
+        }
+      }
+    }
+    return this.compact() || changed;
+  }
+
+  /**
+   * Determines if an instruction never continues to the next instruction.
+   * @param line the instruction
+   * @return <code>true</code> if the instruction always jumps or returns
+   */
+  private boolean isUnconditional(NsiLine line)
+  {
+    if (line.is("Return"))
+      return true;
+    if (line.is("Goto"))
+      return line.getOperands().size() == 1 && !NsiLine.isNext(line.getOperand(0));
+    if (line.getMinimumOperands() != -1)
+    {
+      for (int index : line.getJumpOperands())
+        if (NsiLine.isNext(line.getOperand(index)))
+          return false;
+      return true;
+    }
+    return false;
+  }
+
+  /**
+   * Removes generated labels that are no longer referenced.
+   * @return <code>true</code> if any labels were removed
+   */
+  private boolean removeUnusedLabels()
+  {
+    // Labels can also be referenced by instructions such as GetLabelAddress
+    // and Call :label, so every operand counts as a reference.
+    HashSet<String> referenced = new HashSet<String>();
+    for (NsiLine line : this.lines)
+    {
+      for (String operand : line.getOperands())
+      {
+        referenced.add(operand);
+        if (operand.startsWith(":"))
+          referenced.add(operand.substring(1));
+      }
+    }
+
+    boolean changed = false;
+    for (int i = 0; i < this.lines.size(); i++)
+    {
+      NsiLine line = this.lines.get(i);
+      if (line.getKind() == NsiLine.Kind.Label && generatedLabel.matcher(line.getLabel()).matches() && !referenced.contains(line.getLabel()))
+      {
+        this.lines.set(i, removed);
+        changed = true;
+      }
+    }
+    return this.compact() || changed;
+  }
+
+  /**
+   * Removes the lines that were replaced by {@link #removed}.
+   * @return <code>true</code> if any lines were removed
+   */
+  private boolean compact()
+  {
+    ArrayList<NsiLine> compacted = new ArrayList<NsiLine>(this.lines.size());
+    for (NsiLine line : this.lines)
+      if (line != removed)
+        compacted.add(line);
+
+    boolean changed = compacted.size() != this.lines.size();
+    this.lines = compacted;
+    return changed;
+  }
+}
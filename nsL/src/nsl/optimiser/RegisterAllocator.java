@@ -0,0 +1,856 @@
+/*
+ * RegisterAllocator.java
+ */
+
+package nsl.optimiser;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+/**
+ * Reallocates the registers and variables of a function or section. The
+ * assembler hands out the first free register for each temporary value, so a
+ * function ends up touching more registers than it needs to and every caller
+ * of it has to save them. Here the values held in each variable are split
+ * into live ranges (webs of the sets that reach the same reads) and the live
+ * ranges are coloured with as few of the variables already in the body as
+ * will do, registers first. Live ranges that carry values into or out of the
+ * body, such as those read by other functions, keep their variables.
+ * @author Stuart
+ */
+public class RegisterAllocator
+{
+  private static final Pattern register = Pattern.compile("\\$R?[0-9]");
+
+  /**
+   * The variables that NSIS itself defines, which are always referred to by
+   * their whole names.
+   */
+  private static final HashSet<String> builtIn = new HashSet<String>(Arrays.asList(
+    "$CMDLINE", "$INSTDIR", "$OUTDIR", "$EXEDIR", "$EXEFILE", "$EXEPATH", "$LANGUAGE", "$PLUGINSDIR", "$HWNDPARENT"));
+
+  private final Liveness liveness;
+  private final Map<String, HashSet<String>> clobbers;
+  private final Set<String> userVars;
+
+  private List<NsiLine> body;
+  private ArrayList<String> vars;
+  private HashMap<String, Integer> varIndexes;
+  private ArrayList<Occurrence> occurrences;
+  private ArrayList<ArrayList<Occurrence>> lineOccurrences;
+  private BitSet[] lineUses;
+  private BitSet[] lineKills;
+  private BitSet exitLive;
+  private BitSet reachable;
+  private BitSet[] varDefs;
+  private int defCount;
+  private int[] parents;
+
+  /**
+   * Class constructor.
+   * @param liveness the variable liveness of the whole script
+   * @param clobbers the variables that each function and the functions it
+   * calls may set, keyed by lower case function name; functions that aren't
+   * in the map may set anything
+   * @param userVars the user defined variables, which may be reallocated as
+   * well as the registers
+   */
+  public RegisterAllocator(Liveness liveness, Map<String, HashSet<String>> clobbers, Set<String> userVars)
+  {
+    this.liveness = liveness;
+    this.clobbers = clobbers;
+    this.userVars = userVars;
+  }
+
+  /**
+   * Gets the variables that each function and the functions it calls may set.
+   * The variables of a function are taken to be all the variables it refers
+   * to. Functions that call plug-ins or functions that aren't known are left
+   * out.
+   * @param functions the function bodies keyed by lower case function name
+   * @return the variables keyed by lower case function name
+   */
+  public static HashMap<String, HashSet<String>> getClobbers(Map<String, List<NsiLine>> functions)
+  {
+    HashMap<String, HashSet<String>> clobbers = new HashMap<String, HashSet<String>>();
+    HashMap<String, HashSet<String>> calls = new HashMap<String, HashSet<String>>();
+    for (Map.Entry<String, List<NsiLine>> function : functions.entrySet())
+    {
+      HashSet<String> vars = new HashSet<String>();
+      HashSet<String> called = new HashSet<String>();
+      boolean known = Liveness.canAnalyse(function.getValue());
+      for (NsiLine line : function.getValue())
+      {
+        if (!known)
+          break;
+        if (line.is("CallInstDLL") || line.getOpcode().contains("::"))
+          known = false;
+        else if (line.is("Call"))
+          called.add(line.getOperand(0).toLowerCase());
+        for (String operand : line.getOperands())
+          for (int offset : findReferences(operand))
+            vars.add(getReference(operand, offset));
+      }
+      if (known)
+      {
+        clobbers.put(function.getKey(), vars);
+        calls.put(function.getKey(), called);
+      }
+    }
+
+    boolean changed = true;
+    while (changed)
+    {
+      changed = false;
+      for (Map.Entry<String, HashSet<String>> function : calls.entrySet())
+      {
+        HashSet<String> vars = clobbers.get(function.getKey());
+        if (vars == null)
+          continue;
+        for (String call : function.getValue())
+        {
+          HashSet<String> called = clobbers.get(call);
+          if (called == null)
+          {
+            clobbers.remove(function.getKey());
+            changed = true;
+            break;
+          }
+          if (vars != called && vars.addAll(called))
+            changed = true;
+        }
+      }
+    }
+    return clobbers;
+  }
+
+  /**
+   * Finds where the variables are referred to in an operand.
+   * @param operand the operand
+   * @return the offsets of the dollar signs of the references
+   */
+  static ArrayList<Integer> findReferences(String operand)
+  {
+    ArrayList<Integer> references = new ArrayList<Integer>();
+    int i = operand.indexOf('$');
+    while (i != -1 && i < operand.length() - 1)
+    {
+      char next = operand.charAt(i + 1);
+      if (next == '$' || next == '\\')
+      {
+        i += 2;
+      }
+      else
+      {
+        int end = i + 1;
+        while (end < operand.length() && Liveness.isVariableChar(operand.charAt(end)))
+          end++;
+        if (end > i + 1)
+          references.add(Integer.valueOf(i));
+        i = end;
+      }
+      i = operand.indexOf('$', i);
+    }
+    return references;
+  }
+
+  /**
+   * Gets the variable referred to at an offset of an operand.
+   * @param operand the operand
+   * @param offset the offset of the dollar sign
+   * @return the variable
+   */
+  static String getReference(String operand, int offset)
+  {
+    int end = offset + 1;
+    while (end < operand.length() && Liveness.isVariableChar(operand.charAt(end)))
+      end++;
+    return operand.substring(offset, end);
+  }
+
+  /**
+   * Reallocates the variables of a function or section body.
+   * @param body the function or section body
+   * @return the reallocated body or the given body if nothing changed or
+   * the body can't be analysed
+   */
+  public List<NsiLine> allocate(List<NsiLine> body)
+  {
+    if (this.liveness == null || this.liveness.isEverythingLive() || !Liveness.canAnalyse(body))
+      return body;
+
+    this.body = body;
+    this.findVars();
+    if (this.vars.isEmpty())
+      return body;
+
+    this.findOccurrences();
+    ArrayList<int[]> flow = this.getFlow();
+    BitSet[] reachingIn = this.getReachingDefinitions(flow);
+    this.joinWebs(reachingIn, flow);
+    BitSet[] liveOut = this.getLiveOut(flow);
+
+    int[] colours = this.colour(reachingIn, liveOut);
+    if (colours == null)
+      return body;
+    return this.rewrite(colours);
+  }
+
+  /**
+   * Determines if a variable is one that NSIS itself defines. Some of these,
+   * such as $OUTDIR, are set by instructions that don't refer to them.
+   * @param var the variable
+   * @return <code>true</code> if the variable is defined by NSIS
+   */
+  static boolean isBuiltIn(String var)
+  {
+    return builtIn.contains(var.toUpperCase());
+  }
+
+  /**
+   * Finds the variables of the body that can be reallocated, registers first
+   * and then user variables in the order that they are first referred to.
+   * Variables whose names start the names of other variables referred to are
+   * left alone, as a new name could run into what follows.
+   */
+  private void findVars()
+  {
+    ArrayList<String> registers = new ArrayList<String>();
+    ArrayList<String> others = new ArrayList<String>();
+    HashSet<String> clashes = new HashSet<String>();
+    for (NsiLine line : this.body)
+    {
+      for (String operand : line.getOperands())
+      {
+        for (int offset : findReferences(operand))
+        {
+          String var = getReference(operand, offset);
+          if (register.matcher(var).matches())
+          {
+            if (!registers.contains(var))
+              registers.add(var);
+          }
+          else if (this.userVars.contains(var))
+          {
+            if (!others.contains(var))
+              others.add(var);
+          }
+          else if (!builtIn.contains(var))
+          {
+            clashes.add(var.toLowerCase());
+          }
+        }
+      }
+    }
+
+    this.vars = new ArrayList<String>();
+    for (int i = 0; i < 20; i++)
+    {
+      String var = i < 10 ? "$" + i : "$R" + (i - 10);
+      if (registers.contains(var))
+        this.vars.add(var);
+    }
+    this.vars.addAll(others);
+
+    for (String clash : clashes)
+      for (int i = this.vars.size() - 1; i >= 0; i--)
+        if (clash.startsWith(this.vars.get(i).toLowerCase()))
+          this.vars.remove(i);
+
+    this.varIndexes = new HashMap<String, Integer>();
+    for (int i = 0; i < this.vars.size(); i++)
+      this.varIndexes.put(this.vars.get(i), Integer.valueOf(i));
+  }
+
+  /**
+   * Finds where each variable is read and set. Every variable is set on
+   * entry, and function and plug-in calls set and read variables without
+   * referring to them. None of these can be renamed.
+   */
+  private void findOccurrences()
+  {
+    int size = this.body.size();
+    int count = this.vars.size();
+    this.occurrences = new ArrayList<Occurrence>();
+    this.lineOccurrences = new ArrayList<ArrayList<Occurrence>>(size);
+    this.lineUses = new BitSet[size];
+    this.lineKills = new BitSet[size];
+    this.varDefs = new BitSet[count];
+    this.defCount = 0;
+    for (int var = 0; var < count; var++)
+    {
+      this.varDefs[var] = new BitSet();
+      this.addDef(new Occurrence(-1, -1, var, false, true, true));
+    }
+
+    this.exitLive = new BitSet();
+    for (int var = 0; var < count; var++)
+      if (this.liveness.isLiveOnExit(this.vars.get(var)))
+        this.exitLive.set(var);
+
+    for (int i = 0; i < size; i++)
+    {
+      NsiLine line = this.body.get(i);
+      this.lineOccurrences.add(new ArrayList<Occurrence>());
+      this.lineUses[i] = new BitSet();
+      this.lineKills[i] = new BitSet();
+      if (line.getKind() != NsiLine.Kind.Instruction)
+        continue;
+
+      HashSet<String> clobbered = null;
+      boolean call = line.is("Call") || line.is("CallInstDLL") || line.getOpcode().contains("::");
+      if (line.is("Call") && line.getOperands().size() == 1 && this.clobbers != null)
+        clobbered = this.clobbers.get(line.getOperand(0).toLowerCase());
+
+      // What a called function reads and sets.
+      if (call)
+      {
+        for (int var = 0; var < count; var++)
+        {
+          if (clobbered == null || this.liveness.isGlobal(this.vars.get(var)))
+            this.addOccurrence(i, new Occurrence(-1, -1, var, true, false, true));
+          if (clobbered == null || clobbered.contains(this.vars.get(var)))
+            this.addOccurrence(i, new Occurrence(-1, -1, var, false, true, true));
+        }
+      }
+
+      HashSet<Integer> jumps = new HashSet<Integer>();
+      for (int index : line.getJumpOperands())
+        jumps.add(Integer.valueOf(index));
+
+      List<String> operands = line.getOperands();
+      boolean defines = line.is("StrCpy") || line.is("IntOp") || line.is("IntFmt") || line.is("StrLen") || line.is("Pop");
+      boolean reads = line.is("Push") || line.is("DetailPrint") || line.isComparison() || line.is("MessageBox");
+      for (int j = 0; j < operands.size(); j++)
+      {
+        if (jumps.contains(Integer.valueOf(j)))
+          continue;
+
+        String operand = operands.get(j);
+        for (int offset : findReferences(operand))
+        {
+          Integer var = this.varIndexes.get(getReference(operand, offset));
+          if (var == null)
+            continue;
+
+          // Instructions other than the ones known to only read or to set
+          // their first operand can set any variable that is a whole operand.
+          int length = getReference(operand, offset).length();
+          boolean whole = offset == 0 && operand.length() == length
+                       || offset == 1 && operand.length() == length + 2 && operand.charAt(0) == operand.charAt(length + 1);
+          if (whole && j == 0 && defines)
+            this.addOccurrence(i, new Occurrence(j, offset, var.intValue(), false, true, false));
+          else if (whole && !reads && !defines)
+            this.addOccurrence(i, new Occurrence(j, offset, var.intValue(), true, true, false));
+          else
+            this.addOccurrence(i, new Occurrence(j, offset, var.intValue(), true, false, false));
+        }
+      }
+    }
+  }
+
+  /**
+   * Adds a read or set of a variable on a line.
+   * @param line the line index
+   * @param occurrence the read or set
+   */
+  private void addOccurrence(int line, Occurrence occurrence)
+  {
+    this.lineOccurrences.get(line).add(occurrence);
+    if (occurrence.use)
+      this.lineUses[line].set(occurrence.var);
+    if (occurrence.def)
+    {
+      this.addDef(occurrence);
+      if (!occurrence.use && !occurrence.pinned)
+        this.lineKills[line].set(occurrence.var);
+    }
+  }
+
+  /**
+   * Numbers a set of a variable.
+   * @param occurrence the set
+   */
+  private void addDef(Occurrence occurrence)
+  {
+    occurrence.defIndex = this.defCount++;
+    this.varDefs[occurrence.var].set(occurrence.defIndex);
+    this.occurrences.add(occurrence);
+  }
+
+  /**
+   * Works out where each line can go next. -1 is the end of the body.
+   * @return the indexes of the lines that can follow each line
+   */
+  private ArrayList<int[]> getFlow()
+  {
+    int size = this.body.size();
+    HashMap<String, Integer> labels = new HashMap<String, Integer>();
+    for (int i = 0; i < size; i++)
+      if (this.body.get(i).getKind() == NsiLine.Kind.Label)
+        labels.put(this.body.get(i).getLabel(), Integer.valueOf(i));
+
+    ArrayList<int[]> flow = new ArrayList<int[]>(size);
+    for (int i = 0; i < size; i++)
+    {
+      NsiLine line = this.body.get(i);
+      int next = i + 1 < size ? i + 1 : -1;
+      HashSet<Integer> targets = new HashSet<Integer>();
+      if (line.is("Return") || line.is("Quit") || line.is("Abort"))
+        targets.add(Integer.valueOf(-1));
+      if (!line.is("Return") && !line.is("Quit"))
+      {
+        if (!line.is("Goto"))
+          targets.add(Integer.valueOf(next));
+        for (int index : line.getJumpOperands())
+        {
+          String target = line.getOperand(index);
+          targets.add(NsiLine.isNext(target) ? Integer.valueOf(next) : labels.get(target));
+        }
+      }
+
+      int[] successors = new int[targets.size()];
+      int j = 0;
+      for (Integer target : targets)
+        successors[j++] = target.intValue();
+      flow.add(successors);
+    }
+    return flow;
+  }
+
+  /**
+   * Works out which sets of the variables can reach each line. Lines that
+   * can't be reached are left out.
+   * @param flow where each line can go next
+   * @return the sets that reach the start of each line
+   */
+  private BitSet[] getReachingDefinitions(ArrayList<int[]> flow)
+  {
+    int size = this.body.size();
+    this.reachable = new BitSet();
+    ArrayList<Integer> pending = new ArrayList<Integer>();
+    pending.add(Integer.valueOf(0));
+    this.reachable.set(0);
+    while (!pending.isEmpty())
+    {
+      int line = pending.remove(pending.size() - 1).intValue();
+      for (int successor : flow.get(line))
+      {
+        if (successor != -1 && !this.reachable.get(successor))
+        {
+          this.reachable.set(successor);
+          pending.add(Integer.valueOf(successor));
+        }
+      }
+    }
+
+    BitSet[] in = new BitSet[size];
+    for (int i = 0; i < size; i++)
+      in[i] = new BitSet();
+    for (int var = 0; var < this.vars.size(); var++)
+      in[0].set(var);
+
+    boolean changed = true;
+    while (changed)
+    {
+      changed = false;
+      for (int i = this.reachable.nextSetBit(0); i >= 0; i = this.reachable.nextSetBit(i + 1))
+      {
+        BitSet out = this.getReachingOut(i, in[i]);
+        for (int successor : flow.get(i))
+        {
+          if (successor == -1)
+            continue;
+          BitSet before = (BitSet)in[successor].clone();
+          in[successor].or(out);
+          if (!before.equals(in[successor]))
+            changed = true;
+        }
+      }
+    }
+    return in;
+  }
+
+  /**
+   * Gets the sets of the variables that reach the end of a line.
+   * @param line the line index
+   * @param in the sets that reach the start of the line
+   * @return the sets that reach the end of the line
+   */
+  private BitSet getReachingOut(int line, BitSet in)
+  {
+    BitSet out = (BitSet)in.clone();
+    for (Occurrence occurrence : this.lineOccurrences.get(line))
+      if (occurrence.def && this.lineKills[line].get(occurrence.var))
+        out.andNot(this.varDefs[occurrence.var]);
+    for (Occurrence occurrence : this.lineOccurrences.get(line))
+      if (occurrence.def)
+        out.set(occurrence.defIndex);
+    return out;
+  }
+
+  /**
+   * Joins the sets of each variable that reach the same reads into webs.
+   * Webs that are set on entry, read or set by a call or read on exit are
+   * pinned to their variables.
+   * @param reachingIn the sets that reach the start of each line
+   * @param flow where each line can go next
+   */
+  private void joinWebs(BitSet[] reachingIn, ArrayList<int[]> flow)
+  {
+    this.parents = new int[this.defCount];
+    for (int i = 0; i < this.defCount; i++)
+      this.parents[i] = i;
+
+    ArrayList<Integer> pins = new ArrayList<Integer>();
+    for (int i = this.reachable.nextSetBit(0); i >= 0; i = this.reachable.nextSetBit(i + 1))
+    {
+      for (Occurrence occurrence : this.lineOccurrences.get(i))
+      {
+        if (!occurrence.use)
+          continue;
+        int first = this.join(reachingIn[i], occurrence.var);
+        if (occurrence.def)
+          this.union(first, occurrence.defIndex);
+        if (occurrence.pinned)
+          pins.add(Integer.valueOf(first));
+        occurrence.web = first;
+      }
+
+      boolean exits = false;
+      for (int successor : flow.get(i))
+        if (successor == -1)
+          exits = true;
+      if (exits)
+      {
+        BitSet out = this.getReachingOut(i, reachingIn[i]);
+        for (int var = this.exitLive.nextSetBit(0); var >= 0; var = this.exitLive.nextSetBit(var + 1))
+          pins.add(Integer.valueOf(this.join(out, var)));
+      }
+    }
+
+    for (Occurrence occurrence : this.occurrences)
+      if (occurrence.pinned)
+        pins.add(Integer.valueOf(occurrence.defIndex));
+    for (Integer pin : pins)
+      this.occurrences.get(this.find(pin.intValue())).pinned = true;
+  }
+
+  /**
+   * Joins the sets of a variable that reach a point into one web.
+   * @param reaching the sets that reach the point
+   * @param var the variable index
+   * @return a set in the web
+   */
+  private int join(BitSet reaching, int var)
+  {
+    BitSet defs = (BitSet)reaching.clone();
+    defs.and(this.varDefs[var]);
+    int first = defs.nextSetBit(0);
+    for (int def = defs.nextSetBit(first + 1); def >= 0; def = defs.nextSetBit(def + 1))
+      this.union(first, def);
+    return first;
+  }
+
+  /**
+   * Finds the set that stands for the web of a set.
+   * @param def the set
+   * @return the set that stands for its web
+   */
+  private int find(int def)
+  {
+    while (this.parents[def] != def)
+    {
+      this.parents[def] = this.parents[this.parents[def]];
+      def = this.parents[def];
+    }
+    return def;
+  }
+
+  /**
+   * Joins the webs of two sets. The set that stands for the joined web is
+   * the one that was numbered first, so the entry sets stand for their webs.
+   * @param a the first set
+   * @param b the second set
+   */
+  private void union(int a, int b)
+  {
+    int rootA = this.find(a);
+    int rootB = this.find(b);
+    if (rootA < rootB)
+      this.parents[rootB] = rootA;
+    else if (rootB < rootA)
+      this.parents[rootA] = rootB;
+  }
+
+  /**
+   * Works out which variables are live after each line.
+   * @param flow where each line can go next
+   * @return the live variables after each line
+   */
+  private BitSet[] getLiveOut(ArrayList<int[]> flow)
+  {
+    int size = this.body.size();
+    BitSet[] liveIn = new BitSet[size];
+    BitSet[] liveOut = new BitSet[size];
+    for (int i = 0; i < size; i++)
+    {
+      liveIn[i] = new BitSet();
+      liveOut[i] = new BitSet();
+    }
+
+    boolean changed = true;
+    while (changed)
+    {
+      changed = false;
+      for (int i = size - 1; i >= 0; i--)
+      {
+        BitSet out = new BitSet();
+        for (int successor : flow.get(i))
+          out.or(successor == -1 ? this.exitLive : liveIn[successor]);
+
+        BitSet inSet = (BitSet)out.clone();
+        inSet.andNot(this.lineKills[i]);
+        inSet.or(this.lineUses[i]);
+
+        liveOut[i] = out;
+        if (!inSet.equals(liveIn[i]))
+        {
+          liveIn[i] = inSet;
+          changed = true;
+        }
+      }
+    }
+    return liveOut;
+  }
+
+  /**
+   * Colours the webs with the variables. The webs are coloured in the order
+   * that they are first set, each with the variable of a web that it is
+   * copied to or from if it can be, or otherwise with the first variable
+   * already in use that it can be.
+   * @param reachingIn the sets that reach the start of each line
+   * @param liveOut the live variables after each line
+   * @return the variable index of each web keyed by the set that stands for
+   * it or <code>null</code> if the webs can't be coloured
+   */
+  private int[] colour(BitSet[] reachingIn, BitSet[] liveOut)
+  {
+    int count = this.vars.size();
+    HashMap<Integer, HashSet<Integer>> edges = new HashMap<Integer, HashSet<Integer>>();
+    HashMap<Integer, HashSet<Integer>> hints = new HashMap<Integer, HashSet<Integer>>();
+    HashMap<Integer, HashSet<Integer>> pushed = new HashMap<Integer, HashSet<Integer>>();
+
+    // Webs interfere where one is set while the other is live.
+    for (int i = this.reachable.nextSetBit(0); i >= 0; i = this.reachable.nextSetBit(i + 1))
+    {
+      NsiLine line = this.body.get(i);
+      BitSet out = this.getReachingOut(i, reachingIn[i]);
+      int moved = -1;
+      if (line.is("StrCpy") && line.getOperands().size() == 2 && this.varIndexes.containsKey(line.getOperand(1)))
+        moved = this.varIndexes.get(line.getOperand(1)).intValue();
+
+      for (Occurrence occurrence : this.lineOccurrences.get(i))
+      {
+        if (!occurrence.def)
+          continue;
+        int web = this.find(occurrence.defIndex);
+        for (int var = liveOut[i].nextSetBit(0); var >= 0; var = liveOut[i].nextSetBit(var + 1))
+        {
+          BitSet defs = (BitSet)out.clone();
+          defs.and(this.varDefs[var]);
+          int other = this.find(defs.nextSetBit(0));
+          if (other == web)
+            continue;
+          if (var == moved && occurrence.operand == 0)
+          {
+            addTo(hints, web, other);
+            addTo(hints, other, web);
+          }
+          else
+          {
+            addTo(edges, web, other);
+            addTo(edges, other, web);
+          }
+        }
+        if (occurrence.operand == 0 && moved != -1 && !liveOut[i].get(moved))
+        {
+          int other = this.find(this.join(reachingIn[i], moved));
+          addTo(hints, web, other);
+          addTo(hints, other, web);
+        }
+      }
+
+      // Values that are pushed and later popped back into the same variable
+      // are best kept in the same variable.
+      if ((line.is("Push") || line.is("Pop")) && line.getOperands().size() == 1 && this.varIndexes.containsKey(line.getOperand(0)))
+      {
+        int var = this.varIndexes.get(line.getOperand(0)).intValue();
+        for (Occurrence occurrence : this.lineOccurrences.get(i))
+          if (occurrence.operand == 0)
+            addTo(pushed, Integer.valueOf(var), this.find(occurrence.def ? occurrence.defIndex : occurrence.web));
+      }
+    }
+    for (HashSet<Integer> webs : pushed.values())
+      for (Integer web : webs)
+        for (Integer other : webs)
+          if (!web.equals(other))
+            addTo(hints, web.intValue(), other.intValue());
+
+    // The webs in the order they're first set or read.
+    int[] colours = new int[this.defCount];
+    ArrayList<Integer> order = new ArrayList<Integer>();
+    BitSet ordered = new BitSet();
+    BitSet inUse = new BitSet();
+    for (int def = 0; def < this.defCount; def++)
+    {
+      colours[def] = -1;
+      if (this.find(def) == def && this.occurrences.get(def).pinned)
+        colours[def] = this.occurrences.get(def).var;
+    }
+    for (int i = this.reachable.nextSetBit(0); i >= 0; i = this.reachable.nextSetBit(i + 1))
+    {
+      for (Occurrence occurrence : this.lineOccurrences.get(i))
+      {
+        if (occurrence.operand == -1)
+          continue;
+        int web = this.find(occurrence.def ? occurrence.defIndex : occurrence.web);
+        if (colours[web] == -1 && !ordered.get(web))
+        {
+          ordered.set(web);
+          order.add(Integer.valueOf(web));
+        }
+        else if (colours[web] != -1 && this.occurrences.get(web).pinned)
+          inUse.set(colours[web]);
+      }
+    }
+
+    for (Integer web : order)
+    {
+      BitSet forbidden = new BitSet();
+      HashSet<Integer> neighbours = edges.get(web);
+      if (neighbours != null)
+        for (Integer neighbour : neighbours)
+          if (colours[neighbour.intValue()] != -1)
+            forbidden.set(colours[neighbour.intValue()]);
+
+      int chosen = -1;
+      HashSet<Integer> partners = hints.get(web);
+      if (partners != null)
+        for (Integer partner : partners)
+          if (chosen == -1 && colours[partner.intValue()] != -1 && !forbidden.get(colours[partner.intValue()]))
+            chosen = colours[partner.intValue()];
+      for (int var = inUse.nextSetBit(0); chosen == -1 && var >= 0; var = inUse.nextSetBit(var + 1))
+        if (!forbidden.get(var))
+          chosen = var;
+      if (chosen == -1)
+        chosen = forbidden.nextClearBit(0);
+      if (chosen >= count)
+        return null;
+
+      colours[web.intValue()] = chosen;
+      inUse.set(chosen);
+    }
+    return colours;
+  }
+
+  /**
+   * Adds an edge to a graph.
+   * @param graph the graph
+   * @param from the web the edge is from
+   * @param to the web the edge is to
+   */
+  private static void addTo(HashMap<Integer, HashSet<Integer>> graph, int from, int to)
+  {
+    HashSet<Integer> set = graph.get(Integer.valueOf(from));
+    if (set == null)
+    {
+      set = new HashSet<Integer>();
+      graph.put(Integer.valueOf(from), set);
+    }
+    set.add(Integer.valueOf(to));
+  }
+
+  /**
+   * Renames the variables of the body to the colours of their webs.
+   * @param colours the variable index of each web
+   * @return the renamed body or the given body if nothing was renamed
+   */
+  private List<NsiLine> rewrite(int[] colours)
+  {
+    ArrayList<NsiLine> rewritten = null;
+    for (int i = 0; i < this.body.size(); i++)
+    {
+      NsiLine line = null;
+      ArrayList<Occurrence> lineOccurrences = this.lineOccurrences.get(i);
+      for (int k = lineOccurrences.size() - 1; k >= 0 && this.reachable.get(i); k--)
+      {
+        Occurrence occurrence = lineOccurrences.get(k);
+        if (occurrence.operand == -1)
+          continue;
+        int colour = colours[this.find(occurrence.def ? occurrence.defIndex : occurrence.web)];
+        if (colour == occurrence.var)
+          continue;
+
+        if (line == null)
+          line = this.body.get(i).copy();
+        String operand = line.getOperand(occurrence.operand);
+        String var = this.vars.get(occurrence.var);
+        line.setOperand(occurrence.operand, operand.substring(0, occurrence.offset) + this.vars.get(colour) + operand.substring(occurrence.offset + var.length()));
+      }
+
+      if (line != null && rewritten == null)
+      {
+        rewritten = new ArrayList<NsiLine>(this.body.size());
+        rewritten.addAll(this.body.subList(0, i));
+      }
+      if (rewritten != null)
+        rewritten.add(line != null ? line : this.body.get(i));
+    }
+    return rewritten == null ? this.body : rewritten;
+  }
+
+  /**
+   * A read or set of a variable.
+   */
+  private static class Occurrence
+  {
+    private final int operand;
+    private final int offset;
+    private final int var;
+    private final boolean use;
+    private final boolean def;
+    private boolean pinned;
+    private int defIndex;
+    private int web;
+
+    /**
+     * Class constructor.
+     * @param operand the operand index or -1 if the variable isn't referred
+     * to
+     * @param offset the offset of the reference in the operand
+     * @param var the variable index
+     * @param use whether the variable is read
+     * @param def whether the variable is set
+     * @param pinned whether the variable can't be renamed
+     */
+    public Occurrence(int operand, int offset, int var, boolean use, boolean def, boolean pinned)
+    {
+      this.operand = operand;
+      this.offset = offset;
+      this.var = var;
+      this.use = use;
+      this.def = def;
+      this.pinned = pinned;
+      this.defIndex = -1;
+      this.web = -1;
+    }
+  }
+}
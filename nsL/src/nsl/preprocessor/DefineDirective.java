@@ -20,9 +20,9 @@ public class DefineDirective extends Statement
    */
   public DefineDirective()
   {
-    int line = ScriptParser.tokenizer.lineno();
-    String name = ScriptParser.tokenizer.matchAWord("a constant name");
-    int valueLine = ScriptParser.tokenizer.lineno();
+    int line = ScriptParser.getTokenizer().lineno();
+    String name = ScriptParser.getTokenizer().matchAWord("a constant name");
+    int valueLine = ScriptParser.getTokenizer().lineno();
 
     // If the next token is on a new line then we can assume the constant has no
     // value associated with it.
@@ -6,6 +6,7 @@ package nsl.preprocessor;
 
 import java.util.HashMap;
 import java.util.Set;
+import nsl.CompilationContext;
 import nsl.expression.Expression;
 
 /**
@@ -17,15 +18,13 @@ public class DefineList
   private final HashMap<String, Expression> constants;
   private int count;
 
-  private static DefineList current = new DefineList();
-
   /**
    * Gets the current {@link DefineList}.
    * @return the current {@link DefineList}
    */
   public static DefineList getCurrent()
   {
-    return current;
+    return CompilationContext.getCurrent().getDefineList();
   }
 
   /**
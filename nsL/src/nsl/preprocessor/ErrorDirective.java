@@ -19,8 +19,8 @@ public class ErrorDirective extends Statement
    */
   public ErrorDirective()
   {
-    int line = ScriptParser.tokenizer.lineno();
-    String error = ScriptParser.tokenizer.matchAString();
+    int line = ScriptParser.getTokenizer().lineno();
+    String error = ScriptParser.getTokenizer().matchAString();
     if (error == null || (error = error.trim()).isEmpty())
       throw new NslException("An error occurred (no error message specified)", line);
     throw new NslException(error, line);
@@ -15,8 +15,6 @@ import nsl.statement.*;
  */
 public class IfDirective extends Statement
 {
-  private static boolean inIfDirective = false;
-
   private StatementList statementList;
   
   /**
@@ -28,7 +26,7 @@ public class IfDirective extends Statement
     
     while (true)
     {
-      int line = ScriptParser.tokenizer.lineno();
+      int line = ScriptParser.getTokenizer().lineno();
       
       Expression booleanExpression = Expression.matchComplex();
       if (booleanExpression instanceof AssembleExpression)
@@ -36,45 +34,29 @@ public class IfDirective extends Statement
 
       if (booleanExpression.getBooleanValue() == true && this.statementList == null)
       {
-        boolean inIfDirectiveOld = inIfDirective;
-        inIfDirective = true;
-        this.statementList = StatementList.match();
-        inIfDirective = inIfDirectiveOld;
+        this.statementList = matchBranch();
       }
       else
       {
-        do
-        {
-          if (ScriptParser.tokenizer.tokenIs("#endif") || ScriptParser.tokenizer.tokenIs("#else") || ScriptParser.tokenizer.tokenIs("#elseif"))
-            break;
-        }
-        while (ScriptParser.tokenizer.tokenNext());
+        skipBranch(false);
       }
 
-      if (ScriptParser.tokenizer.match("#elseif"))
+      if (ScriptParser.getTokenizer().match("#elseif"))
         continue;
 
-      if (ScriptParser.tokenizer.match("#else"))
+      if (ScriptParser.getTokenizer().match("#else"))
       {
         if (this.statementList == null)
         {
-          boolean inIfDirectiveOld = inIfDirective;
-          inIfDirective = true;
-          this.statementList = StatementList.match();
-          inIfDirective = inIfDirectiveOld;
+          this.statementList = matchBranch();
         }
         else
         {
-          do
-          {
-            if (ScriptParser.tokenizer.tokenIs("#endif"))
-              break;
-          }
-          while (ScriptParser.tokenizer.tokenNext());
+          skipBranch(true);
         }
       }
 
-      if (ScriptParser.tokenizer.match("#endif"))
+      if (ScriptParser.getTokenizer().match("#endif"))
         break;
 
       throw new NslException("\"#if\" missing matching \"#endif\"", line);
@@ -88,7 +70,34 @@ public class IfDirective extends Statement
    */
   public static boolean in()
   {
-    return inIfDirective;
+    return CompilationContext.getCurrent().getInIfDirective();
+  }
+
+  /**
+   * Skips a branch that isn't being taken.
+   * @param toEndif whether only an #endif directive ends the branch
+   */
+  private static void skipBranch(boolean toEndif)
+  {
+    // The end of an included script carries on into the script that
+    // included it.
+    while (!ScriptParser.getTokenizer().skipBranch(toEndif))
+      if (!ScriptParser.getTokenizer().tokenNext())
+        break;
+  }
+
+  /**
+   * Matches the statements of the branch being taken.
+   * @return the statements of the branch being taken
+   */
+  private static StatementList matchBranch()
+  {
+    CompilationContext context = CompilationContext.getCurrent();
+    boolean inIfDirectiveOld = context.getInIfDirective();
+    context.setInIfDirective(true);
+    StatementList statementList = StatementList.match();
+    context.setInIfDirective(inIfDirectiveOld);
+    return statementList;
   }
 
   /**
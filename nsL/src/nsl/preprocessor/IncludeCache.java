@@ -0,0 +1,137 @@
+/*
+ * IncludeCache.java
+ */
+
+package nsl.preprocessor;
+
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.ConcurrentHashMap;
+import nsl.*;
+
+/**
+ * Caches the tokens of included scripts in memory for the life of a compile
+ * server, so that an include library is not lexed again for every script sent
+ * to the server. Each file's tokens are kept with a hash of the contents they
+ * were lexed from, so a file that has changed is always lexed again, however
+ * its timestamp was set.
+ * @author Stuart
+ */
+public class IncludeCache
+{
+  private final ConcurrentHashMap<String, Entry> entries;
+
+  /**
+   * A cached token list and the hash of the text it was lexed from.
+   */
+  private static class Entry
+  {
+    private final String hash;
+    private final TokenList tokens;
+
+    private Entry(String hash, TokenList tokens)
+    {
+      this.hash = hash;
+      this.tokens = tokens;
+    }
+  }
+
+  /**
+   * Class constructor.
+   */
+  public IncludeCache()
+  {
+    this.entries = new ConcurrentHashMap<String, Entry>();
+  }
+
+  /**
+   * Gets the tokens of the given file, lexing it only if its contents have
+   * changed since it was last lexed.
+   * @param path the path of the file
+   * @param text the contents of the file if they have already been read or
+   * <code>null</code>
+   * @return the tokens of the file
+   * @throws IOException
+   */
+  public TokenList get(String path, String text) throws IOException
+  {
+    File file = new File(path);
+    String key = file.getCanonicalPath();
+    if (text == null)
+      text = readText(file);
+    String hash = hash(text);
+
+    Entry entry = this.entries.get(key);
+    if (entry != null && entry.hash.equals(hash))
+      return entry.tokens;
+
+    TokenList tokens = new TokenList(text);
+    this.entries.put(key, new Entry(hash, tokens));
+    return tokens;
+  }
+
+  /**
+   * Reads the whole of a file.
+   * @param file the file to read
+   * @return the contents of the file
+   * @throws IOException
+   */
+  private static String readText(File file) throws IOException
+  {
+    Reader reader = new FileReader(file);
+    try
+    {
+      StringBuilder text = new StringBuilder((int)Math.min(file.length(), Integer.MAX_VALUE));
+      char[] chars = new char[8192];
+      int read;
+      while ((read = reader.read(chars)) != -1)
+        text.append(chars, 0, read);
+      return text.toString();
+    }
+    finally
+    {
+      reader.close();
+    }
+  }
+
+  /**
+   * Hashes the given text.
+   * @param text the text to hash
+   * @return the hash as hexadecimal digits
+   */
+  static String hash(String text)
+  {
+    MessageDigest digest;
+    try
+    {
+      digest = MessageDigest.getInstance("SHA-1");
+    }
+    catch (NoSuchAlgorithmException ex)
+    {
+      throw new RuntimeException(ex);
+    }
+
+    byte[] bytes = new byte[8192];
+    int length = text.length();
+    for (int i = 0; i < length; )
+    {
+      int count = 0;
+      for (; count < bytes.length && i < length; i++)
+      {
+        char c = text.charAt(i);
+        bytes[count++] = (byte)(c >> 8);
+        bytes[count++] = (byte)c;
+      }
+      digest.update(bytes, 0, count);
+    }
+
+    StringBuilder hex = new StringBuilder();
+    for (byte b : digest.digest())
+      hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+    return hex.toString();
+  }
+}
@@ -4,9 +4,9 @@
 
 package nsl.preprocessor;
 
+import java.io.File;
 import java.io.FileReader;
 import java.io.IOException;
-import java.io.Reader;
 import nsl.*;
 import nsl.statement.Statement;
 import nsl.statement.StatementList;
@@ -21,34 +21,103 @@ public class IncludeDirective extends Statement
 
   /**
    * Class constructor.
+   * @param once whether the script is skipped if it has already been included
    */
-  public IncludeDirective()
+  public IncludeDirective(boolean once)
   {
-    if (!ScriptParser.tokenizer.tokenIsString())
+    if (!ScriptParser.getTokenizer().tokenIsString())
       throw new NslExpectedException("a file path to include");
 
-    String path = ScriptParser.tokenizer.sval;
-    Reader reader;
+    String path = ScriptParser.getTokenizer().sval;
+    Tokenizer tokenizer = null;
+    Statistics statistics = Statistics.getCurrent();
+    if (statistics != null)
+      statistics.enter(Statistics.Phase.IncludeLoading);
     try
     {
-      reader = new FileReader(path);
+      CompilationContext context = CompilationContext.getCurrent();
+      IncludedScripts includedScripts = context.getIncludedScripts();
+      String canonicalPath = new File(path).getCanonicalPath();
+      if (!includedScripts.canSkipPath(canonicalPath, once))
+      {
+        IncludeLoader includeLoader = context.getIncludeLoader();
+        String text = null;
+        if (includeLoader != null)
+        {
+          text = includeLoader.take(path);
+          if (text != null)
+            includeLoader.prefetch(text);
+        }
+        // The contents are only looked at the first time the script is
+        // included or for #include_once.
+        else if (once || !includedScripts.contains(canonicalPath))
+        {
+          text = readText(path);
+        }
+
+        if (text == null || !includedScripts.canSkipContents(canonicalPath, text, once))
+        {
+          IncludeCache includeCache = context.getIncludeCache();
+          if (includeCache != null)
+            tokenizer = new Tokenizer(includeCache.get(path, text), "included script \"" + path + "\"");
+          else if (text != null)
+            tokenizer = new Tokenizer(text, "included script \"" + path + "\"");
+          else
+            tokenizer = new Tokenizer(new FileReader(path), "included script \"" + path + "\"");
+        }
+      }
     }
     catch (IOException ex)
     {
       throw new NslException(ex.getMessage(), true);
     }
+    finally
+    {
+      if (statistics != null)
+        statistics.exit();
+    }
+
+    if (tokenizer == null)
+    {
+      this.statementList = null;
+      ScriptParser.getTokenizer().tokenNext();
+      return;
+    }
 
-    ScriptParser.pushTokenizer(new Tokenizer(reader, "included script \"" + path + "\""));
-    ScriptParser.tokenizer.setAutoPop(false);
-    this.statementList = StatementList.match();
+    ScriptParser.pushTokenizer(tokenizer);
+    ScriptParser.getTokenizer().setAutoPop(false);
+    this.statementList = StatementList.matchIncluded();
     ScriptParser.popTokenizer();
 
-    ScriptParser.tokenizer.tokenNext();
+    ScriptParser.getTokenizer().tokenNext();
   }
 
+  /**
+   * Reads the whole of an included script.
+   * @param path the path of the script
+   * @return the contents of the script or <code>null</code> if it could not
+   * be read, in which case opening it again gives the error
+   */
+  private static String readText(String path)
+  {
+    try
+    {
+      return IncludeLoader.read(path);
+    }
+    catch (IOException ex)
+    {
+      return null;
+    }
+  }
+
+  /**
+   * Assembles the source code.
+   * @throws IOException
+   */
   @Override
   public void assemble() throws IOException
   {
-    this.statementList.assemble();
+    if (this.statementList != null)
+      this.statementList.assemble();
   }
 }
@@ -0,0 +1,205 @@
+/*
+ * IncludeLoader.java
+ */
+
+package nsl.preprocessor;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import nsl.*;
+
+/**
+ * Reads included scripts ahead of the parser. When a script is read, the
+ * paths of the #include and #include_once directives in it are picked out of
+ * its text and the files are read and decoded on other threads, so that the
+ * parser finds them in memory when it reaches the directives rather than
+ * waiting on each one in turn. Scripts are still parsed one at a time in the
+ * order they are included. A file that can't be read ahead is opened in the
+ * usual way when it is reached so that any error is the same as without the
+ * loader.
+ * @author Stuart
+ */
+public class IncludeLoader
+{
+  private static final int threads = 8;
+  private static final ExecutorService executor = Executors.newFixedThreadPool(threads, new ThreadFactory()
+  {
+    public Thread newThread(Runnable runnable)
+    {
+      Thread thread = new Thread(runnable, "nsL include loader");
+      thread.setDaemon(true);
+      return thread;
+    }
+  });
+
+  private final HashMap<String, Future<String>> pending;
+
+  /**
+   * Class constructor.
+   */
+  public IncludeLoader()
+  {
+    this.pending = new HashMap<String, Future<String>>();
+  }
+
+  /**
+   * Gets the text of a script, waiting for it if it is being read ahead and
+   * reading it now if not.
+   * @param path the path of the script
+   * @return the text of the script or <code>null</code> if it could not be
+   * read
+   */
+  public String take(String path)
+  {
+    Future<String> future = this.pending.remove(path);
+    try
+    {
+      if (future == null)
+        return read(path);
+      return future.get();
+    }
+    catch (IOException ex)
+    {
+      return null;
+    }
+    catch (ExecutionException ex)
+    {
+      return null;
+    }
+    catch (InterruptedException ex)
+    {
+      Thread.currentThread().interrupt();
+      return null;
+    }
+  }
+
+  /**
+   * Determines if a script is being read ahead.
+   * @param path the path of the script
+   * @return <code>true</code> if the script is being read ahead
+   */
+  boolean isPending(String path)
+  {
+    return this.pending.containsKey(path);
+  }
+
+  /**
+   * Starts reading the scripts included by the given text, whether by
+   * #include or #include_once.
+   * @param text the text of a script
+   */
+  public void prefetch(String text)
+  {
+    int length = text.length();
+    int index = 0;
+    while ((index = text.indexOf("#include", index)) != -1)
+    {
+      int start = index;
+      index += 8;
+      if (text.startsWith("_once", index))
+        index += 5;
+
+      // The directive must be a whole word followed by a string.
+      if ((start > 0 && isWordChar(text.charAt(start - 1))) || (index < length && isWordChar(text.charAt(index))))
+        continue;
+      while (index < length && Character.isWhitespace(text.charAt(index)))
+        index++;
+      if (index == length)
+        break;
+      char quote = text.charAt(index);
+      if (quote != '"' && quote != '\'' && quote != '`')
+        continue;
+      int end = index + 1;
+      while (end < length && text.charAt(end) != '\r' && text.charAt(end) != '\n')
+        end++;
+
+      // The path is read the way the parser reads it, escape sequences and
+      // all.
+      final String path = readString(text.substring(index, end));
+      index = end;
+      if (path == null || path.length() == 0 || this.pending.containsKey(path))
+        continue;
+
+      this.pending.put(path, executor.submit(new Callable<String>()
+      {
+        public String call() throws IOException
+        {
+          return read(path);
+        }
+      }));
+    }
+  }
+
+  /**
+   * Reads the string at the start of the given text.
+   * @param text the text starting with a quote
+   * @return the string or <code>null</code> if it could not be read
+   */
+  private static String readString(String text)
+  {
+    try
+    {
+      Tokenizer tokenizer = new Tokenizer(text, null);
+      tokenizer.nextToken();
+      if (!tokenizer.tokenIsString())
+        return null;
+      return tokenizer.sval;
+    }
+    catch (IOException ex)
+    {
+      return null;
+    }
+    catch (NslException ex)
+    {
+      return null;
+    }
+  }
+
+  /**
+   * Determines if a character can be part of a word.
+   * @param c the character
+   * @return <code>true</code> if the character can be part of a word
+   */
+  private static boolean isWordChar(char c)
+  {
+    return Character.isLetterOrDigit(c) || c == '_' || c == '$' || c == '#';
+  }
+
+  /**
+   * Reads and decodes the whole of a file in the default character encoding,
+   * as {@link java.io.FileReader} does. The file is read into a buffer rather
+   * than memory mapped, as a mapped file can't be changed or deleted on
+   * Windows until the mapping is garbage collected.
+   * @param path the path of the file
+   * @return the contents of the file
+   * @throws IOException
+   */
+  static String read(String path) throws IOException
+  {
+    FileInputStream input = new FileInputStream(path);
+    try
+    {
+      FileChannel channel = input.getChannel();
+      ByteBuffer bytes = ByteBuffer.allocate((int)Math.min(channel.size(), Integer.MAX_VALUE));
+      while (bytes.hasRemaining())
+        if (channel.read(bytes) == -1)
+          break;
+      bytes.flip();
+      return Charset.defaultCharset().decode(bytes).toString();
+    }
+    finally
+    {
+      input.close();
+    }
+  }
+}
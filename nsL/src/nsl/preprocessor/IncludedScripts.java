@@ -0,0 +1,150 @@
+/*
+ * IncludedScripts.java
+ */
+
+package nsl.preprocessor;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.HashSet;
+import nsl.*;
+
+/**
+ * Keeps track of the scripts included by a compilation so that including a
+ * script again can be skipped. A script is skipped when it is included with
+ * #include_once and has been included before from the same canonical path,
+ * or with #include_once from a file with the same contents. It is also
+ * skipped when the whole of it is wrapped in an
+ * <code>#if (!defined(NAME))</code> guard and NAME is defined. Scripts are
+ * only hashed for #include_once and only searched for a guard the first time
+ * they are included, so that including a script again costs a lookup.
+ * @author Stuart
+ */
+public class IncludedScripts
+{
+  private final HashSet<String> paths;
+  private final HashSet<String> hashes;
+  private final HashMap<String, String> pathGuards;
+
+  /**
+   * Class constructor.
+   */
+  public IncludedScripts()
+  {
+    this.paths = new HashSet<String>();
+    this.hashes = new HashSet<String>();
+    this.pathGuards = new HashMap<String, String>();
+  }
+
+  /**
+   * Determines if a script at the given path can be skipped without reading
+   * it.
+   * @param path the canonical path of the script
+   * @param once whether the script is being included with #include_once
+   * @return <code>true</code> if the script can be skipped
+   */
+  public boolean canSkipPath(String path, boolean once)
+  {
+    if (once && this.paths.contains(path))
+      return true;
+    return isDefined(this.pathGuards.get(path));
+  }
+
+  /**
+   * Determines if a script at the given path has been included before, in
+   * which case its contents are not needed unless it is being included with
+   * #include_once.
+   * @param path the canonical path of the script
+   * @return <code>true</code> if the script has been included before
+   */
+  public boolean contains(String path)
+  {
+    return this.paths.contains(path);
+  }
+
+  /**
+   * Records a script that is being included and determines if it can be
+   * skipped by its contents. The contents are hashed only for #include_once
+   * and searched for a guard only the first time the script is included.
+   * @param path the canonical path of the script
+   * @param text the contents of the script
+   * @param once whether the script is being included with #include_once
+   * @return <code>true</code> if the script can be skipped
+   */
+  public boolean canSkipContents(String path, String text, boolean once)
+  {
+    if (once && !this.hashes.add(IncludeCache.hash(text)))
+    {
+      this.paths.add(path);
+      return true;
+    }
+
+    if (this.paths.add(path))
+    {
+      String guard = findGuard(text);
+      if (guard != null)
+        this.pathGuards.put(path, guard);
+    }
+    return isDefined(this.pathGuards.get(path));
+  }
+
+  /**
+   * Determines if the guard constant of a script is defined.
+   * @param guard the guard constant or <code>null</code> if the script has no
+   * guard
+   * @return <code>true</code> if the guard constant is defined
+   */
+  private static boolean isDefined(String guard)
+  {
+    return guard != null && DefineList.lookup(guard) != null;
+  }
+
+  /**
+   * Finds the constant that guards a script, where the whole script is an
+   * <code>#if (!defined(NAME))</code> or <code>#if !defined(NAME)</code>
+   * directive with no #else or #elseif branches.
+   * @param text the contents of the script
+   * @return the guard constant or <code>null</code> if the script has no
+   * guard
+   */
+  static String findGuard(String text)
+  {
+    Tokenizer tokenizer = new Tokenizer(text, "guard");
+    try
+    {
+      if (tokenizer.nextToken() != Tokenizer.TT_WORD || !tokenizer.sval.equals("#if"))
+        return null;
+
+      boolean parenthesised = tokenizer.nextToken() == '(';
+      if (parenthesised)
+        tokenizer.nextToken();
+      if (tokenizer.ttype != '!')
+        return null;
+      if (tokenizer.nextToken() != Tokenizer.TT_WORD || !tokenizer.sval.equals("defined"))
+        return null;
+      if (tokenizer.nextToken() != '(' || tokenizer.nextToken() != Tokenizer.TT_WORD)
+        return null;
+      String guard = tokenizer.sval;
+      if (tokenizer.nextToken() != ')')
+        return null;
+      if (parenthesised && tokenizer.nextToken() != ')')
+        return null;
+
+      // The #endif that ends the guarded branch must be the last token.
+      tokenizer.nextToken();
+      if (!tokenizer.skipBranch(false) || !tokenizer.tokenIs("#endif"))
+        return null;
+      if (tokenizer.nextToken() != Tokenizer.TT_EOF)
+        return null;
+      return guard;
+    }
+    catch (IOException ex)
+    {
+      return null;
+    }
+    catch (NslException ex)
+    {
+      return null;
+    }
+  }
+}
@@ -4,8 +4,10 @@
 
 package nsl.preprocessor;
 
-import java.io.StringReader;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
 import nsl.*;
 import nsl.expression.*;
 import nsl.statement.*;
@@ -16,11 +18,23 @@ import nsl.statement.*;
  */
 public class Macro
 {
+  /**
+   * The default maximum number of macros that can be inserted inside one
+   * another, which is 0 for no limit other than the Java stack.
+   */
+  public static final int DEFAULT_MAXIMUM_DEPTH = 0;
+
+  private static final int maximumTailInsertions = 1000000;
+
   private final String name;
   private final String[] params;
   private final int paramCount;
   private final int lineNo;
   private final String contents;
+  private TokenList tokens;
+  private Boolean pure;
+  private Boolean returnDirective;
+  private final HashMap<String, MacroEvaluated> evaluations;
 
   /**
    * Class constructor.
@@ -36,6 +50,10 @@ public class Macro
     this.paramCount = params.length;
     this.lineNo = lineNo;
     this.contents = contents;
+    this.tokens = null;
+    this.pure = null;
+    this.returnDirective = null;
+    this.evaluations = new HashMap<String, MacroEvaluated>();
   }
 
   /**
@@ -90,10 +108,34 @@ public class Macro
    */
   public Expression evaluate(ArrayList<Expression> paramValues, int returns)
   {
-    int currentLineNo = ScriptParser.tokenizer.lineno();
+    Statistics statistics = Statistics.getCurrent();
+    if (statistics == null)
+      return this.insert(paramValues, returns);
 
-    ScriptParser.pushTokenizer(new Tokenizer(new StringReader(this.contents), "macro \"" + this.name + "\""));
-    ScriptParser.tokenizer.setAutoPop(false);
+    statistics.enter(Statistics.Phase.MacroExpansion);
+    statistics.count(Statistics.Counter.MacroExpansions);
+    try
+    {
+      return this.insert(paramValues, returns);
+    }
+    finally
+    {
+      statistics.exit();
+    }
+  }
+
+  /**
+   * Inserts the current macro.
+   * @param paramValues the parameter values for the macro insertion
+   * @param returns the number of return values required
+   */
+  private Expression insert(ArrayList<Expression> paramValues, int returns)
+  {
+    int currentLineNo = ScriptParser.getTokenizer().lineno();
+
+    // The macro body is only lexed the first time it is inserted.
+    if (this.tokens == null)
+      this.tokens = new TokenList(this.contents);
 
     // A local constants list for the arguments for this macro.
     DefineList constantList = new DefineList();
@@ -105,7 +147,37 @@ public class Macro
     constantList.add("Returns", Expression.fromInteger(returns));
 
     MacroEvaluated macroEvaluated = new MacroEvaluated(this.name, constantList);
-    macroEvaluated.evaluate();
+
+    // A macro that only returns values worked out from its arguments returns
+    // the same values each time it is inserted with the same arguments.
+    String key = this.isPure() ? getKey(paramValues, returns) : null;
+    MacroEvaluated previous = key == null ? null : this.evaluations.get(key);
+    if (previous != null)
+    {
+      macroEvaluated.reuse(previous);
+    }
+    else if (returns == 0 && this.isTailInsertion())
+    {
+      // Nothing follows in the macro being evaluated, so this macro can be
+      // evaluated after that one instead of inside it. A macro that inserts
+      // itself last of all then loops rather than using up the Java stack.
+      macroEvaluated.defer(this.tokens);
+      return new NullAssembleExpression();
+    }
+    else
+    {
+      CompilationContext context = CompilationContext.getCurrent();
+      int depth = context.getMacroDepth() + 1;
+      if (context.getMaximumMacroDepth() > 0 && depth > context.getMaximumMacroDepth())
+        throw new NslException("Macro \"" + this.name + "\" inserted more than " + context.getMaximumMacroDepth() + " macros deep (see /macrodepth)", true);
+      context.setMacroDepth(depth);
+
+      ScriptParser.pushTokenizer(new Tokenizer(this.tokens, "macro \"" + this.name + "\""));
+      ScriptParser.getTokenizer().setAutoPop(false);
+      macroEvaluated.evaluate();
+      if (key != null && isLiteral(macroEvaluated.getReturnValues()))
+        this.evaluations.put(key, macroEvaluated);
+    }
 
     if (returns > 0)
     {
@@ -121,7 +193,13 @@ public class Macro
       }
     }
     
-    ScriptParser.popTokenizer();
+    if (previous == null)
+    {
+      ScriptParser.popTokenizer();
+      CompilationContext context = CompilationContext.getCurrent();
+      context.setMacroDepth(context.getMacroDepth() - 1);
+      evaluateTailInsertions(macroEvaluated);
+    }
 
     // We add the contents after the current statement. This is so the return
     // registers list is known throughout the macro (i.e. for #nsis).
@@ -146,6 +224,188 @@ public class Macro
     return new NullAssembleExpression();
   }
 
+  /**
+   * Determines if the macro is being inserted as the last statement of the
+   * macro being evaluated, with only empty statements and #endif directives
+   * after it. The insertion must be one of the macro's own statements rather
+   * than the body of an "if", "else", "while", "for", "do" or "switch"
+   * statement, which would otherwise be assembled outside of that statement.
+   * The macro must not use #return, which would set the return values of the
+   * macro being evaluated if it were evaluated after it.
+   * @return <code>true</code> if the insertion can be deferred
+   */
+  private boolean isTailInsertion()
+  {
+    CompilationContext context = CompilationContext.getCurrent();
+    MacroEvaluated current = context.getMacroEvaluated();
+    if (current == null || context.getTailInsertion() != null)
+      return false;
+    if (current.getTokenizer() != ScriptParser.getTokenizer() || current.getBlockDepth() != context.getBlockDepth())
+      return false;
+    if (!ScriptParser.getTokenizer().atTail())
+      return false;
+    return !this.hasReturnDirective();
+  }
+
+  /**
+   * Evaluates the macros whose insertions were deferred by
+   * {@link #isTailInsertion()} one after the other. Each may defer another.
+   * They are assembled one after the other following the macro that was
+   * inserted, so that assembling them doesn't use up the Java stack either.
+   * Each macro that inserted one of them has finished by then, so a frame
+   * stands in for it on the tokenizer stack to keep error messages the same.
+   * @param macroEvaluated the macro that was inserted
+   */
+  private static void evaluateTailInsertions(MacroEvaluated macroEvaluated)
+  {
+    CompilationContext context = CompilationContext.getCurrent();
+    int insertions = 0;
+    MacroEvaluated tailInsertion;
+    while ((tailInsertion = context.getTailInsertion()) != null)
+    {
+      context.setTailInsertion(null);
+      if (++insertions > maximumTailInsertions)
+        throw new NslException("Macro \"" + tailInsertion.getName() + "\" inserted more than " + maximumTailInsertions + " times in a row", true);
+      ScriptParser.getTokenizers().push(ScriptParser.getTokenizer());
+      context.setTokenizer(tailInsertion.getFrame());
+      tailInsertion.evaluateDeferred();
+      macroEvaluated.addTailInsertion(tailInsertion);
+    }
+
+    for (int i = 0; i < insertions; i++)
+      ScriptParser.popTokenizer();
+  }
+
+  /**
+   * Determines if the macro contents use the #return directive.
+   * @return <code>true</code> if the #return directive is used
+   */
+  private boolean hasReturnDirective()
+  {
+    if (this.returnDirective == null)
+    {
+      this.returnDirective = Boolean.FALSE;
+      Tokenizer tokenizer = new Tokenizer(this.tokens, "macro \"" + this.name + "\"");
+      try
+      {
+        while (tokenizer.nextToken() != Tokenizer.TT_EOF)
+        {
+          if (tokenizer.ttype == Tokenizer.TT_WORD && tokenizer.sval.equals("#return"))
+          {
+            this.returnDirective = Boolean.TRUE;
+            break;
+          }
+        }
+      }
+      catch (IOException ex)
+      {
+        this.returnDirective = Boolean.TRUE;
+      }
+    }
+    return this.returnDirective.booleanValue();
+  }
+
+  /**
+   * Determines if the macro only returns values worked out from its
+   * arguments. Its contents can only use #if, #elseif, #else, #endif and
+   * #return directives, literals, its parameters, Returns and other such
+   * macros.
+   * @return <code>true</code> if the macro only returns values
+   */
+  private boolean isPure()
+  {
+    if (this.pure == null)
+    {
+      // The macro is taken to be pure where it inserts itself.
+      this.pure = Boolean.TRUE;
+      this.pure = Boolean.valueOf(this.checkPure());
+    }
+    return this.pure.booleanValue();
+  }
+
+  /**
+   * Checks the words of the macro contents for {@link #isPure()}.
+   * @return <code>true</code> if the macro only returns values
+   */
+  private boolean checkPure()
+  {
+    Tokenizer tokenizer = new Tokenizer(this.tokens, "macro \"" + this.name + "\"");
+    try
+    {
+      while (tokenizer.nextToken() != Tokenizer.TT_EOF)
+      {
+        if (tokenizer.ttype != Tokenizer.TT_WORD || this.isParam(tokenizer.sval))
+          continue;
+
+        String word = tokenizer.sval;
+        if (word.equals("#if") || word.equals("#elseif") || word.equals("#else") || word.equals("#endif") || word.equals("#return") || word.equals("Returns") || word.equals("true") || word.equals("false"))
+          continue;
+
+        List<Macro> macros = MacroList.getCurrent().get(word);
+        if (macros.isEmpty())
+          return false;
+        for (Macro macro : macros)
+          if (!macro.isPure())
+            return false;
+      }
+    }
+    catch (IOException ex)
+    {
+      return false;
+    }
+    return true;
+  }
+
+  /**
+   * Determines if a word is one of the macro parameters.
+   * @param word the word
+   * @return <code>true</code> if the word is a macro parameter
+   */
+  private boolean isParam(String word)
+  {
+    for (int i = 0; i < this.paramCount; i++)
+      if (this.params[i].equals(word))
+        return true;
+    return false;
+  }
+
+  /**
+   * Gets the key of an insertion of a pure macro.
+   * @param paramValues the parameter values for the macro insertion
+   * @param returns the number of return values required
+   * @return the key or <code>null</code> if any parameter value isn't a
+   * literal
+   */
+  private String getKey(ArrayList<Expression> paramValues, int returns)
+  {
+    StringBuilder key = new StringBuilder(Integer.toString(returns));
+    for (int i = 0; paramValues != null && i < this.paramCount; i++)
+    {
+      Expression paramValue = paramValues.get(i);
+      if (!paramValue.isLiteral() || ExpressionType.isRegister(paramValue))
+        return null;
+      String value = paramValue.toString();
+      key.append(' ').append(paramValue.getType()).append(' ').append(value.length()).append(':').append(value);
+    }
+    return key.toString();
+  }
+
+  /**
+   * Determines if the values returned by a macro are all literals.
+   * @param returnValues the values returned
+   * @return <code>true</code> if at least one value was returned and they are
+   * all literals
+   */
+  private static boolean isLiteral(ArrayList<Expression> returnValues)
+  {
+    if (returnValues == null || returnValues.isEmpty())
+      return false;
+    for (Expression returnValue : returnValues)
+      if (!returnValue.isLiteral() || ExpressionType.isRegister(returnValue))
+        return false;
+    return true;
+  }
+
   /**
    * Returns a string representation of the current object.
    * @return a string representation of the current object
@@ -23,30 +23,30 @@ public class MacroDirective extends Statement
    */
   public MacroDirective()
   {
-    int macroLine = ScriptParser.tokenizer.lineno();
-    String name = ScriptParser.tokenizer.matchAWord("a macro name");
+    int macroLine = ScriptParser.getTokenizer().lineno();
+    String name = ScriptParser.getTokenizer().matchAWord("a macro name");
 
-    ScriptParser.tokenizer.matchOrDie('(');
+    ScriptParser.getTokenizer().matchOrDie('(');
     Set<String> paramsSet = new HashSet<String>();
     ArrayList<String> paramsList = new ArrayList<String>();
-    if (!ScriptParser.tokenizer.tokenIs(')'))
+    if (!ScriptParser.getTokenizer().tokenIs(')'))
     {
       while (true)
       {
-        String word = ScriptParser.tokenizer.matchAWord("a constant name");
+        String word = ScriptParser.getTokenizer().matchAWord("a constant name");
 
         if (!paramsSet.add(word))
           throw new NslException("Macro \"" + name + "\" has parameter names with the same name", macroLine);
         paramsList.add(word);
 
-        if (ScriptParser.tokenizer.tokenIs(')'))
+        if (ScriptParser.getTokenizer().tokenIs(')'))
           break;
-        ScriptParser.tokenizer.matchOrDie(',');
+        ScriptParser.getTokenizer().matchOrDie(',');
       }
     }
     
-    String contents = ScriptParser.tokenizer.readUntil("#macroend");
-    ScriptParser.tokenizer.tokenNext();
+    String contents = ScriptParser.getTokenizer().readUntil("#macroend");
+    ScriptParser.getTokenizer().tokenNext();
 
     if (!MacroList.getCurrent().add(new Macro(name, paramsList.toArray(new String[0]), macroLine, contents)))
       throw new NslException("Macro \"" + name + "\" already defined with " + paramsList.size() + " parameters", macroLine);
@@ -62,7 +62,7 @@ public class MacroDirective extends Statement
       throw new NslException("\"#return\" directive can only be used within a \"#macro\"", true);
 
     boolean specialStringNoEscapePrevious = Expression.setSpecialStringEscape(false);
-    if (ScriptParser.tokenizer.tokenIs('('))
+    if (ScriptParser.getTokenizer().tokenIs('('))
     {
       macro.setReturnValues(Expression.matchList());
     }
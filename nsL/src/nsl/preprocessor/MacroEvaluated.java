@@ -21,8 +21,11 @@ public class MacroEvaluated extends MultipleReturnValueAssembleExpression
   private ArrayList<Expression> returnValues;
   private ArrayList<Register> returnRegisters;
   private StatementList statementList;
-
-  private static MacroEvaluated current = null;
+  private TokenList tokens;
+  private Tokenizer tokenizer;
+  private Tokenizer frame;
+  private int blockDepth;
+  private ArrayList<MacroEvaluated> tailInsertions;
 
   /**
    * Gets the current {@link MacroEvaluate} object.
@@ -30,7 +33,7 @@ public class MacroEvaluated extends MultipleReturnValueAssembleExpression
    */
   public static MacroEvaluated getCurrent()
   {
-    return current;
+    return CompilationContext.getCurrent().getMacroEvaluated();
   }
 
   /**
@@ -45,6 +48,11 @@ public class MacroEvaluated extends MultipleReturnValueAssembleExpression
     this.returnValues = new ArrayList<Expression>();
     this.returnRegisters = new ArrayList<Register>();
     this.statementList = null;
+    this.tokens = null;
+    this.tokenizer = null;
+    this.frame = null;
+    this.blockDepth = 0;
+    this.tailInsertions = null;
   }
 
   /**
@@ -61,10 +69,92 @@ public class MacroEvaluated extends MultipleReturnValueAssembleExpression
    */
   public void evaluate()
   {
-    MacroEvaluated parent = current;
-    current = this;
+    CompilationContext context = CompilationContext.getCurrent();
+    MacroEvaluated parent = context.getMacroEvaluated();
+    context.setMacroEvaluated(this);
+    this.tokenizer = ScriptParser.getTokenizer();
+    this.blockDepth = context.getBlockDepth();
     this.statementList = StatementList.match();
-    current = parent;
+    context.setMacroEvaluated(parent);
+  }
+
+  /**
+   * Gets the tokenizer of the macro's contents while it is being evaluated.
+   * @return the tokenizer
+   */
+  public Tokenizer getTokenizer()
+  {
+    return this.tokenizer;
+  }
+
+  /**
+   * Gets the number of code blocks that the macro's contents were being
+   * parsed inside when it started being evaluated. Its own statements are
+   * parsed at the same depth, while the bodies of its "if", "while", "for",
+   * "do" and "switch" statements are parsed deeper.
+   * @return the block depth
+   */
+  public int getBlockDepth()
+  {
+    return this.blockDepth;
+  }
+
+  /**
+   * Defers evaluating the macro's contents until the macro being evaluated
+   * has finished. Where the macro was inserted is kept for error messages.
+   * @param tokens the macro's contents
+   */
+  public void defer(TokenList tokens)
+  {
+    this.tokens = tokens;
+    this.frame = Tokenizer.createFrame(ScriptParser.getTokenizer().getSource(), ScriptParser.getTokenizer().lineno());
+    CompilationContext.getCurrent().setTailInsertion(this);
+  }
+
+  /**
+   * Gets the tokenizer that stands in for the macro that inserted this one
+   * in error messages, after that macro has finished.
+   * @return the tokenizer or <code>null</code> if the macro wasn't deferred
+   */
+  public Tokenizer getFrame()
+  {
+    return this.frame;
+  }
+
+  /**
+   * Evaluates the macro's contents after they were deferred.
+   */
+  public void evaluateDeferred()
+  {
+    ScriptParser.pushTokenizer(new Tokenizer(this.tokens, "macro \"" + this.name + "\""));
+    ScriptParser.getTokenizer().setAutoPop(false);
+    this.evaluate();
+    ScriptParser.popTokenizer();
+    this.tokens = null;
+  }
+
+  /**
+   * Adds a macro that was inserted last of all by this macro or by one of
+   * its tail insertions, to be assembled after this macro.
+   * @param tailInsertion the evaluated macro
+   */
+  public void addTailInsertion(MacroEvaluated tailInsertion)
+  {
+    if (this.tailInsertions == null)
+      this.tailInsertions = new ArrayList<MacroEvaluated>();
+    this.tailInsertions.add(tailInsertion);
+  }
+
+  /**
+   * Takes the results of an earlier evaluation of a macro that only returns
+   * values, instead of evaluating the contents again.
+   * @param previous the earlier evaluation with the same arguments
+   */
+  public void reuse(MacroEvaluated previous)
+  {
+    this.statementList = previous.statementList;
+    this.tailInsertions = previous.tailInsertions;
+    this.setReturnValues(new ArrayList<Expression>(previous.returnValues));
   }
 
   /**
@@ -112,6 +202,17 @@ public class MacroEvaluated extends MultipleReturnValueAssembleExpression
     return this.defineList;
   }
 
+  /**
+   * Assembles the macro's statements followed by its tail insertions.
+   */
+  private void assembleContents() throws IOException
+  {
+    this.statementList.assemble();
+    if (this.tailInsertions != null)
+      for (MacroEvaluated tailInsertion : this.tailInsertions)
+        tailInsertion.assemble();
+  }
+
   /**
    * Assembles the source code.
    */
@@ -119,7 +220,7 @@ public class MacroEvaluated extends MultipleReturnValueAssembleExpression
   public void assemble() throws IOException
   {
     ArrayList<Register> parentReturnVars = ReturnVarExpression.setRegisters(this.returnRegisters);
-    this.statementList.assemble();
+    this.assembleContents();
     ReturnVarExpression.setRegisters(parentReturnVars);
   }
 
@@ -133,7 +234,7 @@ public class MacroEvaluated extends MultipleReturnValueAssembleExpression
     this.returnRegisters.add(var);
 
     ArrayList<Register> parentReturnVars = ReturnVarExpression.setRegisters(this.returnRegisters);
-    this.statementList.assemble();
+    this.assembleContents();
     ReturnVarExpression.setRegisters(parentReturnVars);
   }
 
@@ -147,7 +248,7 @@ public class MacroEvaluated extends MultipleReturnValueAssembleExpression
     this.returnRegisters = vars;
 
     ArrayList<Register> parentReturnVars = ReturnVarExpression.setRegisters(this.returnRegisters);
-    this.statementList.assemble();
+    this.assembleContents();
 
     // this.returnValues is only empty if an #nsis directive was used in the
     // macro (which sets it to an empty array).
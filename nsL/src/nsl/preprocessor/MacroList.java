@@ -5,6 +5,10 @@
 package nsl.preprocessor;
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import nsl.CompilationContext;
 
 /**
  * Lists defined macros.
@@ -12,9 +16,7 @@ import java.util.ArrayList;
  */
 public class MacroList
 {
-  private final ArrayList<Macro> macros;
-
-  private static final MacroList current = new MacroList();
+  private final HashMap<String, ArrayList<Macro>> macros;
 
   /**
    * Gets the current macro list.
@@ -22,7 +24,7 @@ public class MacroList
    */
   public static MacroList getCurrent()
   {
-    return current;
+    return CompilationContext.getCurrent().getMacroList();
   }
 
   /**
@@ -30,7 +32,7 @@ public class MacroList
    */
   public MacroList()
   {
-    this.macros = new ArrayList<Macro>();
+    this.macros = new HashMap<String, ArrayList<Macro>>();
   }
 
   /**
@@ -41,23 +43,25 @@ public class MacroList
    */
   public Macro get(String name, int paramCount)
   {
-    for (Macro macro : this.macros)
-      if (macro.getName().equals(name) && macro.getParamCount() == paramCount)
-        return macro;
+    ArrayList<Macro> macrosList = this.macros.get(name);
+    if (macrosList != null)
+      for (Macro macro : macrosList)
+        if (macro.getParamCount() == paramCount)
+          return macro;
     return null;
   }
 
   /**
-   * Gets the macros with the given name.
+   * Gets the macros with the given name. The returned list must not be
+   * modified.
    * @param name the macro name
-   * @return a list of matching macros
+   * @return a list of matching macros in the order they were defined
    */
-  public ArrayList<Macro> get(String name)
+  public List<Macro> get(String name)
   {
-    ArrayList<Macro> macrosList = new ArrayList<Macro>();
-    for (Macro macro : this.macros)
-      if (macro.getName().equals(name))
-        macrosList.add(macro);
+    ArrayList<Macro> macrosList = this.macros.get(name);
+    if (macrosList == null)
+      return Collections.emptyList();
     return macrosList;
   }
 
@@ -69,12 +73,17 @@ public class MacroList
    */
   public boolean add(Macro macro)
   {
-    Macro existing = this.get(macro.getName(), macro.getParamCount());
-    if (existing == null)
+    ArrayList<Macro> macrosList = this.macros.get(macro.getName());
+    if (macrosList == null)
+    {
+      macrosList = new ArrayList<Macro>(1);
+      this.macros.put(macro.getName(), macrosList);
+    }
+    else if (this.get(macro.getName(), macro.getParamCount()) != null)
     {
-      this.macros.add(macro);
-      return true;
+      return false;
     }
-    return false;
+    macrosList.add(macro);
+    return true;
   }
 }
@@ -24,8 +24,12 @@ public class NSISDirective extends Statement
    */
   public NSISDirective()
   {
-    this.nsis = ScriptParser.tokenizer.readUntil("#nsisend");
-    ScriptParser.tokenizer.tokenNext();
+    this.nsis = ScriptParser.getTokenizer().readUntil("#nsisend");
+    ScriptParser.getTokenizer().tokenNext();
+
+    // The NSIS code may read any variable.
+    if (CodeInfo.getCurrent() != null)
+      CodeInfo.getCurrent().addReadAll();
 
     this.macroEvaluated = MacroEvaluated.getCurrent();
     if (this.macroEvaluated != null)
@@ -19,8 +19,8 @@ public class UndefDirective extends Statement
    */
   public UndefDirective()
   {
-    int line = ScriptParser.tokenizer.lineno();
-    String name = ScriptParser.tokenizer.matchAWord("a constant name");
+    int line = ScriptParser.getTokenizer().lineno();
+    String name = ScriptParser.getTokenizer().matchAWord("a constant name");
 
     if (!DefineList.getCurrent().remove(name))
       throw new NslException("Constant \"" + name + "\" is not defined", line);
@@ -26,11 +26,22 @@ public class AssignmentStatement extends Statement
     if (PageExInfo.in())
       throw new NslContextException(EnumSet.of(NslContext.Global, NslContext.Section, NslContext.Function), "assignment statement");
 
+    CodeInfo codeInfo = CodeInfo.getCurrent();
+    int access = codeInfo == null ? 0 : codeInfo.getAccessCount();
+
     this.assignmentExpression = Expression.matchComplex();
     if (!(this.assignmentExpression instanceof AssignmentExpression))
       throw new NslExpectedException("an assignment expression");
 
-    ScriptParser.tokenizer.matchEolOrDie();
+    // The variable assigned to was recorded as read when it was matched.
+    if (codeInfo != null)
+      codeInfo.endAssignment(access, this.assignmentExpression.getIntegerValue());
+
+    Expression value = ((AssignmentExpression)this.assignmentExpression).getRightOperand();
+    if (value instanceof FunctionCallExpression)
+      ((FunctionCallExpression)value).setStatement(true);
+
+    ScriptParser.getTokenizer().matchEolOrDie();
   }
 
   /**
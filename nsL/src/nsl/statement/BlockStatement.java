@@ -25,11 +25,13 @@ public class BlockStatement extends Statement
       throw new NslContextException(EnumSet.of(NslContext.Section, NslContext.Function), "code block");
 
     Scope.create();
+    CompilationContext context = CompilationContext.getCurrent();
+    context.setBlockDepth(context.getBlockDepth() + 1);
 
-    if (ScriptParser.tokenizer.match('{'))
+    if (ScriptParser.getTokenizer().match('{'))
     {
       this.statementList = StatementList.match();
-      ScriptParser.tokenizer.matchOrDie('}');
+      ScriptParser.getTokenizer().matchOrDie('}');
     }
     else
     {
@@ -38,6 +40,7 @@ public class BlockStatement extends Statement
         throw new NslExpectedException("a statement");
     }
 
+    context.setBlockDepth(context.getBlockDepth() - 1);
     Scope.getCurrent().end();
   }
 
@@ -22,10 +22,13 @@ public class BreakStatement extends Statement
     if (!SectionInfo.in() && !FunctionInfo.in())
       throw new NslContextException(EnumSet.of(NslContext.Section, NslContext.Function), "break");
 
-    ScriptParser.tokenizer.matchEolOrDie();
+    ScriptParser.getTokenizer().matchEolOrDie();
 
     if (CodeInfo.getCurrent().getBreakLabel() == null)
       throw new NslException("The \"break\" statement cannot be used here", true);
+
+    // Code after the jump target may read any variable.
+    CodeInfo.getCurrent().addReadAll();
   }
   
   @Override
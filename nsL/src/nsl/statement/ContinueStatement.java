@@ -22,10 +22,13 @@ public class ContinueStatement extends Statement
     if (!SectionInfo.in() && !FunctionInfo.in())
       throw new NslContextException(EnumSet.of(NslContext.Section, NslContext.Function), "continue");
 
-    ScriptParser.tokenizer.matchEolOrDie();
+    ScriptParser.getTokenizer().matchEolOrDie();
 
     if (CodeInfo.getCurrent().getContinueLabel() == null)
       throw new NslException("The \"continue\" statement cannot be used here", true);
+
+    // Code after the jump target may read any variable.
+    CodeInfo.getCurrent().addReadAll();
   }
   
   @Override
@@ -30,18 +30,20 @@ public class DoStatement extends Statement
     CodeInfo.getCurrent().setBreakLabel(RelativeJump.Zero);
     CodeInfo.getCurrent().setContinueLabel(RelativeJump.Zero);
 
+    int parentBranch = CodeInfo.getCurrent().startBranch(true);
     this.blockStatement = new BlockStatement();
 
     CodeInfo.getCurrent().setBreakLabel(null);
     CodeInfo.getCurrent().setContinueLabel(null);
 
-    ScriptParser.tokenizer.matchOrDie("while");
-    ScriptParser.tokenizer.matchOrDie('(');
+    ScriptParser.getTokenizer().matchOrDie("while");
+    ScriptParser.getTokenizer().matchOrDie('(');
     this.booleanExpression = Expression.matchComplex();
     if (!this.booleanExpression.getType().equals(ExpressionType.Boolean))
       throw new NslException("A \"do\" statement requires a Boolean expression for its \"while\"", true);
-    ScriptParser.tokenizer.matchOrDie(')');
-    ScriptParser.tokenizer.matchEolOrDie();
+    ScriptParser.getTokenizer().matchOrDie(')');
+    CodeInfo.getCurrent().endBranch(parentBranch);
+    ScriptParser.getTokenizer().matchEolOrDie();
   }
 
   /**
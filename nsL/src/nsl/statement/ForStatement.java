@@ -29,10 +29,10 @@ public class ForStatement extends Statement
     if (!SectionInfo.in() && !FunctionInfo.in())
       throw new NslContextException(EnumSet.of(NslContext.Section, NslContext.Function), "for");
 
-    ScriptParser.tokenizer.matchOrDie('(');
+    ScriptParser.getTokenizer().matchOrDie('(');
 
     this.assignmentExpressions = new ArrayList<Expression>();
-    if (!ScriptParser.tokenizer.match(';'))
+    if (!ScriptParser.getTokenizer().match(';'))
     {
       do
       {
@@ -41,22 +41,23 @@ public class ForStatement extends Statement
           throw new NslException("A \"for\" statement requires an assignment expression for initialization", true);
         this.assignmentExpressions.add(left);
       }
-      while (ScriptParser.tokenizer.match(','));
-      ScriptParser.tokenizer.matchOrDie(';');
+      while (ScriptParser.getTokenizer().match(','));
+      ScriptParser.getTokenizer().matchOrDie(';');
     }
 
-    if (!ScriptParser.tokenizer.match(';'))
+    int parentBranch = CodeInfo.getCurrent().startBranch(true);
+    if (!ScriptParser.getTokenizer().match(';'))
     {
       this.booleanExpression = Expression.matchComplex();
       if (!this.booleanExpression.getType().equals(ExpressionType.Boolean))
         throw new NslException("A \"for\" statement requires a Boolean expression for its condition", true);
-      ScriptParser.tokenizer.matchOrDie(';');
+      ScriptParser.getTokenizer().matchOrDie(';');
     }
     else
       this.booleanExpression = null;
 
     this.loopExpressions = new ArrayList<Expression>();
-    if (!ScriptParser.tokenizer.match(')'))
+    if (!ScriptParser.getTokenizer().match(')'))
     {
       do
       {
@@ -65,8 +66,8 @@ public class ForStatement extends Statement
           throw new NslException("A \"for\" statement requires an assignment expression for each iteration", true);
         this.loopExpressions.add(left);
       }
-      while (ScriptParser.tokenizer.match(','));
-      ScriptParser.tokenizer.matchOrDie(')');
+      while (ScriptParser.getTokenizer().match(','));
+      ScriptParser.getTokenizer().matchOrDie(')');
     }
 
     // Set non-null values so that the block statement can contain break or continue statements.
@@ -74,6 +75,7 @@ public class ForStatement extends Statement
     CodeInfo.getCurrent().setContinueLabel(RelativeJump.Zero);
 
     this.blockStatement = new BlockStatement();
+    CodeInfo.getCurrent().endBranch(parentBranch);
 
     CodeInfo.getCurrent().setBreakLabel(null);
     CodeInfo.getCurrent().setContinueLabel(null);
@@ -25,7 +25,7 @@ public class FunctionCallStatement extends Statement
   {
     this.returns = new ArrayList<Register>();
 
-    if (ScriptParser.tokenizer.tokenIs('('))
+    if (ScriptParser.getTokenizer().tokenIs('('))
     {
       ArrayList<Expression> returnsList = Expression.matchRegisterList();
       for (Expression ret : returnsList)
@@ -35,14 +35,16 @@ public class FunctionCallStatement extends Statement
         Scope.getCurrent().addVar(ret.getIntegerValue());
         this.returns.add(RegisterList.getCurrent().get(ret.getIntegerValue()));
       }
-      ScriptParser.tokenizer.matchOrDie('=');
+      ScriptParser.getTokenizer().matchOrDie('=');
     }
 
     this.functionCallExpression = Expression.matchConstant(this.returns.size());
     if (!(this.functionCallExpression instanceof AssembleExpression))
         throw new NslException("\"" + this.functionCallExpression.toString(true) + "\" is not a valid function call", true);
+    if (this.functionCallExpression instanceof FunctionCallExpression)
+      ((FunctionCallExpression)this.functionCallExpression).setStatement(true);
 
-    ScriptParser.tokenizer.matchEolOrDie();
+    ScriptParser.getTokenizer().matchEolOrDie();
   }
 
   /**
@@ -53,6 +55,8 @@ public class FunctionCallStatement extends Statement
   {
     this.returns = new ArrayList<Register>();
     this.functionCallExpression = functionCallExpression;
+    if (functionCallExpression instanceof FunctionCallExpression)
+      ((FunctionCallExpression)functionCallExpression).setStatement(true);
   }
 
   /**
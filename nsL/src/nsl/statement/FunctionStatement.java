@@ -32,15 +32,15 @@ public class FunctionStatement extends Statement
 
     // Function name.
     String name;
-    if (ScriptParser.tokenizer.match('.'))
+    if (ScriptParser.getTokenizer().match('.'))
     {
-      name = '.' + ScriptParser.tokenizer.matchAWord("a function name");
+      name = '.' + ScriptParser.getTokenizer().matchAWord("a function name");
       if (Scope.inUninstaller())
         name = "un" + name;
     }
     else
     {
-      name = ScriptParser.tokenizer.matchAWord("a function name");
+      name = ScriptParser.getTokenizer().matchAWord("a function name");
       if (Scope.inUninstaller())
         name = "un." + name;
     }
@@ -89,6 +89,33 @@ public class FunctionStatement extends Statement
     }
   }
 
+  /**
+   * Matches a function prefixed with an "inline" or "noinline" hint.
+   * @return the function statement
+   */
+  public static FunctionStatement matchHinted()
+  {
+    InlineHint hint = ScriptParser.getTokenizer().match("inline") ? InlineHint.Inline : InlineHint.NoInline;
+    if (hint == InlineHint.NoInline)
+      ScriptParser.getTokenizer().matchOrDie("noinline");
+    ScriptParser.getTokenizer().matchOrDie("function");
+
+    FunctionStatement statement = new FunctionStatement();
+    if (statement.current.isCallback())
+      throw new NslException("Callback function \"" + statement.current.getName() + "\" cannot be inlined", true);
+    statement.current.setInlineHint(hint);
+    return statement;
+  }
+
+  /**
+   * Gets the function being defined.
+   * @return the function being defined
+   */
+  public FunctionInfo getFunctionInfo()
+  {
+    return this.current;
+  }
+
   /**
    * Assembles the source code.
    */
@@ -101,14 +128,14 @@ public class FunctionStatement extends Statement
     // Assemble global assignments if we're in .onInit.
     if (this.current.getName().equalsIgnoreCase(".onInit"))
     {
-      for (Statement statement : Statement.globalAssignmentStatements)
+      for (Statement statement : Statement.getGlobal())
         statement.assemble();
     }
 
     // Assemble global uninstaller assignments if we're in un.onInit.
     if (this.current.getName().equalsIgnoreCase("un.onInit"))
     {
-      for (Statement statement : Statement.globalUninstallerAssignmentStatements)
+      for (Statement statement : Statement.getGlobalUninstaller())
         statement.assemble();
     }
 
@@ -27,22 +27,26 @@ public class IfStatement extends Statement
     if (!SectionInfo.in() && !FunctionInfo.in())
       throw new NslContextException(EnumSet.of(NslContext.Section, NslContext.Function), "if");
 
-    ScriptParser.tokenizer.matchOrDie('(');
+    ScriptParser.getTokenizer().matchOrDie('(');
     this.booleanExpression = Expression.matchComplex();
     if (!this.booleanExpression.getType().equals(ExpressionType.Boolean))
       throw new NslException("An \"if\" statement requires a Boolean expression", true);
-    ScriptParser.tokenizer.matchOrDie(')');
+    ScriptParser.getTokenizer().matchOrDie(')');
 
+    int parentBranch = CodeInfo.getCurrent().startBranch(false);
     this.blockStatement = new BlockStatement();
+    CodeInfo.getCurrent().endBranch(parentBranch);
 
     this.elseStatement = null;
-    if (ScriptParser.tokenizer.tokenIs("else"))
+    if (ScriptParser.getTokenizer().tokenIs("else"))
     {
-      ScriptParser.tokenizer.tokenNext();
-      if (ScriptParser.tokenizer.match("if"))
+      ScriptParser.getTokenizer().tokenNext();
+      parentBranch = CodeInfo.getCurrent().startBranch(false);
+      if (ScriptParser.getTokenizer().match("if"))
         this.elseStatement = new IfStatement();
       else
         this.elseStatement = new IfStatement(new BlockStatement());
+      CodeInfo.getCurrent().endBranch(parentBranch);
     }
   }
 
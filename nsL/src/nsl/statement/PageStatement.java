@@ -32,7 +32,7 @@ public class PageStatement extends Statement
       throw new NslContextException(EnumSet.of(NslContext.Global), "page");
 
     // Page name.
-    this.pageName = ScriptParser.tokenizer.matchAWord("a page name");
+    this.pageName = ScriptParser.getTokenizer().matchAWord("a page name");
 
     // Validate the page name.
     if (!this.pageName.equals("Custom") && !this.pageName.equals("UninstConfirm") && !this.pageName.equals("License") && !this.pageName.equals("Components") && !this.pageName.equals("Directory") && !this.pageName.equals("InstFiles"))
@@ -81,7 +81,7 @@ public class PageStatement extends Statement
       this.enableCancel = null;
 
     // PageEx block.
-    if (ScriptParser.tokenizer.tokenIs('{'))
+    if (ScriptParser.getTokenizer().tokenIs('{'))
     {
       this.pageExInfo = new PageExInfo();
       PageExInfo.setCurrent(this.pageExInfo);
@@ -90,7 +90,7 @@ public class PageStatement extends Statement
     }
     else
     {
-      ScriptParser.tokenizer.matchEolOrDie();
+      ScriptParser.getTokenizer().matchEolOrDie();
       this.pageExInfo = null;
       this.pageEx = null;
     }
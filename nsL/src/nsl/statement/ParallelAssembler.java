@@ -0,0 +1,367 @@
+/*
+ * ParallelAssembler.java
+ */
+
+package nsl.statement;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import nsl.*;
+
+/**
+ * Assembles the top level functions and sections of a script on a pool of
+ * worker threads. Each function or section is assembled into its own buffer
+ * in a fork of the compilation context and the buffers are written out in
+ * source order, so that the output is the same as when assembling serially.
+ * @author Stuart
+ */
+public class ParallelAssembler
+{
+  private final StatementList statementList;
+  private final int threads;
+
+  /**
+   * Class constructor.
+   * @param statementList the top level statements of the script
+   * @param threads the number of worker threads to use
+   */
+  public ParallelAssembler(StatementList statementList, int threads)
+  {
+    this.statementList = statementList;
+    this.threads = threads;
+  }
+
+  /**
+   * Assembles the source code. Runs of consecutive functions and sections are
+   * assembled in parallel while all other statements are assembled in order
+   * on the current thread.
+   */
+  public void assemble() throws IOException
+  {
+    ExecutorService executor = Executors.newFixedThreadPool(this.threads);
+    try
+    {
+      ArrayList<Statement> statements = this.statementList.getStatements();
+      int start = 0;
+      while (start < statements.size())
+      {
+        int end = start;
+        while (end < statements.size() && getCodeInfo(statements.get(end)) != null)
+          end++;
+
+        if (end - start > 1)
+        {
+          assembleUnits(executor, statements.subList(start, end));
+          start = end;
+        }
+        else
+        {
+          statements.get(start).assemble();
+          start++;
+        }
+      }
+    }
+    finally
+    {
+      executor.shutdown();
+    }
+  }
+
+  /**
+   * Gets the code info of a statement that can be assembled in parallel.
+   * .onInit and un.onInit are not as they assemble the global assignments.
+   * @param statement the statement
+   * @return the code info or <code>null</code> if the statement must be
+   * assembled in order
+   */
+  private static CodeInfo getCodeInfo(Statement statement)
+  {
+    if (statement instanceof SectionStatement)
+      return ((SectionStatement)statement).getSectionInfo();
+
+    if (statement instanceof FunctionStatement)
+    {
+      FunctionInfo functionInfo = ((FunctionStatement)statement).getFunctionInfo();
+      if (functionInfo.getName().equalsIgnoreCase(".onInit") || functionInfo.getName().equalsIgnoreCase("un.onInit"))
+        return null;
+      return functionInfo;
+    }
+
+    return null;
+  }
+
+  /**
+   * Adds a value to the list of values for the given key.
+   * @param map the map of lists
+   * @param key the key
+   * @param value the value to add
+   */
+  private static void addTo(HashMap<String, ArrayList<Integer>> map, String key, int value)
+  {
+    ArrayList<Integer> list = map.get(key);
+    if (list == null)
+    {
+      list = new ArrayList<Integer>();
+      map.put(key, list);
+    }
+    list.add(Integer.valueOf(value));
+  }
+
+  /**
+   * Assembles a run of functions and sections in parallel.
+   * @param executor the worker threads
+   * @param units the functions and sections
+   */
+  private static void assembleUnits(ExecutorService executor, List<Statement> units) throws IOException
+  {
+    CompilationContext context = CompilationContext.getCurrent();
+    RegisterList registerList = context.getRegisterList();
+
+    // Every unit starts with the register state and label counter that the
+    // first unit starts with. Parallel assembly only gives the serial output
+    // if these are what every function and section leaves behind.
+    if (!context.getLabelList().isReset() || context.getCodeInfo() != null)
+    {
+      for (Statement unit : units)
+        unit.assemble();
+      return;
+    }
+
+    // Calling a function reads the registers used by it and by the functions
+    // it calls, which are added to as they are assembled. A unit therefore
+    // waits for any earlier unit that it calls or that calls it, directly or
+    // not.
+    HashMap<String, ArrayList<Integer>> definers = new HashMap<String, ArrayList<Integer>>();
+    HashMap<String, ArrayList<Integer>> callers = new HashMap<String, ArrayList<Integer>>();
+    ArrayList<HashMap<Integer, Register>> usedVars = new ArrayList<HashMap<Integer, Register>>();
+    ArrayList<Future<Unit>> futures = new ArrayList<Future<Unit>>();
+
+    for (int i = 0; i < units.size(); i++)
+    {
+      CodeInfo codeInfo = getCodeInfo(units.get(i));
+      HashSet<String> calls = codeInfo.getReachableCalls();
+      usedVars.add(new HashMap<Integer, Register>(codeInfo.getUsedVars()));
+
+      ArrayList<Future<Unit>> dependencies = new ArrayList<Future<Unit>>();
+      boolean[] waits = new boolean[i];
+      for (String call : calls)
+      {
+        ArrayList<Integer> list = definers.get(call);
+        if (list != null)
+          for (Integer j : list)
+            waits[j.intValue()] = true;
+      }
+      if (codeInfo instanceof FunctionInfo)
+      {
+        ArrayList<Integer> list = callers.get(((FunctionInfo)codeInfo).getIndexKey());
+        if (list != null)
+          for (Integer j : list)
+            waits[j.intValue()] = true;
+      }
+      for (int j = 0; j < i; j++)
+        if (waits[j])
+          dependencies.add(futures.get(j));
+
+      if (codeInfo instanceof FunctionInfo)
+        addTo(definers, ((FunctionInfo)codeInfo).getIndexKey(), i);
+      for (String call : calls)
+        addTo(callers, call, i);
+
+      futures.add(executor.submit(new Unit(units.get(i), context, dependencies)));
+    }
+
+    // Wait for every unit before writing any of them out, as the units that
+    // follow an invalid one must not be changing anything when it's found.
+    ArrayList<Unit> results = new ArrayList<Unit>();
+    for (Future<Unit> future : futures)
+      results.add(getResult(future));
+
+    PrintWriter stdout = context.getStdout();
+    for (int i = 0; i < results.size(); i++)
+    {
+      Unit unit = results.get(i);
+      stdout.print(unit.getOutput());
+      stdout.flush();
+
+      if (unit.getFailure() != null)
+        rethrow(unit.getFailure());
+
+      ScriptParser.write(unit.getText());
+
+      // The unit left the registers in a different state to the one the rest
+      // of the units started in, so they are assembled again in order.
+      if (!registerList.sameState(unit.getContext().getRegisterList()) || !unit.getContext().getLabelList().isReset())
+      {
+        registerList.copyState(unit.getContext().getRegisterList());
+        for (int j = i + 1; j < results.size(); j++)
+        {
+          HashMap<Integer, Register> vars = getCodeInfo(units.get(j)).getUsedVars();
+          vars.clear();
+          vars.putAll(usedVars.get(j));
+        }
+        for (int j = i + 1; j < results.size(); j++)
+          units.get(j).assemble();
+        return;
+      }
+    }
+  }
+
+  /**
+   * Waits for a unit to be assembled.
+   * @param future the unit's future
+   * @return the assembled unit
+   */
+  private static Unit getResult(Future<Unit> future) throws IOException
+  {
+    try
+    {
+      return future.get();
+    }
+    catch (InterruptedException ex)
+    {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException();
+    }
+    catch (ExecutionException ex)
+    {
+      rethrow(ex.getCause());
+      return null;
+    }
+  }
+
+  /**
+   * Rethrows an exception thrown while assembling a unit.
+   * @param ex the exception
+   */
+  private static void rethrow(Throwable ex) throws IOException
+  {
+    if (ex instanceof IOException)
+      throw (IOException)ex;
+    if (ex instanceof RuntimeException)
+      throw (RuntimeException)ex;
+    if (ex instanceof Error)
+      throw (Error)ex;
+    throw new NslException((Exception)ex);
+  }
+
+  /**
+   * A function or section assembled in its own fork of the compilation
+   * context.
+   */
+  private static class Unit implements Callable<Unit>
+  {
+    private final Statement statement;
+    private final CompilationContext context;
+    private final MemoryNsiSink sink;
+    private final StringWriter output;
+    private final ArrayList<Future<Unit>> dependencies;
+    private Exception failure;
+
+    /**
+     * Class constructor.
+     * @param statement the function or section statement
+     * @param parent the compilation context to fork
+     * @param dependencies the units to wait for before assembling
+     */
+    public Unit(Statement statement, CompilationContext parent, ArrayList<Future<Unit>> dependencies)
+    {
+      this.statement = statement;
+      this.sink = new MemoryNsiSink(parent.getSink().getCharset());
+      this.output = new StringWriter();
+      this.context = parent.fork(this.sink, new PrintWriter(this.output, true));
+      this.dependencies = dependencies;
+      this.failure = null;
+    }
+
+    /**
+     * Assembles the function or section.
+     * @return the current unit
+     */
+    public Unit call() throws Exception
+    {
+      // A failed dependency is reported in order by the thread that writes
+      // out the units.
+      for (Future<Unit> dependency : this.dependencies)
+      {
+        try
+        {
+          dependency.get();
+        }
+        catch (ExecutionException ex)
+        {
+        }
+      }
+
+      CompilationContext parentContext = CompilationContext.setCurrent(this.context);
+      Statistics statistics = this.context.getStatistics();
+      if (statistics != null)
+        statistics.enter(Statistics.Phase.Assembly);
+      try
+      {
+        this.statement.assemble();
+      }
+      catch (IOException ex)
+      {
+        this.failure = ex;
+      }
+      catch (RuntimeException ex)
+      {
+        this.failure = ex;
+      }
+      finally
+      {
+        if (statistics != null)
+          statistics.exit();
+        CompilationContext.setCurrent(parentContext);
+      }
+      return this;
+    }
+
+    /**
+     * Gets the compilation context the unit was assembled in.
+     * @return the compilation context
+     */
+    public CompilationContext getContext()
+    {
+      return this.context;
+    }
+
+    /**
+     * Gets the assembled NSIS script.
+     * @return the assembled NSIS script
+     */
+    public String getText()
+    {
+      return this.sink.getText();
+    }
+
+    /**
+     * Gets the warnings and messages printed while assembling.
+     * @return the warnings and messages
+     */
+    public String getOutput()
+    {
+      return this.output.toString();
+    }
+
+    /**
+     * Gets the exception thrown while assembling.
+     * @return the exception or <code>null</code> if assembling succeeded
+     */
+    public Exception getFailure()
+    {
+      return this.failure;
+    }
+  }
+}
@@ -28,7 +28,7 @@ public class ReturnStatement extends Statement
     if (!FunctionInfo.in())
       throw new NslContextException(EnumSet.of(NslContext.Function), "return");
 
-    if (ScriptParser.tokenizer.tokenIs('('))
+    if (ScriptParser.getTokenizer().tokenIs('('))
     {
       this.returns = Expression.matchList();
     }
@@ -37,11 +37,14 @@ public class ReturnStatement extends Statement
       this.returns = new ArrayList<Expression>();
       this.returns.add(Expression.matchComplex());
     }
-    ScriptParser.tokenizer.matchEolOrDie();
+    ScriptParser.getTokenizer().matchEolOrDie();
     if (FunctionInfo.getCurrent().getReturns() == -1)
       FunctionInfo.getCurrent().setReturns(this.returns.size());
     else if (FunctionInfo.getCurrent().getReturns() != this.returns.size())
       throw new NslException("return statement has differing number of return values", true);
+
+    // The caller may read any variable.
+    CodeInfo.getCurrent().addReadAll();
   }
 
   /**
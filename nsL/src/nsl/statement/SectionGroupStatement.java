@@ -33,7 +33,7 @@ public class SectionGroupStatement extends Statement
       throw new NslContextException(EnumSet.of(NslContext.Global), "section group");
 
     // Section group name.
-    this.name = ScriptParser.tokenizer.matchAWord("a section group name");
+    this.name = ScriptParser.getTokenizer().matchAWord("a section group name");
 
     // Section arguments.
     ArrayList<Expression> paramsList = Expression.matchList();
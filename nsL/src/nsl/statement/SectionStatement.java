@@ -36,7 +36,7 @@ public class SectionStatement extends Statement
       throw new NslContextException(EnumSet.of(NslContext.Global), "section");
 
     // Section name.
-    this.name = ScriptParser.tokenizer.matchAWord("a section name");
+    this.name = ScriptParser.getTokenizer().matchAWord("a section name");
 
     // Section arguments.
     ArrayList<Expression> paramsList = Expression.matchList();
@@ -161,6 +161,15 @@ public class SectionStatement extends Statement
     this.uninstall = Scope.inUninstaller();
   }
 
+  /**
+   * Gets the section being defined.
+   * @return the section being defined
+   */
+  public SectionInfo getSectionInfo()
+  {
+    return this.current;
+  }
+
   /**
    * Assembles the source code.
    */
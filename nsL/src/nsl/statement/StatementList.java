@@ -6,6 +6,8 @@ package nsl.statement;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import nsl.CompilationContext;
+import nsl.Statistics;
 
 /**
  * Describes a list of statements.
@@ -15,8 +17,7 @@ public class StatementList extends Statement
 {
   private final ArrayList<Statement> statementList;
   private final ArrayList<Statement> queuedStatementList;
-
-  private static StatementList current;
+  private final StreamingAssembler streamingAssembler;
 
   /**
    * Gets the current statement list.
@@ -24,54 +25,101 @@ public class StatementList extends Statement
    */
   public static StatementList getCurrent()
   {
-    return current;
+    return CompilationContext.getCurrent().getStatementList();
   }
 
   /**
    * Class constructor.
+   * @param streamingAssembler the assembler to hand the statements to as they
+   * are matched or <code>null</code> to keep them
    */
-  private StatementList()
+  private StatementList(StreamingAssembler streamingAssembler)
   {
     this.statementList = new ArrayList<Statement>();
     this.queuedStatementList = new ArrayList<Statement>();
+    this.streamingAssembler = streamingAssembler;
   }
 
   /**
-   * Matches a list of statements.
+   * Matches a list of statements. The statements at the top level of the
+   * script are handed to the streaming assembler if there is one.
    * @return a list of statements
    */
   public static StatementList match()
   {
-    StatementList statementListParent = current;
-    StatementList statementList = new StatementList();
-    current = statementList;
+    CompilationContext context = CompilationContext.getCurrent();
+    if (context.getStatementList() == null)
+      return match(context.getStreamingAssembler());
+    return match(null);
+  }
 
-    Statement statement;
-    while ((statement = Statement.match()) != null)
-    {
-      // Add the current statement.
-      statementList.statementList.add(statement);
+  /**
+   * Matches the list of statements of an included script. They are handed to
+   * the streaming assembler if the script is included at the top level.
+   * @return a list of statements
+   */
+  public static StatementList matchIncluded()
+  {
+    StatementList statementListParent = CompilationContext.getCurrent().getStatementList();
+    if (statementListParent == null)
+      return match(null);
+    return match(statementListParent.streamingAssembler);
+  }
+
+  /**
+   * Matches a list of statements.
+   * @param streamingAssembler the assembler to hand the statements to as they
+   * are matched or <code>null</code> to keep them
+   * @return a list of statements
+   */
+  private static StatementList match(StreamingAssembler streamingAssembler)
+  {
+    CompilationContext context = CompilationContext.getCurrent();
+    StatementList statementListParent = context.getStatementList();
+    StatementList statementList = new StatementList(streamingAssembler);
+    context.setStatementList(statementList);
 
-      // Add any queued statements (i.e. contents of a macro) and then dequeue
-      // them.
-      if (!statementList.queuedStatementList.isEmpty())
+    Statistics statistics = context.getStatistics();
+    if (statistics != null)
+      statistics.enter(Statistics.Phase.Parsing);
+    try
+    {
+      Statement statement;
+      while ((statement = Statement.match()) != null)
       {
-        statementList.statementList.addAll(statementList.queuedStatementList);
-        statementList.queuedStatementList.clear();
+        // Add the current statement.
+        statementList.add(statement);
+
+        // Add any queued statements (i.e. contents of a macro) and then
+        // dequeue them.
+        if (!statementList.queuedStatementList.isEmpty())
+        {
+          for (Statement queued : statementList.queuedStatementList)
+            statementList.add(queued);
+          statementList.queuedStatementList.clear();
+        }
       }
     }
+    finally
+    {
+      if (statistics != null)
+        statistics.exit();
+    }
 
-    current = statementListParent;
+    context.setStatementList(statementListParent);
     return statementList;
   }
 
   /**
-   * Adds a statement to the list.
+   * Adds a statement to the list, or hands it to the streaming assembler.
    * @param statement the statement to add
    */
   public void add(Statement statement)
   {
-    this.statementList.add(statement);
+    if (this.streamingAssembler != null)
+      this.streamingAssembler.add(statement);
+    else
+      this.statementList.add(statement);
   }
 
   /**
@@ -84,6 +132,15 @@ public class StatementList extends Statement
     this.queuedStatementList.add(statement);
   }
 
+  /**
+   * Gets the statements in the list.
+   * @return the statements in the list
+   */
+  public ArrayList<Statement> getStatements()
+  {
+    return this.statementList;
+  }
+
   /**
    * Determines if the statement list is empty.
    * @return <code>true</code> if the statement list is empty
@@ -0,0 +1,179 @@
+/*
+ * StreamingAssembler.java
+ */
+
+package nsl.statement;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import nsl.*;
+
+/**
+ * Assembles the top level statements of a script, including those of the
+ * scripts it includes at the top level, as soon as they are parsed so that
+ * they can be released. Only the parsed statements of the largest function
+ * or section need to be held at once, as long as functions are defined before
+ * they are called.
+ * <p>
+ * A statement is held back while any function called by the code parsed so
+ * far is yet to be defined, as calling a function reads what was parsed of
+ * it and the functions it calls. Variables are declared just before the
+ * first statement assembled after they are parsed rather than all at the top
+ * of the script. .onInit and un.onInit are assembled at the end of the
+ * script as they also assemble the global assignments, which can follow
+ * them.
+ * @author Stuart
+ */
+public class StreamingAssembler
+{
+  private final ArrayList<Statement> pending;
+  private final ArrayList<Statement> onInits;
+  private final ArrayList<Call> undefinedCalls;
+  private RegisterList registerList;
+  private int registers;
+
+  /**
+   * Class constructor.
+   */
+  public StreamingAssembler()
+  {
+    this.pending = new ArrayList<Statement>();
+    this.onInits = new ArrayList<Statement>();
+    this.undefinedCalls = new ArrayList<Call>();
+    this.registerList = null;
+    this.registers = 0;
+  }
+
+  /**
+   * Records a function call that has been parsed, so that statements are
+   * held back until the function is defined.
+   * @param name the name of the function being called
+   * @param params the number of parameters
+   */
+  public static void addCall(String name, int params)
+  {
+    StreamingAssembler streamingAssembler = CompilationContext.getCurrent().getStreamingAssembler();
+    if (streamingAssembler != null && FunctionInfo.find(name, params, 0) == null)
+      streamingAssembler.undefinedCalls.add(new Call(name, params));
+  }
+
+  /**
+   * Adds a top level statement that has been parsed. It is assembled along
+   * with any statements held back before it if every function called so far
+   * has been defined.
+   * @param statement the statement
+   */
+  public void add(Statement statement)
+  {
+    if (isOnInit(statement))
+    {
+      this.onInits.add(statement);
+      return;
+    }
+
+    this.pending.add(statement);
+
+    for (Iterator<Call> i = this.undefinedCalls.iterator(); i.hasNext(); )
+    {
+      Call call = i.next();
+      if (FunctionInfo.find(call.name, call.params, 0) != null)
+        i.remove();
+    }
+    if (!this.undefinedCalls.isEmpty())
+      return;
+
+    Statistics statistics = Statistics.getCurrent();
+    if (statistics != null)
+      statistics.enter(Statistics.Phase.Assembly);
+
+    CompilationContext context = CompilationContext.getCurrent();
+    RegisterList parsed = context.getRegisterList();
+    try
+    {
+      this.resume();
+      for (Statement pendingStatement : this.pending)
+        pendingStatement.assemble();
+      this.pending.clear();
+    }
+    catch (IOException ex)
+    {
+      throw new NslException(ex);
+    }
+    finally
+    {
+      context.setRegisterList(parsed);
+      if (statistics != null)
+        statistics.exit();
+    }
+  }
+
+  /**
+   * Assembles the statements that were held back once the whole script has
+   * been parsed, followed by .onInit and un.onInit. The register state of the
+   * assembly is left as the current one.
+   */
+  public void finish() throws IOException
+  {
+    this.resume();
+    for (Statement statement : this.pending)
+      statement.assemble();
+    this.pending.clear();
+    for (Statement statement : this.onInits)
+      statement.assemble();
+    this.onInits.clear();
+  }
+
+  /**
+   * Switches from the register state of the parser to the register state of
+   * the assembly and declares any variables parsed since the last time. The
+   * parser doesn't free registers until the end of each function or section,
+   * so the registers and variables parsed since the last time start in the
+   * assembly in the state that the parser left them in.
+   */
+  private void resume() throws IOException
+  {
+    RegisterList parsed = RegisterList.getCurrent();
+    if (this.registerList == null)
+      this.registerList = parsed.fork();
+    for (int i = this.registers; i < parsed.size(); i++)
+      this.registerList.setInUse(i, parsed.getInUse(i));
+    RegisterList.setCurrent(this.registerList);
+
+    this.registerList.defineVars(this.registers);
+    this.registers = parsed.size();
+  }
+
+  /**
+   * Determines if a statement is .onInit or un.onInit.
+   * @param statement the statement
+   * @return <code>true</code> if the statement is .onInit or un.onInit
+   */
+  private static boolean isOnInit(Statement statement)
+  {
+    if (!(statement instanceof FunctionStatement))
+      return false;
+    String name = ((FunctionStatement)statement).getFunctionInfo().getName();
+    return name.equalsIgnoreCase(".onInit") || name.equalsIgnoreCase("un.onInit");
+  }
+
+  /**
+   * A call to a function that has not been defined yet.
+   */
+  private static class Call
+  {
+    private final String name;
+    private final int params;
+
+    /**
+     * Class constructor.
+     * @param name the name of the function being called
+     * @param params the number of parameters
+     */
+    public Call(String name, int params)
+    {
+      this.name = name;
+      this.params = params;
+    }
+  }
+}
@@ -24,9 +24,9 @@ public class SwitchCaseStatement extends Statement
    */
   public SwitchCaseStatement()
   {
-    this.lineNo = ScriptParser.tokenizer.lineno();
+    this.lineNo = ScriptParser.getTokenizer().lineno();
     this.match = Expression.match();
-    ScriptParser.tokenizer.matchOrDie(':');
+    ScriptParser.getTokenizer().matchOrDie(':');
 
     if (!ExpressionType.isBoolean(this.match) && !ExpressionType.isInteger(this.match) && !ExpressionType.isString(this.match))
       throw new NslException("\"case\" in a \"switch\" statement requires a literal string, Boolean or integer value", true);
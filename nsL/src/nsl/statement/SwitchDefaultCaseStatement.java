@@ -21,7 +21,7 @@ public class SwitchDefaultCaseStatement extends Statement
    */
   public SwitchDefaultCaseStatement()
   {
-    ScriptParser.tokenizer.matchOrDie(':');
+    ScriptParser.getTokenizer().matchOrDie(':');
   }
 
   /**
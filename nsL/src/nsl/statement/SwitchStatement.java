@@ -7,8 +7,10 @@ package nsl.statement;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.EnumSet;
+import java.util.TreeMap;
 import nsl.*;
 import nsl.expression.*;
+import nsl.optimiser.Optimisation;
 
 /**
  * Represents a switch statement.
@@ -16,6 +18,16 @@ import nsl.expression.*;
  */
 public class SwitchStatement extends Statement
 {
+  /**
+   * The fewest integer cases that are dispatched with a tree of comparisons.
+   */
+  private static final int minimumTreeCases = 4;
+
+  /**
+   * The fewest integer cases that are dispatched with a jump table.
+   */
+  private static final int minimumTableCases = 8;
+
   private final Expression switchExpression;
   private final ArrayList<Statement> statementList;
   private final ArrayList<SwitchCaseStatement> casesList;
@@ -29,11 +41,11 @@ public class SwitchStatement extends Statement
     if (!SectionInfo.in() && !FunctionInfo.in())
       throw new NslContextException(EnumSet.of(NslContext.Section, NslContext.Function), "switch");
 
-    int lineNo = ScriptParser.tokenizer.lineno();
-    ScriptParser.tokenizer.matchOrDie('(');
+    int lineNo = ScriptParser.getTokenizer().lineno();
+    ScriptParser.getTokenizer().matchOrDie('(');
     this.switchExpression = Expression.matchComplex();
-    ScriptParser.tokenizer.matchOrDie(')');
-    ScriptParser.tokenizer.matchOrDie('{');
+    ScriptParser.getTokenizer().matchOrDie(')');
+    ScriptParser.getTokenizer().matchOrDie('{');
 
     // Set non-null values so that the block statement can contain break statements.
     CodeInfo.getCurrent().setBreakLabel(RelativeJump.Zero);
@@ -43,9 +55,12 @@ public class SwitchStatement extends Statement
     this.defaultCase = null;
 
     // Get the statements including case statements.
+    int parentBranch = CodeInfo.getCurrent().startBranch(false);
+    CompilationContext context = CompilationContext.getCurrent();
+    context.setBlockDepth(context.getBlockDepth() + 1);
     while (true)
     {
-      if (ScriptParser.tokenizer.match("case"))
+      if (ScriptParser.getTokenizer().match("case"))
       {
         Statement statement = new SwitchCaseStatement();
         if (this.defaultCase != null)
@@ -53,7 +68,7 @@ public class SwitchStatement extends Statement
         this.casesList.add((SwitchCaseStatement)statement);
         this.statementList.add(statement);
       }
-      else if (ScriptParser.tokenizer.match("default"))
+      else if (ScriptParser.getTokenizer().match("default"))
       {
         this.defaultCase = new SwitchDefaultCaseStatement();
         this.statementList.add(this.defaultCase);
@@ -66,6 +81,8 @@ public class SwitchStatement extends Statement
         this.statementList.add(statement);
       }
     }
+    context.setBlockDepth(context.getBlockDepth() - 1);
+    CodeInfo.getCurrent().endBranch(parentBranch);
 
     // No cases?
     if (this.casesList.isEmpty())
@@ -90,7 +107,7 @@ public class SwitchStatement extends Statement
 
     CodeInfo.getCurrent().setBreakLabel(null);
 
-    ScriptParser.tokenizer.matchOrDie('}');
+    ScriptParser.getTokenizer().matchOrDie('}');
   }
 
   /**
@@ -141,6 +158,24 @@ public class SwitchStatement extends Statement
     else
     {
       Expression varOrSwitchExpression = AssembleExpression.getRegisterOrExpression(this.switchExpression);
+
+      // Many integer cases can be dispatched without comparing against each
+      // in turn.
+      TreeMap<Integer, Label> cases = this.getIntegerCases();
+      if (cases != null && cases.size() >= minimumTreeCases && CompilationContext.getCurrent().getOptimisations().contains(Optimisation.SwitchDispatch))
+      {
+        Label missed = this.defaultCase != null ? this.defaultCase.getLabel() : gotoEnd;
+        Integer[] values = cases.keySet().toArray(new Integer[cases.size()]);
+        long span = (long)values[values.length - 1].intValue() - values[0].intValue();
+        if (cases.size() >= minimumTableCases && span < 2L * cases.size())
+          assembleJumpTable(varOrSwitchExpression, cases, missed);
+        else
+          assembleCompareTree(varOrSwitchExpression, cases, values, 0, values.length - 1, missed);
+        varOrSwitchExpression.setInUse(false);
+        gotoEnd.write();
+        return;
+      }
+
       for (SwitchCaseStatement caseStatement : this.casesList)
       {
         // Type is an integer; use IntCmp.
@@ -164,4 +199,89 @@ public class SwitchStatement extends Statement
 
     gotoEnd.write();
   }
+
+  /**
+   * Gets the labels of the cases by their integer values. Where two cases
+   * have the same value the first one is matched, as it is when comparing
+   * against each case in turn.
+   * @return the labels by value or <code>null</code> if any case isn't an
+   * integer
+   */
+  private TreeMap<Integer, Label> getIntegerCases()
+  {
+    TreeMap<Integer, Label> cases = new TreeMap<Integer, Label>();
+    for (SwitchCaseStatement caseStatement : this.casesList)
+    {
+      if (!ExpressionType.isInteger(caseStatement.getMatch()))
+        return null;
+      Integer value = Integer.valueOf(caseStatement.getMatch().getIntegerValue());
+      if (!cases.containsKey(value))
+        cases.put(value, caseStatement.getLabel());
+    }
+    return cases;
+  }
+
+  /**
+   * Assembles a jump table for dense integer cases. The switch value less the
+   * lowest case value is added to the address of a table of Gotos, one for
+   * each value from the lowest case to the highest, and jumped to.
+   * @param var the switch value
+   * @param cases the case labels by value
+   * @param missed the label to jump to if no case matches
+   * @throws IOException
+   */
+  private static void assembleJumpTable(Expression var, TreeMap<Integer, Label> cases, Label missed) throws IOException
+  {
+    int first = cases.firstKey().intValue();
+    int last = cases.lastKey().intValue();
+    Label table = LabelList.getCurrent().getNext();
+    Register offset = RegisterList.getCurrent().getNext();
+    Register address = RegisterList.getCurrent().getNext();
+
+    // Values outside of the table wrap around to large unsigned offsets.
+    ScriptParser.writeLine(String.format("IntOp %s %s - %d", offset, var, first));
+    ScriptParser.writeLine(String.format("IntCmpU %s %d %s %s %s", offset, last - first, RelativeJump.Zero, RelativeJump.Zero, missed));
+    ScriptParser.writeLine(String.format("GetLabelAddress %s %s", address, table));
+    ScriptParser.writeLine(String.format("IntOp %s %s + %s", address, address, offset));
+    ScriptParser.writeLine("Goto " + address);
+
+    table.write();
+    for (int value = first; value <= last && value >= first; value++)
+    {
+      Label label = cases.get(Integer.valueOf(value));
+      ScriptParser.writeLine("Goto " + (label != null ? label : missed));
+    }
+
+    offset.setInUse(false);
+    address.setInUse(false);
+  }
+
+  /**
+   * Assembles a tree of comparisons for sparse integer cases. Each IntCmp
+   * jumps to its case if the value is equal and otherwise to the tree of the
+   * lower or higher cases, so that a case is found in a number of comparisons
+   * that grows with the logarithm of the number of cases.
+   * @param var the switch value
+   * @param cases the case labels by value
+   * @param values the case values in order
+   * @param low the index of the lowest value of the tree
+   * @param high the index of the highest value of the tree
+   * @param missed the label to jump to if no case matches
+   * @throws IOException
+   */
+  private static void assembleCompareTree(Expression var, TreeMap<Integer, Label> cases, Integer[] values, int low, int high, Label missed) throws IOException
+  {
+    int middle = (low + high) >>> 1;
+    Label lower = middle > low ? RelativeJump.Zero : missed;
+    Label higher = middle < high ? LabelList.getCurrent().getNext() : missed;
+
+    ScriptParser.writeLine(String.format("IntCmp %s %s %s %s %s", var, values[middle], cases.get(values[middle]), lower, higher));
+    if (middle > low)
+      assembleCompareTree(var, cases, values, low, middle - 1, missed);
+    if (middle < high)
+    {
+      higher.write();
+      assembleCompareTree(var, cases, values, middle + 1, high, missed);
+    }
+  }
 }
@@ -26,17 +26,19 @@ public class WhileStatement extends Statement
     if (!SectionInfo.in() && !FunctionInfo.in())
       throw new NslContextException(EnumSet.of(NslContext.Section, NslContext.Function), "while");
 
-    ScriptParser.tokenizer.matchOrDie('(');
+    ScriptParser.getTokenizer().matchOrDie('(');
     this.booleanExpression = Expression.matchComplex();
     if (!this.booleanExpression.getType().equals(ExpressionType.Boolean))
       throw new NslException("A \"while\" statement requires a Boolean expression", true);
-    ScriptParser.tokenizer.matchOrDie(')');
+    ScriptParser.getTokenizer().matchOrDie(')');
 
     // Set non-null values so that the block statement can contain break or continue statements.
     CodeInfo.getCurrent().setBreakLabel(RelativeJump.Zero);
     CodeInfo.getCurrent().setContinueLabel(RelativeJump.Zero);
 
+    int parentBranch = CodeInfo.getCurrent().startBranch(true);
     this.blockStatement = new BlockStatement();
+    CodeInfo.getCurrent().endBranch(parentBranch);
 
     CodeInfo.getCurrent().setBreakLabel(null);
     CodeInfo.getCurrent().setContinueLabel(null);
@@ -1,7 +1,6 @@
 package nsl.test;
 
 import java.io.FileReader;
-import java.io.StreamTokenizer;
 import nsl.Tokenizer;
 
 /**
@@ -23,11 +22,11 @@ public class TestMain
       FileReader fileReader = new FileReader(args[0]);
       Tokenizer tokenizer = new Tokenizer(fileReader, args[0]);
 
-      while (tokenizer.nextToken() != StreamTokenizer.TT_EOF)
+      while (tokenizer.nextToken() != Tokenizer.TT_EOF)
       {
-        if (tokenizer.ttype == StreamTokenizer.TT_WORD)
+        if (tokenizer.ttype == Tokenizer.TT_WORD)
           System.out.println("word = " + tokenizer.sval);
-        else if (tokenizer.ttype == StreamTokenizer.TT_NUMBER)
+        else if (tokenizer.ttype == Tokenizer.TT_NUMBER)
           System.out.println("number = " + tokenizer.nval);
         else if (tokenizer.ttype == '"')
           System.out.println("string = " + tokenizer.sval);
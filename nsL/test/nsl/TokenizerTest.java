@@ -279,4 +279,149 @@ public class TokenizerTest
     assertEquals(result.compareTo("the're"), 0);
     instance.matchEolOrDie();
   }
+
+  /**
+   * Test of skipBranch method, of class Tokenizer, for #if directives nested
+   * inside the branch being skipped.
+   */
+  @Test
+  public void testSkipBranch_nested()
+  {
+    System.out.println("skipBranch nested");
+    String text = "a\n#if b\nc\n#else\nd\n#endif\ne\n#else\nf\n#endif\ng;";
+    Tokenizer[] instances = { new Tokenizer(new StringReader(text), "TokenizerTest"), new Tokenizer(new TokenList(text), "TokenizerTest") };
+    for (Tokenizer instance : instances)
+    {
+      instance.tokenNext();
+      assertEquals(instance.skipBranch(false), true);
+      assertEquals(instance.tokenIs("#else"), true);
+      assertEquals(instance.lineno(), 8);
+      assertEquals(instance.skipBranch(true), true);
+      assertEquals(instance.tokenIs("#endif"), true);
+      assertEquals(instance.lineno(), 10);
+      instance.tokenNext();
+      assertEquals(instance.match("g"), true);
+      instance.matchEolOrDie();
+    }
+  }
+
+  /**
+   * Test of skipBranch method, of class Tokenizer, for directives inside
+   * comments and strings in the branch being skipped.
+   */
+  @Test
+  public void testSkipBranch_quoted()
+  {
+    System.out.println("skipBranch quoted");
+    String text = "a\n/* #endif\n*/\n// #endif\n\"#endif\" '#else'\n@\"x\n#endif\"\n#endif\nb;";
+    Tokenizer[] instances = { new Tokenizer(new StringReader(text), "TokenizerTest"), new Tokenizer(new TokenList(text), "TokenizerTest") };
+    for (Tokenizer instance : instances)
+    {
+      instance.tokenNext();
+      assertEquals(instance.skipBranch(false), true);
+      assertEquals(instance.tokenIs("#endif"), true);
+      assertEquals(instance.lineno(), 8);
+      instance.tokenNext();
+      assertEquals(instance.match("b"), true);
+      instance.matchEolOrDie();
+    }
+  }
+
+  /**
+   * Test of skipBranch method, of class Tokenizer, for a branch with no
+   * directive to end it.
+   */
+  @Test
+  public void testSkipBranch_eof()
+  {
+    System.out.println("skipBranch eof");
+    Tokenizer instance = new Tokenizer(new StringReader("a\n#if b\n#endif\n"), "TokenizerTest");
+    instance.tokenNext();
+    assertEquals(instance.skipBranch(false), false);
+  }
+
+  /**
+   * Test of nextToken method, of class Tokenizer, for numbers, strings and
+   * comments.
+   */
+  @Test
+  public void testNextToken() throws IOException
+  {
+    System.out.println("nextToken");
+    Tokenizer instance = new Tokenizer(new StringReader("12 0x1F \"a\\tb\\101\\n\" 'it\\'s' `c\n@\"multi\r\nline\" /* x\r\n */ // y\r\nend"), "TokenizerTest");
+    assertEquals(instance.nextToken(), Tokenizer.TT_NUMBER);
+    assertEquals(instance.nval, 12.0, 0.0);
+    assertEquals(instance.nextToken(), Tokenizer.TT_NUMBER);
+    assertEquals(instance.nval, 31.0, 0.0);
+    assertEquals(instance.nextToken(), '"');
+    assertEquals(instance.sval, "a\tbA\n");
+    assertEquals(instance.nextToken(), '\'');
+    assertEquals(instance.sval, "it's");
+    assertEquals(instance.nextToken(), '`'); // Strings end at the end of the line.
+    assertEquals(instance.sval, "c");
+    assertEquals(instance.lineno(), 1);
+    assertEquals(instance.nextToken(), '"');
+    assertEquals(instance.sval, "multi\nline");
+    assertEquals(instance.linenoprev(), 1);
+    assertEquals(instance.lineno(), 3);
+    assertEquals(instance.nextToken(), Tokenizer.TT_WORD);
+    assertEquals(instance.sval, "end");
+    assertEquals(instance.lineno(), 5);
+    assertEquals(instance.nextToken(), Tokenizer.TT_EOF);
+  }
+
+  /**
+   * Test of tokenOffset method, of class Tokenizer.
+   */
+  @Test
+  public void testTokenOffset()
+  {
+    System.out.println("tokenOffset");
+    Tokenizer instance = new Tokenizer("ab  cd\n/* x */'e'", "TokenizerTest");
+    instance.tokenNext();
+    assertEquals(instance.tokenOffset(), 0);
+    instance.tokenNext();
+    assertEquals(instance.tokenOffset(), 4);
+    instance.tokenNext();
+    assertEquals(instance.tokenOffset(), 14);
+  }
+
+  /**
+   * Test of readUntil method, of class Tokenizer.
+   */
+  @Test
+  public void testReadUntil()
+  {
+    System.out.println("readUntil");
+    Tokenizer instance = new Tokenizer(new StringReader("a\r\nb c\r\nd#end\r\ne;"), "TokenizerTest");
+    instance.tokenNext();
+    assertEquals(instance.readUntil("#end"), "b c\nd");
+    assertEquals(instance.lineno(), 3);
+    instance.tokenNext();
+    assertEquals(instance.match("e"), true);
+    assertEquals(instance.lineno(), 4);
+    instance.matchEolOrDie();
+  }
+
+  /**
+   * Test of the Tokenizer(TokenList, String) constructor, of class Tokenizer,
+   * which must give the same tokens as reading the text.
+   */
+  @Test
+  public void testTokenList() throws IOException
+  {
+    System.out.println("TokenList");
+    String text = "a = 0x10 + 'b\\n';\r\n/* c\n */ d(\"e\", @\"f\ng\");\n#if h\n`i`";
+    Tokenizer expected = new Tokenizer(new StringReader(text), "TokenizerTest");
+    Tokenizer instance = new Tokenizer(new TokenList(text), "TokenizerTest");
+    do
+    {
+      assertEquals(instance.nextToken(), expected.nextToken());
+      assertEquals(instance.sval, expected.sval);
+      assertEquals(instance.nval, expected.nval, 0.0);
+      assertEquals(instance.lineno(), expected.lineno());
+      assertEquals(instance.linenoprev(), expected.linenoprev());
+    }
+    while (expected.ttype != Tokenizer.TT_EOF);
+  }
 }
\ No newline at end of file
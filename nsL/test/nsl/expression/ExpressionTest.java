@@ -100,50 +100,50 @@ public class ExpressionTest
     String stringValue;
     System.out.println("  " + (stringValue = Expression.matchComplex().toString()));
     assertEquals("($var1 = ($var2 = 3))", stringValue);
-    ScriptParser.tokenizer.matchEolOrDie();
+    ScriptParser.getTokenizer().matchEolOrDie();
     System.out.println("  " + (stringValue = Expression.matchComplex().toString()));
     assertEquals("($var1 = 0)", stringValue);
-    ScriptParser.tokenizer.matchEolOrDie();
+    ScriptParser.getTokenizer().matchEolOrDie();
     System.out.println("  " + (stringValue = Expression.matchComplex().toString()));
     assertEquals("($var2 = (((($var1 + $var1) + ($var1 = ($var1 + 1))) + (5 * $var1)) - 3))", stringValue);
-    ScriptParser.tokenizer.matchEolOrDie();
+    ScriptParser.getTokenizer().matchEolOrDie();
     System.out.println("  " + (stringValue = Expression.matchComplex().toString()));
     assertEquals("($var2 = (((($var1 == 5) && ($var2 == 3)) || ($var2 == 9)) || (($var1 = 9) == 3)))", stringValue);
-    ScriptParser.tokenizer.matchEolOrDie();
+    ScriptParser.getTokenizer().matchEolOrDie();
     System.out.println("  " + (stringValue = Expression.matchComplex().toString()));
     assertEquals("($var2 = ((((($var1 <= 9) || ($var2 <= 9)) || ($var2 >= 9)) || (($var2 > 9) && ($var2 < 1))) || ($var1 == 9)))", stringValue);
-    ScriptParser.tokenizer.matchEolOrDie();
+    ScriptParser.getTokenizer().matchEolOrDie();
     System.out.println("  " + (stringValue = Expression.matchComplex().toString()));
     assertEquals("($var2 = ((($var1 < 5) || (($var1 = ($var1 + 1)) < 3)) || ((($var2 = ($var2 - 1)) != 3) && (($var1 = ($var1 + 1)) >= 5))))", stringValue);
-    ScriptParser.tokenizer.matchEolOrDie();
+    ScriptParser.getTokenizer().matchEolOrDie();
     System.out.println("  " + (stringValue = Expression.matchComplex().toString()));
     assertEquals("($var2 = (((($var1 | 5) == 34) || (($var2 | 3) == 99)) || ((($var2 & 2) == 2) && ((($var3 = 3) ^ 3) == 5))))", stringValue);
-    ScriptParser.tokenizer.matchEolOrDie();
+    ScriptParser.getTokenizer().matchEolOrDie();
     System.out.println("  " + (stringValue = Expression.matchComplex().toString()));
     assertEquals("($var2 = (99 + ($var2 = ($var2 ^ ($var2 = ($var2 - ($var1 << 9)))))))", stringValue);
-    ScriptParser.tokenizer.matchEolOrDie();
+    ScriptParser.getTokenizer().matchEolOrDie();
 
     int integerValue;
     System.out.println("  " + (integerValue = Expression.matchComplex().getIntegerValue()));
     assertEquals(5 - (5 + 9) / 3 * (2 - 5) ^ 2 + 5 | (3 & 9), integerValue);
-    ScriptParser.tokenizer.matchEolOrDie();
+    ScriptParser.getTokenizer().matchEolOrDie();
     System.out.println("  " + (integerValue = Expression.matchComplex().getIntegerValue()));
     assertEquals(44 * 3 / 5 + 9 + 3 + 9 - 2, integerValue);
-    ScriptParser.tokenizer.matchEolOrDie();
+    ScriptParser.getTokenizer().matchEolOrDie();
     System.out.println("  " + (integerValue = Expression.matchComplex().getIntegerValue()));
     assertEquals(11 % 5 * 3 + 9 / ~4 - 3 - 4 + 2, integerValue);
-    ScriptParser.tokenizer.matchEolOrDie();
+    ScriptParser.getTokenizer().matchEolOrDie();
     System.out.println("  " + (integerValue = Expression.matchComplex().getIntegerValue()));
     assertEquals(9 << 2 >> 1 + (3 << 2) >> 1, integerValue);
-    ScriptParser.tokenizer.matchEolOrDie();
+    ScriptParser.getTokenizer().matchEolOrDie();
 
     boolean booleanValue;
     System.out.println("  " + (booleanValue = Expression.matchComplex().getBooleanValue()));
     assertEquals(true || false || true && false, booleanValue);
-    ScriptParser.tokenizer.matchEolOrDie();
+    ScriptParser.getTokenizer().matchEolOrDie();
     System.out.println("  " + (booleanValue = Expression.matchComplex().getBooleanValue()));
     assertEquals(true == false || false != true || true == false && false != true, booleanValue);
-    ScriptParser.tokenizer.matchEolOrDie();
+    ScriptParser.getTokenizer().matchEolOrDie();
   }
 
 }
\ No newline at end of file
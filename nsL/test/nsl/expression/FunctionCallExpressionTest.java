@@ -0,0 +1,170 @@
+/*
+ * FunctionCallExpressionTest.java
+ */
+
+package nsl.expression;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.EnumSet;
+import nsl.CompilationResult;
+import nsl.Compiler;
+import nsl.optimiser.Optimisation;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Test the {@link nsl.expression.FunctionCallExpression} class.
+ * @author Stuart
+ */
+public class FunctionCallExpressionTest
+{
+  private static final Charset charset = Charset.forName("UTF-8");
+
+  public FunctionCallExpressionTest()
+  {
+  }
+
+  @BeforeClass
+  public static void setUpClass() throws Exception
+  {
+  }
+
+  @AfterClass
+  public static void tearDownClass() throws Exception
+  {
+  }
+
+  @Before
+  public void setUp()
+  {
+  }
+
+  @After
+  public void tearDown()
+  {
+  }
+
+  /**
+   * Assembles a function Test($v) with the given body after a function B()
+   * that only changes $x through the function C() that it calls.
+   * @param streaming whether or not to assemble with /stream
+   * @param lines the lines of the function
+   * @return the assembled lines of the function separated by new lines
+   */
+  private static String assemble(boolean streaming, String... lines) throws IOException
+  {
+    File script = File.createTempFile("call", ".nsl");
+    File output = new File(script.getPath().substring(0, script.getPath().length() - 4) + ".nsi");
+    try
+    {
+      Writer writer = new OutputStreamWriter(new FileOutputStream(script), charset);
+      try
+      {
+        writer.write("function C()\n{\n  $x = 5;\n  DetailPrint($x);\n}\n");
+        writer.write("function B()\n{\n  C();\n}\n");
+        writer.write("function Test($v)\n{\n  $x = 1;\n");
+        for (String line : lines)
+          writer.write("  " + line + "\n");
+        writer.write("}\n");
+      }
+      finally
+      {
+        writer.close();
+      }
+
+      Compiler compiler = new Compiler();
+      compiler.setCharset(charset);
+      compiler.setOptimisations(EnumSet.noneOf(Optimisation.class));
+      compiler.setStreaming(streaming);
+      CompilationResult result = compiler.compile(script);
+      assertEquals(result.getErrors(), 0, result.getExitCode());
+
+      StringBuilder text = new StringBuilder();
+      Reader reader = new InputStreamReader(new FileInputStream(output), charset);
+      try
+      {
+        char[] buffer = new char[4096];
+        int read;
+        while ((read = reader.read(buffer)) != -1)
+          text.append(buffer, 0, read);
+      }
+      finally
+      {
+        reader.close();
+      }
+
+      String nsi = text.toString().replace("\r\n", "\n");
+      int start = nsi.indexOf("Function Test");
+      return nsi.substring(start, nsi.indexOf("FunctionEnd\n", start) + 12);
+    }
+    finally
+    {
+      script.delete();
+      output.delete();
+    }
+  }
+
+  /**
+   * Counts the number of times $x is saved around a call.
+   * @param function the assembled lines of the function
+   * @return the number of saves
+   */
+  private static int saves(String function)
+  {
+    int count = 0;
+    for (int index = 0; (index = function.indexOf("Push $x\nCall B\nPop $x\n", index)) != -1; index++)
+      count++;
+    return count;
+  }
+
+  /**
+   * Test of assemble method, of class FunctionCallExpression, for a variable
+   * that a called function changes further down and that is set again after
+   * the call.
+   */
+  @Test
+  public void testDeadTransitiveSave() throws Exception
+  {
+    System.out.println("assemble dead");
+    String function = assemble(false, "B();", "$x = 2;", "DetailPrint($x);");
+    assertEquals(function, 0, saves(function));
+    assertEquals(function, assemble(true, "B();", "$x = 2;", "DetailPrint($x);"));
+  }
+
+  /**
+   * Test of assemble method, of class FunctionCallExpression, for a variable
+   * that a called function changes further down and that may be read after
+   * the call.
+   */
+  @Test
+  public void testLiveTransitiveSave() throws Exception
+  {
+    System.out.println("assemble live");
+
+    // Read after the call.
+    assertEquals(1, saves(assemble(false, "B();", "$x = $x + 1;", "DetailPrint($x);")));
+
+    // Set again only on one branch.
+    assertEquals(1, saves(assemble(false, "B();", "if ($v == 1)", "  $x = 2;", "DetailPrint($x);")));
+
+    // The call is in a loop that reads the variable before the call.
+    assertEquals(1, saves(assemble(false, "while ($v < 3)", "{", "  DetailPrint($x);", "  B();", "  $x = 2;", "  $v++;", "}")));
+
+    // The variable is still set when the function returns.
+    assertEquals(1, saves(assemble(false, "B();")));
+    assertEquals(1, saves(assemble(false, "if ($v == 1)", "{", "  B();", "  return 0;", "}", "$x = 2;", "return 1;")));
+    assertEquals(1, saves(assemble(true, "B();")));
+  }
+}
@@ -0,0 +1,330 @@
+/*
+ * PeepholeOptimiserTest.java
+ */
+
+package nsl.optimiser;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import nsl.InlineHint;
+import nsl.MemoryNsiSink;
+import nsl.NsiSink;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Test the {@link nsl.optimiser.PeepholeOptimiser} class.
+ * @author Stuart
+ */
+public class PeepholeOptimiserTest
+{
+  public PeepholeOptimiserTest()
+  {
+  }
+
+  @BeforeClass
+  public static void setUpClass() throws Exception
+  {
+  }
+
+  @AfterClass
+  public static void tearDownClass() throws Exception
+  {
+  }
+
+  @Before
+  public void setUp()
+  {
+  }
+
+  @After
+  public void tearDown()
+  {
+  }
+
+  /**
+   * Optimises the body of a function with all optimisations.
+   * @param body the lines of the function body
+   * @return the optimised lines separated by new lines
+   */
+  private static String optimise(String... body)
+  {
+    ArrayList<NsiLine> lines = new ArrayList<NsiLine>();
+    for (String line : body)
+      lines.add(NsiLine.parse(line));
+
+    StringBuilder optimised = new StringBuilder();
+    for (NsiLine line : new PeepholeOptimiser(EnumSet.allOf(Optimisation.class)).optimise(lines))
+      optimised.append(line).append('\n');
+    return optimised.toString();
+  }
+
+  /**
+   * Test of parse method, of class NsiLine.
+   */
+  @Test
+  public void testParse()
+  {
+    System.out.println("parse");
+    NsiLine line = NsiLine.parse("MessageBox MB_YESNO \"Is it $\\\"on$\\\"?\" /SD IDYES IDYES _lbl_1 IDNO _lbl_2");
+    assertEquals(NsiLine.Kind.Instruction, line.getKind());
+    assertEquals(8, line.getOperands().size());
+    int[] jumps = line.getJumpOperands();
+    assertEquals(2, jumps.length);
+    assertEquals("_lbl_1", line.getOperand(jumps[0]));
+    assertEquals("_lbl_2", line.getOperand(jumps[1]));
+
+    assertEquals(NsiLine.Kind.Label, NsiLine.parse("_lbl_1:").getKind());
+    assertEquals(NsiLine.Kind.Unknown, NsiLine.parse("  !insertmacro MUI_PAGE_WELCOME").getKind());
+    assertEquals(NsiLine.Kind.Unknown, NsiLine.parse("DetailPrint \"x\" ; comment").getKind());
+  }
+
+  /**
+   * Test of jump threading and jumps to the next instruction.
+   */
+  @Test
+  public void testJumps()
+  {
+    System.out.println("jumps");
+    assertEquals(
+      "IntCmp $0 1 _lbl_2 0 _lbl_2\nDetailPrint \"a\"\n_lbl_2:\nReturn\n",
+      optimise("IntCmp $0 1 _lbl_0 _lbl_1 _lbl_0", "_lbl_1:", "DetailPrint \"a\"", "Goto _lbl_2", "_lbl_0:", "Goto _lbl_2", "_lbl_2:", "Return"));
+    assertEquals(
+      "StrCmp $0 \"\" 0 _lbl_1\nDetailPrint \"a\"\n_lbl_1:\n",
+      optimise("StrCmp $0 \"\" _lbl_0 _lbl_1", "_lbl_0:", "DetailPrint \"a\"", "_lbl_1:"));
+    assertEquals(
+      "DetailPrint \"a\"\n",
+      optimise("IntCmp $0 1 _lbl_0 _lbl_0 _lbl_0", "_lbl_0:", "DetailPrint \"a\""));
+  }
+
+  /**
+   * Test of redundant moves and pushes followed by pops.
+   */
+  @Test
+  public void testMoves()
+  {
+    System.out.println("moves");
+    assertEquals(
+      "StrCpy $1 $0\nIntOp $2 $2 + 0\n",
+      optimise("StrCpy $0 $0", "Push $0", "Pop $1", "Push $R0", "Pop $R0", "IntOp $2 $2 + 0"));
+  }
+
+  /**
+   * Test of dead code removal.
+   */
+  @Test
+  public void testDeadCode()
+  {
+    System.out.println("dead code");
+    assertEquals(
+      "user:\nDetailPrint \"b\"\nReturn\n",
+      optimise("Goto user", "DetailPrint \"a\"", "user:", "DetailPrint \"b\"", "Return", "DetailPrint \"c\""));
+  }
+
+  /**
+   * Test of constant folding.
+   */
+  @Test
+  public void testConstantFolding()
+  {
+    System.out.println("constant folding");
+    assertEquals(
+      "StrCpy $R0 5\nStrCpy $R1 20\nDetailPrint \"big\"\nReturn\n",
+      optimise("StrCpy $R0 5", "IntOp $R1 $R0 * 4", "IntCmp $R1 10 _lbl_0 _lbl_0", "DetailPrint \"big\"", "Return", "_lbl_0:", "DetailPrint \"small\""));
+    assertEquals(
+      "StrCpy $0 a\n_lbl_0:\nStrCmp $0 A 0 _lbl_1\nReadINIStr $0 \"f\" \"s\" \"k\"\nGoto _lbl_0\n_lbl_1:\n",
+      optimise("StrCpy $0 a", "_lbl_0:", "StrCmp $0 A 0 _lbl_1", "ReadINIStr $0 \"f\" \"s\" \"k\"", "Goto _lbl_0", "_lbl_1:"));
+  }
+
+  /**
+   * Test that relative jumps are replaced with labels and that bodies with
+   * relative jumps outside of them are left alone.
+   */
+  @Test
+  public void testRelativeJumps()
+  {
+    System.out.println("relative jumps");
+    assertEquals(
+      "IfErrors 0 _rel0\nDetailPrint \"a\"\nGoto _rel1\n_rel0:\nDetailPrint \"b\"\n_rel1:\nReturn\n",
+      optimise("IfErrors 0 +3", "DetailPrint \"a\"", "Goto +2", "_lbl_0:", "DetailPrint \"b\"", "Return"));
+    assertEquals(
+      "Goto +3\nStrCpy $0 $0\n",
+      optimise("Goto +3", "StrCpy $0 $0"));
+  }
+
+  /**
+   * Test that the labels that relative jumps were replaced with are turned
+   * back into relative jumps when the script is written.
+   */
+  @Test
+  public void testRestoreRelativeJumps() throws Exception
+  {
+    System.out.println("restore relative jumps");
+    MemoryNsiSink memory = new MemoryNsiSink(Charset.forName("UTF-8"));
+    NsiSink sink = new OptimisingNsiSink(memory, EnumSet.allOf(Optimisation.class));
+    sink.writeLine("Section\r\nIfErrors 0 +3\r\nDetailPrint \"a\"\r\nGoto +2\r\nDetailPrint \"b\"\r\nSectionEnd");
+    sink.close();
+    assertEquals("Section\r\nIfErrors 0 +3\r\nDetailPrint \"a\"\r\nGoto +2\r\nDetailPrint \"b\"\r\nSectionEnd\r\n", memory.getText());
+
+    ArrayList<NsiLine> lines = new ArrayList<NsiLine>();
+    for (String line : new String[] { "_rel0:", "DetailPrint \"a\"", "Goto _rel0", "_rel1:", "IfErrors _rel1" })
+      lines.add(NsiLine.parse(line));
+    assertEquals("[DetailPrint \"a\", Goto -1, _rel1:, IfErrors _rel1]", PeepholeOptimiser.restoreRelativeJumps(lines).toString());
+  }
+
+  /**
+   * Test of dead save removal.
+   */
+  @Test
+  public void testDeadSaves()
+  {
+    System.out.println("dead saves");
+    HashMap<String, int[]> signatures = new HashMap<String, int[]>();
+    signatures.put("f", new int[] { 1, 1 });
+
+    String[] body = { "Push $0", "Push $2", "Push 3", "Call f", "Pop $1", "Pop $2", "Pop $0", "IntOp $0 $1 + $2", "Push $0" };
+    ArrayList<NsiLine> lines = new ArrayList<NsiLine>();
+    for (String line : body)
+      lines.add(NsiLine.parse(line));
+    Liveness liveness = new Liveness();
+    assertTrue(Liveness.canAnalyse(lines));
+    liveness.addEntry(lines);
+
+    PeepholeOptimiser optimiser = new PeepholeOptimiser(EnumSet.of(Optimisation.DeadSaves));
+    optimiser.setLiveness(liveness);
+    optimiser.setCallSignatures(signatures);
+    StringBuilder optimised = new StringBuilder();
+    for (NsiLine line : optimiser.optimise(lines))
+      optimised.append(line).append('\n');
+    assertEquals("Push $2\nPush 3\nCall f\nPop $1\nPop $2\nIntOp $0 $1 + $2\nPush $0\n", optimised.toString());
+  }
+
+  /**
+   * Test of expand method, of class Inliner.
+   */
+  @Test
+  public void testInline()
+  {
+    System.out.println("inline");
+    HashMap<String, InlineHint> hints = new HashMap<String, InlineHint>();
+    hints.put("twice", InlineHint.Default);
+    hints.put("self", InlineHint.Default);
+    Inliner inliner = new Inliner(8, hints);
+
+    ArrayList<NsiLine> twice = new ArrayList<NsiLine>();
+    for (String line : new String[] { "Pop $n", "IntCmp $n 0 0 0 _lbl_0", "Push 0", "Return", "_lbl_0:", "IntOp $0 $n * 2", "Push $0" })
+      twice.add(NsiLine.parse(line));
+    inliner.addFunction("Twice", twice);
+    ArrayList<NsiLine> self = new ArrayList<NsiLine>();
+    for (String line : new String[] { "Pop $n", "Push $n", "Call Self" })
+      self.add(NsiLine.parse(line));
+    inliner.addFunction("Self", self);
+
+    ArrayList<NsiLine> body = new ArrayList<NsiLine>();
+    for (String line : new String[] { "Push 4", "Call Twice", "Pop $1", "Push 4", "Call Self" })
+      body.add(NsiLine.parse(line));
+
+    StringBuilder expanded = new StringBuilder();
+    for (NsiLine line : inliner.expand(body))
+      expanded.append(line).append('\n');
+    assertEquals("Push 4\nPop $n\nIntCmp $n 0 0 0 _inl1__lbl_0\nPush 0\nGoto _inl1\n_inl1__lbl_0:\nIntOp $0 $n * 2\nPush $0\n_inl1:\nPop $1\nPush 4\nCall Self\n", expanded.toString());
+  }
+
+  /**
+   * Test of allocate method, of class RegisterAllocator.
+   */
+  @Test
+  public void testRegisterAllocation()
+  {
+    System.out.println("register allocation");
+    HashMap<String, HashSet<String>> clobbers = new HashMap<String, HashSet<String>>();
+    clobbers.put("f", new HashSet<String>(Arrays.asList("$0")));
+    HashSet<String> userVars = new HashSet<String>(Arrays.asList("$a"));
+
+    ArrayList<NsiLine> temporaries = new ArrayList<NsiLine>();
+    for (String line : new String[] { "Pop $a", "IntOp $3 $a * 2", "IntOp $4 $3 + 1", "Push $4" })
+      temporaries.add(NsiLine.parse(line));
+    ArrayList<NsiLine> call = new ArrayList<NsiLine>();
+    for (String line : new String[] { "StrCpy $2 5", "Push 1", "Call f", "Pop $1", "IntOp $0 $2 + $1", "Push $0" })
+      call.add(NsiLine.parse(line));
+    Liveness liveness = new Liveness();
+    liveness.addEntry(temporaries);
+
+    RegisterAllocator allocator = new RegisterAllocator(liveness, clobbers, userVars);
+    StringBuilder allocated = new StringBuilder();
+    for (NsiLine line : allocator.allocate(temporaries))
+      allocated.append(line).append('\n');
+    assertEquals("Pop $3\nIntOp $3 $3 * 2\nIntOp $3 $3 + 1\nPush $3\n", allocated.toString());
+
+    // $0 is changed by f so it can't hold the 5 across the call.
+    allocated.setLength(0);
+    for (NsiLine line : allocator.allocate(call))
+      allocated.append(line).append('\n');
+    assertEquals("StrCpy $1 5\nPush 1\nCall f\nPop $0\nIntOp $0 $1 + $0\nPush $0\n", allocated.toString());
+
+    // f doesn't change $3 so it doesn't need saving.
+    HashMap<String, int[]> signatures = new HashMap<String, int[]>();
+    signatures.put("f", new int[] { 1, 1 });
+    ArrayList<NsiLine> saves = new ArrayList<NsiLine>();
+    for (String line : new String[] { "Push $3", "Push 1", "Call f", "Pop $2", "Pop $3", "IntOp $0 $2 + $3", "Push $0" })
+      saves.add(NsiLine.parse(line));
+    PeepholeOptimiser optimiser = new PeepholeOptimiser(EnumSet.of(Optimisation.RegisterAllocation));
+    optimiser.setCallSignatures(signatures);
+    optimiser.setClobbers(clobbers);
+    StringBuilder optimised = new StringBuilder();
+    for (NsiLine line : optimiser.optimise(saves))
+      optimised.append(line).append('\n');
+    assertEquals("Push 1\nCall f\nPop $2\nIntOp $0 $2 + $3\nPush $0\n", optimised.toString());
+  }
+
+  /**
+   * Test of write method, of class OptimisingNsiSink.
+   */
+  @Test
+  public void testSink() throws Exception
+  {
+    System.out.println("sink");
+    MemoryNsiSink memory = new MemoryNsiSink(Charset.forName("UTF-8"));
+    NsiSink sink = new OptimisingNsiSink(memory, EnumSet.allOf(Optimisation.class));
+    sink.writeLine("OutFile \"a.exe\"");
+    sink.write("Function .onInit" + NsiSink.NEW_LINE + "Goto _l");
+    sink.write("bl_0" + NsiSink.NEW_LINE + "_lbl_0:" + NsiSink.NEW_LINE);
+    sink.writeLine("FunctionEnd");
+    sink.close();
+    assertEquals("OutFile \"a.exe\"\r\nFunction .onInit\r\nFunctionEnd\r\n", memory.getText());
+  }
+
+  /**
+   * Test of removing unused functions and variables.
+   */
+  @Test
+  public void testUnused() throws Exception
+  {
+    System.out.println("unused");
+    MemoryNsiSink memory = new MemoryNsiSink(Charset.forName("UTF-8"));
+    NsiSink sink = new OptimisingNsiSink(memory, EnumSet.of(Optimisation.UnusedFunctions, Optimisation.UnusedVars));
+    sink.writeLine("Var used");
+    sink.writeLine("Var unused");
+    sink.writeLine("Var /GLOBAL user");
+    sink.writeLine("Page custom Show");
+    sink.writeLine("Function Show\r\nCall Helper\r\nFunctionEnd");
+    sink.writeLine("Function Helper\r\nStrCpy $used 1\r\nFunctionEnd");
+    sink.writeLine("Function Dead\r\nCall Dead\r\nStrCpy $unused 1\r\nFunctionEnd");
+    sink.writeLine("Function Address\r\nFunctionEnd");
+    sink.writeLine("Section\r\nGetFunctionAddress $0 Address\r\nDetailPrint $username\r\nSectionEnd");
+    sink.close();
+    assertEquals("Var used\r\nVar /GLOBAL user\r\nPage custom Show\r\n"
+      + "Function Show\r\nCall Helper\r\nFunctionEnd\r\n"
+      + "Function Helper\r\nStrCpy $used 1\r\nFunctionEnd\r\n"
+      + "Function Address\r\nFunctionEnd\r\n"
+      + "Section\r\nGetFunctionAddress $0 Address\r\nDetailPrint $username\r\nSectionEnd\r\n", memory.getText());
+  }
+}
@@ -0,0 +1,113 @@
+/*
+ * IncludeLoaderTest.java
+ */
+
+package nsl.preprocessor;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Test the {@link nsl.preprocessor.IncludeLoader} class.
+ * @author Stuart
+ */
+public class IncludeLoaderTest
+{
+  public IncludeLoaderTest()
+  {
+  }
+
+  @BeforeClass
+  public static void setUpClass() throws Exception
+  {
+  }
+
+  @AfterClass
+  public static void tearDownClass() throws Exception
+  {
+  }
+
+  @Before
+  public void setUp()
+  {
+  }
+
+  @After
+  public void tearDown()
+  {
+  }
+
+  /**
+   * Writes a temporary script.
+   * @param text the contents of the script
+   * @return the path of the script
+   */
+  private static String write(String text) throws IOException
+  {
+    File file = File.createTempFile("include", ".nsh");
+    file.deleteOnExit();
+    Writer writer = new FileWriter(file);
+    try
+    {
+      writer.write(text);
+    }
+    finally
+    {
+      writer.close();
+    }
+    return file.getPath();
+  }
+
+  /**
+   * Test of prefetch method, of class IncludeLoader, for nested #include_once
+   * directives.
+   */
+  @Test
+  public void testPrefetchIncludeOnce() throws Exception
+  {
+    System.out.println("prefetch #include_once");
+    String inner = write("#define INNER 1\n");
+    String outer = write("#include_once \"" + inner + "\"\n");
+
+    IncludeLoader loader = new IncludeLoader();
+    loader.prefetch("OutFile(\"a.exe\");\n#include_once  '" + outer + "'\n");
+    assertTrue(loader.isPending(outer));
+
+    // The included script's own #include_once is read ahead when it is taken.
+    String text = loader.take(outer);
+    assertEquals("#include_once \"" + inner + "\"\n", text);
+    assertFalse(loader.isPending(outer));
+    loader.prefetch(text);
+    assertTrue(loader.isPending(inner));
+    assertEquals("#define INNER 1\n", loader.take(inner));
+  }
+
+  /**
+   * Test of prefetch method, of class IncludeLoader, for text that only looks
+   * like an #include directive and for escaped paths.
+   */
+  @Test
+  public void testPrefetchPaths() throws Exception
+  {
+    System.out.println("prefetch paths");
+    IncludeLoader loader = new IncludeLoader();
+    loader.prefetch("#includes \"a.nsh\"\n#include_onces \"b.nsh\"\nx#include \"c.nsh\"\n#include d.nsh\n");
+    assertFalse(loader.isPending("a.nsh"));
+    assertFalse(loader.isPending("b.nsh"));
+    assertFalse(loader.isPending("c.nsh"));
+    assertFalse(loader.isPending("d.nsh"));
+
+    loader.prefetch("#include \"lib\\\\e.nsh\"\n#include_once `lib\\\\f.nsh`\n");
+    assertTrue(loader.isPending("lib\\e.nsh"));
+    assertTrue(loader.isPending("lib\\f.nsh"));
+    assertNull(loader.take("lib\\e.nsh"));
+  }
+}
@@ -0,0 +1,196 @@
+/*
+ * IncludedScriptsTest.java
+ */
+
+package nsl.preprocessor;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.EnumSet;
+import nsl.CompilationResult;
+import nsl.Compiler;
+import nsl.optimiser.Optimisation;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Test the {@link nsl.preprocessor.IncludedScripts} class.
+ * @author Stuart
+ */
+public class IncludedScriptsTest
+{
+  private static final Charset charset = Charset.forName("UTF-8");
+
+  public IncludedScriptsTest()
+  {
+  }
+
+  @BeforeClass
+  public static void setUpClass() throws Exception
+  {
+  }
+
+  @AfterClass
+  public static void tearDownClass() throws Exception
+  {
+  }
+
+  @Before
+  public void setUp()
+  {
+  }
+
+  @After
+  public void tearDown()
+  {
+  }
+
+  /**
+   * Writes a file.
+   * @param file the file
+   * @param text the contents of the file
+   */
+  private static void write(File file, String text) throws IOException
+  {
+    Writer writer = new OutputStreamWriter(new FileOutputStream(file), charset);
+    try
+    {
+      writer.write(text);
+    }
+    finally
+    {
+      writer.close();
+    }
+  }
+
+  /**
+   * Writes a temporary script to be included.
+   * @param text the contents of the script
+   * @return the path of the script
+   */
+  private static String include(String text) throws IOException
+  {
+    File file = File.createTempFile("included", ".nsh");
+    file.deleteOnExit();
+    write(file, text);
+    return file.getPath();
+  }
+
+  /**
+   * Assembles a script.
+   * @param text the contents of the script
+   * @return the assembled script separated by new lines
+   */
+  private static String assemble(String text) throws IOException
+  {
+    File script = File.createTempFile("includes", ".nsl");
+    File output = new File(script.getPath().substring(0, script.getPath().length() - 4) + ".nsi");
+    try
+    {
+      write(script, "OutFile(\"includes.exe\");\n" + text);
+
+      Compiler compiler = new Compiler();
+      compiler.setCharset(charset);
+      compiler.setOptimisations(EnumSet.noneOf(Optimisation.class));
+      CompilationResult result = compiler.compile(script);
+      assertEquals(result.getErrors(), 0, result.getExitCode());
+
+      StringBuilder builder = new StringBuilder();
+      Reader reader = new InputStreamReader(new FileInputStream(output), charset);
+      try
+      {
+        char[] buffer = new char[4096];
+        int read;
+        while ((read = reader.read(buffer)) != -1)
+          builder.append(buffer, 0, read);
+      }
+      finally
+      {
+        reader.close();
+      }
+      return builder.toString().replace("\r\n", "\n");
+    }
+    finally
+    {
+      script.delete();
+      output.delete();
+    }
+  }
+
+  /**
+   * Test of findGuard method, of class IncludedScripts, for scripts with a
+   * guard.
+   */
+  @Test
+  public void testFindGuard()
+  {
+    System.out.println("findGuard");
+    assertEquals("A_NSH", IncludedScripts.findGuard("#if (!defined(A_NSH))\n#define A_NSH\n#endif\n"));
+    assertEquals("A_NSH", IncludedScripts.findGuard("#if !defined(A_NSH)\n#define A_NSH\n#endif"));
+    assertEquals("A_NSH", IncludedScripts.findGuard("// Comment.\n#if (!defined(A_NSH))\n#if (B)\n#endif\n#endif\n// Comment.\n"));
+  }
+
+  /**
+   * Test of findGuard method, of class IncludedScripts, for scripts without a
+   * guard.
+   */
+  @Test
+  public void testFindGuard_none()
+  {
+    System.out.println("findGuard none");
+    assertNull(IncludedScripts.findGuard(""));
+    assertNull(IncludedScripts.findGuard("#define A_NSH\n"));
+    assertNull(IncludedScripts.findGuard("#if (defined(A_NSH))\n#endif\n"));
+    assertNull(IncludedScripts.findGuard("#if (!defined(A_NSH) && B)\n#endif\n"));
+    assertNull(IncludedScripts.findGuard("#if (!defined(A_NSH))\n#else\n#endif\n"));
+    assertNull(IncludedScripts.findGuard("#if (!defined(A_NSH))\n#endif\n#define B\n"));
+    assertNull(IncludedScripts.findGuard("#if (!defined(A_NSH))\n#define A_NSH\n"));
+  }
+
+  /**
+   * Test of canSkipPath and canSkipContents methods, of class
+   * IncludedScripts, for a script included twice with #include_once and a
+   * copy of it.
+   */
+  @Test
+  public void testIncludeOnce() throws Exception
+  {
+    System.out.println("include once");
+    String text = "#macro Plain()\n  DetailPrint(\"plain\");\n#macroend\n";
+    String path = include(text);
+    String copy = include(text);
+    String nsi = assemble(
+      "#include_once \"" + path + "\"\n" +
+      "#include_once \"" + path + "\"\n" +
+      "#include_once \"" + copy + "\"\n" +
+      "section Test()\n{\n  Plain();\n}\n");
+    assertTrue(nsi, nsi.contains("DetailPrint \"plain\"\n"));
+  }
+
+  /**
+   * Test of canSkipPath and canSkipContents methods, of class
+   * IncludedScripts, for a guarded script included twice.
+   */
+  @Test
+  public void testIncludeGuarded() throws Exception
+  {
+    System.out.println("include guarded");
+    String path = include("#if (!defined(GUARDED_NSH))\n#define GUARDED_NSH\n#macro Guarded()\n  DetailPrint(\"guarded\");\n#macroend\n#endif\n");
+    String nsi = assemble(
+      "#include \"" + path + "\"\n" +
+      "#include \"" + path + "\"\n" +
+      "section Test()\n{\n  Guarded();\n}\n");
+    assertTrue(nsi, nsi.contains("DetailPrint \"guarded\"\n"));
+  }
+}
@@ -0,0 +1,216 @@
+/*
+ * MacroTest.java
+ */
+
+package nsl.preprocessor;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.EnumSet;
+import nsl.CompilationResult;
+import nsl.Compiler;
+import nsl.optimiser.Optimisation;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Test the {@link nsl.preprocessor.Macro} class.
+ * @author Stuart
+ */
+public class MacroTest
+{
+  private static final Charset charset = Charset.forName("UTF-8");
+
+  public MacroTest()
+  {
+  }
+
+  @BeforeClass
+  public static void setUpClass() throws Exception
+  {
+  }
+
+  @AfterClass
+  public static void tearDownClass() throws Exception
+  {
+  }
+
+  @Before
+  public void setUp()
+  {
+  }
+
+  @After
+  public void tearDown()
+  {
+  }
+
+  /**
+   * Compiles a script.
+   * @param script the script file
+   * @param lines the lines of the script
+   * @return the compilation result
+   */
+  private static CompilationResult compile(File script, String... lines) throws IOException
+  {
+    Writer writer = new OutputStreamWriter(new FileOutputStream(script), charset);
+    try
+    {
+      writer.write("OutFile(\"macro.exe\");\n");
+      for (String line : lines)
+        writer.write(line + "\n");
+    }
+    finally
+    {
+      writer.close();
+    }
+
+    Compiler compiler = new Compiler();
+    compiler.setCharset(charset);
+    compiler.setOptimisations(EnumSet.noneOf(Optimisation.class));
+    return compiler.compile(script);
+  }
+
+  /**
+   * Assembles a script.
+   * @param lines the lines of the script
+   * @return the assembled section separated by new lines
+   */
+  private static String assemble(String... lines) throws IOException
+  {
+    File script = File.createTempFile("macro", ".nsl");
+    File output = new File(script.getPath().substring(0, script.getPath().length() - 4) + ".nsi");
+    try
+    {
+      CompilationResult result = compile(script, lines);
+      assertEquals(result.getErrors(), 0, result.getExitCode());
+
+      StringBuilder text = new StringBuilder();
+      Reader reader = new InputStreamReader(new FileInputStream(output), charset);
+      try
+      {
+        char[] buffer = new char[4096];
+        int read;
+        while ((read = reader.read(buffer)) != -1)
+          text.append(buffer, 0, read);
+      }
+      finally
+      {
+        reader.close();
+      }
+
+      String nsi = text.toString().replace("\r\n", "\n");
+      int start = nsi.indexOf("Section ");
+      return nsi.substring(start, nsi.indexOf("SectionEnd\n", start) + 11);
+    }
+    finally
+    {
+      script.delete();
+      output.delete();
+    }
+  }
+
+  /**
+   * Compiles a script that fails to compile.
+   * @param lines the lines of the script
+   * @return the error messages
+   */
+  private static String errors(String... lines) throws IOException
+  {
+    File script = File.createTempFile("macro", ".nsl");
+    File output = new File(script.getPath().substring(0, script.getPath().length() - 4) + ".nsi");
+    try
+    {
+      CompilationResult result = compile(script, lines);
+      assertFalse(result.succeeded());
+      return result.getErrors().replace("\r\n", "\n");
+    }
+    finally
+    {
+      script.delete();
+      output.delete();
+    }
+  }
+
+  /**
+   * Test of evaluate method, of class Macro, for a macro inserted last of all
+   * by another macro as the body of an "if" statement.
+   */
+  @Test
+  public void testTailInsertionIf() throws Exception
+  {
+    System.out.println("evaluate tail if");
+    String section = assemble(
+      "#macro Inner()", "  DetailPrint(\"inner\");", "#macroend",
+      "#macro Outer()", "  if ($R0 == 1)", "    Inner();", "#macroend",
+      "section Test()", "{", "  $R0 = 0;", "  Outer();", "}");
+    assertTrue(section, section.contains("_lbl_0:\nDetailPrint \"inner\"\n_lbl_1:\n"));
+  }
+
+  /**
+   * Test of evaluate method, of class Macro, for a macro that inserts itself
+   * last of all as the body of a "while" statement.
+   */
+  @Test
+  public void testTailInsertionWhile() throws Exception
+  {
+    System.out.println("evaluate tail while");
+    String section = assemble(
+      "#macro Loop(N)", "  #if (N > 0)", "    while ($R1 < N)", "      Loop(N - 1);", "  #endif", "#macroend",
+      "section Test()", "{", "  $R1 = 0;", "  Loop(2);", "}");
+    assertEquals(
+      "Section \"\" Test\n" +
+      "StrCpy $R1 0\n" +
+      "_lbl_0:\n" +
+      "IntCmp $R1 2 _lbl_1 _lbl_2 _lbl_1\n" +
+      "_lbl_2:\n" +
+      "_lbl_3:\n" +
+      "IntCmp $R1 1 _lbl_4 _lbl_5 _lbl_4\n" +
+      "_lbl_5:\n" +
+      "Goto _lbl_3\n" +
+      "_lbl_4:\n" +
+      "Goto _lbl_0\n" +
+      "_lbl_1:\n" +
+      "SectionEnd\n", section);
+  }
+
+  /**
+   * Test of evaluate method, of class Macro, for a macro that inserts itself
+   * last of all too many times to evaluate each one inside the last.
+   */
+  @Test
+  public void testTailInsertionDeep() throws Exception
+  {
+    System.out.println("evaluate tail deep");
+    String section = assemble(
+      "#macro Loop(N)", "  #if (N > 0)", "    Loop(N - 1);", "  #endif", "#macroend",
+      "section Test()", "{", "  Loop(20000);", "  DetailPrint(\"done\");", "}");
+    assertEquals("Section \"\" Test\nDetailPrint \"done\"\nSectionEnd\n", section);
+  }
+
+  /**
+   * Test of evaluate method, of class Macro, for an error in a macro inserted
+   * last of all by another macro.
+   */
+  @Test
+  public void testTailInsertionError() throws Exception
+  {
+    System.out.println("evaluate tail error");
+    String errors = errors(
+      "#macro Inner()", "  foo bar;", "#macroend",
+      "#macro Outer()", "  DetailPrint(\"outer\");", "  Inner();", "#macroend",
+      "section Test()", "{", "  Outer();", "}");
+    assertTrue(errors, errors.contains("Error in macro \"Outer\" on line 2:\n  Error in macro \"Inner\" on line 1:\n"));
+  }
+}
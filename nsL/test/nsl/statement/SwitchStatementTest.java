@@ -0,0 +1,299 @@
+/*
+ * SwitchStatementTest.java
+ */
+
+package nsl.statement;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.HashMap;
+import nsl.CompilationResult;
+import nsl.Compiler;
+import nsl.optimiser.NsiLine;
+import nsl.optimiser.Optimisation;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Test the {@link nsl.statement.SwitchStatement} class.
+ * @author Stuart
+ */
+public class SwitchStatementTest
+{
+  private static final Charset charset = Charset.forName("UTF-8");
+
+  public SwitchStatementTest()
+  {
+  }
+
+  @BeforeClass
+  public static void setUpClass() throws Exception
+  {
+  }
+
+  @AfterClass
+  public static void tearDownClass() throws Exception
+  {
+  }
+
+  @Before
+  public void setUp()
+  {
+  }
+
+  @After
+  public void tearDown()
+  {
+  }
+
+  /**
+   * Assembles a function Test($v) whose body is a switch on $v with the given
+   * cases, dispatching the switch with the SwitchDispatch optimisation.
+   * @param cases the case lines of the switch
+   * @return the assembled lines of the function separated by new lines
+   */
+  private static String assemble(String... cases) throws IOException
+  {
+    File script = File.createTempFile("switch", ".nsl");
+    File output = new File(script.getPath().substring(0, script.getPath().length() - 4) + ".nsi");
+    try
+    {
+      Writer writer = new OutputStreamWriter(new FileOutputStream(script), charset);
+      try
+      {
+        writer.write("#define M1 -1\n#define M2 -2\n#define M100 -100\n");
+        writer.write("function Test($v)\n{\n  switch ($v)\n  {\n");
+        for (String line : cases)
+          writer.write("    " + line + "\n");
+        writer.write("  }\n}\n");
+      }
+      finally
+      {
+        writer.close();
+      }
+
+      Compiler compiler = new Compiler();
+      compiler.setCharset(charset);
+      compiler.setOptimisations(EnumSet.of(Optimisation.SwitchDispatch));
+      CompilationResult result = compiler.compile(script);
+      assertEquals(result.getErrors(), 0, result.getExitCode());
+
+      StringBuilder text = new StringBuilder();
+      Reader reader = new InputStreamReader(new FileInputStream(output), charset);
+      try
+      {
+        char[] buffer = new char[4096];
+        int read;
+        while ((read = reader.read(buffer)) != -1)
+          text.append(buffer, 0, read);
+      }
+      finally
+      {
+        reader.close();
+      }
+
+      String nsi = text.toString().replace("\r\n", "\n");
+      return nsi.substring(nsi.indexOf("Function Test\n"), nsi.indexOf("FunctionEnd\n") + 12);
+    }
+    finally
+    {
+      script.delete();
+      output.delete();
+    }
+  }
+
+  /**
+   * Follows the assembled function for the given value of $v, as NSIS would
+   * run it, until it reaches a DetailPrint or the end of the function.
+   * @param function the assembled lines of the function
+   * @param value the value of $v
+   * @return the text of the DetailPrint reached or <code>null</code> if no
+   * case was matched
+   */
+  private static String dispatch(String function, int value)
+  {
+    ArrayList<NsiLine> instructions = new ArrayList<NsiLine>();
+    HashMap<String, Integer> labels = new HashMap<String, Integer>();
+    for (String text : function.split("\n"))
+    {
+      NsiLine line = NsiLine.parse(text);
+      if (line.getKind() == NsiLine.Kind.Label)
+        labels.put(line.getLabel(), Integer.valueOf(instructions.size()));
+      else
+        instructions.add(line);
+    }
+
+    HashMap<String, Integer> registers = new HashMap<String, Integer>();
+    registers.put("$v", Integer.valueOf(value));
+    int next = 2;
+    for (int steps = 0; steps < instructions.size() * 2; steps++)
+    {
+      NsiLine line = instructions.get(next++);
+      String target = null;
+      if (line.is("FunctionEnd"))
+      {
+        return null;
+      }
+      else if (line.is("DetailPrint"))
+      {
+        String text = line.getOperand(0);
+        return text.substring(1, text.length() - 1);
+      }
+      else if (line.is("Goto"))
+      {
+        target = line.getOperand(0);
+      }
+      else if (line.is("GetLabelAddress"))
+      {
+        registers.put(line.getOperand(0), labels.get(line.getOperand(1)));
+      }
+      else if (line.is("IntOp"))
+      {
+        int left = valueOf(registers, line.getOperand(1));
+        int right = valueOf(registers, line.getOperand(3));
+        registers.put(line.getOperand(0), Integer.valueOf(line.getOperand(2).equals("+") ? left + right : left - right));
+      }
+      else if (line.is("IntCmp") || line.is("IntCmpU"))
+      {
+        long left = valueOf(registers, line.getOperand(0));
+        long right = valueOf(registers, line.getOperand(1));
+        if (line.is("IntCmpU"))
+        {
+          left &= 0xFFFFFFFFL;
+          right &= 0xFFFFFFFFL;
+        }
+        target = line.getOperand(left == right ? 2 : left < right ? 3 : 4);
+      }
+      else
+      {
+        fail("Unexpected instruction " + line);
+      }
+
+      if (target != null && !NsiLine.isNext(target))
+        next = target.startsWith("$") ? registers.get(target).intValue() : labels.get(target).intValue();
+    }
+    fail("The switch did not finish");
+    return null;
+  }
+
+  /**
+   * Gets the value of a register or an integer.
+   * @param registers the values of the registers
+   * @param operand the register or integer
+   * @return the value
+   */
+  private static int valueOf(HashMap<String, Integer> registers, String operand)
+  {
+    if (operand.startsWith("$"))
+      return registers.get(operand).intValue();
+    return Integer.parseInt(operand);
+  }
+
+  /**
+   * Test of assembleJumpTable method, of class SwitchStatement.
+   */
+  @Test
+  public void testJumpTable() throws Exception
+  {
+    System.out.println("assembleJumpTable");
+    String function = assemble(
+      "case M2: DetailPrint(\"-2\"); break;",
+      "case M1: DetailPrint(\"-1\"); break;",
+      "case 0: DetailPrint(\"0\"); break;",
+      "case 1: DetailPrint(\"1\"); break;",
+      "case 1: DetailPrint(\"1 again\"); break;",
+      "case 3: DetailPrint(\"3\"); break;",
+      "case 4: DetailPrint(\"4\"); break;",
+      "case 5: DetailPrint(\"5\"); break;",
+      "case 6: DetailPrint(\"6\"); break;",
+      "default: DetailPrint(\"default\"); break;");
+    assertTrue(function, function.contains(
+        "IntOp $0 $v - -2\n"
+      + "IntCmpU $0 8 0 0 _lbl_9\n"
+      + "GetLabelAddress $1 _lbl_12\n"
+      + "IntOp $1 $1 + $0\n"
+      + "Goto $1\n"
+      + "_lbl_12:\n"
+      + "Goto _lbl_0\nGoto _lbl_1\nGoto _lbl_2\nGoto _lbl_3\nGoto _lbl_9\n"
+      + "Goto _lbl_5\nGoto _lbl_6\nGoto _lbl_7\nGoto _lbl_8\n"
+      + "_lbl_10:\n"));
+
+    assertEquals("-2", dispatch(function, -2));
+    assertEquals("-1", dispatch(function, -1));
+    assertEquals("0", dispatch(function, 0));
+    assertEquals("1", dispatch(function, 1));
+    assertEquals("default", dispatch(function, 2));
+    assertEquals("6", dispatch(function, 6));
+    assertEquals("default", dispatch(function, -3));
+    assertEquals("default", dispatch(function, 7));
+    assertEquals("default", dispatch(function, Integer.MIN_VALUE));
+    assertEquals("default", dispatch(function, Integer.MAX_VALUE));
+  }
+
+  /**
+   * Test of assembleCompareTree method, of class SwitchStatement.
+   */
+  @Test
+  public void testCompareTree() throws Exception
+  {
+    System.out.println("assembleCompareTree");
+    String function = assemble(
+      "case M100: DetailPrint(\"-100\"); break;",
+      "case 5: DetailPrint(\"5\"); break;",
+      "case 5: DetailPrint(\"5 again\"); break;",
+      "case 1000: DetailPrint(\"1000\"); break;",
+      "case 70000: DetailPrint(\"70000\"); break;");
+    assertTrue(function, function.contains(
+        "IntCmp $v 5 _lbl_1 0 _lbl_7\n"
+      + "IntCmp $v -100 _lbl_0 _lbl_5 _lbl_5\n"
+      + "_lbl_7:\n"
+      + "IntCmp $v 1000 _lbl_3 _lbl_5 _lbl_8\n"
+      + "_lbl_8:\n"
+      + "IntCmp $v 70000 _lbl_4 _lbl_5 _lbl_5\n"
+      + "_lbl_5:\n"));
+
+    assertEquals("-100", dispatch(function, -100));
+    assertEquals("5", dispatch(function, 5));
+    assertEquals("1000", dispatch(function, 1000));
+    assertEquals("70000", dispatch(function, 70000));
+    assertNull(dispatch(function, 0));
+    assertNull(dispatch(function, -101));
+    assertNull(dispatch(function, 999));
+    assertNull(dispatch(function, 70001));
+    assertNull(dispatch(function, Integer.MIN_VALUE));
+  }
+
+  /**
+   * Test of assembleCompareTree method, of class SwitchStatement, for cases
+   * that are dense but too few for a jump table.
+   */
+  @Test
+  public void testFewCases() throws Exception
+  {
+    System.out.println("assembleCompareTree few");
+    String function = assemble(
+      "case M2: DetailPrint(\"-2\"); break;",
+      "case M1: DetailPrint(\"-1\"); break;",
+      "case 0: DetailPrint(\"0\"); break;",
+      "case 1: DetailPrint(\"1\"); break;",
+      "default: DetailPrint(\"default\"); break;");
+    assertFalse(function, function.contains("GetLabelAddress"));
+    for (int value = -2; value <= 1; value++)
+      assertEquals(String.valueOf(value), dispatch(function, value));
+    assertEquals("default", dispatch(function, -3));
+    assertEquals("default", dispatch(function, 2));
+  }
+}